@@ -1,12 +1,15 @@
 package comp90015.idxsrv;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 
 import org.apache.commons.cli.*;
 
+import comp90015.idxsrv.server.AcceptQueue;
 import comp90015.idxsrv.server.Server;
 import comp90015.idxsrv.server.ServerTextGUI;
 
@@ -22,11 +25,31 @@ public class IdxSrv
 	private static void help() {
 		final PrintWriter writer = new PrintWriter(System.out);
 		HelpFormatter formatter = new HelpFormatter();
-	    formatter.printHelp("[-h] [-p <PORT>] [-a <HOSTIP>] [-w <WELCOME>] [-s <SECRET>] [-t <TIMEOUTMS>]", options);
+	    formatter.printHelp("[-h] [-p <PORT>] [-a <HOSTIP>] [-w <WELCOME>] [-s <SECRET>] [-t <TIMEOUTMS>] [-k <KEEPALIVEMS>] [-n <WORKERS>] [-q <QUEUE>] [-m <MODE>] [-d <DATADIR>] [-l <LEASEMS>] [-c <HOST:PORT,...>] [-f <HOST:PORT,...>] [-g <MAXLAGMS>] [-r <CACHE>] [-u <RATE>] [-x <CLUSTERKEY>] [-P <HOST:PORT>]", options);
 	    writer.flush();
 	    System.exit(0);
 	}
 	
+	/**
+	 * Parse a list of index servers, each resolved to its ip address.
+	 * @param nodes HOST:PORT,...
+	 * @param stg the logger, to warn of servers that are not given properly
+	 * @return the servers, IP:PORT
+	 */
+	private static ArrayList<String> parseNodes(String nodes, ServerTextGUI stg) {
+		ArrayList<String> parsed = new ArrayList<String>();
+		for(String node : nodes.split(",")) {
+			int colon = node.lastIndexOf(':');
+			try {
+				parsed.add(InetAddress.getByName(node.substring(0,colon)).getHostAddress()
+						+":"+Integer.parseInt(node.substring(colon+1)));
+			} catch (UnknownHostException | NumberFormatException | StringIndexOutOfBoundsException e) {
+				stg.logWarn("The index server should be given as HOST:PORT ["+node+"]");
+			}
+		}
+		return parsed;
+	}
+	
     public static void main( String[] args ) throws IOException
     {
     	int port = 3200;
@@ -34,6 +57,18 @@ public class IdxSrv
     	String dir = System.getProperty("user.dir");
     	String secret = "server123";
     	int timeout = 1000;
+    	int keepAlive = 0;
+    	int workers = Runtime.getRuntime().availableProcessors();
+    	int queueCapacity = AcceptQueue.DEFAULT_CAPACITY;
+    	Server.MODE mode = Server.MODE.BLOCKING;
+    	File dataDir = null;
+    	long lease = 5*60*1000;
+    	ArrayList<String> cluster = new ArrayList<String>();
+    	ArrayList<String> leaders = new ArrayList<String>();
+    	long maxLag = 5*1000;
+    	int cacheSize = 1024;
+    	double rate = 0;
+    	String clusterKey = null;
     	InetAddress address = InetAddress.getByName("localhost");
     	Option helpOption = new Option("h","help",false,"help");
     	helpOption.setRequired(false);
@@ -53,6 +88,45 @@ public class IdxSrv
     	Option timeoutOption = new Option("t","timeout",true,"the default socket timeout in milliseconds; default ["+timeout+"]");
     	timeoutOption.setRequired(false);
     	options.addOption(timeoutOption);
+    	Option keepAliveOption = new Option("k","keepalive",true,"the idle timeout in milliseconds of a multi-request session, 0 for one request per connection; default ["+keepAlive+"]");
+    	keepAliveOption.setRequired(false);
+    	options.addOption(keepAliveOption);
+    	Option workersOption = new Option("n","workers",true,"the number of worker threads processing requests; default ["+workers+"]");
+    	workersOption.setRequired(false);
+    	options.addOption(workersOption);
+    	Option queueOption = new Option("q","queue",true,"the number of connections that may wait to be processed before new ones are rejected as busy; default ["+queueCapacity+"]");
+    	queueOption.setRequired(false);
+    	options.addOption(queueOption);
+    	Option modeOption = new Option("m","mode",true,"how connections are served, blocking, virtual or nio; default ["+mode.name().toLowerCase()+"]");
+    	modeOption.setRequired(false);
+    	options.addOption(modeOption);
+    	Option dataOption = new Option("d","data",true,"the directory to log the index to, so that it survives a restart; default [none, the index is kept in memory only]");
+    	dataOption.setRequired(false);
+    	options.addOption(dataOption);
+    	Option leaseOption = new Option("l","lease",true,"how long in milliseconds a peer's shares last without a heartbeat, 0 for never to expire; default ["+lease+"]");
+    	leaseOption.setRequired(false);
+    	options.addOption(leaseOption);
+    	Option clusterOption = new Option("c","cluster",true,"the other index servers to spread the index across, HOST:PORT,..., which must share this server's secret and cluster key; default [none]");
+    	clusterOption.setRequired(false);
+    	options.addOption(clusterOption);
+    	Option followOption = new Option("f","follow",true,"the leaders, HOST:PORT,..., to follow as a read replica, trying each in turn until one can be followed, which must share this server's secret and cluster key and not serve in nio mode; default [none, this server is a leader]");
+    	followOption.setRequired(false);
+    	options.addOption(followOption);
+    	Option maxLagOption = new Option("g","maxlag",true,"how far in milliseconds a replica may fall behind its leader before it refuses searches and lookups; default ["+maxLag+"]");
+    	maxLagOption.setRequired(false);
+    	options.addOption(maxLagOption);
+    	Option cacheOption = new Option("r","cache",true,"the number of search replies cached, 0 for none; default ["+cacheSize+"]");
+    	cacheOption.setRequired(false);
+    	options.addOption(cacheOption);
+    	Option rateOption = new Option("u","rate",true,"the number of requests per second each client address may make, 0 for no limit; default ["+rate+"]");
+    	rateOption.setRequired(false);
+    	options.addOption(rateOption);
+    	Option clusterKeyOption = new Option("x","clusterkey",true,"the key that only the servers of a cluster, and its leaders and replicas, share, which clients must not know; default [none, requests from other servers are refused]");
+    	clusterKeyOption.setRequired(false);
+    	options.addOption(clusterKeyOption);
+    	Option promoteOption = new Option("P","promote",true,"promote the replica at HOST:PORT to a leader, when its leader has died, signing the request with the cluster key, and exit; default [none, run a server]");
+    	promoteOption.setRequired(false);
+    	options.addOption(promoteOption);
     	CommandLineParser parser = new DefaultParser();
     	CommandLine cmd;
     	ServerTextGUI stg = new ServerTextGUI();
@@ -94,6 +168,121 @@ public class IdxSrv
 	    			stg.logWarn("The socket timeout (in milliseconds) should be an integer greater than zero ["+cmd.getOptionValue("p")+"]");
 	    		}
 	    	}
+	    	if(cmd.hasOption("k")) {
+	    		try {
+	    			keepAlive = Integer.parseInt(cmd.getOptionValue("k"));
+	    			if(keepAlive<0) {
+	    				keepAlive=0;
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			stg.logWarn("The keep-alive time (in milliseconds) should be an integer greater than zero ["+cmd.getOptionValue("k")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("n")) {
+	    		try {
+	    			workers = Integer.parseInt(cmd.getOptionValue("n"));
+	    			if(workers<1) {
+	    				workers=1;
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			stg.logWarn("The number of workers should be an integer greater than zero ["+cmd.getOptionValue("n")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("q")) {
+	    		try {
+	    			queueCapacity = Integer.parseInt(cmd.getOptionValue("q"));
+	    			if(queueCapacity<1) {
+	    				queueCapacity=1;
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			stg.logWarn("The queue capacity should be an integer greater than zero ["+cmd.getOptionValue("q")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("m")) {
+	    		try {
+	    			mode = Server.MODE.valueOf(cmd.getOptionValue("m").toUpperCase());
+	    		} catch (IllegalArgumentException e) {
+	    			stg.logWarn("The mode should be one of blocking, virtual or nio ["+cmd.getOptionValue("m")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("d")) {
+	    		dataDir = new File(cmd.getOptionValue("d"));
+	    	}
+	    	if(cmd.hasOption("l")) {
+	    		try {
+	    			lease = Long.parseLong(cmd.getOptionValue("l"));
+	    			if(lease<0) {
+	    				lease=0;
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			stg.logWarn("The lease time (in milliseconds) should be an integer, 0 for never to expire ["+cmd.getOptionValue("l")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("x")) {
+	    		clusterKey = cmd.getOptionValue("x");
+	    	}
+	    	if(cmd.hasOption("c")) {
+	    		cluster = parseNodes(cmd.getOptionValue("c"),stg);
+	    	}
+	    	if(cmd.hasOption("f")) {
+	    		leaders = parseNodes(cmd.getOptionValue("f"),stg);
+	    		if(!leaders.isEmpty() && !cluster.isEmpty()) {
+	    			stg.logWarn("A replica follows its leader's whole index, ignoring the cluster.");
+	    			cluster.clear();
+	    		}
+	    		if(!leaders.isEmpty() && dataDir!=null) {
+	    			stg.logWarn("A replica keeps its index in memory only, ignoring the data directory.");
+	    			dataDir=null;
+	    		}
+	    		if(!leaders.isEmpty() && mode==Server.MODE.NIO) {
+	    			stg.logWarn("A replica cannot be served in nio mode, using virtual mode instead.");
+	    			mode=Server.MODE.VIRTUAL;
+	    		}
+	    	}
+	    	if(clusterKey==null && (!cluster.isEmpty() || !leaders.isEmpty())) {
+	    		stg.logWarn("The servers of a cluster, and replicas, must share a cluster key, see -x, running alone.");
+	    		cluster.clear();
+	    		leaders.clear();
+	    	}
+	    	if(cmd.hasOption("g")) {
+	    		try {
+	    			maxLag = Long.parseLong(cmd.getOptionValue("g"));
+	    			if(maxLag<1) {
+	    				maxLag=1;
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			stg.logWarn("The maximum lag (in milliseconds) should be an integer greater than zero ["+cmd.getOptionValue("g")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("r")) {
+	    		try {
+	    			cacheSize = Integer.parseInt(cmd.getOptionValue("r"));
+	    			if(cacheSize<0) {
+	    				cacheSize=0;
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			stg.logWarn("The query cache size should be an integer, 0 for none ["+cmd.getOptionValue("r")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("u")) {
+	    		try {
+	    			rate = Double.parseDouble(cmd.getOptionValue("u"));
+	    			if(rate<0) {
+	    				rate=0;
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			stg.logWarn("The request rate should be a number, 0 for no limit ["+cmd.getOptionValue("u")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("P")) {
+	    		ArrayList<String> replica = parseNodes(cmd.getOptionValue("P"),stg);
+	    		if(clusterKey==null) {
+	    			stg.logError("A replica can only be promoted with the cluster key, see -x.");
+	    		} else if(replica.size()==1) {
+	    			stg.logInfo(Server.promote(replica.get(0),secret,clusterKey,timeout));
+	    		}
+	    		return;
+	    	}
 		} catch (ParseException e1) {
 			help();
 		}
@@ -101,9 +290,21 @@ public class IdxSrv
 		stg.logInfo(welcome);
     	stg.logInfo("using internet address ["+address.getHostName()+":"+port+"]");
     	stg.logInfo("server secret ["+secret+"]");
+    	stg.logInfo("cluster key ["+(clusterKey==null?"none":"set")+"]");
     	stg.logInfo("socket timeout ["+timeout+"]");
+    	stg.logInfo("session keep-alive ["+keepAlive+"]");
+    	stg.logInfo("worker threads ["+workers+"]");
+    	stg.logInfo("incoming queue capacity ["+queueCapacity+"]");
+    	stg.logInfo("mode ["+mode.name().toLowerCase()+"]");
+    	stg.logInfo("index data directory ["+(dataDir==null?"none":dataDir.getPath())+"]");
+    	stg.logInfo("sharer lease ["+lease+"]");
+    	stg.logInfo("cluster ["+(cluster.isEmpty()?"none":String.join(",",cluster))+"]");
+    	stg.logInfo("following ["+(leaders.isEmpty()?"none":String.join(",",leaders))+"]");
+    	stg.logInfo("replica maximum lag ["+maxLag+"]");
+    	stg.logInfo("query cache size ["+cacheSize+"]");
+    	stg.logInfo("client request rate ["+(rate>0?rate+"/s":"no limit")+"]");
     	
-    	Server server = new Server(port,address,welcome,dir,secret,timeout,stg);
+    	Server server = new Server(port,address,welcome,dir,secret,clusterKey,timeout,keepAlive,workers,queueCapacity,mode,dataDir,lease,cluster,leaders,maxLag,cacheSize,rate,stg);
     	server.start();
     	try {
 			server.join();
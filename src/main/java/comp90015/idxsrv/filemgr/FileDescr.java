@@ -70,6 +70,22 @@ public class FileDescr {
 		init(file);
 	}
 	
+	/**
+	 * Create a file descriptor from hashes that were computed before, for example
+	 * when an index is reloaded. If the file is empty the block hashes are ignored.
+	 * @param fileLength the file's length in bytes
+	 * @param blockLength the block length
+	 * @param fileMd5 the MD5 hash of the file's content
+	 * @param blockMd5 the MD5 hash of each block, one for each block of the file
+	 */
+	public FileDescr(long fileLength, int blockLength, String fileMd5, String[] blockMd5) {
+		this.fileLength=fileLength;
+		this.blockLength=blockLength;
+		this.fileMd5=fileMd5;
+		this.blockMd5=fileLength>0 ? blockMd5 : new String[0];
+		numBlocks = this.blockMd5.length;
+	}
+
 	private void init(RandomAccessFile file) throws IOException, NoSuchAlgorithmException {
 		blockMd5 = new String[numBlocks];
 		MessageDigest fileDigest = MessageDigest.getInstance("MD5");
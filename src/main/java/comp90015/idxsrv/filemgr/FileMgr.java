@@ -3,6 +3,8 @@ package comp90015.idxsrv.filemgr;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashSet;
@@ -143,6 +145,34 @@ public class FileMgr {
 		throw new BlockUnavailableException();
 	}
 	
+	/**
+	 * Transfer the block's bytes from the file to a channel, such as a socket's. The
+	 * bytes are not read into the application, so the operating system can send them
+	 * from the page cache without copying them, see {@link FileChannel#transferTo}.
+	 * @param blockIdx the index of the block, which must be less than the number of blocks
+	 * @param target the channel to write the bytes to, which must be in blocking mode
+	 * @return the number of bytes transferred
+	 * @throws IOException if the file or the channel cannot be accessed
+	 * @throws BlockUnavailableException if the file does not contain the bytes for the block at that block index, i.e. the file is incomplete
+	 */
+	public int transferBlock(int blockIdx, WritableByteChannel target) throws IOException, BlockUnavailableException {
+		if(!blocksDone.contains(blockIdx)){
+			throw new BlockUnavailableException();
+		}
+		int numBytes = fileDescr.getNumBlockBytes(blockIdx);
+		long offset = fileDescr.getBlockOffset(blockIdx);
+		FileChannel channel = file.getChannel();
+		long sent = 0;
+		while(sent<numBytes) {
+			long n = channel.transferTo(offset+sent,numBytes-sent,target);
+			if(n<=0) {
+				throw new IOException("File is shorter than its descriptor");
+			}
+			sent+=n;
+		}
+		return numBytes;
+	}
+	
 	/**
 	 * Check if a block is available.
 	 * @param blockIdx the index of the block
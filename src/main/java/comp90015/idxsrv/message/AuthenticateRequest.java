@@ -6,6 +6,12 @@ public class AuthenticateRequest extends Message {
 	@JsonElement
 	public String secret;
 	
+	/**
+	 * The framing the client asks to switch to after the handshake, see {@link MessageFramer}.
+	 */
+	@JsonElement(optional=true)
+	public String framing;
+	
 	public AuthenticateRequest() {
 		
 	}
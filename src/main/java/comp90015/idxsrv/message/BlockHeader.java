@@ -0,0 +1,29 @@
+package comp90015.idxsrv.message;
+
+/**
+ * Sent in place of a {@link BlockReply} to a downloader that asked for binary framing,
+ * and followed on the connection by the length bytes of the block, raw.
+ */
+@JsonSerializable
+public class BlockHeader extends Message  {
+    @JsonElement
+    public String filename;
+    @JsonElement
+    public String fileMd5;
+    @JsonElement
+    public Integer blockIdx;
+    @JsonElement
+    public Integer length;
+    // the framing the uploader agrees to switch to, see MessageFramer
+    @JsonElement(optional=true)
+    public String framing;
+
+    public BlockHeader(){}
+
+    public BlockHeader(String filename, String fileMd5, Integer blockIdx, Integer length) {
+        this.filename = filename;
+        this.fileMd5 = fileMd5;
+        this.blockIdx = blockIdx;
+        this.length = length;
+    }
+}
@@ -8,6 +8,9 @@ public class BlockRequest extends Message  {
     public String fileMd5;
     @JsonElement
     public Integer blockIdx;
+    // the framing the downloader asks to switch to, see MessageFramer
+    @JsonElement(optional=true)
+    public String framing;
 
     public BlockRequest(){}
 
@@ -0,0 +1,20 @@
+package comp90015.idxsrv.message;
+
+@JsonSerializable
+public class DropBatchReply extends Message {
+
+	/**
+	 * Whether each file of the batch was dropped, in order.
+	 */
+	@JsonElement
+	public Boolean[] success;
+	
+	public DropBatchReply() {
+		
+	}
+	
+	public DropBatchReply(Boolean[] success) {
+		this.success = success;
+	}
+	
+}
@@ -0,0 +1,32 @@
+package comp90015.idxsrv.message;
+
+/**
+ * Drops many files shared by one peer in a single request. The arrays are parallel,
+ * one element for each file.
+ */
+@JsonSerializable
+public class DropBatchRequest extends Message {
+	@JsonElement
+	public String[] filenames;
+	
+	@JsonElement
+	public String[] fileMd5s;
+	
+	@JsonElement
+	public String[] sharingSecrets;
+	
+	@JsonElement
+	public Integer port;
+	
+	public DropBatchRequest() {
+		
+	}
+	
+	public DropBatchRequest(String[] filenames, String[] fileMd5s, String[] sharingSecrets,int port) {
+		this.filenames=filenames;
+		this.fileMd5s=fileMd5s;
+		this.sharingSecrets=sharingSecrets;
+		this.port=port;
+	}
+	
+}
@@ -0,0 +1,28 @@
+package comp90015.idxsrv.message;
+
+@JsonSerializable
+public class HeartbeatReply extends Message {
+
+	/**
+	 * The number of files the peer is sharing, as far as the index server knows.
+	 */
+	@JsonElement
+	public Integer numShares;
+	
+	/**
+	 * How long in milliseconds the lease lasts without another heartbeat, or 0 if
+	 * shares never expire.
+	 */
+	@JsonElement
+	public Long leaseMillis;
+	
+	public HeartbeatReply() {
+		
+	}
+	
+	public HeartbeatReply(Integer numShares, Long leaseMillis) {
+		this.numShares = numShares;
+		this.leaseMillis = leaseMillis;
+	}
+	
+}
@@ -0,0 +1,20 @@
+package comp90015.idxsrv.message;
+
+@JsonSerializable
+public class HeartbeatRequest extends Message {
+
+	/**
+	 * The port the peer shares its files from.
+	 */
+	@JsonElement
+	public Integer port;
+	
+	public HeartbeatRequest() {
+		
+	}
+	
+	public HeartbeatRequest(int port) {
+		this.port=port;
+	}
+	
+}
@@ -8,5 +8,12 @@ import java.lang.annotation.ElementType;
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.FIELD)
 public @interface JsonElement {
+	
+	/**
+	 * An optional element is left null when it is missing from a message, instead of
+	 * the message being invalid, so that it can be added to a message that older peers
+	 * already send.
+	 */
+	boolean optional() default false;
 
 }
@@ -0,0 +1,477 @@
+package comp90015.idxsrv.message;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Reads json straight from the bytes of an input stream, or of an array, for
+ * {@link MessageCodec} to decode as it goes, so that a message is never read as a
+ * string or a json object first. The input is buffered here, and nothing is read
+ * past the line that ends a message, so that a {@link MessageStream} can go on to read
+ * frames or raw bytes from the same buffer.
+ * <p>
+ * A message is one line, so a line feed is only allowed after the message, and one
+ * inside it ends the message early.
+ * @author aaron
+ *
+ */
+final class JsonReader {
+
+	/**
+	 * Stands for a json null while it is decoded.
+	 */
+	static final Object NULL = new Object();
+
+	/**
+	 * Stands for a json object that does not name its class, or whose values are
+	 * skipped, which is not a message.
+	 */
+	static final Object OTHER = new Object();
+
+	private static final byte[] CLASS = "_class".getBytes();
+
+	/**
+	 * The deepest that objects and arrays may be nested.
+	 */
+	private static final int MAX_DEPTH = 32;
+
+	private final InputStream in;
+
+	byte[] buf;
+
+	int pos;
+
+	int limit;
+
+	private int depth;
+
+	// how deep the reader is in values that are skipped
+	private int skipping;
+
+	// for strings that are escaped or do not fit in the buffer
+	private byte[] scratch;
+
+	/**
+	 * Read from a stream.
+	 * @param in the stream
+	 * @param bufferSize the size of the buffer
+	 */
+	JsonReader(InputStream in,int bufferSize) {
+		this.in=in;
+		buf=new byte[bufferSize];
+	}
+
+	/**
+	 * Read from part of an array, without copying it.
+	 */
+	JsonReader(byte[] bytes,int offset,int length) {
+		in=null;
+		buf=bytes;
+		pos=offset;
+		limit=offset+length;
+	}
+
+	/**
+	 * Refill the buffer once it has been read.
+	 * @return false if there is no more input
+	 */
+	boolean fill() throws IOException {
+		if(in==null) return false;
+		int n = in.read(buf,0,buf.length);
+		if(n<0) return false;
+		pos=0;
+		limit=n;
+		return true;
+	}
+
+	/**
+	 * Skip any space, including a carriage return, up to the next character.
+	 * @return the next character, which is not consumed
+	 * @throws EOFException if the input ends first
+	 */
+	private int peek() throws IOException {
+		while(true) {
+			while(pos<limit) {
+				byte b = buf[pos];
+				if(b!=' ' && b!='\t' && b!='\r') return b;
+				pos++;
+			}
+			if(!fill()) throw new EOFException();
+		}
+	}
+
+	private int next() throws IOException {
+		int b = peek();
+		pos++;
+		return b;
+	}
+
+	private void expect(char c) throws IOException, JsonSerializationException {
+		int b = peek();
+		if(b!=c) throw unexpected(b);
+		pos++;
+	}
+
+	private JsonSerializationException unexpected(int b) {
+		if(b=='\n') return new JsonSerializationException("Message ends early");
+		return new JsonSerializationException("Unexpected character in json: "+(char) (b&0xff));
+	}
+
+	/**
+	 * Check that the rest of the line is space, and consume it.
+	 * @return false if the input ended instead, after the last message
+	 */
+	boolean endLine() throws IOException, JsonSerializationException {
+		int b;
+		try {
+			b = peek();
+		} catch (EOFException e) {
+			return false;
+		}
+		if(b!='\n') throw unexpected(b);
+		pos++;
+		return true;
+	}
+
+	/**
+	 * Skip the rest of a line that could not be decoded, so that the next one can be.
+	 */
+	void skipLine() throws IOException {
+		while(true) {
+			for(int i=pos;i<limit;i++) {
+				if(buf[i]=='\n') {
+					pos=i+1;
+					return;
+				}
+			}
+			pos=limit;
+			if(!fill()) return;
+		}
+	}
+
+	/**
+	 * Read a message, which is a json object naming its class.
+	 * @return the message
+	 */
+	Object readMessage() throws IOException, JsonSerializationException {
+		depth=0;
+		skipping=0;
+		Object obj = readObject();
+		if(obj==OTHER) {
+			throw new JsonSerializationException("The json object has no _class");
+		}
+		return obj;
+	}
+
+	/**
+	 * Read an object, which is decoded if it names its class, or else is {@link #OTHER}.
+	 */
+	private Object readObject() throws IOException, JsonSerializationException {
+		expect('{');
+		if(++depth>MAX_DEPTH) {
+			throw new JsonSerializationException("Json is nested too deeply");
+		}
+		MessageCodec codec = null;
+		Object obj = null;
+		boolean[] present = null;
+		// the values before the name of the class, which encoders need not put first
+		ArrayList<Object> early = null;
+		if(peek()=='}') {
+			pos++;
+			depth--;
+			return OTHER;
+		}
+		do {
+			expect('"');
+			String name = readName(codec);
+			expect(':');
+			if(skipping>0 || (codec!=null && !codec.hasElement(name))) {
+				// values that are not elements are only checked to be json
+				skipping++;
+				readValue();
+				skipping--;
+				continue;
+			}
+			Object value = readValue();
+			if(codec==null && name.equals("_class")) {
+				if(value.getClass()!=String.class) {
+					throw new JsonSerializationException("The _class is not a string");
+				}
+				codec = MessageCodec.forName((String) value);
+				obj = codec.newInstance();
+				present = new boolean[codec.size()];
+				if(early!=null) {
+					for(int i=0;i<early.size();i+=2) {
+						codec.set(obj,present,(String) early.get(i),early.get(i+1));
+					}
+				}
+			} else if(codec!=null) {
+				codec.set(obj,present,name,value);
+			} else {
+				if(early==null) early = new ArrayList<Object>();
+				early.add(name);
+				early.add(value);
+			}
+		} while(comma('}'));
+		depth--;
+		if(codec==null) {
+			return OTHER;
+		}
+		codec.checkPresent(present);
+		return obj;
+	}
+
+	/**
+	 * Read the rest of the name of a value, which is the name of an element of the
+	 * codec's class, as that class keeps it, when the name is plain and already in the
+	 * buffer, so that the names of a message's elements are not read as new strings.
+	 */
+	private String readName(MessageCodec codec) throws IOException, JsonSerializationException {
+		for(int i=pos;i<limit;i++) {
+			byte b = buf[i];
+			if(b=='"') {
+				String name = codec!=null ? codec.nameOf(buf,pos,i-pos) : matches(CLASS,i) ? "_class" : null;
+				if(name==null) break;
+				pos = i+1;
+				return name;
+			}
+			if(b=='\\' || (b>=0 && b<0x20)) break;
+		}
+		return readString();
+	}
+
+	private boolean matches(byte[] name,int end) {
+		if(end-pos!=name.length) return false;
+		for(int i=0;i<name.length;i++) {
+			if(buf[pos+i]!=name[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Consume a comma or the closing character.
+	 * @return true if it was a comma
+	 */
+	private boolean comma(char close) throws IOException, JsonSerializationException {
+		int b = next();
+		if(b==',') return true;
+		if(b==close) return false;
+		pos--;
+		throw unexpected(b);
+	}
+
+	/**
+	 * Read any json value.
+	 * @return a String, Integer, Long, Double or Boolean, {@link #NULL}, a message or
+	 * {@link #OTHER}, or an ArrayList of these for an array
+	 */
+	Object readValue() throws IOException, JsonSerializationException {
+		int b = peek();
+		switch(b) {
+		case '"':
+			pos++;
+			return readString();
+		case '{':
+			return readObject();
+		case '[':
+			return readArray();
+		case 't':
+			literal("true");
+			return Boolean.TRUE;
+		case 'f':
+			literal("false");
+			return Boolean.FALSE;
+		case 'n':
+			literal("null");
+			return NULL;
+		default:
+			if(b=='-' || (b>='0' && b<='9')) return readNumber();
+			throw unexpected(b);
+		}
+	}
+
+	private ArrayList<Object> readArray() throws IOException, JsonSerializationException {
+		expect('[');
+		if(++depth>MAX_DEPTH) {
+			throw new JsonSerializationException("Json is nested too deeply");
+		}
+		ArrayList<Object> list = new ArrayList<Object>();
+		if(peek()==']') {
+			pos++;
+		} else {
+			do {
+				Object value = readValue();
+				if(skipping==0) list.add(value);
+			} while(comma(']'));
+		}
+		depth--;
+		return list;
+	}
+
+	private void literal(String word) throws IOException, JsonSerializationException {
+		for(int i=0;i<word.length();i++) {
+			if(pos==limit && !fill()) throw new EOFException();
+			if(buf[pos]!=word.charAt(i)) throw unexpected(buf[pos]);
+			pos++;
+		}
+	}
+
+	private Object readNumber() throws IOException, JsonSerializationException {
+		// integers are worked out as their digits are read, and only other numbers are
+		// read as strings; the integer is kept negated, so that Long.MIN_VALUE fits
+		StringBuilder sb = null;
+		boolean negative = false;
+		boolean integral = true;
+		long l = 0;
+		int digits = 0;
+		while(true) {
+			if(pos==limit && !fill()) break;
+			byte b = buf[pos];
+			if(sb==null && b>='0' && b<='9' && l>=Long.MIN_VALUE/10
+					&& l*10>=(negative ? Long.MIN_VALUE : -Long.MAX_VALUE)+(b-'0')) {
+				l = l*10-(b-'0');
+				digits++;
+			} else if(sb==null && b=='-' && digits==0 && !negative) {
+				negative = true;
+			} else if(b=='.' || b=='e' || b=='E' || b=='-' || b=='+' || (b>='0' && b<='9')) {
+				if(sb==null) {
+					sb = new StringBuilder();
+					if(negative) sb.append('-');
+					if(digits>0) sb.append(Long.toUnsignedString(-l));
+				}
+				if(b<'0' || b>'9') integral = false;
+				sb.append((char) b);
+			} else {
+				break;
+			}
+			pos++;
+		}
+		if(sb!=null) {
+			if(integral) {
+				throw new JsonSerializationException("Number is out of range: "+sb);
+			}
+			try {
+				return Double.valueOf(sb.toString());
+			} catch (NumberFormatException e) {
+				throw new JsonSerializationException("Number is not valid: "+sb);
+			}
+		}
+		if(digits==0) {
+			throw new JsonSerializationException("Number is not valid");
+		}
+		if(!negative) l = -l;
+		if(l>=Integer.MIN_VALUE && l<=Integer.MAX_VALUE) return Integer.valueOf((int) l);
+		return Long.valueOf(l);
+	}
+
+	/**
+	 * Read the rest of a string, after its opening quote.
+	 */
+	String readString() throws IOException, JsonSerializationException {
+		// most strings are plain, and already in the buffer
+		for(int i=pos;i<limit;i++) {
+			byte b = buf[i];
+			if(b=='"') {
+				String str = new String(buf,pos,i-pos,StandardCharsets.UTF_8);
+				pos = i+1;
+				return str;
+			}
+			if(b=='\\' || (b>=0 && b<0x20)) break;
+		}
+		if(scratch==null) scratch = new byte[256];
+		int n = 0;
+		// a high surrogate that was escaped, until the next character shows whether it
+		// is the first half of a pair, which may be after the buffer is refilled
+		int high = -1;
+		while(true) {
+			if(pos==limit && !fill()) throw new EOFException();
+			byte b = buf[pos];
+			if(b=='"') {
+				pos++;
+				break;
+			}
+			if(b>=0 && b<0x20) {
+				throw unexpected(b);
+			}
+			pos++;
+			if(n+8>scratch.length) {
+				byte[] bigger = new byte[scratch.length*2];
+				System.arraycopy(scratch,0,bigger,0,n);
+				scratch = bigger;
+			}
+			if(b=='\\') {
+				if(pos==limit && !fill()) throw new EOFException();
+				b = buf[pos++];
+				if(b=='u') {
+					int cp = readHex();
+					if(high>=0 && Character.isLowSurrogate((char) cp)) {
+						n = putCodePoint(n,Character.toCodePoint((char) high,(char) cp));
+						high = -1;
+						continue;
+					}
+					if(high>=0) n = putCodePoint(n,high);
+					high = Character.isHighSurrogate((char) cp) ? cp : -1;
+					if(high<0) n = putCodePoint(n,cp);
+					continue;
+				}
+				if(high>=0) n = putCodePoint(n,high);
+				high = -1;
+				switch(b) {
+				case '"': case '\\': case '/': scratch[n++] = b; break;
+				case 'n': scratch[n++] = '\n'; break;
+				case 'r': scratch[n++] = '\r'; break;
+				case 't': scratch[n++] = '\t'; break;
+				case 'b': scratch[n++] = '\b'; break;
+				case 'f': scratch[n++] = '\f'; break;
+				default:
+					throw unexpected(b);
+				}
+				continue;
+			}
+			if(high>=0) n = putCodePoint(n,high);
+			high = -1;
+			scratch[n++] = b;
+		}
+		if(high>=0) n = putCodePoint(n,high);
+		return new String(scratch,0,n,StandardCharsets.UTF_8);
+	}
+
+	private int readHex() throws IOException, JsonSerializationException {
+		int cp = 0;
+		for(int i=0;i<4;i++) {
+			if(pos==limit && !fill()) throw new EOFException();
+			int d = Character.digit(buf[pos],16);
+			if(d<0) throw unexpected(buf[pos]);
+			pos++;
+			cp = cp<<4 | d;
+		}
+		return cp;
+	}
+
+	/**
+	 * Put a character into the scratch buffer as UTF-8, which has room for it.
+	 */
+	private int putCodePoint(int n,int cp) {
+		if(cp<0x80) {
+			scratch[n++] = (byte) cp;
+		} else if(cp<0x800) {
+			scratch[n++] = (byte) (0xc0 | cp>>6);
+			scratch[n++] = (byte) (0x80 | cp&0x3f);
+		} else if(cp>=0x10000) {
+			scratch[n++] = (byte) (0xf0 | cp>>18);
+			scratch[n++] = (byte) (0x80 | cp>>12&0x3f);
+			scratch[n++] = (byte) (0x80 | cp>>6&0x3f);
+			scratch[n++] = (byte) (0x80 | cp&0x3f);
+		} else if(Character.isSurrogate((char) cp)) {
+			scratch[n++] = '?';
+		} else {
+			scratch[n++] = (byte) (0xe0 | cp>>12);
+			scratch[n++] = (byte) (0x80 | cp>>6&0x3f);
+			scratch[n++] = (byte) (0x80 | cp&0x3f);
+		}
+		return n;
+	}
+}
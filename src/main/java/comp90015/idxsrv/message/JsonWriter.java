@@ -0,0 +1,207 @@
+package comp90015.idxsrv.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes json straight to an output stream, in UTF-8, as it is encoded by
+ * {@link MessageCodec}, so that a message is never built as a json object or a string
+ * first. The json is gathered in a buffer of its own, which is passed on to the stream
+ * whenever it fills, and by {@link #drain()}, without flushing the stream. The buffer
+ * starts small and doubles as it fills, up to 8KB, since most messages are short and
+ * a writer is made for each one.
+ * @author aaron
+ *
+ */
+final class JsonWriter {
+
+	private static final int BUFFER_SIZE = 8*1024;
+
+	private static final int INITIAL_SIZE = 256;
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	private final OutputStream out;
+
+	private byte[] buf;
+
+	private int count;
+
+	JsonWriter(OutputStream out) {
+		this.out=out;
+		buf=new byte[INITIAL_SIZE];
+	}
+
+	/**
+	 * Write a character of the json's structure, which is ascii.
+	 */
+	void write(char c) throws IOException {
+		if(count==buf.length) makeRoom(1);
+		buf[count++]=(byte) c;
+	}
+
+	/**
+	 * Write bytes that are already json, such as a message encoded before.
+	 */
+	void write(byte[] b) throws IOException {
+		drain();
+		out.write(b);
+	}
+
+	/**
+	 * Write a few bytes that are already json, such as the name of an element with the
+	 * quotes and colon around it, into the buffer.
+	 */
+	void writeBytes(byte[] b) throws IOException {
+		if(count+b.length>buf.length) {
+			makeRoom(b.length);
+			if(b.length>buf.length) {
+				out.write(b);
+				return;
+			}
+		}
+		System.arraycopy(b,0,buf,count,b.length);
+		count+=b.length;
+	}
+
+	/**
+	 * Write a string, quoted and escaped.
+	 */
+	void writeString(String str) throws IOException {
+		write('"');
+		int l = str.length();
+		for(int i=0;i<l;i++) {
+			char c = str.charAt(i);
+			if(count+4>buf.length) makeRoom(4);
+			if(c>=0x20 && c<0x80) {
+				if(c=='"' || c=='\\') buf[count++]='\\';
+				buf[count++]=(byte) c;
+			} else if(c<0x20) {
+				writeEscape(c);
+			} else if(c<0x800) {
+				buf[count++]=(byte) (0xc0 | c>>6);
+				buf[count++]=(byte) (0x80 | c&0x3f);
+			} else if(Character.isHighSurrogate(c) && i+1<l && Character.isLowSurrogate(str.charAt(i+1))) {
+				int cp = Character.toCodePoint(c,str.charAt(++i));
+				buf[count++]=(byte) (0xf0 | cp>>18);
+				buf[count++]=(byte) (0x80 | cp>>12&0x3f);
+				buf[count++]=(byte) (0x80 | cp>>6&0x3f);
+				buf[count++]=(byte) (0x80 | cp&0x3f);
+			} else if(Character.isSurrogate(c)) {
+				// not a pair, so not a character, as String.getBytes would have it
+				buf[count++]='?';
+			} else {
+				buf[count++]=(byte) (0xe0 | c>>12);
+				buf[count++]=(byte) (0x80 | c>>6&0x3f);
+				buf[count++]=(byte) (0x80 | c&0x3f);
+			}
+		}
+		write('"');
+	}
+
+	private void writeEscape(char c) throws IOException {
+		if(count+6>buf.length) makeRoom(6);
+		buf[count++]='\\';
+		switch(c) {
+		case '\n': buf[count++]='n'; break;
+		case '\r': buf[count++]='r'; break;
+		case '\t': buf[count++]='t'; break;
+		case '\b': buf[count++]='b'; break;
+		case '\f': buf[count++]='f'; break;
+		default:
+			buf[count++]='u';
+			buf[count++]='0';
+			buf[count++]='0';
+			buf[count++]=HEX[c>>4];
+			buf[count++]=HEX[c&0xf];
+		}
+	}
+
+	/**
+	 * Write a string, number or boolean.
+	 * @throws JsonSerializationException if the value is of any other type, or is
+	 * not a finite number
+	 */
+	void writeValue(Object value) throws IOException, JsonSerializationException {
+		if(value instanceof String) {
+			writeString((String) value);
+		} else if(value instanceof Integer) {
+			writeLong((Integer) value);
+		} else if(value instanceof Long) {
+			writeLong((Long) value);
+		} else if(value instanceof Boolean) {
+			writeAscii(value.toString());
+		} else if(value instanceof Double) {
+			Double d = (Double) value;
+			if(d.isNaN() || d.isInfinite()) {
+				throw new JsonSerializationException("JSON does not allow non-finite numbers.");
+			}
+			writeAscii(d.toString());
+		} else {
+			throw new JsonSerializationException("Type "+value.getClass().getSimpleName()+" cannot be written as json");
+		}
+	}
+
+	/**
+	 * Write the digits of a number, without making a string of them.
+	 */
+	private void writeLong(long l) throws IOException {
+		if(l==Long.MIN_VALUE) {
+			writeAscii(Long.toString(l));
+			return;
+		}
+		if(count+20>buf.length) makeRoom(20);
+		if(l<0) {
+			buf[count++]='-';
+			l=-l;
+		}
+		int digits = 1;
+		for(long t=l/10;t>0;t/=10) digits++;
+		count+=digits;
+		for(int i=count-1;i>=count-digits;i--) {
+			buf[i]=(byte) ('0'+l%10);
+			l/=10;
+		}
+	}
+
+	private void writeAscii(String str) throws IOException {
+		int l = str.length();
+		if(count+l>buf.length) makeRoom(l);
+		for(int i=0;i<l;i++) {
+			buf[count++]=(byte) str.charAt(i);
+		}
+	}
+
+	/**
+	 * Make room for more bytes in the buffer, by growing it while it is smaller than
+	 * BUFFER_SIZE, and after that by passing it on.
+	 */
+	private void makeRoom(int n) throws IOException {
+		if(buf.length<BUFFER_SIZE) {
+			int length = buf.length;
+			while(length<count+n && length<BUFFER_SIZE) length*=2;
+			buf=Arrays.copyOf(buf,length);
+			if(count+n<=length) return;
+		}
+		drain();
+	}
+
+	/**
+	 * Throw away what has been written and not yet passed on, such as part of a message
+	 * that could not be encoded.
+	 */
+	void discard() {
+		count=0;
+	}
+
+	/**
+	 * Pass what has been written on to the stream, without flushing it.
+	 */
+	void drain() throws IOException {
+		if(count>0) {
+			out.write(buf,0,count);
+			count=0;
+		}
+	}
+}
@@ -1,6 +1,6 @@
 package comp90015.idxsrv.message;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import comp90015.idxsrv.server.IndexElement;
 
@@ -14,11 +14,8 @@ public class LookupReply extends Message {
 		
 	}
 	
-	public LookupReply(ArrayList<IndexElement> hits) {
-		this.hits = new IndexElement[hits.size()];
-		for(int i=0;i<hits.size();i++) {
-			this.hits[i]=hits.get(i);
-		}
+	public LookupReply(List<IndexElement> hits) {
+		this.hits = hits.toArray(new IndexElement[0]);
 	}
 	
 	
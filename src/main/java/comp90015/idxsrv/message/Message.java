@@ -8,6 +8,11 @@ package comp90015.idxsrv.message;
  */
 public class Message {
 
+	/**
+	 * The most bytes of a message that are logged, see {@link #summary()}.
+	 */
+	public static final int SUMMARY_LENGTH = 1024;
+
 	@Override
 	public String toString()  {
 		try {
@@ -17,4 +22,23 @@ public class Message {
 			return null;
 		}
 	}
+
+	/**
+	 * The start of the string in JSON format, for logging, which does not serialize
+	 * a large message in full.
+	 * @return the string, ending with "..." if it was cut short
+	 */
+	public String summary() {
+		return MessageFactory.describe(this,SUMMARY_LENGTH);
+	}
+
+	/**
+	 * The message already serialized, if it keeps it, so that it is written as it is
+	 * rather than serialized again.
+	 * @param framing null for json, or {@link MessageFramer#BINARY} for the body of a frame
+	 * @return the json in UTF-8, or the body of the frame after its class, or null
+	 */
+	byte[] encoded(String framing) {
+		return null;
+	}
 }
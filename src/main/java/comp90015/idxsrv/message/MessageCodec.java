@@ -0,0 +1,333 @@
+package comp90015.idxsrv.message;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The encoder and decoder of one {@link JsonSerializable} class, which
+ * {@link MessageFactory} dispatches to. The codec of each class is generated when the
+ * class is compiled, by {@link comp90015.idxsrv.message.codegen.CodecProcessor}, as a
+ * subclass of this one that gets and sets the class's elements as plain field accesses,
+ * and encodes and decodes each element as its type calls for, so that serializing and
+ * deserializing a message does no reflection at all. The codecs are listed in a table
+ * that is generated with them, {@link MessageCodecs}, where they are looked up by class
+ * and by class name. The json is written and read as the elements are encoded and
+ * decoded, through a {@link JsonWriter} and a {@link JsonReader}, rather than built as a
+ * json object.
+ * <p>
+ * A codec also encodes its class's elements in binary, for the frames of
+ * {@link MessageFramer}. The elements are written in the order they are declared,
+ * each preceded by whether it is present, and their types are known from the class,
+ * so no names or types are written. An element whose type is json serializable is
+ * written as its own elements, and must be of exactly that type.
+ * @author aaron
+ *
+ */
+abstract class MessageCodec {
+
+	static final byte[] JSON_NULL = "null".getBytes();
+
+	/**
+	 * The generated codecs by class name, which is made when a codec is first looked
+	 * up rather than when this class is loaded, since a codec that is loaded first
+	 * loads this class before it has made its own instance.
+	 */
+	private static class Table {
+		static final HashMap<String,MessageCodec> BY_NAME = new HashMap<String,MessageCodec>();
+		static {
+			for(MessageCodec codec : MessageCodecs.CODECS) {
+				BY_NAME.put(codec.name,codec);
+			}
+		}
+	}
+
+	private static final ClassValue<MessageCodec> BY_CLASS = new ClassValue<MessageCodec>() {
+		@Override
+		protected MessageCodec computeValue(Class<?> type) {
+			MessageCodec codec = Table.BY_NAME.get(type.getName());
+			return codec!=null && codec.type==type ? codec : null;
+		}
+	};
+
+	private final Class<?> type;
+
+	private final String name;
+
+	private final String[] names;
+
+	private final byte[][] nameBytes;
+
+	private final boolean[] optional;
+
+	/**
+	 * @param type the class this codec encodes
+	 * @param names the names of its elements, in the order they are declared
+	 * @param optional whether each element is optional
+	 */
+	MessageCodec(Class<?> type,String[] names,boolean[] optional) {
+		this.type=type;
+		this.name=type.getName();
+		this.names=names;
+		this.optional=optional;
+		nameBytes=new byte[names.length][];
+		for(int e=0;e<names.length;e++) {
+			nameBytes[e]=utf8(names[e]);
+		}
+	}
+
+	/**
+	 * The codec of a class to serialize.
+	 * @param _class the class of the object to serialize
+	 * @return the codec
+	 * @throws JsonSerializationException if the class cannot be serialized
+	 */
+	static MessageCodec of(Class<?> _class) throws JsonSerializationException {
+		MessageCodec codec = BY_CLASS.get(_class);
+		if(codec!=null) return codec;
+		if (!_class.isAnnotationPresent(JsonSerializable.class)) {
+			throw new JsonSerializationException(
+					"The class " + _class.getSimpleName() + " is not annotated with JsonSerializable");
+		}
+		throw new JsonSerializationException("The class " + _class.getSimpleName() + " has no generated codec");
+	}
+
+	/**
+	 * The codec of a class named by a json object. A class that has no codec is not
+	 * loaded, whatever it is.
+	 * @param name the name of the class
+	 * @return the codec
+	 * @throws JsonSerializationException if there is no codec of that name
+	 */
+	static MessageCodec forName(String name) throws JsonSerializationException {
+		MessageCodec codec = Table.BY_NAME.get(name);
+		if(codec==null) {
+			throw new JsonSerializationException("The class represented by the JSON object is not json serializable.");
+		}
+		return codec;
+	}
+
+	/**
+	 * Run the object's init methods, before it is encoded.
+	 */
+	void init(Object object) throws JsonSerializationException {
+	}
+
+	/**
+	 * Encode an object as json, and the json serializable objects it refers to. Elements
+	 * that are null are left out.
+	 * @param out where to write
+	 * @param object an instance of this codec's class
+	 */
+	abstract void encode(JsonWriter out,Object object) throws Exception;
+
+	/**
+	 * A new instance of this codec's class, for {@link JsonReader} to decode into.
+	 */
+	abstract Object newInstance() throws JsonSerializationException;
+
+	/**
+	 *
+	 * @return the number of elements
+	 */
+	int size() {
+		return names.length;
+	}
+
+	/**
+	 * The name of the element whose name is in part of an array of UTF-8.
+	 * @return the element's name, or null if there is no such element
+	 */
+	String nameOf(byte[] bytes,int offset,int length) {
+		for (int e=0;e<nameBytes.length;e++) {
+			byte[] elementBytes = nameBytes[e];
+			if(elementBytes.length!=length) continue;
+			int i = 0;
+			while(i<length && bytes[offset+i]==elementBytes[i]) i++;
+			if(i==length) return names[e];
+		}
+		return null;
+	}
+
+	/**
+	 *
+	 * @return true if there is an element of the given name
+	 */
+	boolean hasElement(String name) {
+		for (String elementName : names) {
+			if(elementName.equals(name)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Set an element of an instance from its decoded json value. Values that are not
+	 * elements are ignored.
+	 * @param obj the instance
+	 * @param present which elements have been set, which is updated
+	 * @param name the name of the value
+	 * @param value the value, as decoded by {@link JsonReader#readValue()}
+	 * @throws JsonSerializationException if the value is of the wrong type
+	 */
+	void set(Object obj,boolean[] present,String name,Object value) throws JsonSerializationException {
+		for(int e=0;e<names.length;e++) {
+			if(!names[e].equals(name)) continue;
+			set(obj,e,value);
+			present[e]=true;
+			return;
+		}
+	}
+
+	/**
+	 * Set an element of an instance from its decoded json value, an ArrayList for an
+	 * array, which is checked and converted as the element's type calls for.
+	 * @param element the index of the element
+	 * @throws JsonSerializationException if the value is of the wrong type
+	 */
+	abstract void set(Object obj,int element,Object value) throws JsonSerializationException;
+
+	/**
+	 * Check that every element that is not optional has been set.
+	 * @throws JsonSerializationException if one has not
+	 */
+	void checkPresent(boolean[] present) throws JsonSerializationException {
+		for(int e=0;e<names.length;e++) {
+			if(!present[e] && !optional[e]) {
+				throw notPresent(e);
+			}
+		}
+	}
+
+	/**
+	 * Write an object's elements in binary.
+	 * @param out where to write
+	 * @param object an instance of this codec's class
+	 */
+	abstract void write(DataOutputStream out,Object object) throws Exception;
+
+	/**
+	 * Read the elements written by {@link #write(DataOutputStream,Object)} into a new
+	 * instance of this codec's class.
+	 * @param in where to read
+	 * @return the instance
+	 */
+	abstract Object read(DataInputStream in) throws Exception;
+
+	// what the generated codecs share
+
+	static byte[] utf8(String str) {
+		return str.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A handle on a field that a codec cannot access itself, such as a private one.
+	 */
+	static VarHandle field(Class<?> _class,String name,Class<?> type) {
+		try {
+			return MethodHandles.privateLookupIn(_class,MethodHandles.lookup()).findVarHandle(_class,name,type);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e.getMessage(),e);
+		}
+	}
+
+	/**
+	 * A handle on an init method that a codec cannot call itself, taking the instance.
+	 */
+	static MethodHandle init(Class<?> _class,String name,Class<?> returnType) {
+		try {
+			return MethodHandles.privateLookupIn(_class,MethodHandles.lookup())
+					.findVirtual(_class,name,MethodType.methodType(returnType));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e.getMessage(),e);
+		}
+	}
+
+	/**
+	 * What an init method threw, as it would have been thrown by reflection.
+	 */
+	static JsonSerializationException failed(Throwable e) {
+		if(e instanceof Error) throw (Error) e;
+		return new JsonSerializationException(e.getMessage());
+	}
+
+	JsonSerializationException incorrectType(int element) {
+		return new JsonSerializationException("Field was of incorrect type: "+names[element]);
+	}
+
+	JsonSerializationException notPresent(int element) {
+		return new JsonSerializationException("Required field is not present: "+names[element]);
+	}
+
+	JsonSerializationException containsNull(int element) {
+		return new JsonSerializationException("Array of "+names[element]+" contains null");
+	}
+
+	static JsonSerializationException notBinary(Object value) {
+		return new JsonSerializationException("Type "+value.getClass().getSimpleName()+" cannot be written in binary");
+	}
+
+	/**
+	 * Fill an array from a decoded json array, whose values must be of exactly the
+	 * array's component type, or Integers for an array of Longs.
+	 * @return the array
+	 */
+	static <T> T[] fill(ArrayList<?> list,T[] arr) throws JsonSerializationException {
+		Class<?> componentType = arr.getClass().getComponentType();
+		Object[] objs = arr;
+		for(int i=0;i<objs.length;i++) {
+			Object obji = list.get(i);
+			Class<?> objiType = obji.getClass();
+			if(objiType==componentType) {
+				objs[i]=obji;
+			} else if(objiType==Integer.class && componentType==Long.class) {
+				objs[i]=Long.valueOf((Integer) obji);
+			} else {
+				throw new JsonSerializationException("Array component types do not match");
+			}
+		}
+		return arr;
+	}
+
+	/**
+	 * Read the length of an array element, which cannot be more than the bytes left.
+	 */
+	int readLength(DataInputStream in,int element) throws Exception {
+		int l = in.readInt();
+		if(l<0 || l>in.available()) {
+			throw new JsonSerializationException("Array length out of range: "+names[element]);
+		}
+		return l;
+	}
+
+	/**
+	 * Write a string as its length in bytes and its bytes in UTF-8, since
+	 * {@link DataOutputStream#writeUTF(String)} is limited to 64KB.
+	 */
+	static void writeString(DataOutputStream out,String str) throws Exception {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws Exception {
+		int l = in.readInt();
+		if(l<0 || l>in.available()) {
+			throw new JsonSerializationException("String length out of range");
+		}
+		return new String(in.readNBytes(l),StandardCharsets.UTF_8);
+	}
+
+	/**
+	 *
+	 * @return the name of this codec's class
+	 */
+	String getName() {
+		return name;
+	}
+}
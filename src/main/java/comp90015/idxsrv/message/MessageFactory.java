@@ -1,179 +1,167 @@
 package comp90015.idxsrv.message;
 
-import java.lang.reflect.Array;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 /**
  * A factory class to serialize and deserialize JSONSerializable
- * classes to and from strings.
+ * classes to and from strings. Each class is encoded and decoded by its
+ * {@link MessageCodec}, which is generated when the class is compiled, so that
+ * there are no reflective lookups at all.
+ * <p>
+ * A message can also be written straight to an output stream, and read straight from
+ * bytes, so that a large message is not held as a json object and a string and the
+ * string's bytes all at once. Only a buffer's worth of the json is held at a time.
  * @author aaron
  *
  */
 public class MessageFactory {
-	private static void checkIfSerializable(Object object) throws JsonSerializationException {
-		if (Objects.isNull(object)) {
-			throw new JsonSerializationException("The object to serialize is null");
-		}
-		Class<?> _class = object.getClass();
-		if (!_class.isAnnotationPresent(JsonSerializable.class)) {
-			throw new JsonSerializationException(
-					"The class " + object.getClass().getSimpleName() + " is not annotated with JsonSerializable");
-		}
-		for (Field field : _class.getDeclaredFields()) {
-			if (field.getName() == "_class") {
-				throw new JsonSerializationException("The _class field cannot be used in a JsonSerializable class.");
-			}
-		}
+
+	/**
+	 * Thrown to stop encoding once enough has been written, see {@link #describe(Object,int)}.
+	 */
+	@SuppressWarnings("serial")
+	private static class Truncated extends IOException {
+	}
+
+	/**
+	 * Encode an object, whether or not it keeps its json, for
+	 * {@link Message#encoded(String)} to keep.
+	 * @param object
+	 * @return the json in UTF-8
+	 * @throws JsonSerializationException
+	 */
+	static byte[] encode(Object object) throws JsonSerializationException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		JsonWriter out = new JsonWriter(bytes);
 		try {
-			_class.getConstructor();
-		} catch (NoSuchMethodException | SecurityException e) {
-			throw new JsonSerializationException(
-					"The object to serialize must contain a public initializer without arguments.");
+			encode(object,out);
+			out.drain();
+		} catch (IOException e) {
+			throw new JsonSerializationException(e.getMessage());
 		}
+		return bytes.toByteArray();
 	}
 
-	private static void initializeObject(Object object) throws Exception {
-		Class<?> _class = object.getClass();
-		for (Method method : _class.getDeclaredMethods()) {
-			if (method.isAnnotationPresent(JsonSerializationInit.class)) {
-				method.setAccessible(true);
-				method.invoke(object);
+	private static void encode(Object object,JsonWriter out) throws IOException, JsonSerializationException {
+		try {
+			if (Objects.isNull(object)) {
+				throw new JsonSerializationException("The object to serialize is null");
 			}
+			MessageCodec codec = MessageCodec.of(object.getClass());
+			codec.init(object);
+			codec.encode(out,object);
+		} catch (IOException | JsonSerializationException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new JsonSerializationException(e.getMessage());
 		}
 	}
 
-	private static JSONObject toJsonObject(Object object)
-			throws JSONException, IllegalArgumentException, IllegalAccessException {
-		Class<?> _class = object.getClass();
-		JSONObject jobj = new JSONObject();
-		jobj.put("_class", _class.getName());
-		for (Field field : _class.getDeclaredFields()) {
-			field.setAccessible(true);
-			if (field.isAnnotationPresent(JsonElement.class)) {
-				Class<?> fieldType = field.getType();
-				if (fieldType.isAnnotationPresent(JsonSerializable.class)) {
-					jobj.put(field.getName(), toJsonObject(field.get(object)));
-				} else if(fieldType.isArray()){
-					int l = Array.getLength(field.get(object));
-					Object[] oa = new Object[l];
-					for(int i=0;i<l;i++) {
-						Object ao = Array.get(field.get(object), i);
-						if(ao.getClass().isAnnotationPresent(JsonSerializable.class)) {
-							oa[i]=toJsonObject(ao);
-						} else {
-							oa[i]=ao;
-						}
-					}
-					jobj.put(field.getName(), oa);
-				} else {
-					jobj.put(field.getName(), field.get(object));
-				}
+	/**
+	 * Serialize a JSONSerializable object through a writer, which is drained after it.
+	 */
+	static void serialize(Object object,JsonWriter out) throws IOException, JsonSerializationException {
+		byte[] encoded = object instanceof Message ? ((Message) object).encoded(null) : null;
+		if(encoded!=null) {
+			out.write(encoded);
+		} else {
+			try {
+				encode(object,out);
+			} catch (JsonSerializationException e) {
+				out.discard();
+				throw e;
 			}
 		}
-		return jobj;
+		out.drain();
 	}
 
-	private static String toJsonString(Object object) throws Exception {
-		JSONObject jobj = toJsonObject(object);
-		return jobj.toString();
+	/**
+	 * Serialize a JSONSerializable object into a string.
+	 * @param object
+	 * @return
+	 * @throws JsonSerializationException
+	 */
+	public static String serialize(Object object) throws JsonSerializationException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			serialize(object,new JsonWriter(bytes));
+		} catch (IOException e) {
+			throw new JsonSerializationException(e.getMessage());
+		}
+		return bytes.toString(StandardCharsets.UTF_8);
 	}
 
-	private static Object fromJsonObj(JSONObject jobj) throws JsonSerializationException {
-		try {
-			Class<?> _class = Class.forName(jobj.getString("_class"));
-			if(!_class.isAnnotationPresent(JsonSerializable.class)) {
-				throw new JsonSerializationException("The class represented by the JSON object is not json serializable.");
+	/**
+	 * Serialize a JSONSerializable object straight to an output stream, in UTF-8,
+	 * without a line feed. The stream is not flushed.
+	 * @param object
+	 * @param out
+	 * @throws IOException if the stream fails
+	 * @throws JsonSerializationException if the object cannot be serialized, in which case
+	 * part of it may have been written
+	 */
+	public static void serialize(Object object,OutputStream out) throws IOException, JsonSerializationException {
+		serialize(object,new JsonWriter(out));
+	}
+
+	/**
+	 * Serialize a JSONSerializable object into a string for logging, which is cut short
+	 * once it is longer than a limit, so that a large object is not serialized in full.
+	 * @param object
+	 * @param limit the most bytes of json to keep
+	 * @return the string, ending with "..." if it was cut short, or null if the object
+	 * cannot be serialized
+	 */
+	public static String describe(Object object,int limit) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputStream bounded = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte) b},0,1);
 			}
-			Constructor<?> constructor = _class.getConstructor();
-			Object obj = constructor.newInstance();
-			for (Field field:_class.getDeclaredFields()) {
-				field.setAccessible(true);
-				if (field.isAnnotationPresent(JsonElement.class)) {
-					Class<?> fieldType = field.getType();
-					String fieldName = field.getName(); 
-					if(jobj.has(fieldName)){
-						Object jsonFieldVal = jobj.get(fieldName);
-						Class<?> jsonFieldType = jsonFieldVal.getClass();
-						if(fieldType==Long.class && jsonFieldType==Integer.class) {
-							field.set(obj, jobj.getLong(fieldName));
-						} else if(fieldType.isAssignableFrom(jsonFieldType)) {
-							field.set(obj, jsonFieldVal);
-						} else if(jsonFieldType==JSONObject.class){
-							field.set(obj, fromJsonObj((JSONObject)jsonFieldVal));
-						} else if(jsonFieldType==JSONArray.class && fieldType.isArray()){
-							JSONArray ja = (JSONArray) jsonFieldVal;
-							Object arrObj = Array.newInstance(fieldType.getComponentType(), ja.length());
-							for(int i=0;i<ja.length();i++) {
-								Object obji = ja.get(i);
-								Class<?> objiType = obji.getClass();
-								if(objiType==JSONObject.class) {
-									obji=fromJsonObj((JSONObject)obji);
-									objiType=obji.getClass();
-								}
-								if(objiType==fieldType.getComponentType() ||
-										(objiType==Integer.class && fieldType.getComponentType()==Long.class)) {
-									Array.set(arrObj, i, obji);
-								} else {
-									throw new JsonSerializationException("Array component types do not match");
-								}
-							}
-							Object[] arr = (Object[]) arrObj;
-							if(fieldType.isAssignableFrom(arr.getClass())) {
-								field.set(obj, arr);
-							} else {
-								throw new JsonSerializationException("Array of type "+fieldType+" is not supported");
-							}
-						} else {
-							throw new JsonSerializationException("Field was of incorrect type: "+fieldName);
-						}
-					} else {
-						throw new JsonSerializationException("Required field is not present: "+fieldName);
-					}
-		        }
+			@Override
+			public void write(byte[] b,int off,int len) throws IOException {
+				int n = Math.min(len,limit-bytes.size());
+				bytes.write(b,off,n);
+				if(n<len) throw new Truncated();
 			}
-			return obj;
-		} catch (JSONException e) {
-			throw new JsonSerializationException(e.getMessage());
-		} catch (ClassNotFoundException e) {
-			throw new JsonSerializationException(e.getMessage());
-		} catch (NoSuchMethodException e) {
-			throw new JsonSerializationException(e.getMessage());
-		} catch (SecurityException e) {
-			throw new JsonSerializationException(e.getMessage());
-		} catch (InstantiationException e) {
-			throw new JsonSerializationException(e.getMessage());
-		} catch (IllegalAccessException e) {
-			throw new JsonSerializationException(e.getMessage());
-		} catch (IllegalArgumentException e) {
-			throw new JsonSerializationException(e.getMessage());
-		} catch (InvocationTargetException e) {
-			throw new JsonSerializationException(e.getMessage());
+		};
+		try {
+			// encoded afresh, so that logging does not make a message keep its json
+			JsonWriter out = new JsonWriter(bounded);
+			encode(object,out);
+			out.drain();
+		} catch (Truncated e) {
+			return bytes.toString(StandardCharsets.UTF_8)+"...";
+		} catch (IOException | JsonSerializationException e) {
+			return null;
 		}
-		
+		return bytes.toString(StandardCharsets.UTF_8);
 	}
 
 	/**
-	 * Serialize a JSONSerializable object into a string.
-	 * @param object
-	 * @return
-	 * @throws JsonSerializationException
+	 * Deserialize the next line of a reader into a JSONSerializable object. If the line
+	 * is not valid it is skipped.
+	 * @throws IOException if the input fails, or ends before the line does
 	 */
-	public static String serialize(Object object) throws JsonSerializationException {
+	static Object deserialize(JsonReader in) throws IOException, JsonSerializationException {
 		try {
-			checkIfSerializable(object);
-			initializeObject(object);
-			return toJsonString(object);
+			Object obj = in.readMessage();
+			in.endLine();
+			return obj;
+		} catch (JsonSerializationException e) {
+			in.skipLine();
+			throw e;
+		} catch (IOException e) {
+			throw e;
 		} catch (Exception e) {
+			in.skipLine();
 			throw new JsonSerializationException(e.getMessage());
-		} 
+		}
 	}
 
 	/**
@@ -183,11 +171,24 @@ public class MessageFactory {
 	 * @throws JsonSerializationException
 	 */
 	public static Object deserialize(String str) throws JsonSerializationException {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		return deserialize(bytes,0,bytes.length);
+	}
+
+	/**
+	 * Deserialize json in UTF-8 into a JSONSerializable object, without making a string
+	 * of it first.
+	 * @param bytes
+	 * @param offset where the json starts
+	 * @param length the length of the json
+	 * @return
+	 * @throws JsonSerializationException
+	 */
+	public static Object deserialize(byte[] bytes,int offset,int length) throws JsonSerializationException {
 		try {
-			JSONObject jobj = new JSONObject(str);
-			return fromJsonObj(jobj);
-		} catch (JSONException e) {
-			throw new JsonSerializationException(e.getMessage());
+			return deserialize(new JsonReader(bytes,offset,length));
+		} catch (IOException e) {
+			throw new JsonSerializationException("The json ends early");
 		}
 	}
 }
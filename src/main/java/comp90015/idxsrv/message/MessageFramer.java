@@ -0,0 +1,250 @@
+package comp90015.idxsrv.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Encodes messages into length-prefixed binary frames, and decodes them, for one
+ * connection. A frame is the length of its payload as four bytes, big endian, followed
+ * by the payload, which is the message's class and its elements in binary, see
+ * {@link MessageCodec}. So a reader knows how many bytes to read before it reads them,
+ * instead of scanning every byte for the end of a line, and nothing is escaped or
+ * converted to and from characters. The first frame of each class on a connection
+ * carries the class name, and later frames carry only its number.
+ * <p>
+ * Connections start with json lines, and switch to frames only once both ends have
+ * agreed to in the handshake: the server advertises {@link #BINARY} in its
+ * {@link WelcomeMsg}, the client asks for it in its {@link AuthenticateRequest},
+ * {@link TokenRequest} or {@link SessionRequest}, and the messages after the reply to
+ * that request are framed. Between peers a {@link BlockRequest} asks for it, and the
+ * messages after a {@link BlockHeader} that agrees, and the block that follows it, are
+ * framed. Clients and peers that do not know of framing never ask for it, and keep
+ * using json lines.
+ * <p>
+ * A frame is encoded whole before it is sent, since its header gives its length, but
+ * the frames are of messages alone, and the block after a {@link BlockHeader} is not
+ * framed. A frame that is read from a {@link MessageStream} is decoded as it arrives,
+ * rather than read into an array first.
+ * <p>
+ * The elements of a message are not named in a frame, so the name of the framing must
+ * change whenever the elements of a message change.
+ * @author aaron
+ *
+ */
+public class MessageFramer {
+
+	/**
+	 * The name of the framing, as it is advertised and asked for in the handshake.
+	 */
+	public static final String BINARY = "binary";
+
+	/**
+	 * The length of a frame's header.
+	 */
+	public static final int HEADER_LENGTH = 4;
+
+	/**
+	 * The longest payload that will be accepted, enough for the largest block.
+	 */
+	public static final int MAX_FRAME_LENGTH = 64*1024*1024;
+
+	/**
+	 * A buffer whose frame's header can be filled in once its payload is written.
+	 */
+	private static class FrameBuffer extends ByteArrayOutputStream {
+		void putLength() {
+			ByteBuffer.wrap(buf,0,HEADER_LENGTH).putInt(0,count-HEADER_LENGTH);
+		}
+	}
+
+	// the numbers of the classes sent so far
+	private HashMap<String,Integer> sent;
+
+	// the codecs of the classes received so far, by number
+	private ArrayList<MessageCodec> received;
+
+	private FrameBuffer bytes;
+
+	private DataOutputStream data;
+
+	public MessageFramer() {
+		sent=new HashMap<String,Integer>();
+		received=new ArrayList<MessageCodec>();
+		bytes=new FrameBuffer();
+		data=new DataOutputStream(bytes);
+	}
+
+	/**
+	 * Encode a message into a frame.
+	 * @param msg the message
+	 * @return the frame, including its header
+	 * @throws JsonSerializationException if the message cannot be encoded
+	 */
+	public byte[] frame(Message msg) throws JsonSerializationException {
+		try {
+			encode(msg);
+			return bytes.toByteArray();
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Encode a message into a frame, and write it, without copying it first.
+	 * @param msg the message
+	 * @param out where to write the frame, which is not flushed
+	 * @throws IOException if the frame cannot be written
+	 * @throws JsonSerializationException if the message cannot be encoded
+	 */
+	public void frame(Message msg,OutputStream out) throws IOException, JsonSerializationException {
+		try {
+			encode(msg);
+			bytes.writeTo(out);
+		} finally {
+			release();
+		}
+	}
+
+	private void encode(Message msg) throws JsonSerializationException {
+		try {
+			MessageCodec codec = MessageCodec.of(msg.getClass());
+			codec.init(msg);
+			bytes.reset();
+			data.writeInt(0);
+			Integer number = sent.get(codec.getName());
+			if(number==null) {
+				data.writeShort(0);
+				MessageCodec.writeString(data,codec.getName());
+			} else {
+				data.writeShort(number);
+			}
+			byte[] body = msg.encoded(BINARY);
+			if(body!=null) {
+				data.write(body);
+			} else {
+				codec.write(data,msg);
+			}
+			if(bytes.size()-HEADER_LENGTH>MAX_FRAME_LENGTH) {
+				throw new JsonSerializationException("Message too long");
+			}
+			if(number==null) {
+				// numbered only once the frame naming it can be sent
+				sent.put(codec.getName(),sent.size()+1);
+			}
+			bytes.putLength();
+		} catch (JsonSerializationException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new JsonSerializationException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Encode the body of a frame, which is the message's elements, without its class,
+	 * for {@link Message#encoded(String)} to keep. The body does not depend on the
+	 * connection, unlike the class, which is numbered once it has been named.
+	 * @param msg the message
+	 * @return the body
+	 * @throws JsonSerializationException if the message cannot be encoded
+	 */
+	static byte[] encodeBody(Message msg) throws JsonSerializationException {
+		try {
+			MessageCodec codec = MessageCodec.of(msg.getClass());
+			codec.init(msg);
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			codec.write(new DataOutputStream(body),msg);
+			return body.toByteArray();
+		} catch (JsonSerializationException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new JsonSerializationException(e.getMessage());
+		}
+	}
+
+	private void release() {
+		if(bytes.size()>1024*1024) {
+			// do not keep a large buffer for the rest of the connection
+			bytes=new FrameBuffer();
+			data=new DataOutputStream(bytes);
+		}
+	}
+
+	/**
+	 * Read the length of a frame's payload from its header.
+	 * @param header the bytes of the header
+	 * @param offset where the header starts
+	 * @return the length of the payload
+	 * @throws JsonSerializationException if the length is out of range
+	 */
+	public static int payloadLength(byte[] header,int offset) throws JsonSerializationException {
+		int length = ByteBuffer.wrap(header,offset,HEADER_LENGTH).getInt();
+		if(length<=0 || length>MAX_FRAME_LENGTH) {
+			throw new JsonSerializationException("Frame length out of range: "+length);
+		}
+		return length;
+	}
+
+	/**
+	 * Decode the payload of a frame into a message.
+	 * @param payload the bytes of the payload
+	 * @param offset where the payload starts
+	 * @param length the length of the payload
+	 * @return the message
+	 * @throws JsonSerializationException if the payload is not a valid message
+	 */
+	public Message unframe(byte[] payload,int offset,int length) throws JsonSerializationException {
+		try {
+			return unframe(new ByteArrayInputStream(payload,offset,length));
+		} catch (JsonSerializationException e) {
+			throw e;
+		} catch (IOException e) {
+			// not possible when reading from memory
+			throw new JsonSerializationException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Decode the payload of a frame as it is read, so that it is never held whole.
+	 * @param payload the payload, which ends where the frame does
+	 * @return the message
+	 * @throws IOException if the payload cannot be read
+	 * @throws JsonSerializationException if the payload is not a valid message
+	 */
+	public Message unframe(InputStream payload) throws IOException, JsonSerializationException {
+		DataInputStream in = new DataInputStream(payload);
+		try {
+			int number = in.readUnsignedShort();
+			MessageCodec codec;
+			if(number==0) {
+				codec = MessageCodec.forName(MessageCodec.readString(in));
+				received.add(codec);
+			} else if(number<=received.size()) {
+				codec = received.get(number-1);
+			} else {
+				throw new JsonSerializationException("Unknown class number: "+number);
+			}
+			Object obj = codec.read(in);
+			if(in.read()>=0) {
+				throw new JsonSerializationException("Frame is longer than its message");
+			}
+			return (Message) obj;
+		} catch (JsonSerializationException e) {
+			throw e;
+		} catch (EOFException e) {
+			throw new JsonSerializationException("Frame is shorter than its message");
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new JsonSerializationException(e.getMessage());
+		}
+	}
+}
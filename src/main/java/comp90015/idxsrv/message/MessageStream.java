@@ -0,0 +1,217 @@
+package comp90015.idxsrv.message;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads and writes the messages of one blocking connection, as json lines to begin
+ * with, and as binary frames once the ends have agreed to switch, see
+ * {@link MessageFramer}. The input is buffered as bytes rather than characters, so that
+ * the connection can switch after the handshake without losing anything already read.
+ * Json is written and read as it is encoded and decoded, through the buffers, so a
+ * large message is never held as a string, see {@link MessageFactory}. A frame is also
+ * decoded as it is read, but it is encoded whole before it is written, since its
+ * header gives its length.
+ * @author aaron
+ *
+ */
+public class MessageStream {
+
+	private static final int BUFFER_SIZE = 64*1024;
+
+	private InputStream in;
+
+	private OutputStream out;
+
+	// the input buffer, which json is read from in place
+	private JsonReader reader;
+
+	private JsonWriter writer;
+
+	private MessageFramer framer;
+
+	/**
+	 *
+	 * @param in the connection's input
+	 * @param out the connection's output, which is buffered here
+	 */
+	public MessageStream(InputStream in, OutputStream out) {
+		this.in=in;
+		this.out=new BufferedOutputStream(out,BUFFER_SIZE);
+		reader=new JsonReader(in,BUFFER_SIZE);
+		writer=new JsonWriter(this.out);
+	}
+
+	/**
+	 * Switch to binary frames, for the messages after the current one in each direction.
+	 */
+	public void useFrames() {
+		if(framer==null) framer=new MessageFramer();
+	}
+
+	/**
+	 *
+	 * @return true if the connection has switched to binary frames
+	 */
+	public boolean usesFrames() {
+		return framer!=null;
+	}
+
+	/**
+	 * Read the next message.
+	 * @return the message
+	 * @throws IOException if the connection fails or is closed
+	 * @throws JsonSerializationException if the message is not valid
+	 */
+	public Message readMsg() throws IOException, JsonSerializationException {
+		if(framer!=null) {
+			byte[] header = new byte[MessageFramer.HEADER_LENGTH];
+			readFully(header,0,header.length);
+			FrameInput payload = new FrameInput(MessageFramer.payloadLength(header,0));
+			try {
+				return framer.unframe(payload);
+			} finally {
+				// so that the next frame is read from its start, even after a bad one
+				payload.skipRest();
+			}
+		}
+		try {
+			return (Message) MessageFactory.deserialize(reader);
+		} catch (ClassCastException e) {
+			throw new JsonSerializationException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Write a message.
+	 * @param msg the message
+	 * @param flush whether to flush it, which a pipelined reply need not be
+	 * @throws IOException if the connection fails, or the message cannot be serialized
+	 */
+	public void writeMsg(Message msg, boolean flush) throws IOException {
+		try {
+			if(framer!=null) {
+				framer.frame(msg,out);
+			} else {
+				MessageFactory.serialize(msg,writer);
+				out.write('\n');
+			}
+		} catch (JsonSerializationException e) {
+			throw new IOException("Message is invalid: "+e.getMessage());
+		}
+		if(flush) {
+			out.flush();
+		}
+	}
+
+	/**
+	 * Write bytes that are not a message, such as the block that follows a
+	 * {@link BlockHeader}, which the reader reads with {@link #readFully(byte[],int,int)}.
+	 * Large writes go straight to the connection, without being copied into the buffer.
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b,off,len);
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 *
+	 * @return true if more input has already arrived, so that reading will not block
+	 * @throws IOException
+	 */
+	public boolean ready() throws IOException {
+		return reader.pos<reader.limit || in.available()>0;
+	}
+
+	/**
+	 * Read exactly the given number of bytes, from the buffer and then the connection.
+	 * @throws EOFException if the connection is closed first
+	 */
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		int n = Math.min(len,reader.limit-reader.pos);
+		System.arraycopy(reader.buf,reader.pos,b,off,n);
+		reader.pos+=n;
+		off+=n;
+		len-=n;
+		// the rest is read straight into place
+		while(len>0) {
+			int r = in.read(b,off,len);
+			if(r<0) throw new EOFException();
+			off+=r;
+			len-=r;
+		}
+	}
+
+	/**
+	 * The payload of a frame, read through the input buffer, which ends with the frame.
+	 */
+	private class FrameInput extends InputStream {
+
+		private int remaining;
+
+		FrameInput(int length) {
+			remaining=length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(remaining==0) return -1;
+			if(reader.pos==reader.limit && !reader.fill()) throw new EOFException();
+			remaining--;
+			return reader.buf[reader.pos++]&0xff;
+		}
+
+		@Override
+		public int read(byte[] b,int off,int len) throws IOException {
+			if(len==0) return 0;
+			if(remaining==0) return -1;
+			len = Math.min(len,remaining);
+			int n;
+			if(reader.pos<reader.limit) {
+				n = Math.min(len,reader.limit-reader.pos);
+				System.arraycopy(reader.buf,reader.pos,b,off,n);
+				reader.pos+=n;
+			} else if(len>=reader.buf.length) {
+				// a large read goes straight into place
+				n = in.read(b,off,len);
+			} else {
+				if(!reader.fill()) throw new EOFException();
+				return read(b,off,len);
+			}
+			if(n<0) throw new EOFException();
+			remaining-=n;
+			return n;
+		}
+
+		/**
+		 * The bytes left in the frame, which may not have arrived yet, but which bound
+		 * the lengths that the frame gives.
+		 */
+		@Override
+		public int available() {
+			return remaining;
+		}
+
+		void skipRest() throws IOException {
+			if(remaining==0) return;
+			byte[] skipped = new byte[Math.min(remaining,BUFFER_SIZE)];
+			while(remaining>0) {
+				read(skipped,0,Math.min(remaining,skipped.length));
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		try {
+			out.close();
+		} finally {
+			in.close();
+		}
+	}
+}
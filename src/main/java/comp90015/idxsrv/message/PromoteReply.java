@@ -0,0 +1,20 @@
+package comp90015.idxsrv.message;
+
+@JsonSerializable
+public class PromoteReply extends Message {
+
+	/**
+	 * The number of peers in the index that the new leader took over.
+	 */
+	@JsonElement
+	public Integer numPeers;
+	
+	public PromoteReply() {
+		
+	}
+	
+	public PromoteReply(Integer numPeers) {
+		this.numPeers=numPeers;
+	}
+	
+}
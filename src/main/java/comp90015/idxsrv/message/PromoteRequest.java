@@ -0,0 +1,27 @@
+package comp90015.idxsrv.message;
+
+/**
+ * Asks a follower to stop following and become a leader, when its leader has died.
+ * Only an operator that knows the cluster key may ask, see {@link #mac}, since a
+ * client that promoted a follower would split the cluster in two.
+ */
+@JsonSerializable
+public class PromoteRequest extends Message {
+
+	/**
+	 * When the request was signed, see {@link #mac}.
+	 */
+	@JsonElement
+	public Long time;
+	
+	/**
+	 * Signs the request with the key that only the servers of the cluster know.
+	 */
+	@JsonElement
+	public String mac;
+
+	public PromoteRequest() {
+		
+	}
+	
+}
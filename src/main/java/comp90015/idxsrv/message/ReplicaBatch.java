@@ -0,0 +1,42 @@
+package comp90015.idxsrv.message;
+
+@JsonSerializable
+public class ReplicaBatch extends Message {
+
+	/**
+	 * The position in the leader's stream of changes that the follower is at once it
+	 * has applied this batch.
+	 */
+	@JsonElement
+	public Long seq;
+	
+	/**
+	 * The position of the leader's latest change when the batch was sent.
+	 */
+	@JsonElement
+	public Long head;
+	
+	/**
+	 * True if the records are part of the snapshot that starts the stream.
+	 */
+	@JsonElement
+	public Boolean snapshot;
+	
+	/**
+	 * The records of the index log, base64 encoded, empty if the batch is a heartbeat.
+	 */
+	@JsonElement
+	public String records;
+	
+	public ReplicaBatch() {
+		
+	}
+	
+	public ReplicaBatch(Long seq, Long head, Boolean snapshot, String records) {
+		this.seq=seq;
+		this.head=head;
+		this.snapshot=snapshot;
+		this.records=records;
+	}
+	
+}
@@ -0,0 +1,27 @@
+package comp90015.idxsrv.message;
+
+/**
+ * Sent by a follower to an index server to stream its index, as a snapshot followed
+ * by every change made since. The server replies with {@link ReplicaBatch} messages
+ * for as long as the connection is open.
+ */
+@JsonSerializable
+public class ReplicateRequest extends Message {
+
+	/**
+	 * When the request was signed, see {@link #mac}.
+	 */
+	@JsonElement
+	public Long time;
+	
+	/**
+	 * Signs the request with the key that only the servers of the cluster know.
+	 */
+	@JsonElement
+	public String mac;
+
+	public ReplicateRequest() {
+		
+	}
+	
+}
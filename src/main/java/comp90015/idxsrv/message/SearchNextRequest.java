@@ -0,0 +1,20 @@
+package comp90015.idxsrv.message;
+
+@JsonSerializable
+public class SearchNextRequest extends Message {
+
+	/**
+	 * The cursor returned with the previous page.
+	 */
+	@JsonElement
+	public String cursor;
+	
+	public SearchNextRequest() {
+		
+	}
+	
+	public SearchNextRequest(String cursor) {
+		this.cursor=cursor;
+	}
+	
+}
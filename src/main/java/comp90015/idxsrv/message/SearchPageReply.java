@@ -0,0 +1,39 @@
+package comp90015.idxsrv.message;
+
+import java.util.List;
+
+import comp90015.idxsrv.server.IndexElement;
+
+@JsonSerializable
+public class SearchPageReply extends Message {
+
+	@JsonElement
+	public IndexElement[] hits;
+	
+	@JsonElement
+	public Integer[] seedCounts;
+	
+	/**
+	 * The cursor to ask for the next page with, or empty if this is the last page.
+	 */
+	@JsonElement
+	public String cursor;
+	
+	/**
+	 * The number of hits of the whole search.
+	 */
+	@JsonElement
+	public Integer numHits;
+	
+	public SearchPageReply() {
+		
+	}
+	
+	public SearchPageReply(List<IndexElement> hits, Integer[] seedCounts, String cursor, Integer numHits) {
+		this.hits = hits.toArray(new IndexElement[0]);
+		this.seedCounts = seedCounts;
+		this.cursor = cursor;
+		this.numHits = numHits;
+	}
+	
+}
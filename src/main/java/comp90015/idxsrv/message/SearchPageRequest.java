@@ -0,0 +1,32 @@
+package comp90015.idxsrv.message;
+
+/**
+ * Starts a search whose hits are returned a page at a time. The reply is the first
+ * page, with a cursor to ask for the next with a {@link SearchNextRequest}.
+ */
+@JsonSerializable
+public class SearchPageRequest extends Message {
+
+	@JsonElement
+	public Integer maxhits;
+	
+	@JsonElement
+	public String[] keywords;
+	
+	/**
+	 * The most hits returned in each page.
+	 */
+	@JsonElement
+	public Integer pageSize;
+	
+	public SearchPageRequest() {
+		
+	}
+	
+	public SearchPageRequest(Integer maxhits, String[] keywords, Integer pageSize) {
+		this.maxhits=maxhits;
+		this.keywords=keywords;
+		this.pageSize=pageSize;
+	}
+	
+}
@@ -1,6 +1,8 @@
 package comp90015.idxsrv.message;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import comp90015.idxsrv.server.IndexElement;
 
@@ -13,6 +15,17 @@ public class SearchReply extends Message {
 	@JsonElement
 	public Integer[] seedCounts;
 	
+	// a reply is not changed once it is made, so a reply that is sent again, from the
+	// cache, keeps its json and its frame body rather than encoding them each time; the
+	// connections that send it share it, so each is encoded once, by whichever needs it
+	private final AtomicBoolean sentJson = new AtomicBoolean();
+	
+	private final AtomicReference<byte[]> json = new AtomicReference<byte[]>();
+	
+	private final AtomicBoolean sentFrame = new AtomicBoolean();
+	
+	private final AtomicReference<byte[]> frame = new AtomicReference<byte[]>();
+	
 	public SearchReply() {
 		
 	}
@@ -25,5 +38,24 @@ public class SearchReply extends Message {
 		}
 	}
 	
+	@Override
+	byte[] encoded(String framing) {
+		boolean framed = MessageFramer.BINARY.equals(framing);
+		AtomicReference<byte[]> kept = framed ? frame : json;
+		byte[] bytes = kept.get();
+		if(bytes!=null) {
+			return bytes;
+		}
+		if(!(framed ? sentFrame : sentJson).getAndSet(true)) {
+			// the first time it is streamed
+			return null;
+		}
+		try {
+			bytes = framed ? MessageFramer.encodeBody(this) : MessageFactory.encode(this);
+		} catch (JsonSerializationException e) {
+			return null;
+		}
+		return kept.compareAndSet(null,bytes) ? bytes : kept.get();
+	}
 	
 }
@@ -0,0 +1,36 @@
+package comp90015.idxsrv.message;
+
+/**
+ * Sent in place of an {@link AuthenticateRequest}, with a session token and the
+ * request itself, so that the request needs no round trip of its own. The reply is
+ * the request's reply, or an {@link AuthenticateReply} that failed if the token has
+ * expired or is not valid.
+ */
+@JsonSerializable
+public class SessionRequest extends Message {
+
+	@JsonElement
+	public String token;
+	
+	/**
+	 * The request, as a json string.
+	 */
+	@JsonElement
+	public String request;
+	
+	/**
+	 * The framing the client asks to switch to after the handshake, see {@link MessageFramer}.
+	 */
+	@JsonElement(optional=true)
+	public String framing;
+	
+	public SessionRequest() {
+		
+	}
+	
+	public SessionRequest(String token, Message request) {
+		this.token=token;
+		this.request=request.toString();
+	}
+	
+}
@@ -0,0 +1,20 @@
+package comp90015.idxsrv.message;
+
+@JsonSerializable
+public class ShardJoinReply extends Message {
+
+	/**
+	 * The index servers in the cluster, HOST:PORT, as far as the replying server knows.
+	 */
+	@JsonElement
+	public String[] nodes;
+	
+	public ShardJoinReply() {
+		
+	}
+	
+	public ShardJoinReply(String[] nodes) {
+		this.nodes=nodes;
+	}
+	
+}
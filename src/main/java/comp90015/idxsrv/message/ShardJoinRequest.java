@@ -0,0 +1,32 @@
+package comp90015.idxsrv.message;
+
+@JsonSerializable
+public class ShardJoinRequest extends Message {
+
+	/**
+	 * The index server joining the cluster, HOST:PORT.
+	 */
+	@JsonElement
+	public String node;
+
+	/**
+	 * When the request was signed, see {@link #mac}.
+	 */
+	@JsonElement
+	public Long time;
+	
+	/**
+	 * Signs the request with the key that only the servers of the cluster know.
+	 */
+	@JsonElement
+	public String mac;
+	
+	public ShardJoinRequest() {
+		
+	}
+	
+	public ShardJoinRequest(String node) {
+		this.node=node;
+	}
+	
+}
@@ -0,0 +1,44 @@
+package comp90015.idxsrv.message;
+
+/**
+ * A request forwarded by one index server of a cluster to the server that owns it,
+ * on behalf of a client. It is processed as if the client had sent it, without
+ * being forwarded again.
+ */
+@JsonSerializable
+public class ShardRequest extends Message {
+
+	/**
+	 * The ip address of the client that sent the request.
+	 */
+	@JsonElement
+	public String ip;
+	
+	/**
+	 * The request, as a json string.
+	 */
+	@JsonElement
+	public String request;
+
+	/**
+	 * When the request was signed, see {@link #mac}.
+	 */
+	@JsonElement
+	public Long time;
+	
+	/**
+	 * Signs the request with the key that only the servers of the cluster know.
+	 */
+	@JsonElement
+	public String mac;
+	
+	public ShardRequest() {
+		
+	}
+	
+	public ShardRequest(String ip, Message request) {
+		this.ip=ip;
+		this.request=request.toString();
+	}
+	
+}
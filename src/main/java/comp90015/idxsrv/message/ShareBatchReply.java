@@ -0,0 +1,20 @@
+package comp90015.idxsrv.message;
+
+@JsonSerializable
+public class ShareBatchReply extends Message {
+	
+	/**
+	 * The number of sharers of each file of the batch, in order, or 0 if the file
+	 * was not shared.
+	 */
+	@JsonElement
+	public Integer[] numSharers;
+	
+	public ShareBatchReply() {
+		
+	}
+	
+	public ShareBatchReply(Integer[] numSharers) {
+		this.numSharers = numSharers;
+	}
+}
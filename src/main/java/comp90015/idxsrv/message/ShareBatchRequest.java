@@ -0,0 +1,35 @@
+package comp90015.idxsrv.message;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+/**
+ * Shares many files from one peer in a single request, such as all of the files in a
+ * directory. The arrays are parallel, one element for each file.
+ */
+@JsonSerializable
+public class ShareBatchRequest extends Message {
+
+	@JsonElement
+	public FileDescr[] fileDescrs;
+	
+	@JsonElement
+	public String[] filenames;
+	
+	@JsonElement
+	public String[] sharingSecrets;
+	
+	@JsonElement
+	public Integer port;
+	
+	public ShareBatchRequest() {
+		
+	}
+	
+	public ShareBatchRequest(FileDescr[] fileDescrs, String[] filenames, String[] sharingSecrets, int port) {
+		this.fileDescrs=fileDescrs;
+		this.filenames=filenames;
+		this.sharingSecrets=sharingSecrets;
+		this.port=port;
+	}
+	
+}
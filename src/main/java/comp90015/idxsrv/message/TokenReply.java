@@ -0,0 +1,24 @@
+package comp90015.idxsrv.message;
+
+@JsonSerializable
+public class TokenReply extends Message {
+
+	@JsonElement
+	public String token;
+	
+	/**
+	 * How long in milliseconds the token lasts from when it was issued.
+	 */
+	@JsonElement
+	public Long ttlMillis;
+	
+	public TokenReply() {
+		
+	}
+	
+	public TokenReply(String token, Long ttlMillis) {
+		this.token = token;
+		this.ttlMillis = ttlMillis;
+	}
+	
+}
@@ -0,0 +1,28 @@
+package comp90015.idxsrv.message;
+
+/**
+ * Sent in place of an {@link AuthenticateRequest}, to authenticate with the server
+ * secret and be given a session token, which later connections present with their
+ * request instead, see {@link SessionRequest}.
+ */
+@JsonSerializable
+public class TokenRequest extends Message {
+	
+	@JsonElement
+	public String secret;
+	
+	/**
+	 * The framing the client asks to switch to after the handshake, see {@link MessageFramer}.
+	 */
+	@JsonElement(optional=true)
+	public String framing;
+	
+	public TokenRequest() {
+		
+	}
+	
+	public TokenRequest(String secret) {
+		this.secret=secret;
+	}
+
+}
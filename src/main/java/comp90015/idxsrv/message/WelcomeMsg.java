@@ -6,6 +6,19 @@ public class WelcomeMsg extends Message {
 	@JsonElement
 	public String msg;
 	
+	/**
+	 * The framing the server can switch to after the handshake, see {@link MessageFramer}.
+	 */
+	@JsonElement(optional=true)
+	public String framing;
+	
+	/**
+	 * How long in milliseconds the server keeps the session open between requests, or
+	 * null if it answers only one request on this connection.
+	 */
+	@JsonElement(optional=true)
+	public Integer keepAlive;
+	
 	public WelcomeMsg() {
 		
 	}
@@ -13,4 +26,15 @@ public class WelcomeMsg extends Message {
 	public WelcomeMsg(String msg) {
 		this.msg = msg;
 	}
+	
+	public WelcomeMsg(String msg, String framing) {
+		this.msg = msg;
+		this.framing = framing;
+	}
+	
+	public WelcomeMsg(String msg, String framing, Integer keepAlive) {
+		this.msg = msg;
+		this.framing = framing;
+		this.keepAlive = keepAlive;
+	}
 }
@@ -0,0 +1,587 @@
+package comp90015.idxsrv.message.codegen;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates the codec of each JsonSerializable class as it is compiled, a subclass of
+ * MessageCodec that gets and sets the class's elements as plain field accesses, and a
+ * table of all the codecs, MessageCodecs, which MessageCodec looks classes up in. So
+ * nothing is reflected over at run time, and a class that cannot be serialized, or an
+ * element of a type that cannot be encoded, is an error when it is compiled rather
+ * than when it is first sent.
+ * <p>
+ * The codecs are in the message package, beside MessageCodec and JsonWriter, which
+ * are not public. An element or init method that is not accessible from there, such as
+ * a private field of FileDescr, is got and set through a handle that is bound once,
+ * when its codec is loaded. The processor is compiled on its own, before the rest of
+ * the sources, see pom.xml.
+ * @author aaron
+ *
+ */
+@SupportedAnnotationTypes(CodecProcessor.SERIALIZABLE)
+public class CodecProcessor extends AbstractProcessor {
+
+	private static final String PACKAGE = "comp90015.idxsrv.message";
+
+	static final String SERIALIZABLE = PACKAGE+".JsonSerializable";
+
+	private static final String ELEMENT = PACKAGE+".JsonElement";
+
+	private static final String INIT = PACKAGE+".JsonSerializationInit";
+
+	private static final String REGISTRY = "MessageCodecs";
+
+	/**
+	 * The types of values that are encoded as json strings, numbers and booleans.
+	 */
+	private static final Set<String> VALUES = Set.of("java.lang.String","java.lang.Integer",
+			"java.lang.Long","java.lang.Boolean","java.lang.Double");
+
+	/**
+	 * The type of an element, or of the components of an array element.
+	 */
+	private static class Type {
+		// the type as it is written in source
+		final String source;
+		// the qualified name of a value type, or null
+		final String value;
+		// the codec of a json serializable type, or null
+		final String codec;
+		// the type of the components of an array, or null
+		final Type component;
+		Type(String source,String value,String codec,Type component) {
+			this.source=source;
+			this.value=value;
+			this.codec=codec;
+			this.component=component;
+		}
+	}
+
+	private static class Field {
+		final String name;
+		final Type type;
+		final boolean optional;
+		// whether the codec can get and set the field itself, rather than through a handle
+		final boolean direct;
+		Field(String name,Type type,boolean optional,boolean direct) {
+			this.name=name;
+			this.type=type;
+			this.optional=optional;
+			this.direct=direct;
+		}
+	}
+
+	// the codecs of the classes being compiled, by the qualified name of the class
+	private final HashMap<String,String> codecs = new HashMap<String,String>();
+
+	private boolean generated;
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations,RoundEnvironment roundEnv) {
+		ArrayList<TypeElement> classes = new ArrayList<TypeElement>();
+		for(TypeElement annotation : annotations) {
+			for(Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+				if(element.getKind()==ElementKind.CLASS) {
+					classes.add((TypeElement) element);
+				} else {
+					error(element,"Only a class can be JsonSerializable.");
+				}
+			}
+		}
+		if(classes.isEmpty()) return true;
+		if(generated) {
+			// MessageCodecs has already been written without them
+			for(TypeElement _class : classes) {
+				error(_class,"A JsonSerializable class cannot be generated by another processor.");
+			}
+			return true;
+		}
+		generated=true;
+		classes.sort(Comparator.comparing(c -> c.getQualifiedName().toString()));
+		HashMap<String,TypeElement> byCodec = new HashMap<String,TypeElement>();
+		for(TypeElement _class : classes) {
+			String codec = codecName(_class);
+			TypeElement other = byCodec.put(codec,_class);
+			if(other!=null) {
+				error(_class,"The codec of this class would have the same name as that of "+other.getQualifiedName()+": "+codec);
+			}
+			codecs.put(_class.getQualifiedName().toString(),codec);
+		}
+		try {
+			ArrayList<TypeElement> generatedClasses = new ArrayList<TypeElement>();
+			for(TypeElement _class : classes) {
+				if(generate(_class)) generatedClasses.add(_class);
+			}
+			generateRegistry(generatedClasses);
+		} catch (IOException e) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,"Could not write a codec: "+e.getMessage());
+		}
+		return true;
+	}
+
+	private void error(Element element,String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,message,element);
+	}
+
+	/**
+	 * The name of a class's codec, its simple name, and those of the classes it is
+	 * nested in, with _Codec after.
+	 */
+	private static String codecName(TypeElement _class) {
+		String name = _class.getSimpleName().toString();
+		for(Element outer = _class.getEnclosingElement();outer instanceof TypeElement;outer = outer.getEnclosingElement()) {
+			name = outer.getSimpleName()+"_"+name;
+		}
+		return name+"_Codec";
+	}
+
+	private String packageOf(Element element) {
+		return processingEnv.getElementUtils().getPackageOf(element).getQualifiedName().toString();
+	}
+
+	/**
+	 * @return true if a member can be used from the message package, where the codecs are
+	 */
+	private boolean accessible(Element member) {
+		Set<Modifier> modifiers = member.getModifiers();
+		return modifiers.contains(Modifier.PUBLIC)
+				|| (!modifiers.contains(Modifier.PRIVATE) && packageOf(member).equals(PACKAGE));
+	}
+
+	private boolean hasAnnotation(Element element,String name) {
+		return annotation(element,name)!=null;
+	}
+
+	private static AnnotationMirror annotation(Element element,String name) {
+		for(AnnotationMirror mirror : element.getAnnotationMirrors()) {
+			if(((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(name)) {
+				return mirror;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isOptional(VariableElement field) {
+		for(Map.Entry<? extends ExecutableElement,? extends AnnotationValue> value : annotation(field,ELEMENT).getElementValues().entrySet()) {
+			if(value.getKey().getSimpleName().contentEquals("optional")) {
+				return (Boolean) value.getValue().getValue();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The type of an element, or null if it cannot be encoded, which has been reported.
+	 */
+	private Type typeOf(VariableElement field,TypeMirror type,boolean component) {
+		if(type.getKind()==TypeKind.ARRAY && !component) {
+			Type componentType = typeOf(field,((ArrayType) type).getComponentType(),true);
+			return componentType==null ? null : new Type(componentType.source+"[]",null,null,componentType);
+		}
+		if(type.getKind()==TypeKind.DECLARED) {
+			TypeElement typeElement = (TypeElement) ((DeclaredType) type).asElement();
+			String name = typeElement.getQualifiedName().toString();
+			if(VALUES.contains(name)) {
+				return new Type(name,name,null,null);
+			}
+			if(hasAnnotation(typeElement,SERIALIZABLE) && ((DeclaredType) type).getTypeArguments().isEmpty()) {
+				String codec = codecs.get(name);
+				if(codec!=null) {
+					return new Type(name,null,codec,null);
+				}
+				error(field,"The JsonSerializable type "+name+" is not being compiled, so it has no codec.");
+				return null;
+			}
+		}
+		error(field,"A JsonElement must be a String, Integer, Long, Boolean, Double, a JsonSerializable class, or an array of one of these: "+field.asType());
+		return null;
+	}
+
+	/**
+	 * Check a class and find its elements and init methods, reporting what is wrong
+	 * with it.
+	 * @return the elements, or null if the class cannot be serialized
+	 */
+	private List<Field> fieldsOf(TypeElement _class,List<ExecutableElement> inits) {
+		boolean ok = true;
+		if(_class.getModifiers().contains(Modifier.ABSTRACT)) {
+			error(_class,"A JsonSerializable class cannot be abstract.");
+			ok=false;
+		}
+		for(Element outer = _class;outer instanceof TypeElement;outer = outer.getEnclosingElement()) {
+			if(!accessible(outer) || (((TypeElement) outer).getNestingKind()==NestingKind.MEMBER
+					&& !outer.getModifiers().contains(Modifier.STATIC))) {
+				error(_class,"A JsonSerializable class must be public, or in "+PACKAGE+", and if it is nested, a static member.");
+				ok=false;
+				break;
+			}
+		}
+		boolean constructor = false;
+		ArrayList<Field> fields = new ArrayList<Field>();
+		for(Element member : _class.getEnclosedElements()) {
+			if(member.getKind()==ElementKind.CONSTRUCTOR) {
+				ExecutableElement executable = (ExecutableElement) member;
+				constructor|=executable.getParameters().isEmpty() && member.getModifiers().contains(Modifier.PUBLIC);
+			} else if(member.getKind()==ElementKind.FIELD) {
+				if(member.getSimpleName().contentEquals("_class")) {
+					error(member,"The _class field cannot be used in a JsonSerializable class.");
+					ok=false;
+				}
+				if(!hasAnnotation(member,ELEMENT)) continue;
+				if(member.getModifiers().contains(Modifier.STATIC) || member.getModifiers().contains(Modifier.FINAL)) {
+					error(member,"A JsonElement cannot be static or final.");
+					ok=false;
+					continue;
+				}
+				VariableElement field = (VariableElement) member;
+				Type type = typeOf(field,field.asType(),false);
+				if(type==null) {
+					ok=false;
+					continue;
+				}
+				fields.add(new Field(field.getSimpleName().toString(),type,isOptional(field),accessible(field)));
+			} else if(member.getKind()==ElementKind.METHOD && hasAnnotation(member,INIT)) {
+				ExecutableElement method = (ExecutableElement) member;
+				if(method.getModifiers().contains(Modifier.STATIC) || !method.getParameters().isEmpty()) {
+					error(method,"A JsonSerializationInit method cannot be static or take arguments.");
+					ok=false;
+					continue;
+				}
+				inits.add(method);
+			}
+		}
+		if(!constructor) {
+			error(_class,"The object to serialize must contain a public initializer without arguments.");
+			ok=false;
+		}
+		return ok ? fields : null;
+	}
+
+	/**
+	 * @return false if the class cannot be serialized, so no codec was generated
+	 */
+	private boolean generate(TypeElement _class) throws IOException {
+		ArrayList<ExecutableElement> inits = new ArrayList<ExecutableElement>();
+		List<Field> fields = fieldsOf(_class,inits);
+		if(fields==null) return false;
+		String source = _class.getQualifiedName().toString();
+		String binaryName = processingEnv.getElementUtils().getBinaryName(_class).toString();
+		String codec = codecs.get(source);
+		try (PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(PACKAGE+"."+codec,_class).openWriter())) {
+			out.println("package "+PACKAGE+";");
+			out.println();
+			out.println("/**");
+			out.println(" * The codec of {@link "+source+"}.");
+			out.println(" */");
+			out.println("@javax.annotation.processing.Generated(\""+CodecProcessor.class.getName()+"\")");
+			out.println("final class "+codec+" extends MessageCodec {");
+			out.println();
+			out.println("\tstatic final "+codec+" CODEC = new "+codec+"();");
+			out.println();
+			out.println("\tprivate static final byte[] START = utf8(\"{\\\"_class\\\":\\\""+binaryName+"\\\"\");");
+			for(int e=0;e<fields.size();e++) {
+				out.println();
+				out.println("\tprivate static final byte[] NAME_"+e+" = utf8(\",\\\""+fields.get(e).name+"\\\":\");");
+				if(!fields.get(e).direct) {
+					out.println();
+					out.println("\tprivate static final java.lang.invoke.VarHandle FIELD_"+e+" = field("+source+".class,\""
+							+fields.get(e).name+"\","+fields.get(e).type.source+".class);");
+				}
+			}
+			for(int i=0;i<inits.size();i++) {
+				if(!accessible(inits.get(i))) {
+					out.println();
+					out.println("\tprivate static final java.lang.invoke.MethodHandle INIT_"+i+" = init("+source+".class,\""
+							+inits.get(i).getSimpleName()+"\","+processingEnv.getTypeUtils().erasure(inits.get(i).getReturnType())+".class);");
+				}
+			}
+			out.println();
+			out.println("\tprivate "+codec+"() {");
+			StringBuilder names = new StringBuilder();
+			StringBuilder optional = new StringBuilder();
+			for(Field field : fields) {
+				if(names.length()>0) {
+					names.append(',');
+					optional.append(',');
+				}
+				names.append('"').append(field.name).append('"');
+				optional.append(field.optional);
+			}
+			out.println("\t\tsuper("+source+".class,new java.lang.String[] {"+names+"},new boolean[] {"+optional+"});");
+			out.println("\t}");
+			generateInit(out,source,inits);
+			generateNewInstance(out,source);
+			generateEncode(out,source,fields);
+			generateSet(out,source,fields);
+			generateWrite(out,source,fields);
+			generateRead(out,source,fields);
+			out.println("}");
+		}
+		return true;
+	}
+
+	private void generateInit(PrintWriter out,String source,List<ExecutableElement> inits) {
+		if(inits.isEmpty()) return;
+		out.println();
+		out.println("\t@Override");
+		out.println("\tvoid init(Object object) throws JsonSerializationException {");
+		out.println("\t\t"+source+" o = ("+source+") object;");
+		for(int i=0;i<inits.size();i++) {
+			out.println("\t\ttry {");
+			if(accessible(inits.get(i))) {
+				out.println("\t\t\to."+inits.get(i).getSimpleName()+"();");
+				out.println("\t\t} catch (Exception e) {");
+			} else {
+				out.println("\t\t\tINIT_"+i+".invoke(o);");
+				out.println("\t\t} catch (Throwable e) {");
+			}
+			out.println("\t\t\tthrow failed(e);");
+			out.println("\t\t}");
+		}
+		out.println("\t}");
+	}
+
+	private void generateNewInstance(PrintWriter out,String source) {
+		out.println();
+		out.println("\t@Override");
+		out.println("\tObject newInstance() {");
+		out.println("\t\treturn new "+source+"();");
+		out.println("\t}");
+	}
+
+	/**
+	 * @return an expression that gets an element of o, as its type
+	 */
+	private static String get(Field field,int e) {
+		return field.direct ? "o."+field.name : "("+field.type.source+") FIELD_"+e+".get(o)";
+	}
+
+	/**
+	 * @return a statement that sets an element of o to an expression of its type
+	 */
+	private static String set(Field field,int e,String value) {
+		return field.direct ? "o."+field.name+"="+value+";" : "FIELD_"+e+".set(o,"+value+");";
+	}
+
+	private void generateEncode(PrintWriter out,String source,List<Field> fields) {
+		out.println();
+		out.println("\t@Override");
+		out.println("\tvoid encode(JsonWriter out,Object object) throws Exception {");
+		out.println("\t\t"+source+" o = ("+source+") object;");
+		out.println("\t\tout.writeBytes(START);");
+		for(int e=0;e<fields.size();e++) {
+			Field field = fields.get(e);
+			out.println("\t\t"+field.type.source+" v"+e+" = "+get(field,e)+";");
+			out.println("\t\tif(v"+e+"!=null) {");
+			out.println("\t\t\tout.writeBytes(NAME_"+e+");");
+			if(field.type.component!=null) {
+				Type component = field.type.component;
+				out.println("\t\t\tout.write('[');");
+				out.println("\t\t\tfor(int i=0;i<v"+e+".length;i++) {");
+				out.println("\t\t\t\tif(i>0) out.write(',');");
+				out.println("\t\t\t\t"+component.source+" a = v"+e+"[i];");
+				out.println("\t\t\t\tif(a==null) {");
+				out.println("\t\t\t\t\tout.writeBytes(JSON_NULL);");
+				out.println("\t\t\t\t} else {");
+				encodeValue(out,"\t\t\t\t\t",component,"a");
+				out.println("\t\t\t\t}");
+				out.println("\t\t\t}");
+				out.println("\t\t\tout.write(']');");
+			} else {
+				encodeValue(out,"\t\t\t",field.type,"v"+e);
+			}
+			out.println("\t\t}");
+		}
+		out.println("\t\tout.write('}');");
+		out.println("\t}");
+	}
+
+	private static void encodeValue(PrintWriter out,String indent,Type type,String value) {
+		if(type.codec!=null) {
+			// a subclass is encoded by its own codec
+			out.println(indent+"if("+value+".getClass()=="+type.source+".class) {");
+			out.println(indent+"\t"+type.codec+".CODEC.encode(out,"+value+");");
+			out.println(indent+"} else {");
+			out.println(indent+"\tof("+value+".getClass()).encode(out,"+value+");");
+			out.println(indent+"}");
+		} else if(type.value.equals("java.lang.String")) {
+			out.println(indent+"out.writeString("+value+");");
+		} else {
+			out.println(indent+"out.writeValue("+value+");");
+		}
+	}
+
+	private void generateSet(PrintWriter out,String source,List<Field> fields) {
+		out.println();
+		out.println("\t@Override");
+		out.println("\tvoid set(Object object,int element,Object value) throws JsonSerializationException {");
+		out.println("\t\t"+source+" o = ("+source+") object;");
+		out.println("\t\tswitch(element) {");
+		for(int e=0;e<fields.size();e++) {
+			Field field = fields.get(e);
+			out.println("\t\tcase "+e+":");
+			if(field.type.component!=null) {
+				out.println("\t\t\tif(value instanceof java.util.ArrayList) {");
+				out.println("\t\t\t\tjava.util.ArrayList<?> list = (java.util.ArrayList<?>) value;");
+				out.println("\t\t\t\tvalue = fill(list,new "+field.type.component.source+"[list.size()]);");
+				out.println("\t\t\t}");
+			} else if("java.lang.Long".equals(field.type.value)) {
+				out.println("\t\t\tif(value instanceof java.lang.Integer) value = java.lang.Long.valueOf((java.lang.Integer) value);");
+			}
+			out.println("\t\t\tif(!(value instanceof "+field.type.source+")) throw incorrectType(element);");
+			out.println("\t\t\t"+set(field,e,"("+field.type.source+") value"));
+			out.println("\t\t\tbreak;");
+		}
+		out.println("\t\t}");
+		out.println("\t}");
+	}
+
+	private void generateWrite(PrintWriter out,String source,List<Field> fields) {
+		out.println();
+		out.println("\t@Override");
+		out.println("\tvoid write(java.io.DataOutputStream out,Object object) throws Exception {");
+		out.println("\t\t"+source+" o = ("+source+") object;");
+		for(int e=0;e<fields.size();e++) {
+			Field field = fields.get(e);
+			out.println("\t\t"+field.type.source+" v"+e+" = "+get(field,e)+";");
+			out.println("\t\tout.writeBoolean(v"+e+"!=null);");
+			out.println("\t\tif(v"+e+"!=null) {");
+			if(field.type.component!=null) {
+				out.println("\t\t\tout.writeInt(v"+e+".length);");
+				out.println("\t\t\tfor("+field.type.component.source+" a : v"+e+") {");
+				out.println("\t\t\t\tif(a==null) throw containsNull("+e+");");
+				writeValue(out,"\t\t\t\t",field.type.component,"a");
+				out.println("\t\t\t}");
+			} else {
+				writeValue(out,"\t\t\t",field.type,"v"+e);
+			}
+			out.println("\t\t}");
+		}
+		out.println("\t}");
+	}
+
+	private static void writeValue(PrintWriter out,String indent,Type type,String value) {
+		if(type.codec!=null) {
+			// the type is known from the class when it is read, so it must be exactly that
+			out.println(indent+"if("+value+".getClass()!="+type.source+".class) throw notBinary("+value+");");
+			out.println(indent+type.codec+".CODEC.write(out,"+value+");");
+			return;
+		}
+		switch(type.value) {
+		case "java.lang.String":
+			out.println(indent+"writeString(out,"+value+");");
+			break;
+		case "java.lang.Integer":
+			out.println(indent+"out.writeInt("+value+");");
+			break;
+		case "java.lang.Long":
+			out.println(indent+"out.writeLong("+value+");");
+			break;
+		case "java.lang.Boolean":
+			out.println(indent+"out.writeBoolean("+value+");");
+			break;
+		default:
+			out.println(indent+"out.writeDouble("+value+");");
+		}
+	}
+
+	private void generateRead(PrintWriter out,String source,List<Field> fields) {
+		out.println();
+		out.println("\t@Override");
+		out.println("\tObject read(java.io.DataInputStream in) throws Exception {");
+		out.println("\t\t"+source+" o = new "+source+"();");
+		for(int e=0;e<fields.size();e++) {
+			Field field = fields.get(e);
+			out.println("\t\tif(in.readBoolean()) {");
+			if(field.type.component!=null) {
+				Type component = field.type.component;
+				out.println("\t\t\tint l = readLength(in,"+e+");");
+				out.println("\t\t\t"+field.type.source+" a = new "+component.source+"[l];");
+				out.println("\t\t\tfor(int i=0;i<l;i++) {");
+				out.println("\t\t\t\ta[i]="+readValue(component)+";");
+				out.println("\t\t\t}");
+				out.println("\t\t\t"+set(field,e,"a"));
+			} else {
+				out.println("\t\t\t"+set(field,e,readValue(field.type)));
+			}
+			if(!field.optional) {
+				out.println("\t\t} else {");
+				out.println("\t\t\tthrow notPresent("+e+");");
+			}
+			out.println("\t\t}");
+		}
+		out.println("\t\treturn o;");
+		out.println("\t}");
+	}
+
+	private static String readValue(Type type) {
+		if(type.codec!=null) {
+			return "("+type.source+") "+type.codec+".CODEC.read(in)";
+		}
+		switch(type.value) {
+		case "java.lang.String":
+			return "readString(in)";
+		case "java.lang.Integer":
+			return "(java.lang.Integer) in.readInt()";
+		case "java.lang.Long":
+			return "(java.lang.Long) in.readLong()";
+		case "java.lang.Boolean":
+			return "(java.lang.Boolean) in.readBoolean()";
+		default:
+			return "(java.lang.Double) in.readDouble()";
+		}
+	}
+
+	private void generateRegistry(List<TypeElement> classes) throws IOException {
+		try (PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(PACKAGE+"."+REGISTRY,classes.toArray(new Element[0])).openWriter())) {
+			out.println("package "+PACKAGE+";");
+			out.println();
+			out.println("/**");
+			out.println(" * The codecs of all the JsonSerializable classes, for {@link MessageCodec} to look up.");
+			out.println(" */");
+			out.println("@javax.annotation.processing.Generated(\""+CodecProcessor.class.getName()+"\")");
+			out.println("final class "+REGISTRY+" {");
+			out.println();
+			out.println("\tstatic final MessageCodec[] CODECS = {");
+			for(TypeElement _class : classes) {
+				out.println("\t\t"+codecs.get(_class.getQualifiedName().toString())+".CODEC,");
+			}
+			out.println("\t};");
+			out.println();
+			out.println("\tprivate "+REGISTRY+"() {");
+			out.println("\t}");
+			out.println("}");
+		}
+	}
+}
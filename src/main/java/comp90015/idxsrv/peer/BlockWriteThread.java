@@ -1,16 +1,15 @@
 package comp90015.idxsrv.peer;
 
 import comp90015.idxsrv.filemgr.FileMgr;
-import comp90015.idxsrv.message.BlockReply;
 import comp90015.idxsrv.textgui.ISharerGUI;
 
 import java.io.IOException;
-import java.util.Base64;
 import java.util.concurrent.LinkedBlockingDeque;
 
 /**
  * This thread invokes by Downloading thread.
- * It has a queue take incoming block reply and write them sequentially to local.
+ * It has a queue take incoming blocks and write them sequentially to local.
+ * The blocks arrive as the bytes received, which are hash checked and written as they are.
  *
  * This thread's status is checked once the peer want to verify if local file is finished downloading.
  *
@@ -18,14 +17,14 @@ import java.util.concurrent.LinkedBlockingDeque;
  */
 public class BlockWriteThread extends Thread {
     private ISharerGUI tgui;
-    public LinkedBlockingDeque<BlockReply> incomingWriteBlocks;
+    public LinkedBlockingDeque<ReceivedBlock> incomingWriteBlocks;
     private FileMgr tempFile;
 
     /**
      * Create a Peer Download Thread,
      *
      */
-    public BlockWriteThread(FileMgr tempFile, ISharerGUI tgui, LinkedBlockingDeque<BlockReply> incomingWriteBlocks){
+    public BlockWriteThread(FileMgr tempFile, ISharerGUI tgui, LinkedBlockingDeque<ReceivedBlock> incomingWriteBlocks){
         this.tempFile = tempFile;
         this.tgui = tgui;
         this.incomingWriteBlocks = incomingWriteBlocks;
@@ -36,10 +35,10 @@ public class BlockWriteThread extends Thread {
         tgui.logInfo("Writing thread running");
 
         while (!isInterrupted()) {
-            BlockReply msg;
+            ReceivedBlock block;
             try {
-                msg = incomingWriteBlocks.take();
-                if (SingleBlockWrite(tempFile, msg)) {
+                block = incomingWriteBlocks.take();
+                if (SingleBlockWrite(tempFile, block)) {
                     //tgui.logInfo("Block written successful.");
                 }
                 // if download failed, return and print error message
@@ -54,12 +53,11 @@ public class BlockWriteThread extends Thread {
         tgui.logInfo("Downloading thread completed.");
     }
 
-    private boolean SingleBlockWrite(FileMgr tempFile, BlockReply msg) {
+    private boolean SingleBlockWrite(FileMgr tempFile, ReceivedBlock block) {
         // Check Block Hash, see if the block we want is the same as received using MD5
         try {
-            BlockReply block_reply = msg;
-            int blockIdx = block_reply.blockIdx;
-            byte[] receivedData = Base64.getDecoder().decode(new String(block_reply.bytes).getBytes("UTF-8"));
+            int blockIdx = block.blockIdx;
+            byte[] receivedData = block.bytes;
             if (!(tempFile.checkBlockHash(blockIdx, receivedData))) {
                 tgui.logError("Received Block is not the one we want");
                 return false;
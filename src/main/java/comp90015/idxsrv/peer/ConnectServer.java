@@ -7,26 +7,65 @@ import java.io.*;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class makes connection to Idx Server and send/receive messages to the server using this class.
  *
+ * It can also be used as a persistent session: the connection is made on first use and kept open,
+ * so that many requests, from different threads, share one connection and one handshake. It is
+ * kept open only if the server's welcome says that the server keeps the session alive, and only
+ * for a little less than the server's idle timeout; otherwise the session connects for each request.
+ * A request that has been sent is never sent again, since the server may have carried it out.
+ *
+ * The session asks for a session token when it authenticates, and presents the token with the
+ * request itself when it next connects, so that each reconnection is a single request-reply
+ * exchange instead of sending the secret and waiting for the authentication first.
+ *
+ * The session also asks to switch to binary frames after the handshake, which it does if the
+ * server's welcome offers them, see {@link MessageFramer}; older servers keep to json lines.
+ *
  * @author Chenghao Li
  *
  */
 public class ConnectServer {
     private Socket socket;
+    private InetAddress address;
+    private int port;
+    private String secret;
+    // only one request (or pipeline of requests) can use the session's connection at a time
+    private final ReentrantLock lock = new ReentrantLock();
+    // how long the server keeps the connection open between requests, as its welcome said,
+    // or 0 if it answers one request per connection; and when the connection was last used
+    private int keepAliveMillis = 0;
+    private long lastUsed;
+    // the session token given by the server, used until it expires or is refused
+    private String token;
+    private long tokenExpiry;
+    // set once the server has refused a TokenRequest, i.e. it does not issue tokens
+    private boolean tokensRefused = false;
     private InputStream inputStream;
     private OutputStream outputStream;
     private ISharerGUI tgui;
-    private BufferedReader bufferedReader;
-    private BufferedWriter bufferedWriter;
+    private MessageStream stream;
 
     public ConnectServer(ISharerGUI tgui){
         this.tgui = tgui;
     }
 
+    /**
+     * Create a persistent session with an Idx Server, to be used with {@link #request(Message)}.
+     * No connection is made until the first request.
+     */
+    public ConnectServer(ISharerGUI tgui, InetAddress address, int port, String secret){
+        this.tgui = tgui;
+        this.address = address;
+        this.port = port;
+        this.secret = secret;
+    }
+
     /**
      * Make a socket Connection towards target Index Server.
      * Should Follow the same protocol with Server:
@@ -45,30 +84,58 @@ public class ConnectServer {
             this.inputStream = this.socket.getInputStream();
             this.outputStream = this.socket.getOutputStream();
             // initialise input and outputStream
-            this.bufferedReader = new BufferedReader(new InputStreamReader(this.inputStream, StandardCharsets.UTF_8));
-            this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(this.outputStream, StandardCharsets.UTF_8));
+            this.stream = new MessageStream(this.inputStream, this.outputStream);
 
             /* Suppose to Follow a Synchronized protocol with Server */
-            // 2. (HandShake 1): Write an authentication message to establish authenticated message
-            writeMsg(bufferedWriter, new AuthenticateRequest(Secret));
+            // 2. (HandShake 1): Write an authentication message to establish authenticated message,
+            // asking for a session token as well unless the server does not issue them
+            if (tokensRefused) {
+                AuthenticateRequest request = new AuthenticateRequest(Secret);
+                request.framing = MessageFramer.BINARY;
+                writeMsg(stream, request);
+            } else {
+                TokenRequest request = new TokenRequest(Secret);
+                request.framing = MessageFramer.BINARY;
+                writeMsg(stream, request);
+            }
 
-            // 2.1 Get a Welcome Message
-            Message welcome_msg = readMsg(bufferedReader);
+            // 2.1 Get a Welcome Message, or an error if the server is too busy to take the connection
+            Message welcome_msg = readMsg(stream);
+            if (welcome_msg.getClass().getName() == ErrorMsg.class.getName()) {
+                tgui.logWarn("Index server refused the connection: " + ((ErrorMsg) welcome_msg).msg);
+                closeQuietly();
+                return false;
+            }
 
             // 3. (HandShake 2): Check authenticate reply from server
-            Message auth_back = readMsg(bufferedReader);
-            if (auth_back.getClass().getName() == AuthenticateReply.class.getName()) {
+            Message auth_back = readMsg(stream);
+            if (auth_back.getClass().getName() == ErrorMsg.class.getName() && !tokensRefused) {
+                // an older server, which only takes an AuthenticateRequest
+                closeQuietly();
+                tokensRefused = true;
+                return MakeConnection(Address, Port, Secret);
+            }
+            if (auth_back.getClass().getName() == TokenReply.class.getName()) {
+                TokenReply reply = (TokenReply) auth_back;
+                token = reply.token;
+                // leave a margin for the time the reply took to arrive
+                tokenExpiry = System.currentTimeMillis() + reply.ttlMillis * 9 / 10;
+            } else if (auth_back.getClass().getName() == AuthenticateReply.class.getName()) {
                 AuthenticateReply reply = (AuthenticateReply) auth_back;
                 if (reply.success != true) {
                     tgui.logError("ServerSide Authentication Failed! Check your secret with Index Server.");
+                    closeQuietly();
                     return false;
                 }
             }
+            useFramesIfOffered(welcome_msg);
+            keepAliveMillis = keepAliveOf(welcome_msg);
             tgui.logInfo("Successfully connected to index server!");
             return true;
         }
         catch (Exception e){
             tgui.logWarn("Failed to connect to index server!");
+            closeQuietly();
             return false;
         }
     }
@@ -81,38 +148,190 @@ public class ConnectServer {
         this.socket.close();
     }
 
+    /**
+     * Close a persistent session, saying Goodbye to the server if it is still connected.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            if (isConnected()) {
+                try {
+                    writeMsg(stream, new Goodbye());
+                } catch (Exception ignored) {}
+                closeQuietly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Send a request on the persistent session and return the server's reply.
+     */
+    public Message request(Message msg) throws JsonSerializationException, IOException {
+        ArrayList<Message> msgs = new ArrayList<>();
+        msgs.add(msg);
+        return requestAll(msgs).get(0);
+    }
+
+    /**
+     * Send several requests on the persistent session and return the replies in order.
+     * If the server keeps the session alive, the requests are pipelined: all of them are written
+     * before any reply is read. Otherwise each request has a connection of its own. If the
+     * connection fails once a request has been sent, the session is closed and the failure is
+     * thrown, since the server may already have carried out the request.
+     */
+    public ArrayList<Message> requestAll(List<Message> msgs) throws JsonSerializationException, IOException {
+        lock.lock();
+        try {
+            ArrayList<Message> replies = new ArrayList<>();
+            while (replies.size() < msgs.size()) {
+                int answered = replies.size();
+                if (isConnected() && !isAlive()) {
+                    // the server closes it, or is about to
+                    closeQuietly();
+                }
+                if (!isConnected() && token != null && System.currentTimeMillis() < tokenExpiry) {
+                    // the token goes with the first request, which is answered by the handshake
+                    Message reply = connectWithToken(msgs.get(answered));
+                    if (reply != null) {
+                        replies.add(reply);
+                        used();
+                        continue;
+                    }
+                }
+                if (!isConnected() && !MakeConnection(address, port, secret)) {
+                    throw new IOException("Cannot connect to index server");
+                }
+                int end = keepAliveMillis > 0 ? msgs.size() : answered + 1;
+                try {
+                    for (Message msg : msgs.subList(answered, end)) {
+                        writeMsg(stream, msg, false);
+                    }
+                    stream.flush();
+                    for (int i = answered; i < end; i++) {
+                        replies.add(readMsg(stream));
+                    }
+                } catch (JsonSerializationException | IOException e) {
+                    // the requests may have been carried out, and the remaining replies cannot
+                    // be matched to their requests any more
+                    closeQuietly();
+                    throw e;
+                }
+                used();
+            }
+            return replies;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Connect and send a request along with the session token, in place of authenticating.
+     * @return the reply to the request, or null if the token was refused, which is then forgotten,
+     * and the request was not carried out
+     */
+    private Message connectWithToken(Message msg) throws JsonSerializationException, IOException {
+        this.socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, port), 5000);
+            this.inputStream = this.socket.getInputStream();
+            this.outputStream = this.socket.getOutputStream();
+            this.stream = new MessageStream(this.inputStream, this.outputStream);
+            SessionRequest request = new SessionRequest(token, msg);
+            request.framing = MessageFramer.BINARY;
+            writeMsg(stream, request);
+            Message welcome_msg = readMsg(stream);
+            if (welcome_msg.getClass().getName() == ErrorMsg.class.getName()) {
+                throw new IOException("Index server refused the connection: " + ((ErrorMsg) welcome_msg).msg);
+            }
+            Message reply = readMsg(stream);
+            if (reply.getClass().getName() == AuthenticateReply.class.getName()) {
+                // the token has expired or the server's secret has changed
+                closeQuietly();
+                token = null;
+                return null;
+            }
+            useFramesIfOffered(welcome_msg);
+            keepAliveMillis = keepAliveOf(welcome_msg);
+            return reply;
+        } catch (JsonSerializationException | IOException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    /**
+     * Switch to binary frames after the handshake, which asked for them, if the server offered them.
+     */
+    private void useFramesIfOffered(Message welcome_msg) {
+        if (welcome_msg.getClass().getName() == WelcomeMsg.class.getName()
+                && MessageFramer.BINARY.equals(((WelcomeMsg) welcome_msg).framing)) {
+            stream.useFrames();
+        }
+    }
+
+    /**
+     * @return how long the server keeps the session alive, as its welcome says, or 0 if it does not
+     */
+    private static int keepAliveOf(Message welcome_msg) {
+        if (welcome_msg.getClass().getName() == WelcomeMsg.class.getName()
+                && ((WelcomeMsg) welcome_msg).keepAlive != null) {
+            return ((WelcomeMsg) welcome_msg).keepAlive;
+        }
+        return 0;
+    }
+
+    /**
+     * @return whether the server still keeps the connection open, with a margin for the time
+     * a request takes to arrive
+     */
+    private boolean isAlive() {
+        return keepAliveMillis > 0 && System.currentTimeMillis() - lastUsed < keepAliveMillis * 9L / 10;
+    }
+
+    /**
+     * Note that a request has been answered, and close the connection if the server does not keep it.
+     */
+    private void used() {
+        lastUsed = System.currentTimeMillis();
+        if (keepAliveMillis <= 0) closeQuietly();
+    }
+
+    private boolean isConnected() {
+        return socket != null && !socket.isClosed();
+    }
+
+    private void closeQuietly() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
     /*
      * Send and Receive a Message object in current connection.
      */
     public void sendRequest(Message msg) throws JsonSerializationException, IOException {
-        this.writeMsg(this.bufferedWriter, msg);
+        this.writeMsg(this.stream, msg);
     }
 
     public Message getMsg() throws JsonSerializationException, IOException {
-        return readMsg(this.bufferedReader);
+        return readMsg(this.stream);
     }
 
     /*
      * Methods for writing and reading messages.  By Aaron.
      */
 
-    private void writeMsg(BufferedWriter bufferedWriter, Message msg) throws JsonSerializationException, IOException {
-        if (msg.toString()==null){
-            tgui.logError("Share Message is invalid.");
-            throw new IOException();
-        }
-        bufferedWriter.write(msg.toString());
-        bufferedWriter.newLine();
-        bufferedWriter.flush();
-    }
-
-    private Message readMsg(BufferedReader bufferedReader) throws IOException, JsonSerializationException {
-        String jsonStr = bufferedReader.readLine();
-        if(jsonStr!=null) {
-            Message msg = (Message) MessageFactory.deserialize(jsonStr);
-            return msg;
-        } else {
-            throw new IOException();
-        }
+    private void writeMsg(MessageStream stream, Message msg) throws JsonSerializationException, IOException {
+        writeMsg(stream, msg, true);
+    }
+
+    private void writeMsg(MessageStream stream, Message msg, boolean flush) throws JsonSerializationException, IOException {
+        stream.writeMsg(msg, flush);
+    }
+
+    private Message readMsg(MessageStream stream) throws IOException, JsonSerializationException {
+        return stream.readMsg();
     }
 }
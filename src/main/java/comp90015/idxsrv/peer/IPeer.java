@@ -16,7 +16,8 @@ public interface IPeer {
 	 * An error is logged if the provided file is not within the basedir
 	 * of the peer, in which case the request is ignored. The shared file
 	 * should be added to the gui's shared file table, if the server request
-	 * succeeds, using the {@link ISharerGUI} interface.
+	 * succeeds, using the {@link ISharerGUI} interface. If the file is a directory,
+	 * every file under it is shared.
 	 * @param file
 	 * @param idxAddress
 	 * @param idxPort
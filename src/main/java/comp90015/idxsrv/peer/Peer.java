@@ -3,11 +3,11 @@ package comp90015.idxsrv.peer;
 
 import java.io.*;
 import java.net.InetAddress;
-import java.net.Socket;
-import java.util.HashSet;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import comp90015.idxsrv.message.*;
+import comp90015.idxsrv.server.AcceptQueue;
 import comp90015.idxsrv.server.IOThread;
 import comp90015.idxsrv.textgui.ISharerGUI;
 
@@ -19,11 +19,13 @@ import comp90015.idxsrv.textgui.ISharerGUI;
  */
 public class Peer implements IPeer {
 
-	public HashSet<String> sharingFileNames = new HashSet<String>();
+	// read by every upload handler concurrently, so it must be thread safe
+	public Set<String> sharingFileNames = ConcurrentHashMap.newKeySet();
 	private IOThread ioThread;
 	private PeerUpload_IOThread peerUploadIOThread;
+	private PeerHeartbeatThread heartbeatThread;
 
-	private LinkedBlockingDeque<Socket> incomingConnections;
+	private AcceptQueue incomingConnections;
 
 	private ISharerGUI tgui;
 	private String basedir;
@@ -32,24 +34,52 @@ public class Peer implements IPeer {
 
 	private int port;
 
+	// persistent sessions with index servers, keyed by address, port and secret
+	private ConcurrentHashMap<String, ConnectServer> idxSessions = new ConcurrentHashMap<>();
+
+	// the sessions with index servers that this peer has shared files with, which are sent heartbeats
+	Set<ConnectServer> sharedSessions = ConcurrentHashMap.newKeySet();
+
 	public Peer(int port, String basedir, int socketTimeout, ISharerGUI tgui) throws IOException {
+		this(port, basedir, socketTimeout, false, tgui);
+	}
+
+	/**
+	 * Create a peer, optionally serving every upload connection on a virtual thread.
+	 */
+	public Peer(int port, String basedir, int socketTimeout, boolean virtualThreads, ISharerGUI tgui) throws IOException {
 		this.tgui=tgui;
 		this.port=port;
 		this.timeout=socketTimeout;
 		this.basedir=new File(basedir).getCanonicalPath();
-		this.incomingConnections = new LinkedBlockingDeque<Socket>();
+		this.incomingConnections = new AcceptQueue(AcceptQueue.DEFAULT_CAPACITY);
 		ioThread = new IOThread(port,incomingConnections,socketTimeout,tgui);
 		ioThread.start();
-		peerUploadIOThread = new PeerUpload_IOThread(this, incomingConnections,tgui, ioThread);
+		peerUploadIOThread = new PeerUpload_IOThread(this, incomingConnections,tgui, ioThread, virtualThreads);
 		peerUploadIOThread.start();
+		heartbeatThread = new PeerHeartbeatThread(this, tgui, port);
+		heartbeatThread.start();
 	}
 
 	// shutdown related threads
 	public void shutdown() throws InterruptedException, IOException {
+		heartbeatThread.interrupt();
 		peerUploadIOThread.interrupt();
 		peerUploadIOThread.join();
 		ioThread.interrupt();
 		ioThread.join();
+		for (ConnectServer session : idxSessions.values()) {
+			session.close();
+		}
+	}
+
+	/**
+	 * Get the persistent session with an index server, creating it if needed. The session
+	 * is shared by all share, search, drop and lookup requests made to that server.
+	 */
+	ConnectServer getIdxSession(InetAddress idxAddress, int idxPort, String idxSecret) {
+		String key = idxAddress.getHostAddress() + ":" + idxPort + ":" + idxSecret;
+		return idxSessions.computeIfAbsent(key, k -> new ConnectServer(tgui, idxAddress, idxPort, idxSecret));
 	}
 
 
@@ -57,7 +87,8 @@ public class Peer implements IPeer {
 	public void shareFileWithIdxServer(File file, InetAddress idxAddress, int idxPort, String idxSecret,
 			String shareSecret) {
 		// start a share Thread
-		PeerShareThread shareThread = new PeerShareThread(this, basedir, file, idxAddress, idxPort, idxSecret, shareSecret, tgui, port);
+		PeerShareThread shareThread = new PeerShareThread(this, basedir, file, idxAddress, idxPort, idxSecret, shareSecret, tgui, port,
+				getIdxSession(idxAddress, idxPort, idxSecret));
 		shareThread.start();
 	}
 
@@ -69,7 +100,8 @@ public class Peer implements IPeer {
 			int idxPort,
 			String idxSecret) {
 		// start a thread to search index server.
-		PeerSearchThread searchThread = new PeerSearchThread(keywords, maxhits, idxAddress, idxPort, idxSecret, tgui);
+		PeerSearchThread searchThread = new PeerSearchThread(keywords, maxhits, idxAddress, idxPort, idxSecret, tgui,
+				getIdxSession(idxAddress, idxPort, idxSecret));
 		searchThread.start();
 	}
 
@@ -78,24 +110,20 @@ public class Peer implements IPeer {
 	@Override
 	public boolean dropShareWithIdxServer(String relativePathname, ShareRecord shareRecord) {
 
-		// try to establish connection and handshake with idx server.
-		ConnectServer connection = new ConnectServer(this.tgui);
-		if (!connection.MakeConnection(shareRecord.idxSrvAddress, shareRecord.idxSrvPort, shareRecord.idxSrvSecret)) return false;
+		// use the session with the idx server.
+		ConnectServer connection = getIdxSession(shareRecord.idxSrvAddress, shareRecord.idxSrvPort, shareRecord.idxSrvSecret);
 
 		// create and send request to share with server
 		try {
-			//send request
-			connection.sendRequest(new DropShareRequest(relativePathname, shareRecord.fileMgr.getFileDescr().getFileMd5(),
+			//send request and receive reply
+			Message msg_back = connection.request(new DropShareRequest(relativePathname, shareRecord.fileMgr.getFileDescr().getFileMd5(),
 					shareRecord.sharerSecret, this.port));
-			// receive reply
-			Message msg_back = connection.getMsg();
 			// check if reply is a success flag to return false or true.
 			if (!checkReply(msg_back)){tgui.logError("Something Wrong with the Server Side."); return false;}
 			DropShareReply dropShareReply = (DropShareReply) msg_back;
 			if (!dropShareReply.success) { tgui.logError("Server failed to drop the record"); return false;}
 
 			// Drop file succeed:
-			connection.shutdown();
 			shareRecord.fileMgr.closeFile();
 			tgui.logInfo("Drop file success!");
 			this.sharingFileNames.remove(relativePathname);
@@ -110,9 +138,8 @@ public class Peer implements IPeer {
 
 	@Override
 	public void downloadFromPeers(String relativePathname, SearchRecord searchRecord) {
-		// try to establish connection and handshake with index server.
-		ConnectServer connection = new ConnectServer(this.tgui);
-		if (!connection.MakeConnection(searchRecord.idxSrvAddress, searchRecord.idxSrvPort, searchRecord.idxSrvSecret)) return;
+		// use the session with the index server for lookups.
+		ConnectServer connection = getIdxSession(searchRecord.idxSrvAddress, searchRecord.idxSrvPort, searchRecord.idxSrvSecret);
 
 		// create a thread to ask for download and make it run.
 		PeerDownloadThread downloadThread;
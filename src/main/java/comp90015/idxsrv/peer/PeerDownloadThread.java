@@ -1,6 +1,7 @@
 package comp90015.idxsrv.peer;
 
 import comp90015.idxsrv.filemgr.BlockUnavailableException;
+import comp90015.idxsrv.filemgr.FileDescr;
 import comp90015.idxsrv.filemgr.FileMgr;
 import comp90015.idxsrv.message.*;
 import comp90015.idxsrv.server.IndexElement;
@@ -10,7 +11,6 @@ import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.LinkedBlockingDeque;
@@ -32,9 +32,8 @@ public class PeerDownloadThread extends Thread {
     private int totalN;
     private Set<Integer> remainedBlocksIdx;
     private IndexElement[] sources;
-    private BufferedWriter bufferedWriter;
     private Socket socket;
-    private BufferedReader bufferedReader;
+    private MessageStream stream;
     // to iterate blocks index
     private ArrayList<Integer> neededIndex_Array;
     // to Store Connections
@@ -44,7 +43,8 @@ public class PeerDownloadThread extends Thread {
 
 
     private int cur_BlockArrayIndex = 0; // Index of NeededBlockIndex_Array, Not index of Block!
-    private LinkedBlockingDeque<BlockReply> writeQueue = new LinkedBlockingDeque<>();
+    private int requestedBlockIdx = -1; // the block of the request waiting for its reply
+    private LinkedBlockingDeque<ReceivedBlock> writeQueue = new LinkedBlockingDeque<>();
     /**
      * Create a Peer Download Thread, the thread must be explicitly started.
      * Also it process the incoming request in socket.
@@ -140,7 +140,7 @@ public class PeerDownloadThread extends Thread {
                     tgui.logInfo("All blocks Downloaded!");
                     // close existing sockets by sending Goodbye message.
                     try {
-                        GoodByeToPeer(socket, bufferedReader, bufferedWriter);
+                        GoodByeToPeer(socket, stream);
                     } catch (Exception e) {
                         tgui.logWarn("Upload Peer timed out before we say goodbye");
                     }
@@ -160,19 +160,19 @@ public class PeerDownloadThread extends Thread {
 
                     // if run out of current resources, try querying idx server for new resources again
                     if (index_sources >= sources.length) {
-                        //reconnect to idx then query for other resources.
-                        ConnectServer connectionRetry = new ConnectServer(this.tgui);
-                        if (connectionRetry.MakeConnection(searchRecord.idxSrvAddress, searchRecord.idxSrvPort, searchRecord.idxSrvSecret)) {
-                            sources = getSourcesFromIdx(relativePathname, searchRecord, connectionRetry);
-                            connectionRetry.shutdown();
-                            if (sources == null) {tgui.logWarn("No Available Sources, Retry");}
-                            if (sources.length == 0) {tgui.logWarn("No Available Sources, Retry");}
+                        //query idx for other resources, on the session shared with other requests.
+                        try {
+                            IndexElement[] newSources = getSourcesFromIdx(relativePathname, searchRecord, connection);
+                            if (newSources == null || newSources.length == 0) {tgui.logWarn("No Available Sources, Retry");}
+                            else {sources = newSources;}
+                        } catch (IOException | JsonSerializationException e) {
+                            tgui.logWarn("Cannot query idx server, Retry");
                         }
                         // reset all current connection
                         tgui.logInfo("Retry Connection for " + retry_times + " times.");
                         retry_times += 1; // keep track of our retry times
                         index_sources = 0; // reset which resource taken from resources.
-                        try {bufferedWriter.close();bufferedReader.close();socket.close();} catch (IOException ignored){} // if there's still connection, close it.
+                        try {stream.close();socket.close();} catch (IOException ignored){} // if there's still connection, close it.
                     }
                 }
             } catch (Exception e) {
@@ -195,12 +195,12 @@ public class PeerDownloadThread extends Thread {
             JoinWithWriteThread(); // If Write thread has too many blocks in queue, let current downloading wait.
             try {
                 // Step 3. send request
-                singleBlockRequest(tempFile, neededIndex_Array.get(cur_BlockArrayIndex), bufferedWriter);
+                singleBlockRequest(tempFile, neededIndex_Array.get(cur_BlockArrayIndex), stream);
             }
             catch (IOException e) {
                 // Cannot send request, move on to next peer.
                 tgui.logInfo("Cannot send request, Retry....");
-                GoodByeToPeer(socket, bufferedReader, bufferedWriter);
+                GoodByeToPeer(socket, stream);
                 break;
             }
             try {
@@ -231,7 +231,7 @@ public class PeerDownloadThread extends Thread {
                 tgui.logInfo("Reach limit, create new connections.");
                 tgui.logInfo("Number of Blocks remaining: " + (neededIndex_Array.size() - cur_BlockArrayIndex));
                 index_sources -= 1;
-                GoodByeToPeer(socket, bufferedReader, bufferedWriter);
+                GoodByeToPeer(socket, stream);
                 break;
             }
 
@@ -252,10 +252,13 @@ public class PeerDownloadThread extends Thread {
      * return true if at least one request has been sent
      *
      * */
-    private void singleBlockRequest (FileMgr tempFile, int blockIdx_Need, BufferedWriter bufferedWriter)
+    private void singleBlockRequest (FileMgr tempFile, int blockIdx_Need, MessageStream stream)
             throws SocketTimeoutException, IOException {
-        // 1. (HandShake 1): Send Block request
-        writeMsg(bufferedWriter, new BlockRequest(relativePathname, tempFile.getFileDescr().getBlockMd5(blockIdx_Need), blockIdx_Need));
+        // 1. (HandShake 1): Send Block request, asking to switch to binary frames until the peer agrees
+        BlockRequest request = new BlockRequest(relativePathname, tempFile.getFileDescr().getBlockMd5(blockIdx_Need), blockIdx_Need);
+        if (!stream.usesFrames()) request.framing = MessageFramer.BINARY;
+        requestedBlockIdx = blockIdx_Need;
+        writeMsg(stream, request);
     }
 
     /**
@@ -271,7 +274,6 @@ public class PeerDownloadThread extends Thread {
         try {
             //get online available sources.
             sources = getSourcesFromIdx(relativePathname, searchRecord, connection);
-            connection.shutdown();  // shutdown connection with Server
             if (sources == null) {tgui.logWarn("No Available Sources");
                 return false;
             }
@@ -342,8 +344,7 @@ public class PeerDownloadThread extends Thread {
             InputStream inputStream = socket.getInputStream();
             OutputStream outputStream = socket.getOutputStream();
             // initialise input and outputStream
-            this.bufferedReader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-            this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            this.stream = new MessageStream(inputStream, outputStream);
             tgui.logInfo("Connected!");
             //System.out.println("Add another connection");
             curPeerCount += 1;
@@ -404,13 +405,41 @@ public class PeerDownloadThread extends Thread {
         try {
             // 1. call singleBlockRequest() first to request file.
             // 2. download block files.
-            Message msg = readMsg(bufferedReader);
+            Message msg = readMsg(stream);
+            if (msg.getClass().getName().equals(BlockHeader.class.getName())) {
+                // the raw bytes of the block follow the header, and are read straight into the block,
+                // once the header is known to answer the outstanding request
+                BlockHeader header = (BlockHeader) msg;
+                FileDescr fileDescr = tempFile.getFileDescr();
+                if (!relativePathname.equals(header.filename) || !fileDescr.getFileMd5().equals(header.fileMd5)
+                        || header.blockIdx != requestedBlockIdx
+                        || header.length != fileDescr.getNumBlockBytes(header.blockIdx)) {
+                    // the bytes that follow cannot be skipped safely
+                    tgui.logError("Invalid block header from peer");
+                    stream.close();
+                    throw new IOException("Invalid block header");
+                }
+                byte[] bytes = new byte[header.length];
+                stream.readFully(bytes, 0, bytes.length);
+                // the peer has agreed to switch to binary frames after this block
+                if (!stream.usesFrames() && MessageFramer.BINARY.equals(header.framing)) {
+                    stream.useFrames();
+                }
+                writeQueue.add(new ReceivedBlock(header.blockIdx, bytes));
+                return;
+            }
             if (!(msg.getClass().getName().equals(BlockReply.class.getName()))) {
                 tgui.logError("Invalid Message from peer when fetching blockReply");
                 throw new InvalidMessageException();
             }
             // add to writer queue
-            writeQueue.add((BlockReply) msg);
+            BlockReply reply = (BlockReply) msg;
+            try {
+                writeQueue.add(new ReceivedBlock(reply.blockIdx, Base64.getDecoder().decode(reply.bytes)));
+            } catch (IllegalArgumentException e) {
+                tgui.logError("Invalid Base64 in BlockReply");
+                throw new InvalidMessageException();
+            }
         }
         catch (JsonSerializationException e) {
             tgui.logError("Fail to read from BlockReply");
@@ -473,9 +502,8 @@ public class PeerDownloadThread extends Thread {
     private IndexElement[] getSourcesFromIdx(String relativePathname, SearchRecord searchRecord, ConnectServer connection) throws IOException, JsonSerializationException {
         //send request to get a file with same name and same MD5 code as file described in index server.
         Message msgToSend = new LookupRequest(relativePathname, searchRecord.fileDescr.getFileMd5());
-        connection.sendRequest(msgToSend);
-        // receive reply
-        Message msg_back = connection.getMsg();
+        // send and receive reply
+        Message msg_back = connection.request(msgToSend);
         // check if reply is a success flag to return false or true.
         if (!checkReply(msg_back)){
             return null;
@@ -489,14 +517,14 @@ public class PeerDownloadThread extends Thread {
 
     /**
      *
-     *Send a goodBye message to a peer via BufferReader and Writer, close the socket.
+     *Send a goodBye message to a peer via the message stream, close the socket.
      *
     **/
-    private void GoodByeToPeer(Socket socket, BufferedReader bufferedReader, BufferedWriter bufferedWriter) {
+    private void GoodByeToPeer(Socket socket, MessageStream stream) {
         //******************* finish Goodbye message *************
         try {
             // Send Finish GoodBye Signal
-            writeMsg(bufferedWriter,new Goodbye());
+            writeMsg(stream,new Goodbye());
             tgui.logInfo("GoodBye Sent to: " + socket.getInetAddress());
         } catch (Exception e1) {
             tgui.logWarn("Download Peer: Fail to send good bye signal");
@@ -511,21 +539,13 @@ public class PeerDownloadThread extends Thread {
      * Methods for writing and reading messages.  By Aaron.
      */
 
-    private void writeMsg(BufferedWriter bufferedWriter, Message msg) throws IOException {
+    private void writeMsg(MessageStream stream, Message msg) throws IOException {
         //tgui.logDebug("sending: "+msg.toString());
-        bufferedWriter.write(msg.toString());
-        bufferedWriter.newLine();
-        bufferedWriter.flush();
+        stream.writeMsg(msg, true);
     }
 
-    private Message readMsg(BufferedReader bufferedReader) throws IOException, JsonSerializationException {
-        String jsonStr = bufferedReader.readLine();
-        if(jsonStr!=null) {
-            Message msg = (Message) MessageFactory.deserialize(jsonStr);
-            return msg;
-        } else {
-            throw new IOException();
-        }
+    private Message readMsg(MessageStream stream) throws IOException, JsonSerializationException {
+        return stream.readMsg();
     }
 
     /*
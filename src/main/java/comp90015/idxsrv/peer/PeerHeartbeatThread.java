@@ -0,0 +1,85 @@
+package comp90015.idxsrv.peer;
+
+import comp90015.idxsrv.message.*;
+import comp90015.idxsrv.textgui.ISharerGUI;
+
+/**
+ * A Thread that keeps this peer's shares alive on the index servers it has shared with.
+ * An index server drops all shares of a peer that has not sent a heartbeat for the length of
+ * its lease, so that a peer that crashed or shut down stops being handed out as a source.
+ * A heartbeat is sent to every server three times per lease, which the server gives in its reply.
+ *
+ * @author Chenghao Li
+ */
+public class PeerHeartbeatThread extends Thread {
+    // used until the index servers have said how long their leases are
+    private static final long DEFAULT_INTERVAL = 30 * 1000;
+    private Peer peer;
+    private ISharerGUI tgui;
+    private int peerPort;
+
+    public PeerHeartbeatThread(Peer peer, ISharerGUI tgui, int peerPort) {
+        this.peer = peer;
+        this.tgui = tgui;
+        this.peerPort = peerPort;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        long interval = DEFAULT_INTERVAL;
+        while (!isInterrupted()) {
+            try {
+                sleep(interval);
+            } catch (InterruptedException e) {
+                break;
+            }
+            long next = Long.MAX_VALUE;
+            for (ConnectServer session : peer.sharedSessions) {
+                long lease = heartbeat(session);
+                if (lease > 0) next = Math.min(next, lease / 3);
+            }
+            interval = next == Long.MAX_VALUE ? DEFAULT_INTERVAL : Math.max(1000, next);
+        }
+    }
+
+    /**
+     * Send a heartbeat to an index server.
+     * @return the server's lease in milliseconds, or 0 if none is known
+     */
+    private long heartbeat(ConnectServer session) {
+        try {
+            Message msg_back = session.request(new HeartbeatRequest(peerPort));
+            if (msg_back.getClass().getName().equals(ErrorMsg.class.getName())) {
+                String error = ((ErrorMsg) msg_back).msg;
+                if (isUnknownRequest(error)) {
+                    // an older server, whose shares never expire
+                    tgui.logWarn("Index server does not take heartbeats: " + error);
+                    peer.sharedSessions.remove(session);
+                } else {
+                    // e.g. too many requests, or a replica without its leader, which pass
+                    tgui.logWarn("Heartbeat to index server refused, will try again: " + error);
+                }
+                return 0;
+            }
+            HeartbeatReply reply = (HeartbeatReply) msg_back;
+            if (reply.numShares == 0) {
+                // everything was dropped, or has expired, so there is nothing left to keep alive
+                tgui.logWarn("Index server has no shares from this peer, share files again to restore them.");
+                peer.sharedSessions.remove(session);
+            }
+            return reply.leaseMillis;
+        } catch (Exception e) {
+            tgui.logWarn("Heartbeat to index server failed, will try again.");
+            return 0;
+        }
+    }
+
+    /**
+     * @return whether the error is the one a server gives for a request it does not know,
+     * which it cannot read or does not expect
+     */
+    private static boolean isUnknownRequest(String error) {
+        return "Invalid message".equals(error) || "Expecting a request message".equals(error);
+    }
+}
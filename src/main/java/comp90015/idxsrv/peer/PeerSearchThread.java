@@ -9,15 +9,20 @@ import java.net.InetAddress;
 
 /**
  * A Thread that make a connection to idx Server and search existing resources then add to gui.
+ * The hits are asked for a page at a time, and each page is added to the gui as it arrives,
+ * so a broad search shows its best hits without waiting for the rest.
  * @author Chenghao Li
  */
 public class PeerSearchThread extends Thread {
+    // the number of hits asked for in each page
+    private static final int PAGE_SIZE = 50;
     private final InetAddress idxAddress;
     private final int idxPort;
     private final String idxSecret;
     private ISharerGUI tgui;
     private String[] keywords;
     private int maxhits;
+    private ConnectServer connection;
 
     /**
      * Create a Peer Download Thread, which attempts to the bind to the provided
@@ -30,13 +35,14 @@ public class PeerSearchThread extends Thread {
                             int maxhits,
                             InetAddress idxAddress,
                             int idxPort,
-                            String idxSecret, ISharerGUI tgui) {
+                            String idxSecret, ISharerGUI tgui, ConnectServer connection) {
         this.keywords = keywords;
         this.maxhits = maxhits;
         this.idxAddress = idxAddress;
         this.idxPort = idxPort;
         this.idxSecret = idxSecret;
         this.tgui = tgui;
+        this.connection = connection;
     }
 
     @Override
@@ -61,37 +67,37 @@ public class PeerSearchThread extends Thread {
 
 
     private boolean SearchServer(String[] keywords, int maxhits, InetAddress idxAddress, int idxPort, String idxSecret) {
-        // try to establish connection and handshake with idx server.
-        ConnectServer connection = new ConnectServer(this.tgui);
-        if (!connection.MakeConnection(idxAddress, idxPort, idxSecret)) return false;
-
-        // Send current request to IDX server
+        // Send current request to IDX server, on the session shared with other requests
         try {
-            // Send search request and get message back
-            connection.sendRequest(new SearchRequest(maxhits, keywords));
-            Message search_back = connection.getMsg();
-            // check if it's error message
-            if (!checkReply(search_back)){
-                tgui.logWarn("Unexpected Server Reply.");
-                return false;
+            // Send search request for the first page and get message back
+            Message search_back = connection.request(new SearchPageRequest(maxhits, keywords, PAGE_SIZE));
+            if (search_back.getClass().getName().equals(ErrorMsg.class.getName())) {
+                // an older server, which only returns every hit at once
+                search_back = connection.request(new SearchRequest(maxhits, keywords));
+                if (!checkReply(search_back)){
+                    tgui.logWarn("Unexpected Server Reply.");
+                    return false;
+                }
+                SearchReply searchReply = (SearchReply) search_back;
+                tgui.clearSearchHits();
+                addHits(searchReply.hits, searchReply.seedCounts);
+                return true;
             }
-            SearchReply searchReply = (SearchReply) search_back;
-
-            // Add file info to GUI table
-            IndexElement[] hits = searchReply.hits;
-            Integer[] seedCounts = searchReply.seedCounts;
             // before add, remove previous history
             tgui.clearSearchHits();
-            // iterate through list of returned request (All relevant file lists + number of sharer for each file)
-            for (int i = 0; i < hits.length; i++) {
-                // create new searchRecord class and add to our gui table.
-                IndexElement ie = hits[i];
-                SearchRecord newSearchRecord =
-                        new SearchRecord(ie.fileDescr, seedCounts[i], idxAddress, idxPort, idxSecret, ie.secret);
-                tgui.addSearchHit(ie.filename, newSearchRecord);
+            while (true) {
+                SearchPageReply page = (SearchPageReply) search_back;
+                addHits(page.hits, page.seedCounts);
+                if (page.cursor.isEmpty() || isInterrupted()) {
+                    return true;
+                }
+                search_back = connection.request(new SearchNextRequest(page.cursor));
+                // check if it's error message, such as a cursor that expired
+                if (!checkReply(search_back)){
+                    tgui.logWarn("Search stopped after " + page.numHits + " hits were found.");
+                    return false;
+                }
             }
-            connection.shutdown();
-            return true;
         } catch (JsonSerializationException e) {
             tgui.logError("JsonSerializationException");
             return false;
@@ -101,6 +107,19 @@ public class PeerSearchThread extends Thread {
         }
     }
 
+    /*
+    Add file info to GUI table, for each hit and its number of sharers.
+     */
+    private void addHits(IndexElement[] hits, Integer[] seedCounts) {
+        for (int i = 0; i < hits.length; i++) {
+            // create new searchRecord class and add to our gui table.
+            IndexElement ie = hits[i];
+            SearchRecord newSearchRecord =
+                    new SearchRecord(ie.fileDescr, seedCounts[i], idxAddress, idxPort, idxSecret, ie.secret);
+            tgui.addSearchHit(ie.filename, newSearchRecord);
+        }
+    }
+
     /*
     check the reply from server, if it's error message, return false, print to console.
     Otherwise return true to indicate reply is valid.
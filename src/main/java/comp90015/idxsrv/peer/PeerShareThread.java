@@ -1,19 +1,30 @@
 package comp90015.idxsrv.peer;
 
+import comp90015.idxsrv.filemgr.FileDescr;
 import comp90015.idxsrv.filemgr.FileMgr;
 import comp90015.idxsrv.message.*;
 import comp90015.idxsrv.textgui.ISharerGUI;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * A Thread that make a connection to idx Server and share the file to the index server
  * Add to gui if succeed.
+ * A directory is shared as all of the files under it, which are sent in batches,
+ * so that a whole directory takes a few round trips rather than one per file.
  * @author Chenghao Li
  */
 public class PeerShareThread extends Thread {
+    // the most files shared in one batch request
+    private static final int BATCH_SIZE = 256;
     private final File file;
     private final InetAddress idxAddress;
     private final int idxPort;
@@ -23,6 +34,7 @@ public class PeerShareThread extends Thread {
     private String basedir;
     private int peerPort;
     private Peer peer;
+    private ConnectServer connection;
 
 
     /**
@@ -33,7 +45,7 @@ public class PeerShareThread extends Thread {
      * @throws IOException
      */
     public PeerShareThread(Peer peer, String basedir, File file, InetAddress idxAddress, int idxPort, String idxSecret,
-                           String shareSecret, ISharerGUI tgui, int peerPort) {
+                           String shareSecret, ISharerGUI tgui, int peerPort, ConnectServer connection) {
         this.peer = peer;
         this.basedir = basedir;
         this.file = file;
@@ -43,11 +55,17 @@ public class PeerShareThread extends Thread {
         this.shareSecret = shareSecret;
         this.tgui = tgui;
         this.peerPort = peerPort;
+        this.connection = connection;
     }
 
     @Override
     public void run() {
         tgui.logInfo("Trying to Share with Idx Server in this Thread...");
+        if (file.isDirectory()) {
+            shareDirectory(file);
+            tgui.logInfo("Share Request thread completed.");
+            return;
+        }
         while(!isInterrupted()) {
             // ask for every peer to send their blocks, if all file success, success and shutdown this thread.
             if (shareWithServer(file, idxAddress, idxPort, idxSecret, shareSecret)){
@@ -99,17 +117,10 @@ public class PeerShareThread extends Thread {
             tgui.logError("IO operation failed! Cannot use FileMgr to create local file.");
             return false;
         }
-        // try to establish connection and handshake with idx server.
-        ConnectServer connection = new ConnectServer(this.tgui);
-        if (!connection.MakeConnection(idxAddress, idxPort, idxSecret)) return false;
-
-        // create and send request to share with idx server
+        // create and send request to share with idx server, on the session shared with other requests
         try{
-            // send request
-            connection.sendRequest(new ShareRequest(fileMgr.getFileDescr(), relativePathName, shareSecret, peerPort));
-
-            // receive reply from idx server
-            Message msg_back = connection.getMsg();
+            // send request and receive reply from idx server
+            Message msg_back = connection.request(new ShareRequest(fileMgr.getFileDescr(), relativePathName, shareSecret, peerPort));
             // check if it's error message
             if (!checkReply(msg_back)){tgui.logWarn("Something wrong with Server Side.");
                 return false;
@@ -120,9 +131,9 @@ public class PeerShareThread extends Thread {
             ShareRecord newRecord = new ShareRecord(fileMgr, reply.numSharers,"Ready", idxAddress,
                     idxPort, idxSecret, shareSecret);
             tgui.addShareRecord(relativePathName, newRecord);
-            connection.shutdown();
             fileMgr.closeFile();
             peer.sharingFileNames.add(relativePathName);
+            peer.sharedSessions.add(connection);
             return true;
         }
         catch (FileNotFoundException e) {
@@ -141,6 +152,89 @@ public class PeerShareThread extends Thread {
         }
     }
 
+    /**
+     * Share every file under a directory, in batches of at most BATCH_SIZE files.
+     * A file that cannot be read, or that the server refuses, is skipped with a warning.
+     * @param dir the directory, which must be in the base directory
+     */
+    private void shareDirectory(File dir) {
+        List<File> files;
+        try {
+            if (!dir.getCanonicalPath().startsWith(basedir)) {
+                tgui.logWarn("Sharing Directory Not in Base Directory!");
+                return;
+            }
+        } catch (IOException e) {
+            tgui.logError("Cannot resolve " + dir.getPath());
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            files = paths.filter(Files::isRegularFile).map(Path::toFile).collect(Collectors.toList());
+        } catch (IOException | UncheckedIOException e) {
+            tgui.logError("Cannot list the files in " + dir.getPath());
+            return;
+        }
+        int shared = 0;
+        for (int start = 0; start < files.size() && !isInterrupted(); start += BATCH_SIZE) {
+            List<FileMgr> fileMgrs = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            for (File f : files.subList(start, Math.min(files.size(), start + BATCH_SIZE))) {
+                try {
+                    fileMgrs.add(new FileMgr(f.getPath()));
+                    names.add(new File(basedir).toURI().relativize(f.toURI()).getPath());
+                } catch (NoSuchAlgorithmException | IOException e) {
+                    tgui.logWarn("Cannot load " + f.getPath() + ", it is not shared.");
+                }
+            }
+            if (fileMgrs.isEmpty()) continue;
+            shared += shareBatch(fileMgrs, names);
+        }
+        tgui.logInfo("Shared " + shared + " of " + files.size() + " files in " + dir.getPath());
+    }
+
+    /**
+     * Send one batch of files to the Idx Server, and add those it shared to the GUI.
+     * @return the number of files shared
+     */
+    private int shareBatch(List<FileMgr> fileMgrs, List<String> names) {
+        FileDescr[] fileDescrs = new FileDescr[fileMgrs.size()];
+        String[] secrets = new String[fileMgrs.size()];
+        for (int i = 0; i < fileDescrs.length; i++) {
+            fileDescrs[i] = fileMgrs.get(i).getFileDescr();
+            secrets[i] = shareSecret;
+        }
+        int shared = 0;
+        try {
+            Message msg_back = connection.request(new ShareBatchRequest(fileDescrs, names.toArray(new String[0]), secrets, peerPort));
+            if (!checkReply(msg_back)) {
+                tgui.logWarn("Something wrong with Server Side.");
+            } else {
+                ShareBatchReply reply = (ShareBatchReply) msg_back;
+                for (int i = 0; i < fileDescrs.length; i++) {
+                    if (reply.numSharers[i] == 0) {
+                        tgui.logWarn("Idx Server refused to share " + names.get(i));
+                        continue;
+                    }
+                    tgui.addShareRecord(names.get(i), new ShareRecord(fileMgrs.get(i), reply.numSharers[i], "Ready",
+                            idxAddress, idxPort, idxSecret, shareSecret));
+                    peer.sharingFileNames.add(names.get(i));
+                    shared++;
+                }
+                if (shared > 0) peer.sharedSessions.add(connection);
+            }
+        } catch (Exception e) {
+            tgui.logError("Batch share failed! " + e.getMessage());
+        }
+        for (FileMgr fileMgr : fileMgrs) {
+            try {
+                fileMgr.closeFile();
+            } catch (IOException e) {
+                // the file stays shared, it is reopened to upload it
+            }
+        }
+        return shared;
+    }
+
     /*
     check the reply from server, if it's error message, return false, print to console.
     Otherwise return true to indicate reply is valid.
@@ -10,7 +10,6 @@ import java.io.*;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
 
@@ -18,10 +17,15 @@ import java.util.Base64;
  * A Thread that make a connection to idx Server and share the file
  *
  * This sub thread was created by main share thread to handle different requests for different file, from different peers.
+ * It is a Runnable so that it can be run on either a platform or a virtual thread.
+ * If the downloader asks for binary frames, each block is sent as a header followed by its
+ * raw bytes instead of Base64 in a BlockReply, and the connection switches to binary frames
+ * after the first block, see {@link MessageFramer}. The raw bytes are transferred from the
+ * file to the socket's channel without being read into a buffer, see {@link FileMgr#transferBlock}.
  *
  * @author Chenghao Li
  */
-public class PeerUploadSubThread extends Thread {
+public class PeerUploadSubThread implements Runnable {
     private final Socket socket;
     private ISharerGUI tgui;
     private final Peer peer;
@@ -66,10 +70,7 @@ public class PeerUploadSubThread extends Thread {
         int port=socket.getPort();
         tgui.logInfo("Client Upload processing request on connection "+ip);
         try {
-            InputStream inputStream = socket.getInputStream();
-            OutputStream outputStream = socket.getOutputStream();
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-            BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            MessageStream stream = new MessageStream(socket.getInputStream(), socket.getOutputStream());
 
             /*
              * Follow the synchronous handshake protocol.
@@ -78,7 +79,7 @@ public class PeerUploadSubThread extends Thread {
             // get first block reply message
             Message msg;
             try {
-                msg = readMsg(bufferedReader);
+                msg = readMsg(stream);
             } catch (JsonSerializationException e1) {
                 tgui.logWarn("Invalid message, JsonSerialisation...");
                 return false;
@@ -94,6 +95,7 @@ public class PeerUploadSubThread extends Thread {
             // 1. Check if message is a request and Continuously get a message with block info
             BlockRequest blockRequest;
             FileMgr fileMgr = null;
+            String openFilename = null;
             while (msg.getClass().getName()==BlockRequest.class.getName()) {
                 blockRequest = (BlockRequest) msg;
                 /* 2
@@ -102,8 +104,14 @@ public class PeerUploadSubThread extends Thread {
                  */
 
                 try {
-                    fileMgr = new FileMgr(blockRequest.filename);
-                    if (!ProcessBlockRequests(peer, fileMgr, bufferedWriter, blockRequest)) {
+                    // opening a file hashes all of it, so it is kept open for the requests that follow
+                    if (fileMgr == null || !openFilename.equals(blockRequest.filename)) {
+                        if (fileMgr != null) fileMgr.closeFile();
+                        fileMgr = null;
+                        fileMgr = new FileMgr(blockRequest.filename);
+                        openFilename = blockRequest.filename;
+                    }
+                    if (!ProcessBlockRequests(peer, fileMgr, stream, blockRequest)) {
                         tgui.logWarn("Fail to share, Terminate connection with Peer: " + ip);
                         return false;
                     }
@@ -112,19 +120,19 @@ public class PeerUploadSubThread extends Thread {
                     return false;
                 } catch (IOException ioE) {
                     tgui.logWarn("Couldn't send block: " + blockRequest.blockIdx + ", skip to next");
-                    writeMsg(bufferedWriter, new ErrorMsg("Cannot Send Block."));
+                    writeMsg(stream, new ErrorMsg("Cannot Send Block."));
                 } catch (NoSuchAlgorithmException e) {
                     tgui.logError("No such Algorithm, Terminate connection.");
                     return false;
                 } catch (Exception e) {
                     tgui.logWarn("Current Block Upload error, skip to next");
-                    writeMsg(bufferedWriter, new ErrorMsg("Cannot Send Block."));
+                    writeMsg(stream, new ErrorMsg("Cannot Send Block."));
                 }
                 /* 3
                  * Get Another message
                  */
                 try {
-                    msg = readMsg(bufferedReader);
+                    msg = readMsg(stream);
                 } catch (JsonSerializationException e1) {
                     tgui.logWarn("Invalid message Terminate connection with Peer: " + ip);
                     return false;
@@ -136,14 +144,14 @@ public class PeerUploadSubThread extends Thread {
                 catch (IOException e){
                     if (e!= null) {tgui.logError(e.getMessage()); tgui.logError(e.getLocalizedMessage());e.printStackTrace();}
                     tgui.logWarn("IO Exception encountered when reading block message");
-                    writeMsg(bufferedWriter, new ErrorMsg("Block is not available."));
+                    writeMsg(stream, new ErrorMsg("Block is not available."));
                     return false;
                 }
             }
             if (fileMgr!=null) fileMgr.closeFile();
             // at this stage, the message type is not block request, it should be Goodbye message
             if (!(msg.getClass().getName() == (Goodbye.class.getName()))) {
-                writeMsg(bufferedWriter, new ErrorMsg("Invalid Message!"));
+                writeMsg(stream, new ErrorMsg("Invalid Message!"));
                 return false;
             }
             else{
@@ -163,7 +171,7 @@ public class PeerUploadSubThread extends Thread {
      * return false when we need to terminate the connection
      * return true if we fail recover, continue to listen.
      */
-    private boolean ProcessBlockRequests(Peer peer, FileMgr fileMgr, BufferedWriter bufferedWriter, BlockRequest msg)
+    private boolean ProcessBlockRequests(Peer peer, FileMgr fileMgr, MessageStream stream, BlockRequest msg)
                         throws SocketTimeoutException, IOException {
 
         // Check if the file requested is in our sharing list.
@@ -175,28 +183,38 @@ public class PeerUploadSubThread extends Thread {
         int blockidx = msg.blockIdx;
         // check if sharing file the same as requested file using MD5.
         if (!(fileMgr.getFileDescr().getBlockMd5(blockidx).equals(msg.fileMd5))) {
-            writeMsg(bufferedWriter,new ErrorMsg(msg.filename + " ] " +fileMgr.getFileDescr().getBlockMd5(blockidx) + "  Versus:  " + msg.fileMd5 + " **File Block ready unmatch what it supposed to send! It should be the same.**"));
+            writeMsg(stream,new ErrorMsg(msg.filename + " ] " +fileMgr.getFileDescr().getBlockMd5(blockidx) + "  Versus:  " + msg.fileMd5 + " **File Block ready unmatch what it supposed to send! It should be the same.**"));
             tgui.logWarn("MD5 check failed for file. File Name: " + msg.filename);
             return false;
         }
         // access local block file and send blockReply
         if (fileMgr.isBlockAvailable(blockidx)) {
             try {
-                byte[] data = fileMgr.readBlock(blockidx);
-                String c_d = Base64.getEncoder().encodeToString(data);
-                BlockReply bp = new BlockReply(msg.filename, fileMgr.getFileDescr().getFileMd5(), blockidx, c_d);
-                writeMsg(bufferedWriter, bp);
+                if (stream.usesFrames() || MessageFramer.BINARY.equals(msg.framing)) {
+                    // send the raw bytes after a header, agreeing to switch to binary frames if not yet
+                    BlockHeader header = new BlockHeader(msg.filename, fileMgr.getFileDescr().getFileMd5(), blockidx,
+                            fileMgr.getFileDescr().getNumBlockBytes(blockidx));
+                    boolean switching = !stream.usesFrames();
+                    if (switching) header.framing = MessageFramer.BINARY;
+                    writeBlock(stream, header, fileMgr);
+                    if (switching) stream.useFrames();
+                } else {
+                    byte[] data = fileMgr.readBlock(blockidx);
+                    String c_d = Base64.getEncoder().encodeToString(data);
+                    BlockReply bp = new BlockReply(msg.filename, fileMgr.getFileDescr().getFileMd5(), blockidx, c_d);
+                    writeMsg(stream, bp);
+                }
                 tgui.logInfo("Sent Block: " + blockidx);
                 return true;
             }
             catch (BlockUnavailableException e) {
-                writeMsg(bufferedWriter,new ErrorMsg("Block is not available!"));
+                writeMsg(stream,new ErrorMsg("Block is not available!"));
                 return true;
             }
             catch (OutOfMemoryError ignored) {return false;}
         }
         else {
-            writeMsg(bufferedWriter,new ErrorMsg("Block is not available!"));
+            writeMsg(stream,new ErrorMsg("Block is not available!"));
             return true;
         }
     }
@@ -206,22 +224,27 @@ public class PeerUploadSubThread extends Thread {
      * Methods for writing and reading messages.  By Aaron.
      */
 
-    private void writeMsg(BufferedWriter bufferedWriter, Message msg) throws IOException {
+    private void writeMsg(MessageStream stream, Message msg) throws IOException {
         //tgui.logDebug("sending: "+msg.toString());
-        bufferedWriter.write(msg.toString());
-        bufferedWriter.newLine();
-        bufferedWriter.flush();
+        stream.writeMsg(msg, true);
     }
 
-    private Message readMsg(BufferedReader bufferedReader) throws IOException, JsonSerializationException {
-        String jsonStr = bufferedReader.readLine();
-        if(jsonStr!=null) {
-            Message msg = (Message) MessageFactory.deserialize(jsonStr);
-            //tgui.logDebug("received: "+msg.toString());
-            return msg;
+    private void writeBlock(MessageStream stream, BlockHeader header, FileMgr fileMgr) throws IOException, BlockUnavailableException {
+        // the header must be flushed before the block is written to the channel beneath the stream
+        stream.writeMsg(header, true);
+        if (socket.getChannel() != null) {
+            fileMgr.transferBlock(header.blockIdx, socket.getChannel());
         } else {
-            throw new IOException();
+            byte[] data = fileMgr.readBlock(header.blockIdx);
+            stream.write(data, 0, data.length);
+            stream.flush();
         }
     }
 
+    private Message readMsg(MessageStream stream) throws IOException, JsonSerializationException {
+        Message msg = stream.readMsg();
+        //tgui.logDebug("received: "+msg.toString());
+        return msg;
+    }
+
 }
@@ -6,11 +6,11 @@ import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
-import java.util.concurrent.LinkedBlockingDeque;
 
 import comp90015.idxsrv.filemgr.BlockUnavailableException;
 import comp90015.idxsrv.filemgr.FileMgr;
 import comp90015.idxsrv.message.*;
+import comp90015.idxsrv.server.AcceptQueue;
 import comp90015.idxsrv.server.IOThread;
 import comp90015.idxsrv.textgui.ISharerGUI;
 
@@ -21,28 +21,34 @@ import comp90015.idxsrv.textgui.ISharerGUI;
  * Terminate current peer connection if invalid protocol, Algorithm error.
  *
  * ** It creates several sub-sharing threads to enable concurrent multi file sharing function.
+ * ** The sub-sharing threads are virtual threads if the peer was started with virtual threads,
+ *    so that thousands of downloaders do not need thousands of OS threads.
  *
  * @author Chenghao Li
  */
 public class PeerUpload_IOThread extends Thread {
     private final Peer peer;
-    private LinkedBlockingDeque<Socket> incomingConnections;
+    private AcceptQueue incomingConnections;
     private ISharerGUI tgui;
     private IOThread ioThread;
+    private boolean virtualThreads;
     /**
      * Create a Peer IOThread, which attempts to the bind to the provided
      * port with a server socket. The thread must be explicitly started.
      * Also it process the incoming request in socket
      * @param incomingConnections the blocking queue to put incoming connections
      * @param logger an object that implements the terminal logger interface
+     * @param virtualThreads true to handle each connection on a virtual thread
      */
-    public PeerUpload_IOThread(Peer peer, LinkedBlockingDeque<Socket> incomingConnections,
+    public PeerUpload_IOThread(Peer peer, AcceptQueue incomingConnections,
                                ISharerGUI logger,
-                               IOThread ioThread) {
+                               IOThread ioThread,
+                               boolean virtualThreads) {
         this.peer = peer;
         this.tgui = logger;
         this.incomingConnections=incomingConnections;
         this.ioThread = ioThread;
+        this.virtualThreads = virtualThreads;
     }
 
     @Override
@@ -55,7 +61,11 @@ public class PeerUpload_IOThread extends Thread {
                 socket.setSoTimeout(10*1000);
                 // Create a sub-thread for this particular socket.
                 PeerUploadSubThread subThread = new PeerUploadSubThread(peer, socket, tgui);
-                subThread.start();
+                if (virtualThreads) {
+                    Thread.ofVirtual().start(subThread);
+                } else {
+                    new Thread(subThread).start();
+                }
             } catch (InterruptedException e) {
                 tgui.logWarn("Peer Upload thread interrupted.");
                 break;
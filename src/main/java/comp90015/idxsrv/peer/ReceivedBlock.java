@@ -0,0 +1,16 @@
+package comp90015.idxsrv.peer;
+
+/**
+ * A block received from a peer, queued for the {@link BlockWriteThread} to check and write.
+ *
+ * @author Chenghao Li
+ */
+public class ReceivedBlock {
+    final public int blockIdx;
+    final public byte[] bytes;
+
+    public ReceivedBlock(int blockIdx, byte[] bytes) {
+        this.blockIdx = blockIdx;
+        this.bytes = bytes;
+    }
+}
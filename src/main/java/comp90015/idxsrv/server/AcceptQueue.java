@@ -0,0 +1,244 @@
+package comp90015.idxsrv.server;
+
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of accepted connections, between an {@link IOThread} and whatever
+ * processes the connections. When the queue is full the IO thread rejects a new
+ * connection straight away, rather than leaving it to wait for longer than its client
+ * is prepared to. The queue counts the connections it takes and rejects, and the total
+ * time that connections have waited in it.
+ * <p>
+ * The queue is fair between clients: the connections from each client address wait in
+ * their own queue, and are taken from each client in turn, so a client that opens many
+ * connections does not hold up the others behind all of its own. No one client may have
+ * more than a quarter of the queue, so its connections are rejected before it can fill
+ * the queue and have everyone else's rejected.
+ * @author aaron
+ *
+ */
+public class AcceptQueue {
+
+	/**
+	 * The capacity used when none is configured.
+	 */
+	public static final int DEFAULT_CAPACITY = 64;
+
+	/**
+	 * A queued connection and the time it was queued.
+	 */
+	private static class Entry {
+		Socket socket;
+		long queuedNanos;
+		Entry(Socket socket) {
+			this.socket=socket;
+			this.queuedNanos=System.nanoTime();
+		}
+	}
+
+	private ReentrantLock lock;
+
+	private Condition notEmpty;
+
+	/**
+	 * The connections waiting from each client address.
+	 */
+	private HashMap<String,ArrayDeque<Entry>> sources;
+
+	/**
+	 * The client addresses with connections waiting, in the order their turns come.
+	 */
+	private ArrayDeque<String> turns;
+
+	private volatile int count;
+
+	private int capacity;
+
+	private int sourceCapacity;
+
+	private AtomicLong numTaken;
+
+	private AtomicLong numRejected;
+
+	private AtomicLong waitNanos;
+
+	/**
+	 * Create a queue.
+	 * @param capacity the maximum number of connections that may wait in the queue
+	 */
+	public AcceptQueue(int capacity) {
+		this.capacity=Math.max(1,capacity);
+		sourceCapacity=Math.max(1,this.capacity/4);
+		lock=new ReentrantLock();
+		notEmpty=lock.newCondition();
+		sources=new HashMap<String,ArrayDeque<Entry>>();
+		turns=new ArrayDeque<String>();
+		numTaken=new AtomicLong();
+		numRejected=new AtomicLong();
+		waitNanos=new AtomicLong();
+	}
+
+	/**
+	 * Queue a connection if there is room for it, without waiting.
+	 * @param socket the connection
+	 * @return true if queued, false if the queue, or the client's share of it, is full and
+	 * the connection was rejected
+	 */
+	public boolean offer(Socket socket) {
+		String ip = socket.getInetAddress().getHostAddress();
+		lock.lock();
+		try {
+			ArrayDeque<Entry> waiting = sources.get(ip);
+			if(count>=capacity || (waiting!=null && waiting.size()>=sourceCapacity)) {
+				numRejected.incrementAndGet();
+				return false;
+			}
+			if(waiting==null) {
+				waiting = new ArrayDeque<Entry>();
+				sources.put(ip,waiting);
+				turns.add(ip);
+			}
+			waiting.add(new Entry(socket));
+			count++;
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take the next connection, waiting until there is one.
+	 * @return the connection
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Socket take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while(count==0) {
+				notEmpty.await();
+			}
+			return taken(next());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take the next connection, waiting up to the given time for there to be one.
+	 * @param timeout how long to wait
+	 * @param unit the unit of the timeout
+	 * @return the connection, or null if there was none in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Socket poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while(count==0) {
+				if(nanos<=0) return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return taken(next());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Dequeue the connection of the client whose turn it is, which then goes to the
+	 * back of the turns if it has more waiting. The lock must be held.
+	 */
+	private Entry next() {
+		String ip = turns.poll();
+		ArrayDeque<Entry> waiting = sources.get(ip);
+		Entry entry = waiting.poll();
+		if(waiting.isEmpty()) {
+			sources.remove(ip);
+		} else {
+			turns.add(ip);
+		}
+		count--;
+		return entry;
+	}
+
+	private Socket taken(Entry entry) {
+		if(entry==null) return null;
+		numTaken.incrementAndGet();
+		waitNanos.addAndGet(System.nanoTime()-entry.queuedNanos);
+		return entry.socket;
+	}
+
+	/**
+	 *
+	 * @return the number of connections waiting
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 *
+	 * @return the number of clients with connections waiting
+	 */
+	public int numSources() {
+		lock.lock();
+		try {
+			return sources.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 *
+	 * @return the maximum number of connections that may wait
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 *
+	 * @return the number of connections taken from the queue
+	 */
+	public long getNumTaken() {
+		return numTaken.get();
+	}
+
+	/**
+	 *
+	 * @return the number of connections rejected because the queue was full
+	 */
+	public long getNumRejected() {
+		return numRejected.get();
+	}
+
+	/**
+	 *
+	 * @return the total time in nanoseconds that the connections taken waited in the queue
+	 */
+	public long getWaitNanos() {
+		return waitNanos.get();
+	}
+
+	/**
+	 * Summarise the queue's depth and counters, for logging.
+	 */
+	@Override
+	public String toString() {
+		long taken = numTaken.get();
+		long meanWait = taken==0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitNanos.get()/taken);
+		return "depth "+size()+"/"+capacity
+				+", clients "+numSources()
+				+", taken "+taken
+				+", rejected "+numRejected.get()
+				+", mean wait "+meanWait+"ms";
+	}
+}
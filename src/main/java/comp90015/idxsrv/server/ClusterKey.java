@@ -0,0 +1,124 @@
+package comp90015.idxsrv.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import comp90015.idxsrv.message.PromoteRequest;
+import comp90015.idxsrv.message.ReplicateRequest;
+import comp90015.idxsrv.message.ShardJoinRequest;
+import comp90015.idxsrv.message.ShardRequest;
+
+/**
+ * Signs and checks the requests that index servers send each other, so that only the
+ * servers of a cluster, and its replicas, can forward a request on behalf of a client,
+ * join the cluster, follow a leader, or promote a follower. Clients know the server secret, so it cannot
+ * tell a server from a client; the cluster key is known to the servers alone. A request
+ * is signed with an HMAC keyed by the cluster key over its time and its elements, and is
+ * only accepted within {@link #MAX_SKEW_MILLIS} of that time, so that a request that
+ * has been overheard cannot be sent again later.
+ * @author aaron
+ *
+ */
+class ClusterKey {
+
+	/**
+	 * How far in milliseconds the time of a signed request may be from this server's clock.
+	 */
+	static final long MAX_SKEW_MILLIS = 60*1000;
+
+	private static final String ALGORITHM = "HmacSHA256";
+
+	private SecretKeySpec key;
+
+	/**
+	 *
+	 * @param clusterKey the key that all servers of the cluster share
+	 */
+	ClusterKey(String clusterKey) {
+		key=new SecretKeySpec(("cluster:"+clusterKey).getBytes(StandardCharsets.UTF_8),ALGORITHM);
+	}
+
+	ShardRequest sign(ShardRequest msg) {
+		msg.time=System.currentTimeMillis();
+		msg.mac=mac(msg.time,"shard",msg.ip,msg.request);
+		return msg;
+	}
+
+	ShardJoinRequest sign(ShardJoinRequest msg) {
+		msg.time=System.currentTimeMillis();
+		msg.mac=mac(msg.time,"join",msg.node);
+		return msg;
+	}
+
+	ReplicateRequest sign(ReplicateRequest msg) {
+		msg.time=System.currentTimeMillis();
+		msg.mac=mac(msg.time,"replicate");
+		return msg;
+	}
+
+	PromoteRequest sign(PromoteRequest msg) {
+		msg.time=System.currentTimeMillis();
+		msg.mac=mac(msg.time,"promote");
+		return msg;
+	}
+
+	/**
+	 * @return true if the request was signed with this key, recently enough
+	 */
+	boolean verify(ShardRequest msg) {
+		return msg.ip!=null && msg.request!=null
+				&& verify(msg.mac,msg.time,"shard",msg.ip,msg.request);
+	}
+
+	boolean verify(ShardJoinRequest msg) {
+		return msg.node!=null && verify(msg.mac,msg.time,"join",msg.node);
+	}
+
+	boolean verify(ReplicateRequest msg) {
+		return verify(msg.mac,msg.time,"replicate");
+	}
+
+	boolean verify(PromoteRequest msg) {
+		return verify(msg.mac,msg.time,"promote");
+	}
+
+	private boolean verify(String mac,Long time,String... parts) {
+		if(mac==null || time==null || Math.abs(System.currentTimeMillis()-time)>MAX_SKEW_MILLIS) {
+			return false;
+		}
+		byte[] bytes;
+		try {
+			bytes = Base64.getUrlDecoder().decode(mac);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		return MessageDigest.isEqual(Base64.getUrlDecoder().decode(mac(time,parts)),bytes);
+	}
+
+	/**
+	 * Each part is preceded by its length, so that the parts cannot be run together
+	 * into other parts with the same mac.
+	 */
+	private String mac(long time,String... parts) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			mac.update(ByteBuffer.allocate(Long.BYTES).putLong(time).array());
+			for(String part : parts) {
+				byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+				mac.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+				mac.update(bytes);
+			}
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal());
+		} catch (GeneralSecurityException e) {
+			// HmacSHA256 is always available
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -1,22 +1,32 @@
 package comp90015.idxsrv.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
 
+import comp90015.idxsrv.message.ErrorMsg;
 import comp90015.idxsrv.textgui.ITerminalLogger;
 
 /**
  * A basic IOThread class that accepts connections and puts them
- * onto a blocking queue. If the queue is full then the connection
- * is dropped and a warning is logged.
+ * onto a bounded {@link AcceptQueue}. If the queue is full then the
+ * connection is sent an {@link ErrorMsg} saying the server is busy,
+ * and is closed, so that the client can fail fast and try again later.
+ * A client that has made too many requests is turned away the same way,
+ * see {@link RateLimiter}.
+ * <p>
+ * The server socket is a channel's, so that each connection has a channel as well as
+ * its streams, which a peer uses to send blocks straight from its files.
  * @author aaron
  *
  */
 public class IOThread extends Thread {
 	private ServerSocket serverSocket;
-	private LinkedBlockingDeque<Socket> incomingConnections;
+	private AcceptQueue incomingConnections;
+	private RateLimiter rateLimiter;
 	private ITerminalLogger logger;
 	private int timeout;
 	
@@ -24,19 +34,37 @@ public class IOThread extends Thread {
 	 * Create an IOThread, which attempts to the bind to the provided
 	 * port with a server socket. The thread must be explicitly started.
 	 * @param port the port for the server socket
-	 * @param incomingConnections the blocking queue to put incoming connections
+	 * @param incomingConnections the bounded queue to put incoming connections
 	 * @param timeout the timeout value to be set on incoming connections
 	 * @param logger an object that implements the terminal logger interface
 	 * @throws IOException
 	 */
 	public IOThread(int port,
-			LinkedBlockingDeque<Socket> incomingConnections,
+			AcceptQueue incomingConnections,
+			int timeout,
+			ITerminalLogger logger) throws IOException {
+		this(port,incomingConnections,null,timeout,logger);
+	}
+	
+	/**
+	 * Create an IOThread that limits the rate of each client's connections.
+	 * @param port the port for the server socket
+	 * @param incomingConnections the bounded queue to put incoming connections
+	 * @param rateLimiter the limit on each client's requests, or null for none
+	 * @param timeout the timeout value to be set on incoming connections
+	 * @param logger an object that implements the terminal logger interface
+	 * @throws IOException
+	 */
+	IOThread(int port,
+			AcceptQueue incomingConnections,
+			RateLimiter rateLimiter,
 			int timeout,
 			ITerminalLogger logger) throws IOException {
 		this.timeout = timeout;
 		this.logger = logger;
 		this.incomingConnections=incomingConnections;
-		serverSocket = new ServerSocket(port);
+		this.rateLimiter=rateLimiter;
+		serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
 		
 	}
 	
@@ -56,9 +84,11 @@ public class IOThread extends Thread {
 				Socket socket = serverSocket.accept();
 				try {
 					socket.setSoTimeout(this.timeout);
-					if(!incomingConnections.offer(socket)) {
-						socket.close();
-						logger.logWarn("IO thread dropped connection - incoming connection queue is full.");	
+					if(rateLimiter!=null && !rateLimiter.acquire(socket.getInetAddress().getHostAddress())) {
+						reject(socket,"Too many requests");
+					} else if(!incomingConnections.offer(socket)) {
+						reject(socket,"busy");
+						logger.logWarn("IO thread rejected connection - incoming connection queue is full.");	
 					}
 				} catch (IOException e) {
 					logger.logWarn("Something went wrong with the connection.");
@@ -70,4 +100,19 @@ public class IOThread extends Thread {
 		}
 		logger.logInfo("IO thread completed.");
 	}
+	
+	/**
+	 * Tell the client that the server is busy, and close the connection. The
+	 * message is small enough to fit in the socket's send buffer, so writing it
+	 * does not hold up accepting connections.
+	 * @param socket the rejected connection
+	 * @param reason why it was rejected
+	 */
+	private void reject(Socket socket,String reason) throws IOException {
+		try {
+			socket.getOutputStream().write((new ErrorMsg(reason).toString()+"\n").getBytes(StandardCharsets.UTF_8));
+		} finally {
+			socket.close();
+		}
+	}
 }
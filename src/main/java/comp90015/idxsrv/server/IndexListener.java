@@ -0,0 +1,35 @@
+package comp90015.idxsrv.server;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+/**
+ * Something that is told of every change to an {@link IndexMgr}, such as the
+ * {@link IndexLog} that makes it durable, or the {@link ReplicationSource} that streams
+ * it to followers. The index calls a listener while it holds the stripe lock of the
+ * file concerned, so the changes to any one file are heard in the order they were made,
+ * and a listener must not block.
+ * @author aaron
+ *
+ */
+interface IndexListener {
+
+	/**
+	 * A file was shared, or shared again by the same sharer.
+	 * @param ip the ip address of the sharer
+	 * @param port the port number of the sharer
+	 * @param fileDescr the file descriptor
+	 * @param filename the filename
+	 * @param secret the secret required to drop the share
+	 */
+	void shared(String ip, int port, FileDescr fileDescr, String filename, String secret);
+
+	/**
+	 * A share was dropped, by its sharer or because its lease expired.
+	 * @param ip the ip address of the sharer
+	 * @param port the port number of the sharer
+	 * @param filename the filename
+	 * @param fileMd5 the MD5 hash of the file
+	 * @param secret the secret of the share
+	 */
+	void dropped(String ip, int port, String filename, String fileMd5, String secret);
+}
@@ -0,0 +1,391 @@
+package comp90015.idxsrv.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * Makes an {@link IndexMgr} durable across restarts of the server. Every successful
+ * share and drop is appended to a write-ahead log, and every so often a compact snapshot
+ * of the whole index is written, after which the log that it covers is deleted. On
+ * start up the latest snapshot is loaded and the log written since is replayed.
+ * <p>
+ * The data directory holds:
+ * <ul>
+ * <li><code>index-N.log</code>, the segments of the log, numbered in the order they
+ * were written;</li>
+ * <li><code>index.snap</code>, the latest snapshot, which names the first segment
+ * to replay on top of it.</li>
+ * </ul>
+ * Shares and drops encode their records and queue them for this thread, which writes
+ * whatever has been queued and then flushes, so that concurrent requests share a
+ * write. A request is answered before its record is flushed, so a crash may lose the
+ * last few changes, which the peers concerned can simply share again.
+ * <p>
+ * A snapshot is taken while the index keeps changing: the log moves on to a new segment
+ * first, so every change that the snapshot may have missed is in the new segment.
+ * Replaying a share or drop that the snapshot already reflects has no effect, so
+ * replaying the whole segment on top of the snapshot gives the right index.
+ * @author aaron
+ *
+ */
+public class IndexLog extends Thread implements IndexListener {
+
+	/**
+	 * The number of records written before a new snapshot is taken.
+	 */
+	private static final long SNAPSHOT_RECORDS = 1000000;
+
+	private static final byte SHARE = 1;
+
+	private static final byte DROP = 2;
+
+	private static final int SNAPSHOT_MAGIC = 0x49445831;
+
+	private static final String SNAPSHOT_NAME = "index.snap";
+
+	private File dir;
+
+	private IndexMgr indexMgr;
+
+	private ITerminalLogger logger;
+
+	private LinkedBlockingQueue<byte[]> queue;
+
+	private DataOutputStream out;
+
+	private long segment;
+
+	private long numRecords;
+
+	private Thread snapshotThread;
+
+	/**
+	 * The number of records written before a new snapshot is taken, which tests lower.
+	 */
+	long snapshotRecords = SNAPSHOT_RECORDS;
+
+	/**
+	 * Create the log for an index, using the given data directory, which is created
+	 * if needed. The index must be recovered before the thread is started.
+	 * @param dir the data directory
+	 * @param indexMgr the index to make durable
+	 * @param logger an object that implements the terminal logger interface
+	 * @throws IOException if the directory cannot be created
+	 */
+	public IndexLog(File dir, IndexMgr indexMgr, ITerminalLogger logger) throws IOException {
+		super("IndexLog");
+		this.dir=dir;
+		this.indexMgr=indexMgr;
+		this.logger=logger;
+		queue=new LinkedBlockingQueue<byte[]>();
+		Files.createDirectories(dir.toPath());
+	}
+
+	/*
+	 * Recording changes, called by the index while it holds the file's stripe lock, so
+	 * that the changes to any one file are queued in the order they were made.
+	 */
+
+	@Override
+	public void shared(String ip, int port, FileDescr fileDescr, String filename, String secret) {
+		try {
+			queue.add(encodeShare(ip,port,fileDescr,filename,secret));
+		} catch (IOException | RuntimeException e) {
+			// only a malformed file descriptor can get here
+			logger.logWarn("Index log skipped a share of "+filename+": "+e);
+		}
+	}
+
+	@Override
+	public void dropped(String ip, int port, String filename, String fileMd5, String secret) {
+		queue.add(encodeDrop(ip,port,filename,fileMd5,secret));
+	}
+
+	/**
+	 * Encode a share as a record, which is also how shares are replicated.
+	 * @throws IOException if the file descriptor is malformed
+	 */
+	static byte[] encodeShare(String ip, int port, FileDescr fileDescr, String filename, String secret) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeByte(SHARE);
+		writeFileDescr(data,fileDescr);
+		data.writeUTF(ip);
+		data.writeInt(port);
+		data.writeUTF(filename);
+		data.writeUTF(secret);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Encode a drop as a record, which is also how drops are replicated.
+	 */
+	static byte[] encodeDrop(String ip, int port, String filename, String fileMd5, String secret) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream data = new DataOutputStream(bytes);
+			data.writeByte(DROP);
+			data.writeUTF(ip);
+			data.writeInt(port);
+			data.writeUTF(filename);
+			data.writeUTF(fileMd5);
+			data.writeUTF(secret);
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			// not possible when writing to memory
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Read the next record and apply it to an index.
+	 * @param in the records
+	 * @param indexMgr the index
+	 * @return false if there are no more records
+	 * @throws EOFException if the last record is incomplete
+	 * @throws IOException if the record is not a share or a drop
+	 */
+	static boolean apply(DataInputStream in, IndexMgr indexMgr) throws IOException {
+		int op = in.read();
+		if(op<0) return false;
+		if(op==SHARE) {
+			FileDescr fileDescr = readFileDescr(in);
+			indexMgr.share(in.readUTF(),in.readInt(),fileDescr,in.readUTF(),in.readUTF());
+		} else if(op==DROP) {
+			indexMgr.drop(in.readUTF(),in.readInt(),in.readUTF(),in.readUTF(),in.readUTF());
+		} else {
+			throw new IOException("Not an index record: "+op);
+		}
+		return true;
+	}
+
+	/**
+	 * Load the latest snapshot into the index and replay the log written since, then
+	 * open a new log segment. This must be called before the index is used, and before
+	 * the log is attached to it.
+	 * @throws IOException if the snapshot or log cannot be read
+	 */
+	public void recover() throws IOException {
+		long start = System.currentTimeMillis();
+		long numShares = 0;
+		long first = 0;
+		File snap = new File(dir,SNAPSHOT_NAME);
+		if(snap.exists()) {
+			try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snap),1<<16))) {
+				if(in.readInt()!=SNAPSHOT_MAGIC) {
+					throw new IOException("Not an index snapshot: "+snap);
+				}
+				first = in.readLong();
+				while(in.readBoolean()) {
+					FileDescr fileDescr = readFileDescr(in);
+					String filename = in.readUTF();
+					int numSharers = in.readInt();
+					for(int i=0;i<numSharers;i++) {
+						indexMgr.share(in.readUTF(),in.readInt(),fileDescr,filename,in.readUTF());
+						numShares++;
+					}
+				}
+			}
+		}
+		long last = first;
+		for(Map.Entry<Long,File> seg : segments().entrySet()) {
+			if(seg.getKey()<first) continue;
+			if(seg.getValue().length()==0) {
+				// nothing was written to it before the server stopped
+				Files.delete(seg.getValue().toPath());
+				continue;
+			}
+			numRecords += replay(seg.getValue());
+			last = seg.getKey();
+		}
+		segment = last+1;
+		out = openSegment(segment);
+		logger.logInfo("Index recovered "+numShares+" shares from the snapshot and "+numRecords
+				+" changes from the log in "+(System.currentTimeMillis()-start)+"ms");
+	}
+
+	private long replay(File file) throws IOException {
+		long n = 0;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),1<<16))) {
+			try {
+				while(apply(in,indexMgr)) {
+					n++;
+				}
+			} catch (EOFException e) {
+				throw e;
+			} catch (IOException e) {
+				throw new IOException("Corrupt index log "+file+" after "+n+" records");
+			}
+		} catch (EOFException e) {
+			// the last record was not completely written before the server stopped
+			logger.logWarn("Index log "+file.getName()+" ends with an incomplete record, which was skipped.");
+		}
+		return n;
+	}
+
+	@Override
+	public void run() {
+		while(!isInterrupted()) {
+			try {
+				write(queue.take());
+				byte[] record;
+				while((record=queue.poll())!=null) {
+					write(record);
+				}
+				out.flush();
+				if(numRecords>=snapshotRecords && (snapshotThread==null || !snapshotThread.isAlive())) {
+					snapshot();
+				}
+			} catch (InterruptedException e) {
+				break;
+			} catch (IOException e) {
+				logger.logError("Index log could not be written: "+e.getMessage());
+				break;
+			}
+		}
+		try {
+			byte[] record;
+			while((record=queue.poll())!=null) {
+				write(record);
+			}
+			out.close();
+		} catch (IOException e) {
+			logger.logError("Index log could not be closed: "+e.getMessage());
+		}
+		if(snapshotThread!=null) {
+			// clear the interrupt that stopped the log, so as to wait for the snapshot
+			interrupted();
+			try {
+				snapshotThread.join();
+			} catch (InterruptedException e) {
+				logger.logWarn("Interrupted while waiting for the index snapshot.");
+			}
+		}
+	}
+
+	private void write(byte[] record) throws IOException {
+		out.write(record);
+		numRecords++;
+	}
+
+	/**
+	 * Move the log on to a new segment and write a snapshot in the background, which
+	 * replaces the old segments when it is complete.
+	 */
+	private void snapshot() throws IOException {
+		out.close();
+		segment++;
+		out = openSegment(segment);
+		numRecords = 0;
+		long first = segment;
+		snapshotThread = new Thread(() -> {
+			long start = System.currentTimeMillis();
+			try {
+				writeSnapshot(first);
+				for(Map.Entry<Long,File> seg : segments().entrySet()) {
+					if(seg.getKey()<first) Files.delete(seg.getValue().toPath());
+				}
+				logger.logInfo("Index snapshot written in "+(System.currentTimeMillis()-start)+"ms");
+			} catch (IOException e) {
+				logger.logError("Index snapshot could not be written: "+e.getMessage());
+			}
+		},"IndexSnapshot");
+		snapshotThread.start();
+	}
+
+	private void writeSnapshot(long first) throws IOException {
+		File tmp = new File(dir,SNAPSHOT_NAME+".tmp");
+		try(FileOutputStream fos = new FileOutputStream(tmp);
+				DataOutputStream data = new DataOutputStream(new BufferedOutputStream(fos,1<<16))) {
+			data.writeInt(SNAPSHOT_MAGIC);
+			data.writeLong(first);
+			for(List<IndexElement> sharers : indexMgr.files()) {
+				if(sharers.isEmpty()) continue;
+				IndexElement any = sharers.get(0);
+				data.writeBoolean(true);
+				writeFileDescr(data,any.fileDescr);
+				data.writeUTF(any.filename);
+				data.writeInt(sharers.size());
+				for(IndexElement element : sharers) {
+					data.writeUTF(element.ip);
+					data.writeInt(element.port);
+					data.writeUTF(element.secret);
+				}
+			}
+			data.writeBoolean(false);
+			data.flush();
+			fos.getFD().sync();
+		}
+		Files.move(tmp.toPath(), new File(dir,SNAPSHOT_NAME).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 *
+	 * @return the log segments in the data directory, by number
+	 */
+	private TreeMap<Long,File> segments() {
+		TreeMap<Long,File> segments = new TreeMap<Long,File>();
+		File[] files = dir.listFiles();
+		if(files==null) return segments;
+		for(File file : files) {
+			String name = file.getName();
+			if(name.startsWith("index-") && name.endsWith(".log")) {
+				try {
+					segments.put(Long.parseLong(name.substring(6,name.length()-4)), file);
+				} catch (NumberFormatException e) {
+					// not a segment
+				}
+			}
+		}
+		return segments;
+	}
+
+	private DataOutputStream openSegment(long n) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(new File(dir,"index-"+n+".log")),1<<16));
+	}
+
+	/*
+	 * Reading and writing the parts of records.
+	 */
+
+	private static void writeFileDescr(DataOutputStream data, FileDescr fileDescr) throws IOException {
+		data.writeLong(fileDescr.getFileLength());
+		data.writeInt(fileDescr.getBlockLength());
+		data.writeUTF(fileDescr.getFileMd5());
+		data.writeInt(fileDescr.getFileLength()>0 ? fileDescr.getNumBlocks() : 0);
+		for(int i=0;i<fileDescr.getNumBlocks() && fileDescr.getFileLength()>0;i++) {
+			data.writeUTF(fileDescr.getBlockMd5(i));
+		}
+	}
+
+	private static FileDescr readFileDescr(DataInputStream in) throws IOException {
+		long fileLength = in.readLong();
+		int blockLength = in.readInt();
+		String fileMd5 = in.readUTF();
+		int numBlocks = in.readInt();
+		String[] blockMd5 = new String[numBlocks];
+		for(int i=0;i<numBlocks;i++) {
+			blockMd5[i] = in.readUTF();
+		}
+		return new FileDescr(fileLength,blockLength,fileMd5,blockMd5);
+	}
+}
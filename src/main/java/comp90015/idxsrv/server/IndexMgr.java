@@ -1,44 +1,398 @@
 package comp90015.idxsrv.server;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 import comp90015.idxsrv.filemgr.FileDescr;
 
 /**
  * A simple class for managing the files that are currently being shared, and tracking
- * the sharers.
+ * the sharers. The index is shared by the server's connection handlers, so it is
+ * designed for concurrent use:
+ * <ul>
+ * <li>searches and lookups take no locks at all, they read concurrent maps and
+ * sets, so they never wait behind shares and drops;</li>
+ * <li>shares and drops lock one of a number of stripes, chosen by the file's MD5 hash,
+ * so that all changes to the elements of one file are serialized while changes to
+ * different files proceed in parallel, and a batch of shares or drops from one peer
+ * locks each stripe once for all of its files.</li>
+ * </ul>
+ * Searches are answered from an inverted index of the terms in lower cased filenames,
+ * which is kept up to date by shares and drops, rather than by scanning every element.
+ * The terms are themselves indexed by their trigrams, so that a keyword matches any
+ * substring of a filename, as it always has, without scanning every term.
+ * The postings are entries for each file under each of its filenames, which keep the
+ * sharers, so that hits can be ranked and counted without further lookups.
+ * <p>
+ * The index is kept compact, since a popular catalog has many sharers of each file:
+ * <ul>
+ * <li>a file's descriptor is kept once, packed as a {@link PackedFileDescr}, and is
+ * shared by the entries for all of the file's filenames and by all of its sharers,
+ * rather than every sharer keeping the copy that it sent;</li>
+ * <li>a sharer is kept as just its address, port and secret, and the addresses and
+ * filenames are interned, so that a peer's address is kept once however many files it
+ * shares;</li>
+ * <li>an entry's sharers are an array that is copied when it changes, which costs
+ * far less than a set for the typical file with a few sharers.</li>
+ * </ul>
+ * Index elements are made from the entries only for the hits that are returned, and a
+ * lookup finds the entries for a filename and MD5 hash directly, and returns a read-only
+ * view of their sharers, which makes an element only as each one is read.
+ * The entries of each peer are tracked too, so that a peer whose lease has run out
+ * can be dropped altogether, see {@link LeaseMgr}.
+ * Locks are used rather than synchronized methods so that handlers running on
+ * virtual threads do not pin their carrier thread while they wait.
  * @author aaron
  *
  */
 public class IndexMgr {
-	
+
 	public enum RETCODE {
 		SUCCESS,
 		INVALID,
 		FAILEDSECRET
 	}
-	
+
+	/**
+	 * The number of lock stripes, a power of two.
+	 */
+	private static final int NUM_STRIPES = 64;
+
+	/**
+	 * A sharer of a file, the peer at an address and port that shares it.
+	 */
+	private static class Sharer {
+		final String ip;
+		final int port;
+		final String secret;
+		Sharer(String ip,int port,String secret) {
+			this.ip=ip;
+			this.port=port;
+			this.secret=secret;
+		}
+	}
+
+	/**
+	 * A file shared under a particular filename, with what a search needs to know
+	 * about it. The entry is created by the first share of the file under the filename,
+	 * and removed, along with its postings, when the last of its sharers drops it.
+	 * A file is only shared under the same filename with different descriptors by peers
+	 * that disagree on its block length, and then there is an entry for each descriptor.
+	 */
+	private static class FileEntry {
+		final String filename;
+		final String lowerName;
+		final String fileMd5;
+		final PackedFileDescr fileDescr;
+		/**
+		 * The sharers, most recent last, replaced only under the file's stripe lock.
+		 */
+		volatile Sharer[] sharers = new Sharer[0];
+		FileEntry(String filename,String fileMd5,PackedFileDescr fileDescr) {
+			this.filename=filename;
+			this.lowerName=filename.toLowerCase();
+			this.fileMd5=fileMd5;
+			this.fileDescr=fileDescr;
+		}
+		IndexElement element(Sharer sharer,FileDescr descr) {
+			return new IndexElement(sharer.ip,sharer.port,descr,filename,sharer.secret);
+		}
+		int indexOf(String ip,int port) {
+			Sharer[] s = sharers;
+			for(int i=0;i<s.length;i++) {
+				if(s[i].port==port && s[i].ip.equals(ip)) return i;
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * A map from a file's MD5 hash to the entries for each of the filenames it is shared
+	 * under. The arrays are replaced only under the file's stripe lock.
+	 */
+	private ConcurrentHashMap<String,FileEntry[]> fileMap;
+
+	/**
+	 * The key of the entries for a file under one filename.
+	 */
+	private static class EntryKey {
+		final String filename;
+		final String fileMd5;
+		EntryKey(String filename,String fileMd5) {
+			this.filename=filename;
+			this.fileMd5=fileMd5;
+		}
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof EntryKey)) return false;
+			EntryKey k = (EntryKey) o;
+			return filename.equals(k.filename) && fileMd5.equals(k.fileMd5);
+		}
+		@Override
+		public int hashCode() {
+			return 31*filename.hashCode()+fileMd5.hashCode();
+		}
+	}
+
+	/**
+	 * A map from a filename and MD5 hash to the entries for the file under the filename,
+	 * almost always one, so that a lookup is a single get. The arrays are replaced only
+	 * under the file's stripe lock, along with those of {@link #fileMap}.
+	 */
+	private ConcurrentHashMap<EntryKey,FileEntry[]> entryMap;
+
+	/**
+	 * A read-only view of an entry's sharers, as they were when it was made. The
+	 * descriptor is unpacked when the first element is read, and shared by the elements.
+	 */
+	private static class SharersView extends AbstractList<IndexElement> implements RandomAccess {
+		final FileEntry entry;
+		final Sharer[] sharers;
+		FileDescr descr;
+		SharersView(FileEntry entry) {
+			this.entry=entry;
+			this.sharers=entry.sharers;
+		}
+		@Override
+		public IndexElement get(int index) {
+			Sharer sharer = sharers[index];
+			if(descr==null) descr = entry.fileDescr.unpack(entry.fileMd5);
+			return entry.element(sharer,descr);
+		}
+		@Override
+		public int size() {
+			return sharers.length;
+		}
+	}
+
+	/**
+	 * The entries that a peer shares, so that they can all be dropped when its lease
+	 * expires.
+	 */
+	private static class PeerShares {
+		final String ip;
+		final int port;
+		final Set<FileEntry> entries = ConcurrentHashMap.newKeySet();
+		PeerShares(String ip,int port) {
+			this.ip=ip;
+			this.port=port;
+		}
+	}
+
 	/**
-	 * A map from a file's MD5 hash to the set of elements that share that file.
+	 * A map from a peer key IP:PORT to the entries that the peer shares.
 	 */
-	private HashMap<String,HashSet<IndexElement>> md5Map;
-	
+	private ConcurrentHashMap<String,PeerShares> peerMap;
+
 	/**
-	 * A map from a sharer key IP:PORT:FILENAME:FILEMD5 to the index element for that unique
-	 * sharing of the file.
+	 * The inverted index, a map from a term of a lower cased filename to the set of
+	 * entries of the files that are shared under a filename containing the term.
 	 */
-	private HashMap<String,IndexElement> sharerMap;
-	
+	private ConcurrentHashMap<String,Set<FileEntry>> termMap;
+
+	/**
+	 * The length of the n-grams that terms are indexed by.
+	 */
+	private static final int GRAM_LENGTH = 3;
+
+	/**
+	 * A map from an n-gram to the set of terms in the inverted index that contain it.
+	 */
+	private ConcurrentHashMap<String,Set<String>> gramMap;
+
+	/**
+	 * Locks for shares and drops, striped by MD5 hash, so a stripe guards the entries
+	 * of all of the maps for its files.
+	 */
+	private ReentrantLock[] stripes;
+
+	/**
+	 * The listeners that are told of every share and drop, such as the write-ahead log.
+	 */
+	private CopyOnWriteArrayList<IndexListener> listeners;
+
 	/**
 	 * Creates a new index manager.
 	 */
 	public IndexMgr() {
-		md5Map=new HashMap<>();
-		sharerMap=new HashMap<>();
+		fileMap=new ConcurrentHashMap<>();
+		entryMap=new ConcurrentHashMap<>();
+		peerMap=new ConcurrentHashMap<>();
+		listeners=new CopyOnWriteArrayList<>();
+		termMap=new ConcurrentHashMap<>();
+		gramMap=new ConcurrentHashMap<>();
+		stripes=new ReentrantLock[NUM_STRIPES];
+		for(int i=0;i<NUM_STRIPES;i++) {
+			stripes[i]=new ReentrantLock();
+		}
 	}
-	
+
+	/**
+	 * Tell a listener of every subsequent share and drop.
+	 * @param listener the listener
+	 */
+	void addListener(IndexListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Stop telling a listener of shares and drops.
+	 * @param listener the listener
+	 */
+	void removeListener(IndexListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * 
+	 * @return the elements sharing each file under each of its filenames, made as the
+	 * files are iterated, which may reflect later shares and drops
+	 */
+	Iterable<List<IndexElement>> files() {
+		return () -> fileMap.values().stream()
+				.flatMap(entries -> Arrays.stream(entries))
+				.map(entry -> elements(entry,null))
+				.iterator();
+	}
+
+	/**
+	 * Make the elements for an entry's sharers, which share one file descriptor.
+	 * @param entry the entry
+	 * @param elements the list to add them to, or null for a new list
+	 * @return the list
+	 */
+	private static List<IndexElement> elements(FileEntry entry,List<IndexElement> elements) {
+		Sharer[] sharers = entry.sharers;
+		if(elements==null) elements = new ArrayList<IndexElement>(sharers.length);
+		if(sharers.length==0) return elements;
+		FileDescr descr = entry.fileDescr.unpack(entry.fileMd5);
+		for(Sharer sharer : sharers) {
+			elements.add(entry.element(sharer,descr));
+		}
+		return elements;
+	}
+
+	private ReentrantLock stripe(String fileMd5) {
+		return stripes[stripeIndex(fileMd5)];
+	}
+
+	private static int stripeIndex(String fileMd5) {
+		int h = fileMd5.hashCode();
+		return (h ^ (h>>>16)) & (NUM_STRIPES-1);
+	}
+
+	/**
+	 * Order the files of a batch by stripe, so that each stripe is locked once for all
+	 * of its files.
+	 * @param fileMd5s the MD5 hashes of the files
+	 * @return the indexes of the files, ordered by stripe
+	 */
+	private static Integer[] byStripe(String[] fileMd5s) {
+		Integer[] order = new Integer[fileMd5s.length];
+		for(int i=0;i<order.length;i++) {
+			order[i]=i;
+		}
+		Arrays.sort(order,Comparator.comparingInt(i -> stripeIndex(fileMd5s[i])));
+		return order;
+	}
+
+	/**
+	 * Split a lower cased string into its terms, the maximal runs of letters and digits.
+	 * @param str the string to split
+	 * @return the set of terms, possibly empty
+	 */
+	private static HashSet<String> terms(String str) {
+		HashSet<String> terms = new HashSet<String>();
+		int start=-1;
+		for(int i=0;i<=str.length();i++) {
+			if(i<str.length() && Character.isLetterOrDigit(str.charAt(i))) {
+				if(start<0) start=i;
+			} else if(start>=0) {
+				terms.add(str.substring(start,i));
+				start=-1;
+			}
+		}
+		return terms;
+	}
+
+	private void addPostings(FileEntry entry) {
+		for(String term : terms(entry.lowerName)) {
+			termMap.compute(term, (t,entries) -> {
+				if(entries==null) {
+					entries=ConcurrentHashMap.newKeySet();
+					addGrams(t);
+				}
+				entries.add(entry);
+				return entries;
+			});
+		}
+	}
+
+	private void removePostings(FileEntry entry) {
+		for(String term : terms(entry.lowerName)) {
+			termMap.computeIfPresent(term, (t,entries) -> {
+				entries.remove(entry);
+				if(!entries.isEmpty()) return entries;
+				removeGrams(t);
+				return null;
+			});
+		}
+	}
+
+	/**
+	 * Index a term that is new to the inverted index by its n-grams. This is called
+	 * while the term's entry is being computed, so the n-grams of a term are always
+	 * in step with the term's presence in the inverted index.
+	 */
+	private void addGrams(String term) {
+		for(int i=0;i+GRAM_LENGTH<=term.length();i++) {
+			gramMap.compute(term.substring(i,i+GRAM_LENGTH), (g,terms) -> {
+				if(terms==null) terms=ConcurrentHashMap.newKeySet();
+				terms.add(term);
+				return terms;
+			});
+		}
+	}
+
+	private void removeGrams(String term) {
+		for(int i=0;i+GRAM_LENGTH<=term.length();i++) {
+			gramMap.computeIfPresent(term.substring(i,i+GRAM_LENGTH), (g,terms) -> {
+				terms.remove(term);
+				return terms.isEmpty() ? null : terms;
+			});
+		}
+	}
+
+	/**
+	 * Find the terms that may contain the fragment. A fragment of at least
+	 * {@link #GRAM_LENGTH} characters is looked up through the least common of its
+	 * n-grams. A shorter fragment may be in any term.
+	 * @param fragment a run of lower cased letters and digits
+	 * @return the set of terms, possibly empty, to be checked for the whole fragment
+	 */
+	private Set<String> gramTerms(String fragment) {
+		if(fragment.length()<GRAM_LENGTH) return termMap.keySet();
+		Set<String> least = null;
+		for(int i=0;i+GRAM_LENGTH<=fragment.length();i++) {
+			Set<String> terms = gramMap.get(fragment.substring(i,i+GRAM_LENGTH));
+			if(terms==null) return Collections.emptySet();
+			if(least==null || terms.size()<least.size()) least=terms;
+		}
+		return least;
+	}
+
 	/**
 	 * Creates an index element that shares the file. If the file is already being
 	 * shared by a sharer at an identical ip address and port number, then the secret
@@ -50,34 +404,138 @@ public class IndexMgr {
 	 * @param secret the secret required to drop this index element
 	 * @return {@link RETCODE.SUCCESS} if added or {@link RETCODE.FAILEDSECRET} if the element already exists and the provided secret does not match
 	 */
-	public RETCODE share(String ip, 
-			int port, 
-			FileDescr fileDescr, 
+	public RETCODE share(String ip,
+			int port,
+			FileDescr fileDescr,
 			String filename,
 			String secret) {
-		// Create the new index element to share.
-		IndexElement element = new IndexElement(ip,port,fileDescr,filename,secret);
-		String fileMd5 = fileDescr.getFileMd5(); 
-		String sharerKey = ip+":"+port+":"+filename+":"+fileMd5;
-		
-		// Drop an identical index element for this sharer if it already exists.
+		ReentrantLock lock = stripe(fileDescr.getFileMd5());
+		lock.lock();
+		try {
+			return shareLocked(ip,port,fileDescr,filename,secret);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Share a batch of files from one sharer, each as {@link #share} would. Rather than
+	 * locking a stripe for each file, the files are grouped by stripe and each stripe
+	 * is locked once for all of its files, so a whole directory costs at most one lock
+	 * acquisition per stripe.
+	 * @param ip the ip address of the sharer
+	 * @param port the port number of the sharer
+	 * @param fileDescrs the file descriptors of the files being shared
+	 * @param filenames the filenames of the files, in the same order
+	 * @param secrets the secrets required to drop the index elements, in the same order
+	 * @param numSharers an array as long as the batch, which is filled with the number of
+	 * elements sharing each file under its filename, as {@link #numSharers} would count
+	 * them, or 0 for the files that were not shared
+	 * @return the result of each share, in the same order
+	 */
+	public RETCODE[] share(String ip,
+			int port,
+			FileDescr[] fileDescrs,
+			String[] filenames,
+			String[] secrets,
+			int[] numSharers) {
+		String[] fileMd5s = new String[fileDescrs.length];
+		for(int i=0;i<fileMd5s.length;i++) {
+			fileMd5s[i]=fileDescrs[i].getFileMd5();
+		}
+		RETCODE[] retcodes = new RETCODE[fileDescrs.length];
+		Integer[] order = byStripe(fileMd5s);
+		int next = 0;
+		while(next<order.length) {
+			ReentrantLock lock = stripe(fileMd5s[order[next]]);
+			lock.lock();
+			try {
+				do {
+					int i = order[next++];
+					retcodes[i] = shareLocked(ip,port,fileDescrs[i],filenames[i],secrets[i]);
+					numSharers[i] = retcodes[i]==RETCODE.SUCCESS ? numSharers(filenames[i],fileMd5s[i]) : 0;
+				} while(next<order.length && stripe(fileMd5s[order[next]])==lock);
+			} finally {
+				lock.unlock();
+			}
+		}
+		return retcodes;
+	}
+
+	/**
+	 * Share a file, while holding its stripe lock.
+	 */
+	private RETCODE shareLocked(String ip,
+			int port,
+			FileDescr fileDescr,
+			String filename,
+			String secret) {
+		String fileMd5 = fileDescr.getFileMd5();
+		FileEntry[] entries = fileMap.get(fileMd5);
+		if(entries==null) entries = new FileEntry[0];
+
+		// Replace an identical index element for this sharer if it already exists.
 		// The secret must match for this to be successful.
-		if(sharerMap.containsKey(sharerKey)) {
-			if(drop(ip,port,filename,fileMd5,secret)==RETCODE.FAILEDSECRET) {
-				return RETCODE.FAILEDSECRET;
+		FileEntry existingEntry = null;
+		PackedFileDescr packed = null;
+		for(FileEntry e : entries) {
+			if(packed==null && e.fileDescr.sameAs(fileDescr)) packed=e.fileDescr;
+			if(!e.filename.equals(filename)) continue;
+			int i = e.indexOf(ip,port);
+			if(i>=0) {
+				if(!e.sharers[i].secret.equals(secret)) {
+					return RETCODE.FAILEDSECRET;
+				}
+				existingEntry = e;
 			}
 		}
-		
+		FileEntry entry = null;
+		for(FileEntry e : entries) {
+			if(e.fileDescr==packed && e.filename.equals(filename)) entry = e;
+		}
+		if(existingEntry!=null && existingEntry!=entry) {
+			// the sharer's descriptor of the file has changed
+			removeSharer(existingEntry,ip,port);
+			entries = fileMap.getOrDefault(fileMd5,new FileEntry[0]);
+		}
+
 		// Add the element to be shared
-		sharerMap.put(sharerKey, element);
-		if(!md5Map.containsKey(fileDescr.getFileMd5())){
-			md5Map.put(fileDescr.getFileMd5(),new HashSet<IndexElement>());
+		if(entry==null) {
+			if(packed==null) packed = new PackedFileDescr(fileDescr);
+			entry = new FileEntry(filename.intern(),entries.length>0 ? entries[0].fileMd5 : fileMd5,packed);
+			entries = Arrays.copyOf(entries,entries.length+1);
+			entries[entries.length-1] = entry;
+			fileMap.put(entry.fileMd5, entries);
+			entryMap.merge(new EntryKey(entry.filename,entry.fileMd5),new FileEntry[] {entry},
+					(named,added) -> {
+						FileEntry[] more = Arrays.copyOf(named,named.length+1);
+						more[named.length] = added[0];
+						return more;
+					});
+			addPostings(entry);
+		}
+		Sharer[] sharers = entry.sharers;
+		int existing = existingEntry==entry ? entry.indexOf(ip,port) : -1;
+		Sharer[] updated = new Sharer[existing<0 ? sharers.length+1 : sharers.length];
+		int n = 0;
+		for(int i=0;i<sharers.length;i++) {
+			if(i!=existing) updated[n++]=sharers[i];
+		}
+		Sharer sharer = new Sharer(ip.intern(),port,secret);
+		updated[n] = sharer;
+		entry.sharers = updated;
+		FileEntry shared = entry;
+		peerMap.compute(peerKey(ip,port), (k,peer) -> {
+			if(peer==null) peer=new PeerShares(sharer.ip,port);
+			peer.entries.add(shared);
+			return peer;
+		});
+		for(IndexListener listener : listeners) {
+			listener.shared(ip,port,fileDescr,filename,secret);
 		}
-		HashSet<IndexElement> md5set = md5Map.get(fileDescr.getFileMd5());
-		md5set.add(element);
 		return RETCODE.SUCCESS;
 	}
-	
+
 	/**
 	 * Drop an element from the index.
 	 * @param ip the ip address of the sharer
@@ -92,74 +550,375 @@ public class IndexMgr {
 			String filename,
 			String fileMd5,
 			String secret) {
-		String sharerKey = ip+":"+port+":"+filename+":"+fileMd5;
-		if(sharerMap.containsKey(sharerKey)) {
-			IndexElement existingElement = sharerMap.get(sharerKey);
-			if(existingElement.secret.equals(secret)) {
-				HashSet<IndexElement> md5set = md5Map.get(fileMd5);
-				md5set.remove(existingElement);
-				if(md5set.isEmpty()) {
-					md5Map.remove(fileMd5);
-				}
-				sharerMap.remove(sharerKey);
-				return RETCODE.SUCCESS;
+		ReentrantLock lock = stripe(fileMd5);
+		lock.lock();
+		try {
+			return dropLocked(ip,port,filename,fileMd5,secret);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drop a batch of files shared by one sharer, each as {@link #drop} would, locking
+	 * each stripe once for all of its files, as a batch of shares does.
+	 * @param ip the ip address of the sharer
+	 * @param port the port number of the sharer
+	 * @param filenames the filenames to drop
+	 * @param fileMd5s the MD5 hashes of the files, in the same order
+	 * @param secrets the secrets required to drop the index elements, in the same order
+	 * @return the result of each drop, in the same order
+	 */
+	public RETCODE[] drop(String ip,
+			int port,
+			String[] filenames,
+			String[] fileMd5s,
+			String[] secrets) {
+		RETCODE[] retcodes = new RETCODE[fileMd5s.length];
+		Integer[] order = byStripe(fileMd5s);
+		int next = 0;
+		while(next<order.length) {
+			ReentrantLock lock = stripe(fileMd5s[order[next]]);
+			lock.lock();
+			try {
+				do {
+					int i = order[next++];
+					retcodes[i] = dropLocked(ip,port,filenames[i],fileMd5s[i],secrets[i]);
+				} while(next<order.length && stripe(fileMd5s[order[next]])==lock);
+			} finally {
+				lock.unlock();
 			}
-			return RETCODE.FAILEDSECRET;
+		}
+		return retcodes;
+	}
+
+	/**
+	 * Drop an element, while holding its file's stripe lock.
+	 */
+	private RETCODE dropLocked(String ip,
+			int port,
+			String filename,
+			String fileMd5,
+			String secret) {
+		FileEntry[] entries = entryMap.get(new EntryKey(filename,fileMd5));
+		if(entries==null) {
+			return RETCODE.INVALID;
+		}
+		for(FileEntry entry : entries) {
+			int i = entry.indexOf(ip,port);
+			if(i<0) continue;
+			if(!entry.sharers[i].secret.equals(secret)) {
+				return RETCODE.FAILEDSECRET;
+			}
+			removeSharer(entry,ip,port);
+			for(IndexListener listener : listeners) {
+				listener.dropped(ip,port,filename,fileMd5,secret);
+			}
+			return RETCODE.SUCCESS;
 		}
 		return RETCODE.INVALID;
 	}
-	
+
+	/**
+	 * Remove a sharer from an entry, and the entry from the index if it was the last
+	 * sharer. The caller must hold the file's stripe lock.
+	 */
+	private void removeSharer(FileEntry entry,String ip,int port) {
+		Sharer[] sharers = entry.sharers;
+		int i = entry.indexOf(ip,port);
+		Sharer[] remaining = new Sharer[sharers.length-1];
+		System.arraycopy(sharers,0,remaining,0,i);
+		System.arraycopy(sharers,i+1,remaining,i,remaining.length-i);
+		entry.sharers = remaining;
+		peerMap.computeIfPresent(peerKey(ip,port), (k,peer) -> {
+			peer.entries.remove(entry);
+			return peer.entries.isEmpty() ? null : peer;
+		});
+		if(remaining.length>0) return;
+		FileEntry[] entries = fileMap.get(entry.fileMd5);
+		if(entries.length==1) {
+			fileMap.remove(entry.fileMd5);
+		} else {
+			FileEntry[] others = new FileEntry[entries.length-1];
+			int n = 0;
+			for(FileEntry e : entries) {
+				if(e!=entry) others[n++]=e;
+			}
+			fileMap.put(entry.fileMd5,others);
+		}
+		entryMap.computeIfPresent(new EntryKey(entry.filename,entry.fileMd5), (k,named) -> {
+			if(named.length==1) return null;
+			FileEntry[] others = new FileEntry[named.length-1];
+			int n = 0;
+			for(FileEntry e : named) {
+				if(e!=entry) others[n++]=e;
+			}
+			return others;
+		});
+		removePostings(entry);
+	}
+
+	/**
+	 * 
+	 * @param ip the ip address of a peer
+	 * @param port the port number of the peer
+	 * @return the key that identifies the peer
+	 */
+	static String peerKey(String ip,int port) {
+		return ip+":"+port;
+	}
+
+	/**
+	 * 
+	 * @return the keys of the peers that share at least one file
+	 */
+	Set<String> peers() {
+		return peerMap.keySet();
+	}
+
+	/**
+	 * Count the files a peer shares, under each of their filenames.
+	 * @param ip the ip address of the peer
+	 * @param port the port number of the peer
+	 * @return the number of index elements for the peer
+	 */
+	public int numShares(String ip,int port) {
+		PeerShares peer = peerMap.get(peerKey(ip,port));
+		return peer==null ? 0 : peer.entries.size();
+	}
+
+	/**
+	 * Drop every element of a peer from the index, without checking their secrets,
+	 * because the peer is no longer there to drop them.
+	 * @param peerKey the key of the peer, see {@link #peerKey(String, int)}
+	 * @return the number of elements dropped
+	 */
+	int expire(String peerKey) {
+		PeerShares peer = peerMap.get(peerKey);
+		if(peer==null) return 0;
+		int n = 0;
+		for(FileEntry entry : peer.entries) {
+			ReentrantLock lock = stripe(entry.fileMd5);
+			lock.lock();
+			try {
+				int i = entry.indexOf(peer.ip,peer.port);
+				if(i<0) continue;
+				String secret = entry.sharers[i].secret;
+				removeSharer(entry,peer.ip,peer.port);
+				for(IndexListener listener : listeners) {
+					listener.dropped(peer.ip,peer.port,entry.filename,entry.fileMd5,secret);
+				}
+				n++;
+			} finally {
+				lock.unlock();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * A search hit, with the number of sharers at the time it was found.
+	 */
+	private static class Hit {
+		FileEntry entry;
+		Sharer sharer;
+		int seeds;
+		Hit(FileEntry entry,Sharer sharer,int seeds) {
+			this.entry=entry;
+			this.sharer=sharer;
+			this.seeds=seeds;
+		}
+		IndexElement element() {
+			// the hit is the most recent sharer
+			return entry.element(sharer,entry.fileDescr.unpack(entry.fileMd5));
+		}
+	}
+
+	/**
+	 * The order of search hits, best first: more sharers, then a shorter filename, which
+	 * the keywords match more closely.
+	 */
+	private static final Comparator<Hit> RANK = Comparator
+			.comparingInt((Hit h) -> -h.seeds)
+			.thenComparingInt(h -> h.entry.filename.length())
+			.thenComparing(h -> h.entry.filename);
+
+	/**
+	 * The best hits of a search, at most one for each file, on a heap bounded by the
+	 * maximum number of hits. Most candidates are turned away by one comparison with
+	 * the worst hit kept so far.
+	 */
+	private static class TopHits {
+		int maxhits;
+		// the heap's head is the worst of the hits kept so far
+		PriorityQueue<Hit> heap = new PriorityQueue<Hit>(RANK.reversed());
+		HashMap<String,Hit> kept = new HashMap<String,Hit>();
+		TopHits(int maxhits) {
+			this.maxhits=maxhits;
+		}
+		void offer(Hit hit) {
+			boolean full = maxhits>0 && heap.size()>=maxhits;
+			if(full && RANK.compare(hit,heap.peek())>=0) return;
+			Hit other = kept.get(hit.entry.fileMd5);
+			if(other!=null) {
+				if(RANK.compare(hit,other)>=0) return;
+				heap.remove(other);
+			} else if(full) {
+				kept.remove(heap.poll().entry.fileMd5);
+			}
+			heap.add(hit);
+			kept.put(hit.entry.fileMd5,hit);
+		}
+	}
+
 	/**
 	 * Do a basic keyword search for elements where all keywords are
 	 * contained in the element's filename. Return up to maxhits responses,
-	 * in arbitrary order. Keywords should be provided
-	 * in lower case.
+	 * at most one for each file, best first: those with the most sharers,
+	 * and then those with the shortest filename. Keywords should be provided
+	 * in lower case. Shares and drops that happen during the search may
+	 * or may not be seen by it.
+	 * <p>
+	 * Each run of letters and digits in a keyword that matches a filename lies within
+	 * a single term of the filename, so the files to consider are those in the postings
+	 * of the terms that contain one such run. The run with the fewest candidate terms
+	 * is used, and the files found are checked against all of the keywords. The best
+	 * maxhits of them are kept, see {@link TopHits}. Only keywords with no letters or
+	 * digits at all need every file to be checked.
 	 * @param keywords the array of keywords to check for, lower cased
 	 * @param maxhits the maximum number of hits to return
+	 * @param seedCounts a list to which the number of sharers of each hit is added, in
+	 * the same order as the hits, or null
 	 * @return an array of elements, possibly empty
 	 */
-	public ArrayList<IndexElement> search(String[] keywords, int maxhits) {
-		int hits=0;
-		HashSet<String> md5s = new HashSet<String>();
-		ArrayList<IndexElement> hitElements = new ArrayList<IndexElement>();
-		for(IndexElement element : sharerMap.values()) {
-			if(md5s.contains(element.fileDescr.getFileMd5())) {
-				continue;
-			}
-			boolean hit=true;
-			for(int k=0; k<keywords.length;k++) {
-				if(!element.filename.toLowerCase().contains(keywords[k])) {
-					hit=false;
-					break;
-				}
-			}
-			if(hit) {
-				md5s.add(element.fileDescr.getFileMd5());
-				hitElements.add(element);
-				hits++;
-				if(hits==maxhits) break;
-			}
+	public ArrayList<IndexElement> search(String[] keywords, int maxhits, ArrayList<Integer> seedCounts) {
+		ArrayList<Hit> hits = searchHits(keywords,maxhits);
+		ArrayList<IndexElement> hitElements = new ArrayList<IndexElement>(hits.size());
+		for(Hit hit : hits) {
+			hitElements.add(hit.element());
+			if(seedCounts!=null) seedCounts.add(hit.seeds);
 		}
 		return hitElements;
 	}
 
 	/**
-	 * Return the set of all elements corresponding to a given file MD5 hash.
-	 * @param fileMd5 the MD5 hash to lookup
-	 * @return a set of elements, possibly empty
-	 */
-	public HashSet<IndexElement> lookup(String filename,String fileMd5){
-		if(md5Map.containsKey(fileMd5)){
-			HashSet<IndexElement> hits = new HashSet<>();
-			for(IndexElement ie : md5Map.get(fileMd5)) {
-				if(ie.filename.equals(filename)) {
-					hits.add(ie);
+	 * Search as {@link #search} does, but make each hit's element only when it is got
+	 * from the list, so that a search with many hits can be returned a page at a time
+	 * without making every element at once.
+	 * @param keywords the array of keywords to check for, lower cased
+	 * @param maxhits the maximum number of hits to return
+	 * @param seedCounts a list to which the number of sharers of each hit is added, in
+	 * the same order as the hits
+	 * @return an unmodifiable list of the hits, best first
+	 */
+	List<IndexElement> searchLazily(String[] keywords, int maxhits, ArrayList<Integer> seedCounts) {
+		ArrayList<Hit> hits = searchHits(keywords,maxhits);
+		for(Hit hit : hits) {
+			seedCounts.add(hit.seeds);
+		}
+		return new AbstractList<IndexElement>() {
+			@Override
+			public IndexElement get(int index) {
+				return hits.get(index).element();
+			}
+			@Override
+			public int size() {
+				return hits.size();
+			}
+		};
+	}
+
+	/**
+	 * Find the best hits of a search, see {@link #search}.
+	 * @return the hits, best first
+	 */
+	private ArrayList<Hit> searchHits(String[] keywords, int maxhits) {
+		String fragment = null;
+		Set<String> terms = null;
+		for(String keyword : keywords) {
+			for(String f : terms(keyword)) {
+				Set<String> t = gramTerms(f);
+				if(terms==null || t.size()<terms.size()) {
+					fragment=f;
+					terms=t;
+				}
+			}
+		}
+		TopHits best = new TopHits(maxhits);
+		if(fragment==null) {
+			for(FileEntry[] entries : fileMap.values()) {
+				for(FileEntry entry : entries) {
+					offer(entry,keywords,best);
 				}
 			}
-			return hits;
 		} else {
-			return new HashSet<IndexElement>();
+			for(String term : terms) {
+				if(!term.contains(fragment)) continue;
+				Set<FileEntry> entries = termMap.get(term);
+				if(entries==null) continue;
+				for(FileEntry entry : entries) {
+					offer(entry,keywords,best);
+				}
+			}
+		}
+		ArrayList<Hit> hits = new ArrayList<Hit>(best.heap);
+		hits.sort(RANK);
+		return hits;
+	}
+
+	/**
+	 * Offer the entry as a hit, if its filename contains all of the keywords.
+	 */
+	private static void offer(FileEntry entry,String[] keywords,TopHits best) {
+		if(!matches(entry.lowerName,keywords)) return;
+		Sharer[] sharers = entry.sharers;
+		if(sharers.length==0) return;
+		best.offer(new Hit(entry,sharers[sharers.length-1],sharers.length));
+	}
+
+	private static boolean matches(String filename,String[] keywords) {
+		for(int k=0; k<keywords.length;k++) {
+			if(!filename.contains(keywords[k])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return all elements sharing a file under the given filename, as a read-only view
+	 * that makes each element as it is read. The view is of the sharers at the time of
+	 * the lookup, later shares and drops do not change it.
+	 * @param filename the filename to lookup
+	 * @param fileMd5 the MD5 hash to lookup
+	 * @return a list of the elements, possibly empty
+	 */
+	public List<IndexElement> lookup(String filename,String fileMd5){
+		FileEntry[] entries = entryMap.get(new EntryKey(filename,fileMd5));
+		if(entries==null) return Collections.emptyList();
+		if(entries.length==1) return new SharersView(entries[0]);
+		// the sharers disagree on the file's block length, which is rare
+		ArrayList<IndexElement> elements = new ArrayList<IndexElement>();
+		for(FileEntry entry : entries) {
+			elements(entry,elements);
 		}
+		return Collections.unmodifiableList(elements);
 	}
-	
+
+	/**
+	 * Count the elements sharing a file under the given filename, without making them.
+	 * @param filename the filename to lookup
+	 * @param fileMd5 the MD5 hash to lookup
+	 * @return the number of elements
+	 */
+	public int numSharers(String filename,String fileMd5) {
+		int n = 0;
+		FileEntry[] entries = entryMap.get(new EntryKey(filename,fileMd5));
+		if(entries==null) return 0;
+		for(FileEntry entry : entries) {
+			n+=entry.sharers.length;
+		}
+		return n;
+	}
+
 }
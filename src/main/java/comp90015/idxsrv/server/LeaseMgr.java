@@ -0,0 +1,204 @@
+package comp90015.idxsrv.server;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * Expires the index elements of peers that have stopped renewing their lease, so
+ * that a lookup almost always returns sharers that are still there. A peer's lease
+ * is renewed by every share and heartbeat that it sends, and when it runs out all
+ * of the peer's elements are dropped from the {@link IndexMgr}.
+ * <p>
+ * The leases are kept on a hashed timing wheel, an array of slots that this thread
+ * steps through one tick at a time, where each lease waits in the slot of the tick
+ * that its deadline falls in. Renewing a lease only moves its deadline, without
+ * touching the wheel, so a heartbeat costs one map update. When a lease's slot comes
+ * round before its deadline, because it was renewed or its deadline is more than one
+ * turn of the wheel away, it is simply put back in the slot for its deadline.
+ * @author aaron
+ *
+ */
+public class LeaseMgr extends Thread {
+
+	/**
+	 * The number of slots on the wheel, enough for a turn of the wheel to span a
+	 * couple of leases.
+	 */
+	private static final int NUM_SLOTS = 256;
+
+	/**
+	 * A peer's lease, which is on the wheel for as long as it is in the map.
+	 */
+	private static class Lease {
+		final String peerKey;
+		volatile long deadline;
+		Lease(String peerKey,long deadline) {
+			this.peerKey=peerKey;
+			this.deadline=deadline;
+		}
+	}
+
+	private IndexMgr indexMgr;
+
+	private ITerminalLogger logger;
+
+	private long leaseMillis;
+
+	private long tickMillis;
+
+	private ConcurrentHashMap<String,Lease> leases;
+
+	private ConcurrentLinkedQueue<Lease>[] wheel;
+
+	/**
+	 * The last tick whose slot has been processed, written only by this thread.
+	 */
+	private volatile long currentTick;
+
+	private AtomicLong numExpired;
+
+	/**
+	 * Create the lease manager for an index. The thread must be explicitly started,
+	 * unless leases are disabled.
+	 * @param leaseMillis how long a lease lasts without being renewed, or 0 for elements never to expire
+	 * @param indexMgr the index to expire elements from
+	 * @param logger an object that implements the terminal logger interface
+	 */
+	@SuppressWarnings("unchecked")
+	public LeaseMgr(long leaseMillis, IndexMgr indexMgr, ITerminalLogger logger) {
+		super("LeaseMgr");
+		this.leaseMillis=Math.max(0,leaseMillis);
+		this.indexMgr=indexMgr;
+		this.logger=logger;
+		// a lease expires within about one percent of its length
+		tickMillis=Math.max(10,this.leaseMillis/128);
+		leases=new ConcurrentHashMap<>();
+		wheel=(ConcurrentLinkedQueue<Lease>[]) new ConcurrentLinkedQueue<?>[NUM_SLOTS];
+		for(int i=0;i<NUM_SLOTS;i++) {
+			wheel[i]=new ConcurrentLinkedQueue<Lease>();
+		}
+		currentTick=System.currentTimeMillis()/tickMillis;
+		numExpired=new AtomicLong();
+	}
+
+	/**
+	 *
+	 * @return how long a lease lasts without being renewed, or 0 if elements never expire
+	 */
+	public long getLeaseMillis() {
+		return leaseMillis;
+	}
+
+	/**
+	 *
+	 * @return the number of peers whose lease has expired
+	 */
+	public long getNumExpired() {
+		return numExpired.get();
+	}
+
+	/**
+	 * Renew the lease of a peer, or start one if it has none.
+	 * @param ip the ip address of the peer
+	 * @param port the port number the peer shares from
+	 */
+	public void renew(String ip, int port) {
+		renew(IndexMgr.peerKey(ip,port));
+	}
+
+	/**
+	 * Renew the lease of a peer, or start one if it has none.
+	 * @param peerKey the key of the peer
+	 */
+	void renew(String peerKey) {
+		renewFor(peerKey,leaseMillis);
+	}
+
+	/**
+	 * Renew the lease of a peer for the given time, which may be more than a turn of
+	 * the wheel, or start one if it has none.
+	 * @param peerKey the key of the peer
+	 * @param millis how long from now the lease lasts
+	 */
+	void renewFor(String peerKey,long millis) {
+		if(leaseMillis==0) return;
+		long deadline = System.currentTimeMillis()+millis;
+		leases.compute(peerKey, (k,lease) -> {
+			if(lease==null) {
+				lease=new Lease(k,deadline);
+				wheel[slot(tick(deadline))].add(lease);
+			} else {
+				lease.deadline=deadline;
+			}
+			return lease;
+		});
+	}
+
+	/**
+	 *
+	 * @return the tick that a lease with the deadline is checked at, which is the
+	 * first tick after the deadline that has not been processed yet
+	 */
+	private long tick(long deadline) {
+		return Math.max(deadline/tickMillis+1,currentTick+1);
+	}
+
+	private static int slot(long tick) {
+		return (int)(tick%NUM_SLOTS);
+	}
+
+	@Override
+	public void run() {
+		logger.logInfo("Lease manager running, leases last "+leaseMillis+"ms");
+		while(!isInterrupted()) {
+			try {
+				sleep(tickMillis-System.currentTimeMillis()%tickMillis);
+			} catch (InterruptedException e) {
+				break;
+			}
+			long now = System.currentTimeMillis();
+			while(currentTick<now/tickMillis) {
+				currentTick++;
+				expireSlot(slot(currentTick),now);
+			}
+		}
+		logger.logInfo("Lease manager completed, "+numExpired.get()+" leases expired.");
+	}
+
+	/**
+	 * Expire the leases in a slot whose deadline has passed, and move the others on
+	 * to the slot for their deadline.
+	 */
+	private void expireSlot(int slot,long now) {
+		ArrayList<Lease> again = new ArrayList<Lease>();
+		Lease lease;
+		while((lease=wheel[slot].poll())!=null) {
+			Lease polled = lease;
+			boolean[] expired = new boolean[1];
+			leases.computeIfPresent(lease.peerKey, (k,current) -> {
+				if(current!=polled) return current;
+				if(current.deadline>now) {
+					int next = slot(tick(current.deadline));
+					if(next==slot) {
+						again.add(current);
+					} else {
+						wheel[next].add(current);
+					}
+					return current;
+				}
+				expired[0]=true;
+				return null;
+			});
+			if(expired[0]) {
+				int n = indexMgr.expire(lease.peerKey);
+				numExpired.incrementAndGet();
+				logger.logInfo("Lease of peer "+lease.peerKey+" expired, dropped "+n+" shares");
+			}
+		}
+		wheel[slot].addAll(again);
+	}
+}
@@ -0,0 +1,520 @@
+package comp90015.idxsrv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import comp90015.idxsrv.message.ErrorMsg;
+import comp90015.idxsrv.message.Goodbye;
+import comp90015.idxsrv.message.JsonSerializationException;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.message.MessageFactory;
+import comp90015.idxsrv.message.MessageFramer;
+import comp90015.idxsrv.message.SessionRequest;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * A non-blocking alternative to the {@link IOThread} and worker pool. A single thread
+ * accepts connections on a server socket channel and multiplexes all of them with a
+ * selector. The welcome, authenticate and request exchange of each connection runs as
+ * a small state machine, driven by whatever bytes have arrived, so an idle or slow
+ * connection costs only its buffers and not a thread. Requests are processed by the
+ * {@link Server} on this thread as soon as a complete line has been read, unless the
+ * server forwards requests to other servers, in a cluster or on a replica. Then each
+ * request is processed on a virtual thread, so that a slow server holds up only the
+ * connections waiting on it, and the connection is not read again until the reply is
+ * back on this thread. With keep-alive the connection returns to awaiting a request
+ * after each reply, and pipelined requests are answered in order. A connection that
+ * switches to binary frames in its handshake, see {@link MessageFramer}, is read a
+ * frame at a time instead of a line at a time.
+ * @author aaron
+ *
+ */
+public class NioIOThread extends Thread {
+
+	/**
+	 * The longest message line, or frame, that will be accepted from a client.
+	 */
+	private static final int MAX_LINE_LENGTH = 16*1024*1024;
+
+	private static final int READ_BUFFER_SIZE = 8*1024;
+
+	/**
+	 * How often, in milliseconds, to look for idle connections when no timeout is set.
+	 */
+	private static final int SWEEP_INTERVAL = 1000;
+
+	/**
+	 * The states of a connection's handshake and request.
+	 */
+	private enum STATE {
+		AWAIT_AUTH,
+		AWAIT_REQUEST,
+		CLOSING
+	}
+
+	/**
+	 * The state kept for each connection, attached to its selection key.
+	 */
+	private class Session {
+		String ip;
+		int port;
+		STATE state = STATE.AWAIT_AUTH;
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		// set once the connection has switched to binary frames
+		MessageFramer framer;
+		// the length of the payload of the frame being read, or -1 while reading its header
+		int frameLength = -1;
+		LinkedList<ByteBuffer> pending = new LinkedList<ByteBuffer>();
+		long lastActivity = System.currentTimeMillis();
+		int idleTimeout = timeout;
+		// the connection pays for its first request when it is accepted
+		boolean paid = true;
+		// set while a request is processed on another thread
+		boolean busy;
+		// what had been read after the request that is being processed
+		ByteBuffer unread;
+	}
+
+	private Server server;
+
+	private ServerSocketChannel serverChannel;
+
+	private Selector selector;
+
+	private ByteBuffer readBuffer;
+
+	private int timeout;
+
+	private int keepAlive;
+
+	private ITerminalLogger logger;
+
+	private volatile int numSessions;
+
+	/**
+	 * The replies to requests processed on other threads, to be sent by this thread.
+	 */
+	private ConcurrentLinkedQueue<Runnable> completions;
+
+	/**
+	 * Create an NIO thread, which binds to the provided port with a non-blocking
+	 * server socket channel. The thread must be explicitly started.
+	 * @param port the port for the server socket channel
+	 * @param server the server that processes authentication and requests
+	 * @param timeout the time in milliseconds after which an idle connection is closed, or 0 for never
+	 * @param keepAlive the idle timeout in milliseconds of a multi-request session, or 0 for one request per connection
+	 * @param logger an object that implements the terminal logger interface
+	 * @throws IOException
+	 */
+	public NioIOThread(int port,
+			Server server,
+			int timeout,
+			int keepAlive,
+			ITerminalLogger logger) throws IOException {
+		this.server=server;
+		this.timeout=timeout;
+		this.keepAlive=keepAlive;
+		this.logger=logger;
+		readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		completions = new ConcurrentLinkedQueue<Runnable>();
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 *
+	 * @return the number of connections currently open
+	 */
+	public int getNumSessions() {
+		return numSessions;
+	}
+
+	@Override
+	public void run() {
+		logger.logInfo("NIO thread running");
+		int sweepInterval = SWEEP_INTERVAL;
+		if(timeout>0) sweepInterval = Math.min(timeout,sweepInterval);
+		if(keepAlive>0) sweepInterval = Math.min(keepAlive,sweepInterval);
+		long lastSweep = System.currentTimeMillis();
+		while(!isInterrupted()) {
+			try {
+				selector.select(sweepInterval);
+			} catch (IOException e) {
+				logger.logError("NIO thread failed to select.");
+				break;
+			}
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while(it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				try {
+					if(key.isAcceptable()) {
+						accept();
+					} else {
+						if(key.isReadable()) {
+							read(key);
+						}
+						if(key.isValid() && key.isWritable()) {
+							write(key);
+						}
+					}
+				} catch (IOException e) {
+					close(key);
+				} catch (RuntimeException e) {
+					logger.logWarn("NIO thread dropped a connection after an error: "+e.getMessage());
+					close(key);
+				}
+			}
+			Runnable completion;
+			while((completion=completions.poll())!=null) {
+				completion.run();
+			}
+			if(System.currentTimeMillis()-lastSweep>=sweepInterval) {
+				closeIdle();
+				lastSweep = System.currentTimeMillis();
+			}
+		}
+		for(SelectionKey key : selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				// nothing more to do
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			logger.logWarn("NIO thread could not close its selector.");
+		}
+		logger.logInfo("NIO thread completed.");
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if(channel==null) return;
+		channel.configureBlocking(false);
+		Session session = new Session();
+		InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+		session.ip = remote.getAddress().getHostAddress();
+		session.port = remote.getPort();
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ, session);
+		numSessions++;
+		logger.logInfo("Server processing request on connection "+session.ip);
+		if(!server.admit(session.ip)) {
+			send(key,new ErrorMsg("Too many requests"));
+			session.state = STATE.CLOSING;
+			return;
+		}
+		send(key,server.getWelcome(keepAlive));
+	}
+
+	/**
+	 * Read whatever is available, and process it.
+	 */
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Session session = (Session) key.attachment();
+		readBuffer.clear();
+		int n = channel.read(readBuffer);
+		if(n<0) {
+			close(key);
+			return;
+		}
+		session.lastActivity = System.currentTimeMillis();
+		readBuffer.flip();
+		consume(key,session,readBuffer);
+	}
+
+	/**
+	 * Process each complete line, or frame, in turn, until one of them is processed on
+	 * another thread, when the rest is kept until its reply has been sent.
+	 */
+	private void consume(SelectionKey key,Session session,ByteBuffer buf) {
+		while(buf.hasRemaining() && session.state!=STATE.CLOSING && !session.busy) {
+			if(session.framer!=null) {
+				readFrame(key,session,buf);
+				continue;
+			}
+			byte[] array = buf.array();
+			int start = buf.arrayOffset()+buf.position();
+			int limit = buf.arrayOffset()+buf.limit();
+			int end = start;
+			while(end<limit && array[end]!='\n') end++;
+			if(session.line.size()+end-start>MAX_LINE_LENGTH) {
+				send(key,new ErrorMsg("Message too long"));
+				session.state = STATE.CLOSING;
+				return;
+			}
+			if(end==limit) {
+				session.line.write(array,start,end-start);
+				buf.position(buf.limit());
+				return;
+			}
+			buf.position(end+1-buf.arrayOffset());
+			if(session.line.size()==0) {
+				// the whole line has arrived at once, and is decoded where it is
+				processLine(key,session,array,start,end-start);
+			} else {
+				session.line.write(array,start,end-start);
+				byte[] bytes = session.line.toByteArray();
+				session.line.reset();
+				processLine(key,session,bytes,0,bytes.length);
+			}
+		}
+		if(session.busy && buf.hasRemaining()) {
+			session.unread = ByteBuffer.allocate(buf.remaining()).put(buf).flip();
+		}
+	}
+
+	/**
+	 * Take as much of a frame as has arrived, and process the frame once it is complete.
+	 */
+	private void readFrame(SelectionKey key,Session session,ByteBuffer buf) {
+		int length = session.frameLength<0 ? MessageFramer.HEADER_LENGTH : session.frameLength;
+		int n = Math.min(length-session.line.size(),buf.remaining());
+		session.line.write(buf.array(),buf.arrayOffset()+buf.position(),n);
+		buf.position(buf.position()+n);
+		if(session.line.size()<length) return;
+		byte[] bytes = session.line.toByteArray();
+		session.line.reset();
+		Message msg;
+		try {
+			if(session.frameLength<0) {
+				session.frameLength = MessageFramer.payloadLength(bytes,0);
+				if(session.frameLength>MAX_LINE_LENGTH) {
+					send(key,new ErrorMsg("Message too long"));
+					session.state = STATE.CLOSING;
+				}
+				return;
+			}
+			session.frameLength = -1;
+			msg = session.framer.unframe(bytes,0,bytes.length);
+			logger.logDebug("received: "+msg.summary());
+		} catch (JsonSerializationException e) {
+			send(key,new ErrorMsg("Invalid message"));
+			session.state = STATE.CLOSING;
+			return;
+		}
+		processMsg(key,session,msg);
+	}
+
+	/**
+	 * Advance the connection's state machine with one received line.
+	 */
+	private void processLine(SelectionKey key,Session session,byte[] line,int offset,int length) {
+		Message msg;
+		try {
+			msg = (Message) MessageFactory.deserialize(line,offset,length);
+			logger.logDebug("received: "+msg.summary());
+		} catch (JsonSerializationException | ClassCastException e) {
+			send(key,new ErrorMsg("Invalid message"));
+			session.state = STATE.CLOSING;
+			return;
+		}
+		processMsg(key,session,msg);
+	}
+
+	/**
+	 * Advance the connection's state machine with one received message.
+	 */
+	private void processMsg(SelectionKey key,Session session,Message msg) {
+		if(session.state==STATE.AWAIT_AUTH) {
+			if(msg.getClass().getName()==SessionRequest.class.getName() && server.forwardsRequests()) {
+				// the request that comes with a session token is processed as it is authenticated
+				dispatch(key,session,() -> server.authenticate(msg,session.ip,session.port),
+						reply -> authenticated(key,session,msg,reply));
+			} else {
+				authenticated(key,session,msg,server.authenticate(msg,session.ip,session.port));
+			}
+		} else if(keepAlive>0 && msg.getClass().getName()==Goodbye.class.getName()) {
+			session.state = STATE.CLOSING;
+			if(session.pending.isEmpty()) {
+				close(key);
+			}
+		} else {
+			boolean admitted = session.paid || server.admit(msg,session.ip);
+			session.paid = false;
+			if(!admitted) {
+				answered(key,session,new ErrorMsg("Too many requests"));
+			} else if(server.forwardsRequests()) {
+				dispatch(key,session,() -> server.processRequest(msg,session.ip,session.port),
+						reply -> answered(key,session,reply));
+			} else {
+				answered(key,session,server.processRequest(msg,session.ip,session.port));
+			}
+		}
+	}
+
+	/**
+	 * Send the reply to the handshake, and await a request if it succeeded.
+	 */
+	private void authenticated(SelectionKey key,Session session,Message msg,Message reply) {
+		send(key,reply);
+		if(!server.isAuthenticated(msg,reply)) {
+			session.state = STATE.CLOSING;
+			return;
+		}
+		if(server.asksForFrames(msg)) {
+			// the messages after the reply are framed
+			session.framer = new MessageFramer();
+		}
+		if(msg.getClass().getName()==SessionRequest.class.getName()) {
+			// the request came with a session token, and has been answered
+			session.paid = false;
+			if(keepAlive>0) {
+				session.state = STATE.AWAIT_REQUEST;
+				session.idleTimeout = keepAlive;
+			} else {
+				session.state = STATE.CLOSING;
+			}
+		} else {
+			session.state = STATE.AWAIT_REQUEST;
+		}
+	}
+
+	/**
+	 * Send the reply to a request, and await the next one if the session is kept alive.
+	 */
+	private void answered(SelectionKey key,Session session,Message reply) {
+		send(key,reply);
+		if(keepAlive>0) {
+			session.idleTimeout = keepAlive;
+		} else {
+			session.state = STATE.CLOSING;
+		}
+	}
+
+	/**
+	 * Process a request on a virtual thread, and stop reading the connection until the
+	 * reply has been handed back to this thread, so that its replies stay in order.
+	 * @param work processes the request, on the virtual thread
+	 * @param then takes the reply, on this thread
+	 */
+	private void dispatch(SelectionKey key,Session session,Supplier<Message> work,Consumer<Message> then) {
+		session.busy = true;
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		Thread.ofVirtual().start(() -> {
+			Message reply;
+			try {
+				reply = work.get();
+			} catch (RuntimeException e) {
+				logger.logWarn("NIO request failed: "+e.getMessage());
+				reply = new ErrorMsg("Request failed");
+			}
+			Message result = reply;
+			completions.add(() -> complete(key,session,then,result));
+			selector.wakeup();
+		});
+	}
+
+	/**
+	 * Hand over the reply to a request that was processed on another thread, and carry
+	 * on with what had been read after it.
+	 */
+	private void complete(SelectionKey key,Session session,Consumer<Message> then,Message reply) {
+		if(!key.isValid()) return;
+		session.busy = false;
+		session.lastActivity = System.currentTimeMillis();
+		try {
+			then.accept(reply);
+			ByteBuffer unread = session.unread;
+			session.unread = null;
+			if(unread!=null) {
+				consume(key,session,unread);
+			}
+			if(!session.busy && session.state!=STATE.CLOSING && key.isValid()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			}
+		} catch (RuntimeException e) {
+			logger.logWarn("NIO thread dropped a connection after an error: "+e.getMessage());
+			close(key);
+		}
+	}
+
+	/**
+	 * Queue a message to be written when the channel is writable.
+	 */
+	private void send(SelectionKey key,Message msg) {
+		Session session = (Session) key.attachment();
+		logger.logDebug("sending: "+msg.summary());
+		if(session.framer!=null) {
+			try {
+				session.pending.add(ByteBuffer.wrap(session.framer.frame(msg)));
+			} catch (JsonSerializationException e) {
+				logger.logWarn("NIO thread could not frame a reply: "+e.getMessage());
+				session.state = STATE.CLOSING;
+			}
+		} else {
+			// the reply is held until it is written, but as its bytes only
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try {
+				MessageFactory.serialize(msg,bytes);
+				bytes.write('\n');
+				session.pending.add(ByteBuffer.wrap(bytes.toByteArray()));
+			} catch (IOException | JsonSerializationException e) {
+				logger.logWarn("NIO thread could not serialize a reply: "+e.getMessage());
+				session.state = STATE.CLOSING;
+			}
+		}
+		key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Write as much of the pending output as the channel will take. The connection
+	 * is closed once its final reply has been written.
+	 */
+	private void write(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Session session = (Session) key.attachment();
+		while(!session.pending.isEmpty()) {
+			ByteBuffer buf = session.pending.peek();
+			channel.write(buf);
+			if(buf.hasRemaining()) return;
+			session.pending.poll();
+		}
+		session.lastActivity = System.currentTimeMillis();
+		if(session.state==STATE.CLOSING) {
+			close(key);
+		} else {
+			// a connection is not read while its request is processed elsewhere
+			key.interestOps(session.busy ? 0 : SelectionKey.OP_READ);
+		}
+	}
+
+	private void closeIdle() {
+		long now = System.currentTimeMillis();
+		for(SelectionKey key : selector.keys()) {
+			Session session = (Session) key.attachment();
+			if(session!=null && !session.busy && session.idleTimeout>0 && now-session.lastActivity>session.idleTimeout) {
+				close(key);
+			}
+		}
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			logger.logWarn("Server could not close connection.");
+		}
+		if(key.attachment()!=null) {
+			key.attach(null);
+			numSessions--;
+		}
+	}
+}
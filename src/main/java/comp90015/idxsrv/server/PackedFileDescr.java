@@ -0,0 +1,128 @@
+package comp90015.idxsrv.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+/**
+ * The compact form of a {@link FileDescr} that the index keeps, one for each file
+ * rather than one for each sharer. The block hashes are held as raw 16 byte MD5 hashes
+ * in a single array, rather than as an array of 32 character hex strings. A descriptor
+ * whose block hashes are not all upper case hex MD5 hashes, as {@link FileDescr} computes
+ * them, keeps its hashes as they are, so that it is always given back unchanged.
+ * The file's MD5 hash is not kept, it is the key that the descriptor is found by.
+ * @author aaron
+ *
+ */
+class PackedFileDescr {
+
+	private static final int MD5_LENGTH = 16;
+
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.ISO_8859_1);
+
+	private final long fileLength;
+
+	private final int blockLength;
+
+	/**
+	 * The raw block hashes, one after the other, or null if they are kept as strings.
+	 */
+	private final byte[] blockMd5;
+
+	/**
+	 * The block hashes as they were given, if they could not be packed.
+	 */
+	private final String[] blockMd5Str;
+
+	/**
+	 * Pack a file descriptor.
+	 * @param fileDescr the file descriptor
+	 */
+	PackedFileDescr(FileDescr fileDescr) {
+		fileLength=fileDescr.getFileLength();
+		blockLength=fileDescr.getBlockLength();
+		int numBlocks = fileLength>0 ? fileDescr.getNumBlocks() : 0;
+		String[] hashes = new String[numBlocks];
+		byte[] packed = new byte[numBlocks*MD5_LENGTH];
+		for(int b=0;b<numBlocks;b++) {
+			hashes[b]=fileDescr.getBlockMd5(b);
+			if(packed!=null && !pack(hashes[b],packed,b*MD5_LENGTH)) packed=null;
+		}
+		blockMd5=packed;
+		blockMd5Str=packed==null ? hashes : null;
+	}
+
+	/**
+	 * Unpack the descriptor.
+	 * @param fileMd5 the MD5 hash of the file's content
+	 * @return a new file descriptor, equal to the one that was packed
+	 */
+	FileDescr unpack(String fileMd5) {
+		return new FileDescr(fileLength,blockLength,fileMd5,blockMd5Str!=null ? blockMd5Str : unpackBlocks());
+	}
+
+	/**
+	 * The hex digits are written as latin-1 bytes, which a string keeps as they are,
+	 * since a lookup unpacks every block hash of the file.
+	 */
+	private String[] unpackBlocks() {
+		String[] hashes = new String[blockMd5.length/MD5_LENGTH];
+		byte[] hex = new byte[2*MD5_LENGTH];
+		for(int b=0;b<hashes.length;b++) {
+			for(int i=0;i<MD5_LENGTH;i++) {
+				int v = blockMd5[b*MD5_LENGTH+i] & 0xff;
+				hex[2*i]=HEX[v>>>4];
+				hex[2*i+1]=HEX[v&0xf];
+			}
+			hashes[b]=new String(hex,StandardCharsets.ISO_8859_1);
+		}
+		return hashes;
+	}
+
+	/**
+	 * Check whether a file descriptor for a file with the same MD5 hash is the one
+	 * that was packed, so that the packed form can be shared.
+	 * @param fileDescr the file descriptor
+	 * @return true if unpacking would give an equal descriptor
+	 */
+	boolean sameAs(FileDescr fileDescr) {
+		if(fileDescr.getFileLength()!=fileLength || fileDescr.getBlockLength()!=blockLength) return false;
+		int numBlocks = fileLength>0 ? fileDescr.getNumBlocks() : 0;
+		if(numBlocks!=(blockMd5Str!=null ? blockMd5Str.length : blockMd5.length/MD5_LENGTH)) return false;
+		byte[] raw = new byte[MD5_LENGTH];
+		for(int b=0;b<numBlocks;b++) {
+			String hash = fileDescr.getBlockMd5(b);
+			if(blockMd5Str!=null) {
+				if(!blockMd5Str[b].equals(hash)) return false;
+			} else if(!pack(hash,raw,0) || !Arrays.equals(raw,0,MD5_LENGTH,blockMd5,b*MD5_LENGTH,(b+1)*MD5_LENGTH)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Pack an upper case hex MD5 hash into raw bytes.
+	 * @param hash the hex hash
+	 * @param packed the array to write the raw hash to
+	 * @param offset where in the array to write it
+	 * @return true if packed, false if the hash is not 32 upper case hex digits
+	 */
+	private static boolean pack(String hash,byte[] packed,int offset) {
+		if(hash==null || hash.length()!=2*MD5_LENGTH) return false;
+		for(int i=0;i<MD5_LENGTH;i++) {
+			int hi = hexDigit(hash.charAt(2*i));
+			int lo = hexDigit(hash.charAt(2*i+1));
+			if(hi<0 || lo<0) return false;
+			packed[offset+i]=(byte)((hi<<4)|lo);
+		}
+		return true;
+	}
+
+	private static int hexDigit(char c) {
+		if(c>='0' && c<='9') return c-'0';
+		if(c>='A' && c<='F') return c-'A'+10;
+		return -1;
+	}
+}
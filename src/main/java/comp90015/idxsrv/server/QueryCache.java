@@ -0,0 +1,264 @@
+package comp90015.idxsrv.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.message.SearchReply;
+
+/**
+ * A cache of the replies to recent searches, since popular searches are repeated far
+ * more often than the files they find change. A search is cached under its keywords,
+ * lower cased, without repeats and in order, since the order of the keywords makes no
+ * difference to the hits, and its maximum number of hits. A cached reply keeps its
+ * json and its frame body once each has been sent, so a repeated search is neither
+ * searched nor serialized again, whichever way the connections that repeat it are
+ * framed. A paged search is cached as the same search unpaged, and its cursor pages
+ * through the cached reply's hits.
+ * <p>
+ * The cache listens to the index, and a share or drop of a filename removes exactly the
+ * searches that the filename matches, since those are the only searches whose hits or
+ * sharer counts it can change. To find them without checking every cached search, each
+ * search is filed under the first three characters of its longest keyword, and the
+ * filename's substrings of up to three characters are looked up. A search is filed
+ * before it is run, so a change made while it runs removes it, and its reply, which may
+ * have missed the change, is not kept.
+ * <p>
+ * When the cache is full the searches that were least recently used are evicted, and a
+ * search is never kept for longer than {@link #TTL_MILLIS}, or the time it is given.
+ * @author aaron
+ *
+ */
+class QueryCache implements IndexListener {
+
+	/**
+	 * How long in milliseconds a reply is kept, however often it is used.
+	 */
+	static final long TTL_MILLIS = 60*1000;
+
+	/**
+	 * The length of the prefix of a search's longest keyword that it is filed under.
+	 */
+	private static final int ANCHOR_LENGTH = 3;
+
+	private static class Entry {
+		final String key;
+		final String[] keywords;
+		final String anchor;
+		final long created;
+		volatile SearchReply reply;
+		volatile long lastUsed;
+		volatile boolean valid;
+		Entry(String key,String[] keywords,String anchor) {
+			this.key=key;
+			this.keywords=keywords;
+			this.anchor=anchor;
+			created=System.currentTimeMillis();
+			lastUsed=created;
+			valid=true;
+		}
+	}
+
+	private int capacity;
+
+	private long ttlMillis;
+
+	private ConcurrentHashMap<String,Entry> entries;
+
+	/**
+	 * The entries filed under each anchor, an empty anchor for the searches that every
+	 * filename matches.
+	 */
+	private ConcurrentHashMap<String,Set<Entry>> anchors;
+
+	private AtomicLong hits;
+
+	private AtomicLong misses;
+
+	private AtomicLong invalidations;
+
+	private AtomicLong evictions;
+
+	/**
+	 * Create a cache, which must then be added as a listener to the index.
+	 * @param capacity the most searches kept
+	 */
+	QueryCache(int capacity) {
+		this(capacity,TTL_MILLIS);
+	}
+
+	/**
+	 * Create a cache that keeps a reply for the given time.
+	 * @param capacity the most searches kept
+	 * @param ttlMillis how long in milliseconds a reply is kept
+	 */
+	QueryCache(int capacity,long ttlMillis) {
+		this.capacity=capacity;
+		this.ttlMillis=ttlMillis;
+		entries=new ConcurrentHashMap<>();
+		anchors=new ConcurrentHashMap<>();
+		hits=new AtomicLong();
+		misses=new AtomicLong();
+		invalidations=new AtomicLong();
+		evictions=new AtomicLong();
+	}
+
+	/**
+	 * Answer a search from the cache, or run it and cache its reply.
+	 * @param keywords the keywords, lower cased
+	 * @param maxhits the maximum number of hits
+	 * @param search runs the search
+	 * @return the reply, which must not be changed
+	 */
+	SearchReply search(String[] keywords,int maxhits,Supplier<SearchReply> search) {
+		String[] normal = new TreeSet<String>(Arrays.asList(keywords)).toArray(new String[0]);
+		String key = maxhits+"\0"+String.join("\0",normal);
+		long now = System.currentTimeMillis();
+		Entry entry = entries.get(key);
+		if(entry!=null) {
+			SearchReply reply = entry.reply;
+			if(reply!=null && now-entry.created<=ttlMillis) {
+				entry.lastUsed=now;
+				hits.incrementAndGet();
+				return reply;
+			}
+			if(reply!=null) {
+				remove(entry);
+			}
+		}
+		misses.incrementAndGet();
+		String longest = "";
+		for(String keyword : normal) {
+			if(keyword.length()>longest.length()) longest=keyword;
+		}
+		entry = new Entry(key,normal,longest.substring(0,Math.min(ANCHOR_LENGTH,longest.length())));
+		Entry other = entries.put(key,entry);
+		if(other!=null) {
+			unfile(other);
+		}
+		anchors.computeIfAbsent(entry.anchor, a -> ConcurrentHashMap.newKeySet()).add(entry);
+		if(entries.size()>capacity) {
+			evict();
+		}
+		SearchReply reply = search.get();
+		entry.reply = reply;
+		if(!entry.valid) {
+			// a change was made while searching
+			entry.reply = null;
+		}
+		return reply;
+	}
+
+	@Override
+	public void shared(String ip, int port, FileDescr fileDescr, String filename, String secret) {
+		invalidate(filename);
+	}
+
+	@Override
+	public void dropped(String ip, int port, String filename, String fileMd5, String secret) {
+		invalidate(filename);
+	}
+
+	/**
+	 * Remove the searches that a filename matches.
+	 */
+	private void invalidate(String filename) {
+		if(entries.isEmpty()) return;
+		String lowerName = filename.toLowerCase();
+		invalidate(anchors.get(""),lowerName);
+		for(int i=0;i<lowerName.length();i++) {
+			for(int l=1;l<=ANCHOR_LENGTH && i+l<=lowerName.length();l++) {
+				invalidate(anchors.get(lowerName.substring(i,i+l)),lowerName);
+			}
+		}
+	}
+
+	private void invalidate(Set<Entry> filed,String lowerName) {
+		if(filed==null) return;
+		for(Entry entry : filed) {
+			if(matches(lowerName,entry.keywords)) {
+				invalidations.incrementAndGet();
+				remove(entry);
+			}
+		}
+	}
+
+	private static boolean matches(String filename,String[] keywords) {
+		for(String keyword : keywords) {
+			if(!filename.contains(keyword)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void remove(Entry entry) {
+		entry.valid=false;
+		entries.remove(entry.key,entry);
+		unfile(entry);
+	}
+
+	private void unfile(Entry entry) {
+		entry.valid=false;
+		anchors.computeIfPresent(entry.anchor, (a,filed) -> {
+			filed.remove(entry);
+			return filed.isEmpty() ? null : filed;
+		});
+	}
+
+	/**
+	 * Evict the searches that have expired, and the least recently used tenth of the
+	 * rest, so that one scan makes room for a number of searches.
+	 */
+	private void evict() {
+		long now = System.currentTimeMillis();
+		ArrayList<Entry> live = new ArrayList<Entry>(entries.size());
+		for(Map.Entry<String,Entry> e : entries.entrySet()) {
+			Entry entry = e.getValue();
+			if(now-entry.created>ttlMillis) {
+				evictions.incrementAndGet();
+				remove(entry);
+			} else {
+				live.add(entry);
+			}
+		}
+		int excess = live.size()-capacity+capacity/10;
+		if(excess<=0) return;
+		long[] used = new long[live.size()];
+		for(int i=0;i<used.length;i++) {
+			used[i]=live.get(i).lastUsed;
+		}
+		Arrays.sort(used);
+		long cutoff = used[Math.min(excess,used.length)-1];
+		for(Entry entry : live) {
+			if(entry.lastUsed<=cutoff && entry.reply!=null) {
+				evictions.incrementAndGet();
+				remove(entry);
+			}
+		}
+	}
+
+	/**
+	 * Forget every search, when the index is replaced.
+	 */
+	void clear() {
+		for(Entry entry : entries.values()) {
+			remove(entry);
+		}
+	}
+
+	@Override
+	public String toString() {
+		long h = hits.get();
+		long m = misses.get();
+		return "size "+entries.size()+", hits "+h+", misses "+m
+				+", hit rate "+(h+m==0 ? 0 : 100*h/(h+m))+"%"
+				+", invalidations "+invalidations.get()+", evictions "+evictions.get();
+	}
+}
@@ -0,0 +1,130 @@
+package comp90015.idxsrv.server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the rate at which each client address may make requests, with a token bucket
+ * for each address. A bucket holds up to a burst of tokens and is refilled at the
+ * rate, and each connection and each further request on a session takes a token, so
+ * a client may make a burst of requests at once but no more than the rate for long.
+ * A client whose bucket is empty is turned away with an error, and does not hold up a
+ * worker or the index.
+ * <p>
+ * The buckets of clients that have stopped making requests, and whose buckets have
+ * refilled, are forgotten when the usage is reported, see {@link #report()}. A token
+ * is only taken from a bucket that is still the client's, so a request made as its
+ * bucket is forgotten is counted against the full bucket that replaces it.
+ * @author aaron
+ *
+ */
+class RateLimiter {
+
+	/**
+	 * The number of heaviest clients named in a report.
+	 */
+	private static final int REPORT_CLIENTS = 3;
+
+	private static class Bucket {
+		final ReentrantLock lock = new ReentrantLock();
+		double tokens;
+		long lastNanos;
+		// since the last report
+		long requests;
+		long throttled;
+		Bucket(double tokens) {
+			this.tokens=tokens;
+			lastNanos=System.nanoTime();
+		}
+	}
+
+	private double rate;
+
+	private double burst;
+
+	private ConcurrentHashMap<String,Bucket> buckets;
+
+	/**
+	 * Create a limiter.
+	 * @param rate the number of requests per second a client may make
+	 * @param burst the number of requests a client may make at once
+	 */
+	RateLimiter(double rate,double burst) {
+		this.rate=rate;
+		this.burst=Math.max(1,burst);
+		buckets=new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Take a token from a client's bucket, if it has one.
+	 * @param ip the ip address of the client
+	 * @return true if the client may make its request, false if it has made too many
+	 */
+	boolean acquire(String ip) {
+		while(true) {
+			Bucket bucket = buckets.computeIfAbsent(ip, k -> new Bucket(burst));
+			bucket.lock.lock();
+			try {
+				if(buckets.get(ip)!=bucket) {
+					// forgotten by a report while this waited for it, take from the new one
+					continue;
+				}
+				long now = System.nanoTime();
+				bucket.tokens = Math.min(burst,bucket.tokens+(now-bucket.lastNanos)*rate/1e9);
+				bucket.lastNanos = now;
+				if(bucket.tokens<1) {
+					bucket.throttled++;
+					return false;
+				}
+				bucket.tokens--;
+				bucket.requests++;
+				return true;
+			} finally {
+				bucket.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Summarise the limits and the usage of the heaviest clients since the last report,
+	 * as their requests/throttled, for logging, and forget the clients whose buckets
+	 * are full again.
+	 * @return the summary
+	 */
+	String report() {
+		long now = System.nanoTime();
+		long requests = 0;
+		long throttled = 0;
+		ArrayList<Map.Entry<String,long[]>> usage = new ArrayList<>();
+		for(Map.Entry<String,Bucket> entry : buckets.entrySet()) {
+			Bucket bucket = entry.getValue();
+			long[] counts;
+			bucket.lock.lock();
+			try {
+				counts = new long[] {bucket.requests,bucket.throttled};
+				bucket.requests = 0;
+				bucket.throttled = 0;
+				if(bucket.tokens+(now-bucket.lastNanos)*rate/1e9>=burst) {
+					buckets.remove(entry.getKey(),bucket);
+				}
+			} finally {
+				bucket.lock.unlock();
+			}
+			requests += counts[0];
+			throttled += counts[1];
+			if(counts[0]+counts[1]>0) usage.add(Map.entry(entry.getKey(),counts));
+		}
+		usage.sort(Comparator.comparingLong((Map.Entry<String,long[]> e) -> -(e.getValue()[0]+e.getValue()[1])));
+		StringBuilder sb = new StringBuilder("limit "+rate+"/s burst "+burst
+				+", clients "+usage.size()+", requests "+requests+", throttled "+throttled);
+		for(int i=0;i<Math.min(REPORT_CLIENTS,usage.size());i++) {
+			long[] counts = usage.get(i).getValue();
+			sb.append(i==0 ? ", heaviest " : " ");
+			sb.append(usage.get(i).getKey()+" "+counts[0]+"/"+counts[1]);
+		}
+		return sb.toString();
+	}
+}
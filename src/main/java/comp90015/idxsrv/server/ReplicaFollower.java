@@ -0,0 +1,276 @@
+package comp90015.idxsrv.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import comp90015.idxsrv.message.AuthenticateReply;
+import comp90015.idxsrv.message.AuthenticateRequest;
+import comp90015.idxsrv.message.ErrorMsg;
+import comp90015.idxsrv.message.JsonSerializationException;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.message.MessageStream;
+import comp90015.idxsrv.message.ReplicaBatch;
+import comp90015.idxsrv.message.ReplicateRequest;
+import comp90015.idxsrv.message.ShardRequest;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * Keeps a replica of a leader's index, so that a follower server can answer searches and
+ * lookups itself, while the shares, drops and heartbeats that change the index are
+ * forwarded to the leader. The follower connects to the first of its candidate leaders
+ * that will have it, see {@link ReplicationSource}, loads the snapshot that the leader
+ * sends into a new index, which then replaces the server's index, and applies the
+ * changes that follow as they arrive. If the connection fails it moves on to the next
+ * candidate, and starts again from a new snapshot.
+ * <p>
+ * The follower is as far behind the leader as the time since its last batch, since the
+ * leader sends a batch at least every second, and it refuses to answer searches and
+ * lookups while that is longer than its maximum lag. A follower is promoted to a leader
+ * by a {@link comp90015.idxsrv.message.PromoteRequest}, when its leader has died.
+ * @author aaron
+ *
+ */
+class ReplicaFollower extends Thread {
+
+	/**
+	 * How long in milliseconds to wait before trying the next candidate leader.
+	 */
+	private static final long RETRY_MILLIS = 1000;
+
+	private Server server;
+
+	private List<String> leaders;
+
+	private String secret;
+
+	private ClusterKey clusterKey;
+
+	private int timeout;
+
+	private long maxLag;
+
+	private ITerminalLogger logger;
+
+	private ConcurrentHashMap<String,ShardClient> clients;
+
+	/**
+	 * The leader being followed, or null before the first snapshot has been loaded.
+	 */
+	private volatile String leader;
+
+	private volatile Socket socket;
+
+	/**
+	 * When the last batch was applied, by this server's clock.
+	 */
+	private volatile long lastBatch;
+
+	/**
+	 * The number of changes the leader had made that were not in the last batch.
+	 */
+	private volatile long behind;
+
+	/**
+	 * Create a follower for a server. The thread must be explicitly started.
+	 * @param server the server, whose index is replaced by the leader's
+	 * @param leaders the candidate leaders, HOST:PORT
+	 * @param secret the server secret, which the leaders share
+	 * @param clusterKey signs the requests to the leaders, which share it
+	 * @param timeout the timeout in milliseconds for connecting, and for a forwarded request
+	 * @param maxLag how far in milliseconds the replica may fall behind the leader before it refuses reads
+	 * @param logger an object that implements the terminal logger interface
+	 */
+	ReplicaFollower(Server server,
+			Collection<String> leaders,
+			String secret,
+			ClusterKey clusterKey,
+			int timeout,
+			long maxLag,
+			ITerminalLogger logger) {
+		super("ReplicaFollower");
+		this.server=server;
+		this.leaders=new ArrayList<String>(leaders);
+		this.secret=secret;
+		this.clusterKey=clusterKey;
+		this.timeout=timeout;
+		this.maxLag=maxLag;
+		this.logger=logger;
+		clients=new ConcurrentHashMap<>();
+	}
+
+	/**
+	 *
+	 * @return null if the replica is close enough to the leader to answer reads, or why it is not
+	 */
+	String checkLag() {
+		if(leader==null) {
+			return "Index replica has not loaded the index yet";
+		}
+		long lag = System.currentTimeMillis()-lastBatch;
+		if(lag>maxLag) {
+			return "Index replica is "+lag+"ms behind its leader";
+		}
+		return null;
+	}
+
+	/**
+	 *
+	 * @return how long in milliseconds since the last change from the leader was applied
+	 */
+	long getLagMillis() {
+		return leader==null ? -1 : System.currentTimeMillis()-lastBatch;
+	}
+
+	/**
+	 *
+	 * @return the number of changes the leader had made that were not yet applied
+	 */
+	long getBehind() {
+		return behind;
+	}
+
+	/**
+	 *
+	 * @return the leader being followed, or null before the index has been loaded
+	 */
+	String getLeader() {
+		return leader;
+	}
+
+	/**
+	 * Forward a request that changes the index to the leader.
+	 * @param msg the request
+	 * @param ip the ip address of the client
+	 * @return the leader's reply, or an {@link ErrorMsg} if it could not be reached
+	 */
+	Message forward(Message msg,String ip) {
+		String node = leader!=null ? leader : leaders.get(0);
+		ShardClient client = clients.computeIfAbsent(node, n -> new ShardClient(n,secret,timeout));
+		try {
+			return client.request(clusterKey.sign(new ShardRequest(ip,msg)));
+		} catch (Exception e) {
+			logger.logWarn("Index leader "+node+" could not be reached: "+e.getMessage());
+			return new ErrorMsg("Index leader unavailable");
+		}
+	}
+
+	/**
+	 * Stop following, and close the connections to the leader.
+	 */
+	void shutdown() {
+		interrupt();
+		Socket current = socket;
+		if(current!=null) {
+			try {
+				current.close();
+			} catch (IOException e) {
+				// nothing more to do
+			}
+		}
+		try {
+			join();
+		} catch (InterruptedException e) {
+			logger.logWarn("Interrupted while joining with the replica follower.");
+		}
+		for(ShardClient client : clients.values()) {
+			client.close();
+		}
+	}
+
+	@Override
+	public void run() {
+		logger.logInfo("Replica follower running, candidate leaders "+leaders);
+		int next = 0;
+		while(!isInterrupted()) {
+			String node = leaders.get(next);
+			try {
+				follow(node);
+			} catch (IOException | JsonSerializationException | ClassCastException e) {
+				if(isInterrupted()) break;
+				logger.logWarn("Could not follow index server "+node+": "+e.getMessage());
+			}
+			next = (next+1)%leaders.size();
+			try {
+				sleep(RETRY_MILLIS);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		logger.logInfo("Replica follower completed.");
+	}
+
+	/**
+	 * Follow a leader until the connection fails.
+	 */
+	private void follow(String node) throws IOException, JsonSerializationException {
+		int colon = node.lastIndexOf(':');
+		try(Socket s = new Socket()) {
+			socket = s;
+			if(isInterrupted()) return;
+			s.connect(new InetSocketAddress(node.substring(0,colon),Integer.parseInt(node.substring(colon+1))),timeout);
+			// the leader sends a batch every second, so a longer silence means it has gone
+			s.setSoTimeout((int) Math.max(timeout,3*ReplicationSource.HEARTBEAT_MILLIS));
+			MessageStream stream = new MessageStream(s.getInputStream(),s.getOutputStream());
+			Message welcome = readMsg(stream);
+			if(welcome.getClass().getName()==ErrorMsg.class.getName()) {
+				throw new IOException(((ErrorMsg) welcome).msg);
+			}
+			writeMsg(stream,new AuthenticateRequest(secret));
+			Message reply = readMsg(stream);
+			if(reply.getClass().getName()!=AuthenticateReply.class.getName() || !((AuthenticateReply) reply).success) {
+				throw new IOException("it does not share this server's secret");
+			}
+			writeMsg(stream,clusterKey.sign(new ReplicateRequest()));
+			long start = System.currentTimeMillis();
+			IndexMgr loading = new IndexMgr();
+			IndexMgr index = null;
+			long numRecords = 0;
+			while(true) {
+				Message msg = readMsg(stream);
+				if(msg.getClass().getName()==ErrorMsg.class.getName()) {
+					throw new IOException(((ErrorMsg) msg).msg);
+				}
+				ReplicaBatch batch = (ReplicaBatch) msg;
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(batch.records)));
+				while(IndexLog.apply(in,index!=null ? index : loading)) {
+					numRecords++;
+				}
+				if(index==null && !batch.snapshot) {
+					index = loading;
+					loading = null;
+					server.setIndexMgr(index);
+					leader = node;
+					logger.logInfo("Following index server "+node+", loaded "+numRecords+" records in "
+							+(System.currentTimeMillis()-start)+"ms");
+				}
+				if(index!=null) {
+					lastBatch = System.currentTimeMillis();
+					behind = batch.head-batch.seq;
+				}
+			}
+		} finally {
+			socket = null;
+		}
+	}
+
+	private static void writeMsg(MessageStream stream,Message msg) throws IOException {
+		stream.writeMsg(msg,true);
+	}
+
+	private static Message readMsg(MessageStream stream) throws IOException, JsonSerializationException {
+		try {
+			return stream.readMsg();
+		} catch (EOFException e) {
+			throw new IOException("the connection was closed");
+		}
+	}
+}
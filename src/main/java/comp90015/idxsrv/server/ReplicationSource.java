@@ -0,0 +1,191 @@
+package comp90015.idxsrv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.message.MessageStream;
+import comp90015.idxsrv.message.ReplicaBatch;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * The leader's side of replication, which streams the index to the followers that
+ * are connected to it, see {@link ReplicaFollower}. A follower is first sent a snapshot
+ * of the index, as the shares that rebuild it, and then every share and drop made since,
+ * as the same records that the {@link IndexLog} writes. As with the index log, the
+ * snapshot is taken while the index keeps changing, and the changes it may have missed
+ * are queued for the follower before it starts, so replaying them on top of the snapshot
+ * gives the right index.
+ * <p>
+ * Each follower has a bounded queue of changes, so that a follower that cannot keep up
+ * does not hold up the index. A follower whose queue overflows is disconnected, and
+ * starts again from a new snapshot when it reconnects. When there are no changes a
+ * follower is sent an empty batch every second, so that it can tell how far behind it is.
+ * @author aaron
+ *
+ */
+class ReplicationSource implements IndexListener {
+
+	/**
+	 * The number of changes that may wait to be sent to a follower before it is
+	 * disconnected.
+	 */
+	private static final int QUEUE_CAPACITY = 100000;
+
+	/**
+	 * The most records sent in one batch.
+	 */
+	private static final int BATCH_RECORDS = 1000;
+
+	/**
+	 * How often in milliseconds a follower is sent a batch when there are no changes.
+	 */
+	static final long HEARTBEAT_MILLIS = 1000;
+
+	private static class Follower {
+		final String name;
+		final LinkedBlockingQueue<byte[]> queue;
+		volatile boolean overflowed;
+		Follower(String name) {
+			this.name=name;
+			queue=new LinkedBlockingQueue<byte[]>(QUEUE_CAPACITY);
+		}
+	}
+
+	private IndexMgr indexMgr;
+
+	private ITerminalLogger logger;
+
+	private CopyOnWriteArrayList<Follower> followers;
+
+	/**
+	 * The number of changes made since the source was created.
+	 */
+	private AtomicLong head;
+
+	/**
+	 * Create the source for an index, which must then be added as a listener to it.
+	 * @param indexMgr the index
+	 * @param logger an object that implements the terminal logger interface
+	 */
+	ReplicationSource(IndexMgr indexMgr, ITerminalLogger logger) {
+		this.indexMgr=indexMgr;
+		this.logger=logger;
+		followers=new CopyOnWriteArrayList<Follower>();
+		head=new AtomicLong();
+	}
+
+	/**
+	 *
+	 * @return the number of followers connected
+	 */
+	int getNumFollowers() {
+		return followers.size();
+	}
+
+	@Override
+	public void shared(String ip, int port, FileDescr fileDescr, String filename, String secret) {
+		if(followers.isEmpty()) return;
+		try {
+			publish(IndexLog.encodeShare(ip,port,fileDescr,filename,secret));
+		} catch (IOException | RuntimeException e) {
+			// only a malformed file descriptor can get here
+			logger.logWarn("Replication skipped a share of "+filename+": "+e);
+		}
+	}
+
+	@Override
+	public void dropped(String ip, int port, String filename, String fileMd5, String secret) {
+		if(followers.isEmpty()) return;
+		publish(IndexLog.encodeDrop(ip,port,filename,fileMd5,secret));
+	}
+
+	private void publish(byte[] record) {
+		head.incrementAndGet();
+		for(Follower follower : followers) {
+			if(!follower.queue.offer(record)) {
+				follower.overflowed=true;
+			}
+		}
+	}
+
+	/**
+	 * Stream the index to a follower, until it disconnects, falls too far behind or
+	 * the thread is interrupted.
+	 * @param stream the connection to the follower
+	 * @param name the follower, for logging
+	 * @throws IOException if the connection fails
+	 */
+	void serve(MessageStream stream, String name) throws IOException {
+		Follower follower = new Follower(name);
+		followers.add(follower);
+		long seq = head.get();
+		logger.logInfo("Follower "+name+" connected, sending a snapshot of the index");
+		try {
+			long start = System.currentTimeMillis();
+			ByteArrayOutputStream records = new ByteArrayOutputStream();
+			int count = 0;
+			int total = 0;
+			for(List<IndexElement> elements : indexMgr.files()) {
+				for(IndexElement element : elements) {
+					try {
+						records.writeBytes(IndexLog.encodeShare(element.ip,element.port,element.fileDescr,element.filename,element.secret));
+					} catch (IOException | RuntimeException e) {
+						continue;
+					}
+					total++;
+					if(++count>=BATCH_RECORDS) {
+						send(stream,new ReplicaBatch(seq,head.get(),true,encode(records)));
+						count=0;
+					}
+				}
+			}
+			send(stream,new ReplicaBatch(seq,head.get(),true,encode(records)));
+			logger.logInfo("Sent a snapshot of "+total+" shares to follower "+name+" in "
+					+(System.currentTimeMillis()-start)+"ms");
+			// the first batch, which completes the snapshot, is sent without waiting
+			long wait = 0;
+			while(true) {
+				if(follower.overflowed) {
+					logger.logWarn("Follower "+name+" fell more than "+QUEUE_CAPACITY+" changes behind, disconnecting it");
+					return;
+				}
+				count = 0;
+				byte[] record = follower.queue.poll(wait,TimeUnit.MILLISECONDS);
+				wait = HEARTBEAT_MILLIS;
+				while(record!=null) {
+					records.writeBytes(record);
+					if(++count>=BATCH_RECORDS) break;
+					record = follower.queue.poll();
+				}
+				seq += count;
+				send(stream,new ReplicaBatch(seq,head.get(),false,encode(records)));
+			}
+		} catch (InterruptedException e) {
+			// the server is stopping
+		} finally {
+			followers.remove(follower);
+			logger.logInfo("Follower "+name+" disconnected");
+		}
+	}
+
+	/**
+	 *
+	 * @return the records base64 encoded, after which they are cleared
+	 */
+	private static String encode(ByteArrayOutputStream records) {
+		String str = Base64.getEncoder().encodeToString(records.toByteArray());
+		records.reset();
+		return str;
+	}
+
+	private static void send(MessageStream stream,ReplicaBatch batch) throws IOException {
+		stream.writeMsg(batch,true);
+	}
+}
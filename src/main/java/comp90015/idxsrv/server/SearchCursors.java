@@ -0,0 +1,232 @@
+package comp90015.idxsrv.server;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import comp90015.idxsrv.message.ErrorMsg;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.message.SearchPageReply;
+
+/**
+ * The cursors of searches whose hits are returned a page at a time, so that a broad
+ * search is never sent as one huge reply. A cursor keeps the hits of its search, as
+ * found when it started, and the elements of a page are only made when the page is
+ * sent, see {@link IndexMgr#searchLazily}.
+ * <p>
+ * A cursor is taken out of the map while its page is made and put back if there are
+ * more pages, so it needs no lock. It is dropped once its last page is sent, when it
+ * has not been used for {@link #IDLE_MILLIS}, or, if there are too many, when it is
+ * the least recently used. A cursor keeps at most {@link #MAX_HITS} hits, and each
+ * client address at most {@link #MAX_CLIENT_CURSORS} cursors, its least recently used
+ * being dropped for a new one, so that one client cannot fill the server's memory or
+ * push everyone else's cursors out. Cursor keys are random, so that one client cannot
+ * page through another's search.
+ * @author aaron
+ *
+ */
+class SearchCursors {
+
+	/**
+	 * The most cursors kept at once.
+	 */
+	private static final int MAX_CURSORS = 4096;
+
+	/**
+	 * The most cursors kept at once for one client address.
+	 */
+	static final int MAX_CLIENT_CURSORS = 16;
+
+	/**
+	 * The most hits a cursor keeps, and so that a paged search finds.
+	 */
+	static final int MAX_HITS = 10000;
+
+	/**
+	 * How long in milliseconds a cursor is kept without being used.
+	 */
+	static final long IDLE_MILLIS = 60*1000;
+
+	/**
+	 * The most hits sent in one page.
+	 */
+	static final int MAX_PAGE_SIZE = 1000;
+
+	private static class Cursor {
+		final String ip;
+		final List<IndexElement> hits;
+		final Integer[] seedCounts;
+		final int pageSize;
+		int next;
+		volatile long lastUsed;
+		Cursor(String ip,List<IndexElement> hits,Integer[] seedCounts,int pageSize) {
+			this.ip=ip;
+			this.hits=hits;
+			this.seedCounts=seedCounts;
+			this.pageSize=pageSize;
+			lastUsed=System.currentTimeMillis();
+		}
+	}
+
+	private ConcurrentHashMap<String,Cursor> cursors;
+
+	/**
+	 * The number of cursors kept for each client address that has any.
+	 */
+	private ConcurrentHashMap<String,Integer> clientCursors;
+
+	private SecureRandom random;
+
+	SearchCursors() {
+		cursors=new ConcurrentHashMap<>();
+		clientCursors=new ConcurrentHashMap<>();
+		random=new SecureRandom();
+	}
+
+	/**
+	 *
+	 * @return the number of cursors open
+	 */
+	int size() {
+		return cursors.size();
+	}
+
+	/**
+	 * Start paging through the hits of a search, of which only the first {@link #MAX_HITS}
+	 * are kept.
+	 * @param ip the address of the client
+	 * @param hits the hits, best first
+	 * @param seedCounts the number of sharers of each hit
+	 * @param pageSize the most hits in each page
+	 * @return the first page
+	 */
+	Message open(String ip,List<IndexElement> hits,Integer[] seedCounts,int pageSize) {
+		if(hits.size()>MAX_HITS) {
+			hits = hits.subList(0,MAX_HITS);
+		}
+		Cursor cursor = new Cursor(ip,hits,seedCounts,Math.max(1,Math.min(MAX_PAGE_SIZE,pageSize)));
+		if(cursor.hits.size()>cursor.pageSize) {
+			if(cursors.size()>=MAX_CURSORS) {
+				evict();
+			}
+			if(clientCursors.merge(ip,1,Integer::sum)>MAX_CLIENT_CURSORS) {
+				evict(ip);
+			}
+		}
+		return page(newKey(),cursor);
+	}
+
+	/**
+	 * Send the next page of a search.
+	 * @param key the cursor sent with the previous page
+	 * @return the page, or an {@link ErrorMsg} if the cursor is unknown or has expired
+	 */
+	Message next(String key) {
+		Cursor cursor = cursors.remove(key);
+		if(cursor==null) {
+			return new ErrorMsg("Unknown or expired search cursor");
+		}
+		if(System.currentTimeMillis()-cursor.lastUsed>IDLE_MILLIS) {
+			release(cursor.ip);
+			return new ErrorMsg("Unknown or expired search cursor");
+		}
+		return page(key,cursor);
+	}
+
+	private Message page(String key,Cursor cursor) {
+		int end = Math.min(cursor.hits.size(),cursor.next+cursor.pageSize);
+		Integer[] seedCounts = new Integer[end-cursor.next];
+		System.arraycopy(cursor.seedCounts,cursor.next,seedCounts,0,seedCounts.length);
+		List<IndexElement> hits = cursor.hits.subList(cursor.next,end);
+		cursor.next = end;
+		if(end<cursor.hits.size()) {
+			cursor.lastUsed = System.currentTimeMillis();
+			cursors.put(key,cursor);
+		} else {
+			if(cursor.hits.size()>cursor.pageSize) {
+				// it was kept for the pages before this last one
+				release(cursor.ip);
+			}
+			key = "";
+		}
+		return new SearchPageReply(hits,seedCounts,key,cursor.hits.size());
+	}
+
+	/**
+	 * Drop the cursors that have expired, and if that does not make room, the least
+	 * recently used.
+	 */
+	private void evict() {
+		long now = System.currentTimeMillis();
+		String oldest = null;
+		long oldestUsed = Long.MAX_VALUE;
+		for(Map.Entry<String,Cursor> entry : cursors.entrySet()) {
+			long lastUsed = entry.getValue().lastUsed;
+			if(now-lastUsed>IDLE_MILLIS) {
+				drop(entry.getKey(),entry.getValue());
+			} else if(lastUsed<oldestUsed) {
+				oldest = entry.getKey();
+				oldestUsed = lastUsed;
+			}
+		}
+		if(cursors.size()>=MAX_CURSORS && oldest!=null) {
+			Cursor cursor = cursors.get(oldest);
+			if(cursor!=null) {
+				drop(oldest,cursor);
+			}
+		}
+	}
+
+	/**
+	 * Drop the least recently used of a client's cursors.
+	 * @param ip the address of the client
+	 */
+	private void evict(String ip) {
+		String oldest = null;
+		Cursor oldestCursor = null;
+		for(Map.Entry<String,Cursor> entry : cursors.entrySet()) {
+			Cursor cursor = entry.getValue();
+			if(cursor.ip.equals(ip) && (oldestCursor==null || cursor.lastUsed<oldestCursor.lastUsed)) {
+				oldest = entry.getKey();
+				oldestCursor = cursor;
+			}
+		}
+		if(oldest!=null) {
+			drop(oldest,oldestCursor);
+		}
+	}
+
+	/**
+	 * Drop a cursor, unless it has been taken to send its next page.
+	 */
+	private void drop(String key,Cursor cursor) {
+		if(cursors.remove(key,cursor)) {
+			release(cursor.ip);
+		}
+	}
+
+	/**
+	 * Count one fewer cursor kept for a client.
+	 */
+	private void release(String ip) {
+		clientCursors.computeIfPresent(ip,(k,n) -> n>1 ? n-1 : null);
+	}
+
+	/**
+	 *
+	 * @param ip the address of a client
+	 * @return the number of cursors kept for the client
+	 */
+	int size(String ip) {
+		Integer n = clientCursors.get(ip);
+		return n==null ? 0 : n;
+	}
+
+	private String newKey() {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+}
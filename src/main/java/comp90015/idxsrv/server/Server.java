@@ -1,35 +1,50 @@
 package comp90015.idxsrv.server;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 
-import java.util.concurrent.LinkedBlockingDeque;
-
-import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import comp90015.idxsrv.message.AuthenticateReply;
 import comp90015.idxsrv.message.AuthenticateRequest;
+import comp90015.idxsrv.message.DropBatchReply;
+import comp90015.idxsrv.message.DropBatchRequest;
 import comp90015.idxsrv.message.DropShareReply;
 import comp90015.idxsrv.message.DropShareRequest;
 import comp90015.idxsrv.message.ErrorMsg;
+import comp90015.idxsrv.message.Goodbye;
+import comp90015.idxsrv.message.HeartbeatReply;
+import comp90015.idxsrv.message.HeartbeatRequest;
 import comp90015.idxsrv.message.JsonSerializationException;
 import comp90015.idxsrv.message.LookupReply;
 import comp90015.idxsrv.message.LookupRequest;
 import comp90015.idxsrv.message.Message;
 import comp90015.idxsrv.message.MessageFactory;
+import comp90015.idxsrv.message.MessageFramer;
+import comp90015.idxsrv.message.MessageStream;
+import comp90015.idxsrv.message.PromoteReply;
+import comp90015.idxsrv.message.PromoteRequest;
+import comp90015.idxsrv.message.ReplicateRequest;
+import comp90015.idxsrv.message.SearchNextRequest;
+import comp90015.idxsrv.message.SearchPageRequest;
 import comp90015.idxsrv.message.SearchReply;
 import comp90015.idxsrv.message.SearchRequest;
+import comp90015.idxsrv.message.SessionRequest;
+import comp90015.idxsrv.message.ShardJoinRequest;
+import comp90015.idxsrv.message.ShardRequest;
+import comp90015.idxsrv.message.ShareBatchReply;
+import comp90015.idxsrv.message.ShareBatchRequest;
 import comp90015.idxsrv.message.ShareReply;
 import comp90015.idxsrv.message.ShareRequest;
+import comp90015.idxsrv.message.TokenReply;
+import comp90015.idxsrv.message.TokenRequest;
 import comp90015.idxsrv.message.WelcomeMsg;
 import comp90015.idxsrv.server.IndexMgr.RETCODE;
 import comp90015.idxsrv.textgui.ITerminalLogger;
@@ -38,27 +53,105 @@ import comp90015.idxsrv.textgui.ITerminalLogger;
 /**
  * Server protocol implementation for the Index Server, which extends thread
  * and processes an unbounded number of incoming connections until it is interrupted.
+ * In {@link MODE#BLOCKING} mode connections are handed out to a pool of {@link ServerWorker}
+ * threads, so that a slow client only holds up the worker that is processing it. In
+ * {@link MODE#VIRTUAL} mode every connection is processed on its own virtual thread. In
+ * {@link MODE#NIO} mode a single {@link NioIOThread} multiplexes all connections instead.
+ * <p>
+ * A server that is given leaders to follow is a replica, see {@link ReplicaFollower},
+ * which answers searches and lookups from its copy of the index and forwards everything
+ * else to its leader. Any other server is a leader that followers may connect to, except
+ * in {@link MODE#NIO} mode, see {@link ReplicationSource}.
+ * <p>
+ * Repeated searches are answered from a {@link QueryCache}, which forgets a search
+ * as soon as a share or drop of a filename that it matches changes the index.
  * @author aaron
  *
  */
 public class Server extends Thread {
 	
+	/**
+	 * The transport used to accept and serve connections.
+	 */
+	public enum MODE {
+		BLOCKING,
+		VIRTUAL,
+		NIO
+	}
+	
 	/*
 	 * Some private variables.
 	 */
 	
-	private IndexMgr indexMgr;
+	/**
+	 * The index, which a follower replaces each time it loads a snapshot from its leader.
+	 */
+	private volatile IndexMgr indexMgr;
+	
+	private IndexLog indexLog;
+	
+	private volatile LeaseMgr leaseMgr;
 	
-	private LinkedBlockingDeque<Socket> incomingConnections;
+	private long leaseMillis;
+	
+	private ShardRouter shardRouter;
+	
+	private ReplicationSource replicationSource;
+	
+	private volatile ReplicaFollower replicaFollower;
+	
+	private SearchCursors searchCursors;
+	
+	private QueryCache queryCache;
+	
+	private SessionTokens sessionTokens;
+	
+	private RateLimiter rateLimiter;
+	
+	private AcceptQueue incomingConnections;
 	
 	private IOThread ioThread;
 	
+	private ServerWorker[] workers;
+	
+	private NioIOThread nioThread;
+	
+	private MODE mode;
+	
+	private AtomicInteger numVirtual;
+	
 	private String welcome;
 	
 	private String secret;
 	
+	/**
+	 * Checks the requests that only the other servers of a cluster, and replicas, may
+	 * make, or null if this server has no cluster key and takes none.
+	 */
+	private ClusterKey clusterKey;
+	
 	private ITerminalLogger logger;
 	
+	/**
+	 * How long in milliseconds an authenticated session may be idle between requests,
+	 * or 0 for a single request per connection.
+	 */
+	private int keepAlive;
+	
+	/**
+	 * The number of sessions kept alive in blocking mode, each of which holds its worker
+	 * while it is open, and the most that may be, so that idle sessions cannot take
+	 * every worker from the connections waiting to be served.
+	 */
+	private AtomicInteger numKeptAlive;
+	
+	private int maxKeptAlive;
+	
+	/**
+	 * How often, in milliseconds, the worker statistics are logged.
+	 */
+	private static final long STATS_INTERVAL = 60*1000;
+	
 	/**
 	 * The Server thread must be explicitly started after creating an instance. The
 	 * Server starts an independent IOThread to accept connections.
@@ -67,7 +160,19 @@ public class Server extends Thread {
 	 * @param welcome
 	 * @param dir
 	 * @param secret
+	 * @param clusterKey the key that only the servers of the cluster, and its replicas and leaders, share, or null for this server to take no requests from other servers
 	 * @param socketTimeout
+	 * @param keepAlive the idle timeout in milliseconds of a multi-request session, or 0 for one request per connection
+	 * @param numWorkers the number of worker threads that process requests, in blocking mode
+	 * @param queueCapacity the number of accepted connections that may wait to be processed before new ones are rejected as busy
+	 * @param mode the transport used to serve connections
+	 * @param dataDir the directory that the index is logged to and recovered from, or null to keep the index only in memory, which a follower does
+	 * @param leaseMillis how long a peer's shares last without a heartbeat, or 0 for shares never to expire
+	 * @param cluster the other index servers, HOST:PORT, that the index is spread across, or null or empty for this server to hold the whole index
+	 * @param leaders the index servers, HOST:PORT, that this server may follow as a replica, or null or empty for this server to be a leader
+	 * @param maxLag how far in milliseconds a replica may fall behind its leader before it refuses searches and lookups
+	 * @param cacheSize the number of search replies cached, or 0 for none
+	 * @param rate the number of requests per second each client address may make, or 0 for no limit
 	 * @param logger
 	 * @throws IOException
 	 */
@@ -76,181 +181,849 @@ public class Server extends Thread {
 			String welcome,
 			String dir,
 			String secret,
+			String clusterKey,
 			int socketTimeout,
+			int keepAlive,
+			int numWorkers,
+			int queueCapacity,
+			MODE mode,
+			File dataDir,
+			long leaseMillis,
+			Collection<String> cluster,
+			Collection<String> leaders,
+			long maxLag,
+			int cacheSize,
+			double rate,
 			ITerminalLogger logger) throws IOException {
 		this.welcome=welcome;
 		this.secret=secret;
+		if(clusterKey==null && ((cluster!=null && !cluster.isEmpty()) || (leaders!=null && !leaders.isEmpty()))) {
+			throw new IllegalArgumentException("A cluster or a replica needs a cluster key");
+		}
+		if(clusterKey!=null) {
+			this.clusterKey=new ClusterKey(clusterKey);
+		}
 		this.logger=logger;
+		this.mode=mode;
+		this.keepAlive=keepAlive;
+		numKeptAlive=new AtomicInteger();
+		maxKeptAlive=Integer.MAX_VALUE;
+		this.leaseMillis=leaseMillis;
 		indexMgr = new IndexMgr();
-		incomingConnections=new LinkedBlockingDeque<Socket>();
-		ioThread = new IOThread(port,incomingConnections,socketTimeout,logger);
+		searchCursors = new SearchCursors();
+		sessionTokens = new SessionTokens(secret);
+		if(rate>0) {
+			// a client may make a second's worth of requests at once, or at least a few
+			rateLimiter = new RateLimiter(rate,Math.max(rate,4));
+		}
+		if(cacheSize>0) {
+			queryCache = new QueryCache(cacheSize);
+			indexMgr.addListener(queryCache);
+		}
+		if(leaders!=null && !leaders.isEmpty()) {
+			// the leader expires leases and logs the index, a follower only keeps a copy
+			leaseMgr = new LeaseMgr(0,indexMgr,logger);
+			replicaFollower = new ReplicaFollower(this,leaders,secret,this.clusterKey,socketTimeout,maxLag,logger);
+			replicaFollower.start();
+		} else {
+			if(dataDir!=null) {
+				indexLog = new IndexLog(dataDir,indexMgr,logger);
+				indexLog.recover();
+				indexMgr.addListener(indexLog);
+				indexLog.start();
+			}
+			startLeader();
+		}
+		if(replicaFollower==null && cluster!=null && !cluster.isEmpty()) {
+			shardRouter = new ShardRouter(this,indexMgr,address.getHostAddress()+":"+port,cluster,secret,this.clusterKey,socketTimeout,logger);
+			shardRouter.start();
+		}
+		incomingConnections=new AcceptQueue(queueCapacity);
+		if(mode==MODE.NIO) {
+			workers = new ServerWorker[0];
+			nioThread = new NioIOThread(port,this,socketTimeout,keepAlive,logger);
+			nioThread.start();
+			return;
+		}
+		if(mode==MODE.VIRTUAL) {
+			numWorkers=0;
+			numVirtual=new AtomicInteger();
+		}
+		workers = new ServerWorker[mode==MODE.VIRTUAL?0:Math.max(1,numWorkers)];
+		if(mode==MODE.BLOCKING) {
+			maxKeptAlive=workers.length/2;
+		}
+		for(int i=0;i<workers.length;i++) {
+			workers[i] = new ServerWorker(this,i);
+			workers[i].start();
+		}
+		ioThread = new IOThread(port,incomingConnections,rateLimiter,socketTimeout,logger);
 		ioThread.start();
 	}
 	
+	/**
+	 * Start expiring leases, the recovered or replicated peers getting a lease's grace to
+	 * send a heartbeat, and let followers replicate the index.
+	 */
+	private void startLeader() {
+		leaseMgr = new LeaseMgr(leaseMillis,indexMgr,logger);
+		if(leaseMillis>0) {
+			for(String peerKey : indexMgr.peers()) {
+				leaseMgr.renew(peerKey);
+			}
+			leaseMgr.start();
+		}
+		replicationSource = new ReplicationSource(indexMgr,logger);
+		indexMgr.addListener(replicationSource);
+	}
+	
+	/**
+	 * Replace the index with a replica loaded from the leader.
+	 * @param indexMgr the new index
+	 */
+	void setIndexMgr(IndexMgr indexMgr) {
+		if(queryCache!=null) {
+			this.indexMgr.removeListener(queryCache);
+			indexMgr.addListener(queryCache);
+		}
+		this.indexMgr=indexMgr;
+		if(queryCache!=null) {
+			queryCache.clear();
+		}
+	}
+	
 	@Override
 	public void run() {
-		logger.logInfo("Server thread running.");
+		if(mode==MODE.NIO) {
+			runNio();
+			return;
+		}
+		if(mode==MODE.VIRTUAL) {
+			logger.logInfo("Server thread running with a virtual thread per connection.");
+		} else {
+			logger.logInfo("Server thread running with "+workers.length+" workers.");
+		}
+		long lastStats = System.currentTimeMillis();
 		while(!isInterrupted()) {
 			try {
-				Socket socket = incomingConnections.take();
-				processRequest(socket);
-				socket.close();
+				Socket socket = incomingConnections.poll(STATS_INTERVAL, TimeUnit.MILLISECONDS);
+				if(socket!=null && mode==MODE.VIRTUAL) {
+					numVirtual.incrementAndGet();
+					Thread.ofVirtual().start(() -> {
+						serve(socket);
+						numVirtual.decrementAndGet();
+					});
+				} else if(socket!=null) {
+					leastLoadedWorker().put(socket);
+				}
+				if(System.currentTimeMillis()-lastStats>=STATS_INTERVAL) {
+					logWorkerStats();
+					lastStats = System.currentTimeMillis();
+				}
 			} catch (InterruptedException e) {
 				logger.logWarn("Server interrupted.");
 				break;
-			} catch (IOException e) {
-				logger.logWarn("Server received io exception on socket.");
 			}
 		}
 		logger.logInfo("Server thread waiting for IO thread to stop...");
 		ioThread.interrupt();
 		try {
+			ioThread.shutdown();
 			ioThread.join();
 		} catch (InterruptedException e) {
 			logger.logWarn("Interrupted while joining with IO thread.");
+		} catch (IOException e) {
+			logger.logWarn("Could not close the server socket.");
 		}
+		logger.logInfo("Server thread waiting for workers to stop...");
+		for(ServerWorker worker : workers) {
+			worker.interrupt();
+		}
+		for(ServerWorker worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				logger.logWarn("Interrupted while joining with worker.");
+			}
+		}
+		logWorkerStats();
+		if(shardRouter!=null) {
+			shardRouter.shutdown();
+		}
+		stopReplicaFollower();
+		stopLeaseMgr();
+		stopIndexLog();
+		logger.logInfo("Server thread completed.");
+	}
+	
+	/**
+	 * In NIO mode the {@link NioIOThread} does all of the work, so the server thread
+	 * just logs statistics until it is interrupted.
+	 */
+	private void runNio() {
+		logger.logInfo("Server thread running in non-blocking mode.");
+		while(!isInterrupted()) {
+			try {
+				sleep(STATS_INTERVAL);
+				logger.logInfo("Server stats: open connections ["+nioThread.getNumSessions()+"]"
+						+(queryCache!=null ? " query cache ["+queryCache+"]" : "")
+						+(rateLimiter!=null ? " rate limit ["+rateLimiter.report()+"]" : ""));
+			} catch (InterruptedException e) {
+				logger.logWarn("Server interrupted.");
+				break;
+			}
+		}
+		logger.logInfo("Server thread waiting for NIO thread to stop...");
+		nioThread.interrupt();
+		try {
+			nioThread.join();
+		} catch (InterruptedException e) {
+			logger.logWarn("Interrupted while joining with NIO thread.");
+		}
+		if(shardRouter!=null) {
+			shardRouter.shutdown();
+		}
+		stopReplicaFollower();
+		stopLeaseMgr();
+		stopIndexLog();
 		logger.logInfo("Server thread completed.");
 	}
 	
+	private void stopReplicaFollower() {
+		ReplicaFollower follower = replicaFollower;
+		if(follower!=null) {
+			follower.shutdown();
+		}
+	}
+	
+	/**
+	 * Stop expiring leases, before the index log is stopped, since expiring a lease
+	 * changes the index.
+	 */
+	private void stopLeaseMgr() {
+		if(!leaseMgr.isAlive()) return;
+		leaseMgr.interrupt();
+		try {
+			leaseMgr.join();
+		} catch (InterruptedException e) {
+			logger.logWarn("Interrupted while joining with the lease manager.");
+		}
+	}
+	
+	/**
+	 * Stop the index log, once nothing more can change the index, so that every
+	 * change is written.
+	 */
+	private void stopIndexLog() {
+		if(indexLog==null) return;
+		logger.logInfo("Server thread waiting for the index log to stop...");
+		indexLog.interrupt();
+		try {
+			indexLog.join();
+		} catch (InterruptedException e) {
+			logger.logWarn("Interrupted while joining with the index log.");
+		}
+	}
+	
+	/**
+	 * Choose the worker with the fewest connections waiting on it or being processed,
+	 * so that a connection does not wait behind a keep-alive session while another
+	 * worker is idle. 
+	 * @return the least loaded worker
+	 */
+	private ServerWorker leastLoadedWorker() {
+		ServerWorker best = workers[0];
+		for(int i=1;i<workers.length && best.getLoad()>0;i++) {
+			if(workers[i].getLoad()<best.getLoad()) {
+				best = workers[i];
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * Log the queue depth, number of requests and busy time of each worker,
+	 * along with the depth, rejections and wait time of the incoming connection queue,
+	 * and how far behind its leader a replica is.
+	 */
+	private void logWorkerStats() {
+		StringBuilder sb = new StringBuilder("Server stats: incoming queue ["+incomingConnections+"]"
+				+" search cursors ["+searchCursors.size()+"]");
+		if(queryCache!=null) {
+			sb.append(" query cache ["+queryCache+"]");
+		}
+		if(rateLimiter!=null) {
+			sb.append(" rate limit ["+rateLimiter.report()+"]");
+		}
+		ReplicaFollower follower = replicaFollower;
+		if(follower!=null) {
+			sb.append(" replica [leader "+follower.getLeader()+", lag "+follower.getLagMillis()+"ms, behind "+follower.getBehind()+"]");
+		}
+		if(mode==MODE.VIRTUAL) {
+			sb.append(" virtual threads ["+numVirtual.get()+"]");
+		}
+		if(mode==MODE.BLOCKING && keepAlive>0) {
+			sb.append(" kept alive ["+numKeptAlive.get()+"/"+maxKeptAlive+"]");
+		}
+		for(ServerWorker worker : workers) {
+			sb.append(" "+worker.getName()
+				+" [queue "+worker.getQueueDepth()
+				+", requests "+worker.getNumRequests()
+				+", busy "+TimeUnit.NANOSECONDS.toMillis(worker.getBusyNanos())+"ms]");
+		}
+		logger.logInfo(sb.toString());
+	}
+	
+	
+	/**
+	 * Process the request on a connection and then close it.
+	 * @param socket
+	 */
+	void serve(Socket socket) {
+		try {
+			processRequest(socket);
+		} catch (IOException e) {
+			logger.logWarn("Server received io exception on socket.");
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				logger.logWarn("Server could not close socket.");
+			}
+		}
+	}
 	
 	/**
 	 * This method is essentially the "Session Layer" logic, where the session is
 	 * short since it consists of exactly one request on the socket, then the socket
-	 * is closed.
+	 * is closed, unless keep-alive is enabled. It is called by the {@link ServerWorker}
+	 * or virtual threads, concurrently. Note that in blocking mode a keep-alive session
+	 * holds its worker for as long as it is open, so only half of the workers are given
+	 * to such sessions, and the other connections answer one request each. The welcome
+	 * tells the client which its connection does.
 	 * @param socket
 	 * @throws IOException
 	 */
-	private void processRequest(Socket socket) throws IOException {
+	void processRequest(Socket socket) throws IOException {
+		if(keepAlive<=0 || mode!=MODE.BLOCKING) {
+			processSession(socket,keepAlive);
+		} else if(numKeptAlive.incrementAndGet()<=maxKeptAlive) {
+			try {
+				processSession(socket,keepAlive);
+			} finally {
+				numKeptAlive.decrementAndGet();
+			}
+		} else {
+			numKeptAlive.decrementAndGet();
+			processSession(socket,0);
+		}
+	}
+	
+	/**
+	 * Serve the session on a connection.
+	 * @param socket
+	 * @param keepAlive the idle timeout of this session, or 0 for a single request
+	 * @throws IOException
+	 */
+	private void processSession(Socket socket,int keepAlive) throws IOException {
 		String ip=socket.getInetAddress().getHostAddress();
 		int port=socket.getPort();
 		logger.logInfo("Server processing request on connection "+ip);
-		InputStream inputStream = socket.getInputStream();
-		OutputStream outputStream = socket.getOutputStream();
-		BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-		BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+		MessageStream stream = new MessageStream(socket.getInputStream(),socket.getOutputStream());
 		
 		/*
 		 * Follow the synchronous handshake protocol.
 		 */
 		
 		// write the welcome
-		writeMsg(bufferedWriter,new WelcomeMsg(welcome));
+		writeMsg(stream,getWelcome(keepAlive));
 		
 		// get a message
 		Message msg;
 		try {
-			msg = readMsg(bufferedReader);
+			msg = readMsg(stream);
 		} catch (JsonSerializationException e1) {
-			writeMsg(bufferedWriter,new ErrorMsg("Invalid message"));
+			writeMsg(stream,new ErrorMsg("Invalid message"));
 			return;
 		}
 		
-		// check it is an authenticate request
-		if(msg.getClass().getName()==AuthenticateRequest.class.getName()) {
-			AuthenticateRequest ar = (AuthenticateRequest) msg;
-			if(!ar.secret.equals(this.secret)) {
-				writeMsg(bufferedWriter,new AuthenticateReply(false));
+		// check it is an authenticate request, or a request that came with a session token
+		Message reply = authenticate(msg,ip,port);
+		writeMsg(stream,reply);
+		if(!isAuthenticated(msg,reply)) {
+			return;
+		}
+		if(asksForFrames(msg)) {
+			stream.useFrames();
+		}
+		boolean first=true;
+		if(msg.getClass().getName()==SessionRequest.class.getName()) {
+			if(keepAlive<=0) {
 				return;
-			} else {
-				writeMsg(bufferedWriter,new AuthenticateReply(true));
 			}
-		} else {
-			writeMsg(bufferedWriter,new ErrorMsg("Expecting AuthenticateRequest"));
-			return;
+			socket.setSoTimeout(keepAlive);
+			first=false;
 		}
 		
 		/*
-		 * Now get the request and process it. This is a single-request-per-connection
-		 * protocol.
+		 * Now get the request and process it. Without keep-alive this is a
+		 * single-request-per-connection protocol. With keep-alive the session carries
+		 * requests until the client sends Goodbye, closes the connection or is idle for
+		 * longer than the keep-alive time. A client may pipeline its requests, so a reply
+		 * is only flushed when no further request is already waiting.
 		 */
 		
-		// get the request message
-		try {
-			msg = readMsg(bufferedReader);
-		} catch (JsonSerializationException e) {
-			writeMsg(bufferedWriter,new ErrorMsg("Invalid message"));
-			return;
+		while(true) {
+			// get the request message
+			try {
+				msg = readMsg(stream);
+			} catch (JsonSerializationException e) {
+				writeMsg(stream,new ErrorMsg("Invalid message"));
+				return;
+			} catch (IOException e) {
+				if(first) throw e;
+				break; // the session was closed by the client or was idle for too long
+			}
+			if(keepAlive>0 && msg.getClass().getName()==Goodbye.class.getName()) {
+				break;
+			}
+			if(msg.getClass().getName()==ReplicateRequest.class.getName() && replicationSource!=null
+					&& isClusterRequest(msg)) {
+				// the connection streams the index to a follower until it is closed
+				socket.setSoTimeout(0);
+				replicationSource.serve(stream,ip+":"+port);
+				break;
+			}
+			
+			// process the request message, the connection having paid for the first
+			reply = first || admit(msg,ip) ? processRequest(msg,ip,port) : new ErrorMsg("Too many requests");
+			writeMsg(stream,reply,!stream.ready());
+			if(keepAlive<=0) {
+				break;
+			}
+			if(first) {
+				socket.setSoTimeout(keepAlive);
+				first=false;
+			}
 		}
 		
-		// process the request message
+		// close the streams
+		stream.close();
+	}
+	
+	/**
+	 * Check that a client may make another request on its session, see {@link RateLimiter}.
+	 * A connection pays for its first request when it is accepted. Requests forwarded by
+	 * the other servers of a cluster, or by replicas, are not limited, since they are made
+	 * on behalf of clients that have been, but only once they are known to be signed with
+	 * the cluster key, so that a client cannot skip the limit by wrapping its requests.
+	 * @param msg the request
+	 * @param ip the ip address of the client
+	 * @return true if the request may be processed
+	 */
+	boolean admit(Message msg,String ip) {
+		return rateLimiter==null || (msg.getClass().getName()==ShardRequest.class.getName()
+				&& isClusterRequest(msg)) || rateLimiter.acquire(ip);
+	}
+	
+	/**
+	 * @param msg a request that only the other servers of a cluster, and replicas, may make
+	 * @return true if the request was signed with this server's cluster key
+	 */
+	private boolean isClusterRequest(Message msg) {
+		if(clusterKey==null) {
+			return false;
+		}
+		String msgname = msg.getClass().getName();
+		if(msgname==ShardRequest.class.getName()) {
+			return clusterKey.verify((ShardRequest) msg);
+		} else if(msgname==ShardJoinRequest.class.getName()) {
+			return clusterKey.verify((ShardJoinRequest) msg);
+		} else if(msgname==ReplicateRequest.class.getName()) {
+			return clusterKey.verify((ReplicateRequest) msg);
+		} else if(msgname==PromoteRequest.class.getName()) {
+			return clusterKey.verify((PromoteRequest) msg);
+		}
+		return false;
+	}
+	
+	/**
+	 * Check that a client may open another connection.
+	 * @param ip the ip address of the client
+	 * @return true if the connection may be served
+	 */
+	boolean admit(String ip) {
+		return rateLimiter==null || rateLimiter.acquire(ip);
+	}
+	
+	/**
+	 * The authentication step of the handshake, independent of the transport. A client
+	 * authenticates with the server secret, and may be given a session token as it does,
+	 * which a later connection presents along with its request instead, so that the
+	 * request is answered as the reply to the handshake, see {@link SessionTokens}.
+	 * @param msg the message received after the welcome
+	 * @param ip the ip address of the client
+	 * @param port the port of the client's connection
+	 * @return the reply to send, which is an {@link AuthenticateReply}, a {@link TokenReply},
+	 * an {@link ErrorMsg}, or the reply to the request that came with a session token
+	 */
+	Message authenticate(Message msg,String ip,int port) {
+		String msgname = msg.getClass().getName();
+		if(msgname==AuthenticateRequest.class.getName()) {
+			AuthenticateRequest ar = (AuthenticateRequest) msg;
+			return new AuthenticateReply(ar.secret.equals(this.secret));
+		} else if(msgname==TokenRequest.class.getName()) {
+			if(!((TokenRequest) msg).secret.equals(this.secret)) {
+				return new AuthenticateReply(false);
+			}
+			return new TokenReply(sessionTokens.issue(),SessionTokens.TTL_MILLIS);
+		} else if(msgname==SessionRequest.class.getName()) {
+			SessionRequest sr = (SessionRequest) msg;
+			if(!sessionTokens.verify(sr.token)) {
+				return new AuthenticateReply(false);
+			}
+			Message request;
+			try {
+				request = (Message) MessageFactory.deserialize(sr.request);
+			} catch (JsonSerializationException | ClassCastException e) {
+				return new ErrorMsg("Invalid message");
+			}
+			return processRequest(request,ip,port);
+		} else {
+			return new ErrorMsg("Expecting AuthenticateRequest");
+		}
+	}
+	
+	/**
+	 * @return true if a request may be forwarded to another server, and so may block
+	 * until that server replies, which it does in a cluster and on a replica
+	 */
+	boolean forwardsRequests() {
+		return shardRouter!=null || replicaFollower!=null;
+	}
+	
+	/**
+	 * 
+	 * @param msg the message received after the welcome
+	 * @return true if the client asked to switch to binary frames after the handshake,
+	 * which the server always agrees to, see {@link MessageFramer}
+	 */
+	boolean asksForFrames(Message msg) {
+		String msgname = msg.getClass().getName();
+		String framing = null;
+		if(msgname==AuthenticateRequest.class.getName()) {
+			framing = ((AuthenticateRequest) msg).framing;
+		} else if(msgname==TokenRequest.class.getName()) {
+			framing = ((TokenRequest) msg).framing;
+		} else if(msgname==SessionRequest.class.getName()) {
+			framing = ((SessionRequest) msg).framing;
+		}
+		return MessageFramer.BINARY.equals(framing);
+	}
+	
+	/**
+	 * 
+	 * @param msg the message received after the welcome
+	 * @param reply the reply returned by {@link #authenticate(Message,String,int)}
+	 * @return true if the client may go on to make a request
+	 */
+	boolean isAuthenticated(Message msg,Message reply) {
+		if(reply.getClass().getName()==AuthenticateReply.class.getName()) {
+			return ((AuthenticateReply) reply).success;
+		}
+		return msg.getClass().getName()==SessionRequest.class.getName()
+				|| reply.getClass().getName()==TokenReply.class.getName();
+	}
+	
+	/**
+	 * Process a single request, independent of the transport. In a cluster the request
+	 * is routed to the servers that should process it, see {@link ShardRouter}, and a
+	 * follower forwards any request that changes the index to its leader. The cursors of
+	 * paged searches are kept by the server that the search was started on.
+	 * @param msg the request message
+	 * @param ip the ip address of the client
+	 * @param port the port of the client's connection
+	 * @return the reply to send
+	 */
+	Message processRequest(Message msg,String ip,int port) {
+		String msgname = msg.getClass().getName();
+		if(msgname==ShardRequest.class.getName()) {
+			return processShardCmd((ShardRequest) msg,ip,port);
+		} else if(msgname==ShardJoinRequest.class.getName()) {
+			if(shardRouter==null) {
+				return new ErrorMsg("Not part of a cluster");
+			}
+			if(!isClusterRequest(msg)) {
+				return new ErrorMsg("Not a member of the cluster");
+			}
+			return shardRouter.join((ShardJoinRequest) msg);
+		} else if(msgname==ReplicateRequest.class.getName()) {
+			if(!isClusterRequest(msg)) {
+				return new ErrorMsg("Not a member of the cluster");
+			}
+			if(replicaFollower!=null) {
+				return new ErrorMsg("Not a leader");
+			}
+			return new ErrorMsg("Replication is not served in nio mode");
+		} else if(msgname==PromoteRequest.class.getName()) {
+			if(!isClusterRequest(msg)) {
+				logger.logWarn("Promote request from "+ip+":"+port+" is not signed with the cluster key");
+				return new ErrorMsg("Not a member of the cluster");
+			}
+			return processPromoteCmd();
+		} else if(msgname==SearchNextRequest.class.getName()) {
+			return searchCursors.next(((SearchNextRequest) msg).cursor);
+		}
+		ReplicaFollower follower = replicaFollower;
+		if(follower!=null && msgname!=SearchRequest.class.getName() && msgname!=LookupRequest.class.getName()
+				&& msgname!=SearchPageRequest.class.getName()) {
+			return follower.forward(msg,ip);
+		} else if(follower!=null) {
+			String lagging = follower.checkLag();
+			if(lagging!=null) {
+				return new ErrorMsg(lagging);
+			}
+		}
+		if(msgname==SearchPageRequest.class.getName()) {
+			return processSearchPageCmd((SearchPageRequest) msg,ip,port);
+		} else if(shardRouter!=null) {
+			return shardRouter.route(msg,ip,port);
+		}
+		return processLocalRequest(msg,ip,port);
+	}
+	
+	/**
+	 * Process a single request against this server's own index.
+	 * @param msg the request message
+	 * @param ip the ip address of the client
+	 * @param port the port of the client's connection
+	 * @return the reply to send
+	 */
+	Message processLocalRequest(Message msg,String ip,int port) {
 		String msgname = msg.getClass().getName();
 		if(msgname==ShareRequest.class.getName()) {
-			processShareCmd(bufferedWriter,(ShareRequest) msg,ip,port);
+			return processShareCmd((ShareRequest) msg,ip,port);
 		} else if(msgname==DropShareRequest.class.getName()) {
-			processDropCmd(bufferedWriter,(DropShareRequest) msg,ip,port);
+			return processDropCmd((DropShareRequest) msg,ip,port);
+		} else if(msgname==ShareBatchRequest.class.getName()) {
+			return processShareBatchCmd((ShareBatchRequest) msg,ip,port);
+		} else if(msgname==DropBatchRequest.class.getName()) {
+			return processDropBatchCmd((DropBatchRequest) msg,ip,port);
 		} else if(msgname==SearchRequest.class.getName()) {
-			processSearchCmd(bufferedWriter,(SearchRequest) msg,ip,port);
+			return processSearchCmd((SearchRequest) msg,ip,port);
 		} else if(msgname==LookupRequest.class.getName()) {
-			processLookupCmd(bufferedWriter,(LookupRequest) msg,ip,port);
+			return processLookupCmd((LookupRequest) msg,ip,port);
+		} else if(msgname==HeartbeatRequest.class.getName()) {
+			return processHeartbeatCmd((HeartbeatRequest) msg,ip,port);
 		} else {
-			writeMsg(bufferedWriter,new ErrorMsg("Expecting a request message"));
+			return new ErrorMsg("Expecting a request message");
 		}
-		
-		// close the streams
-		bufferedReader.close();
-		bufferedWriter.close();
 	}
 	
 	/*
 	 * Methods to process each of the possible requests.
 	 */
 	
-	private void processShareCmd(BufferedWriter bufferedWriter,ShareRequest msg,String ip, int port) throws IOException {
+	/**
+	 * Process a request forwarded by another server of the cluster, as if its client had
+	 * sent it here. Only the servers of a cluster, and leaders with followers, take
+	 * forwarded requests, and only when they are signed with the cluster key, since they
+	 * name the client's address, which a client could otherwise give as another's.
+	 */
+	private Message processShardCmd(ShardRequest msg,String ip,int port) {
+		if(shardRouter==null && (replicationSource==null || replicationSource.getNumFollowers()==0)) {
+			return new ErrorMsg("Not part of a cluster");
+		}
+		if(!isClusterRequest(msg)) {
+			logger.logWarn("Forwarded request from "+ip+":"+port+" is not signed with the cluster key");
+			return new ErrorMsg("Not a member of the cluster");
+		}
+		Message request;
+		try {
+			request = (Message) MessageFactory.deserialize(msg.request);
+		} catch (JsonSerializationException | ClassCastException e) {
+			return new ErrorMsg("Invalid message");
+		}
+		return processLocalRequest(request,msg.ip,port);
+	}
+	
+	/**
+	 * Stop following the leader and become one, when the leader has died.
+	 */
+	private synchronized Message processPromoteCmd() {
+		ReplicaFollower follower = replicaFollower;
+		if(follower==null) {
+			return new ErrorMsg("Not a replica");
+		}
+		if(follower.getLeader()==null) {
+			return new ErrorMsg("Index replica has not loaded the index yet");
+		}
+		follower.shutdown();
+		startLeader();
+		replicaFollower = null;
+		logger.logWarn("Promoted to leader, taking over "+indexMgr.peers().size()+" peers from "+follower.getLeader()
+				+", which was "+follower.getLagMillis()+"ms and "+follower.getBehind()+" changes behind.");
+		return new PromoteReply(indexMgr.peers().size());
+	}
+	
+	private Message processShareCmd(ShareRequest msg,String ip, int port) {
+		leaseMgr.renew(ip, msg.port);
 		if(indexMgr.share(ip, msg.port, msg.fileDescr, msg.filename, msg.sharingSecret)==RETCODE.FAILEDSECRET) {
-			writeMsg(bufferedWriter,new ErrorMsg("Failed sharing secret"));
+			return new ErrorMsg("Failed sharing secret");
 		} else {
-			Integer numSharers = indexMgr.lookup(msg.filename,msg.fileDescr.getFileMd5()).size();
-			writeMsg(bufferedWriter,new ShareReply(numSharers));
+			Integer numSharers = indexMgr.numSharers(msg.filename,msg.fileDescr.getFileMd5());
+			return new ShareReply(numSharers);
 		}			
 	}
 	
-	private void processDropCmd(BufferedWriter bufferedWriter,DropShareRequest msg,String ip, int port) throws IOException {
+	private Message processDropCmd(DropShareRequest msg,String ip, int port) {
 		RETCODE retcode = indexMgr.drop(ip, msg.port, msg.filename, msg.fileMd5, msg.sharingSecret);
 		if(retcode==RETCODE.FAILEDSECRET) {
-			writeMsg(bufferedWriter,new ErrorMsg("Failed secret"));
+			return new ErrorMsg("Failed secret");
 		} else if(retcode==RETCODE.INVALID) {
-			writeMsg(bufferedWriter,new ErrorMsg("Not found"));
+			return new ErrorMsg("Not found");
 		} else {
-			writeMsg(bufferedWriter,new DropShareReply(true));
+			return new DropShareReply(true);
 		}			
 	}
 	
-	private void processSearchCmd(BufferedWriter bufferedWriter,SearchRequest msg,String ip,int port) throws IOException {
+	private Message processShareBatchCmd(ShareBatchRequest msg,String ip,int port) {
+		if(msg.filenames.length!=msg.fileDescrs.length || msg.sharingSecrets.length!=msg.fileDescrs.length) {
+			return new ErrorMsg("Invalid message");
+		}
+		leaseMgr.renew(ip, msg.port);
+		int[] counts = new int[msg.fileDescrs.length];
+		indexMgr.share(ip, msg.port, msg.fileDescrs, msg.filenames, msg.sharingSecrets, counts);
+		Integer[] numSharers = new Integer[counts.length];
+		for(int i=0;i<counts.length;i++) {
+			numSharers[i]=counts[i];
+		}
+		return new ShareBatchReply(numSharers);
+	}
+	
+	private Message processDropBatchCmd(DropBatchRequest msg,String ip,int port) {
+		if(msg.fileMd5s.length!=msg.filenames.length || msg.sharingSecrets.length!=msg.filenames.length) {
+			return new ErrorMsg("Invalid message");
+		}
+		RETCODE[] retcodes = indexMgr.drop(ip, msg.port, msg.filenames, msg.fileMd5s, msg.sharingSecrets);
+		Boolean[] success = new Boolean[retcodes.length];
+		for(int i=0;i<retcodes.length;i++) {
+			success[i]=retcodes[i]==RETCODE.SUCCESS;
+		}
+		return new DropBatchReply(success);
+	}
+	
+	private Message processSearchCmd(SearchRequest msg,String ip,int port) {
 		for(int i=0;i<msg.keywords.length;i++) {
 			msg.keywords[i]=msg.keywords[i].toLowerCase();
 		}
-		ArrayList<IndexElement> hits = indexMgr.search(msg.keywords, msg.maxhits);
-		Integer[] seedCounts = new Integer[hits.size()];
-		for(int i=0;i<hits.size();i++) {
-			seedCounts[i]=indexMgr.lookup(hits.get(i).filename,hits.get(i).fileDescr.getFileMd5()).size();
+		if(queryCache!=null) {
+			return queryCache.search(msg.keywords,msg.maxhits,() -> search(msg.keywords,msg.maxhits));
+		}
+		return search(msg.keywords,msg.maxhits);
+	}
+	
+	private SearchReply search(String[] keywords,int maxhits) {
+		ArrayList<Integer> seedCounts = new ArrayList<Integer>();
+		ArrayList<IndexElement> hits = indexMgr.search(keywords, maxhits, seedCounts);
+		return new SearchReply(hits,seedCounts.toArray(new Integer[0]));
+	}
+	
+	/**
+	 * Start a paged search. In a cluster the whole search is routed and merged first, and
+	 * its hits are kept until they have been paged through. Otherwise, with a query cache,
+	 * the hits are those of the same search unpaged, which the cache shares with the
+	 * cursor, and without one the elements of the hits are only made as each page is sent.
+	 * A paged search finds at most {@link SearchCursors#MAX_HITS} hits.
+	 */
+	private Message processSearchPageCmd(SearchPageRequest msg,String ip,int port) {
+		int maxhits = Math.min(msg.maxhits,SearchCursors.MAX_HITS);
+		if(shardRouter!=null) {
+			Message reply = shardRouter.route(new SearchRequest(maxhits,msg.keywords),ip,port);
+			if(reply.getClass().getName()!=SearchReply.class.getName()) {
+				return reply;
+			}
+			SearchReply searchReply = (SearchReply) reply;
+			return searchCursors.open(ip,Arrays.asList(searchReply.hits),searchReply.seedCounts,msg.pageSize);
+		}
+		String[] keywords = new String[msg.keywords.length];
+		for(int i=0;i<keywords.length;i++) {
+			keywords[i]=msg.keywords[i].toLowerCase();
+		}
+		if(queryCache!=null) {
+			SearchReply searchReply = queryCache.search(keywords,maxhits,() -> search(keywords,maxhits));
+			return searchCursors.open(ip,Arrays.asList(searchReply.hits),searchReply.seedCounts,msg.pageSize);
+		}
+		ArrayList<Integer> seedCounts = new ArrayList<Integer>();
+		List<IndexElement> hits = indexMgr.searchLazily(keywords, maxhits, seedCounts);
+		return searchCursors.open(ip,hits,seedCounts.toArray(new Integer[0]),msg.pageSize);
+	}
+	
+	private Message processHeartbeatCmd(HeartbeatRequest msg,String ip,int port) {
+		int numShares = indexMgr.numShares(ip, msg.port);
+		if(numShares>0) {
+			leaseMgr.renew(ip, msg.port);
 		}
-		writeMsg(bufferedWriter,new SearchReply(hits,seedCounts));
+		return new HeartbeatReply(numShares,leaseMgr.getLeaseMillis());
 	}
 	
-	private void processLookupCmd(BufferedWriter bufferedWriter,LookupRequest msg,String ip,int port) throws IOException {
-		HashSet<IndexElement> hits = indexMgr.lookup(msg.filename,msg.fileMd5);
-		writeMsg(bufferedWriter,new LookupReply(new ArrayList<IndexElement>(hits)));
+	private Message processLookupCmd(LookupRequest msg,String ip,int port) {
+		List<IndexElement> hits = indexMgr.lookup(msg.filename,msg.fileMd5);
+		return new LookupReply(hits);
+	}
+	
+	/**
+	 * 
+	 * @param keepAlive the idle timeout of the connection's session, or 0 for a single request
+	 * @return the welcome message sent first on every connection
+	 */
+	Message getWelcome(int keepAlive) {
+		return new WelcomeMsg(welcome,MessageFramer.BINARY,keepAlive>0 ? keepAlive : null);
+	}
+	
+	/**
+	 * Ask a replica to stop following its leader and become a leader, as an operator does
+	 * when the leader has died. The request is signed with the cluster key, without which
+	 * the replica refuses it.
+	 * @param node the replica, IP:PORT
+	 * @param secret the server secret
+	 * @param clusterKey the cluster key
+	 * @param timeout the timeout in milliseconds for connecting
+	 * @return what the replica said
+	 */
+	public static String promote(String node,String secret,String clusterKey,int timeout) {
+		ShardClient client = new ShardClient(node,secret,timeout);
+		try {
+			Message reply = client.request(new ClusterKey(clusterKey).sign(new PromoteRequest()));
+			if(reply.getClass().getName()==PromoteReply.class.getName()) {
+				return "Index server "+node+" promoted to leader with "+((PromoteReply) reply).numPeers+" peers";
+			} else if(reply.getClass().getName()==ErrorMsg.class.getName()) {
+				return "Index server "+node+" was not promoted: "+((ErrorMsg) reply).msg;
+			}
+			return "Index server "+node+" gave an unexpected reply";
+		} catch (IOException | JsonSerializationException e) {
+			return "Index server "+node+" could not be reached: "+e.getMessage();
+		} finally {
+			client.close();
+		}
 	}
 	
 	/*
 	 * Methods for writing and reading messages.
 	 */
 	
-	private void writeMsg(BufferedWriter bufferedWriter,Message msg) throws IOException {
-		logger.logDebug("sending: "+msg.toString());
-		bufferedWriter.write(msg.toString());
-		bufferedWriter.newLine();
-		bufferedWriter.flush();
+	private void writeMsg(MessageStream stream,Message msg) throws IOException {
+		writeMsg(stream,msg,true);
 	}
 	
-	private Message readMsg(BufferedReader bufferedReader) throws IOException, JsonSerializationException {
-		String jsonStr = bufferedReader.readLine();
-		if(jsonStr!=null) {
-			Message msg = (Message) MessageFactory.deserialize(jsonStr);
-			logger.logDebug("received: "+msg.toString());
-			return msg;
-		} else {
-			throw new IOException();
-		}
+	private void writeMsg(MessageStream stream,Message msg,boolean flush) throws IOException {
+		logger.logDebug("sending: "+msg.summary());
+		stream.writeMsg(msg,flush);
+	}
+	
+	private Message readMsg(MessageStream stream) throws IOException, JsonSerializationException {
+		Message msg = stream.readMsg();
+		logger.logDebug("received: "+msg.summary());
+		return msg;
 	}
 }
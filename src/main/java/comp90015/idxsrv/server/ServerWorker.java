@@ -0,0 +1,129 @@
+package comp90015.idxsrv.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A worker thread of the index server's pool. Each worker has its own
+ * bounded queue of connections, handed to it by the {@link Server} thread,
+ * and processes them one at a time. The worker keeps counters of how many
+ * requests it has processed and how long it has been busy, which can be used
+ * to size the pool.
+ * @author aaron
+ *
+ */
+public class ServerWorker extends Thread {
+
+	/**
+	 * The maximum number of connections that can wait on a single worker. When all
+	 * workers are full the {@link Server} thread blocks and connections wait on the
+	 * incoming connection queue instead. One is enough to keep a worker busy, and
+	 * any more would wait in turn here rather than on the incoming connection queue,
+	 * which takes them fairly from each client, see {@link AcceptQueue}.
+	 */
+	public static final int QUEUE_CAPACITY = 1;
+
+	private Server server;
+
+	private LinkedBlockingDeque<Socket> queue;
+
+	/**
+	 * The connections waiting on this worker and the one it is processing, if any.
+	 */
+	private AtomicInteger load;
+
+	private AtomicLong numRequests;
+
+	private AtomicLong busyNanos;
+
+	/**
+	 * Create a worker for the given server. The thread must be explicitly started.
+	 * @param server the server whose requests this worker processes
+	 * @param id the index of the worker in the pool, used to name the thread
+	 */
+	public ServerWorker(Server server, int id) {
+		super("ServerWorker-"+id);
+		this.server=server;
+		queue=new LinkedBlockingDeque<Socket>(QUEUE_CAPACITY);
+		load=new AtomicInteger();
+		numRequests=new AtomicLong();
+		busyNanos=new AtomicLong();
+	}
+
+	/**
+	 * Put a connection on this worker's queue, waiting if the queue is full.
+	 * @param socket the connection to process
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void put(Socket socket) throws InterruptedException {
+		load.incrementAndGet();
+		try {
+			queue.put(socket);
+		} catch (InterruptedException e) {
+			load.decrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 *
+	 * @return the number of connections waiting on this worker
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 *
+	 * @return the number of connections waiting on this worker or being processed by it,
+	 * which counts a keep-alive session for as long as it is open
+	 */
+	public int getLoad() {
+		return load.get();
+	}
+
+	/**
+	 *
+	 * @return the number of requests this worker has processed
+	 */
+	public long getNumRequests() {
+		return numRequests.get();
+	}
+
+	/**
+	 *
+	 * @return the total time in nanoseconds this worker has spent processing requests
+	 */
+	public long getBusyNanos() {
+		return busyNanos.get();
+	}
+
+	@Override
+	public void run() {
+		while(!isInterrupted()) {
+			Socket socket;
+			try {
+				socket = queue.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			long start = System.nanoTime();
+			server.serve(socket);
+			load.decrementAndGet();
+			busyNanos.addAndGet(System.nanoTime()-start);
+			numRequests.incrementAndGet();
+		}
+		// connections that were never processed are closed
+		Socket socket;
+		while((socket=queue.poll())!=null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing more to do
+			}
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package comp90015.idxsrv.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Issues and checks the session tokens that let a client make a request without
+ * sending the server secret on every connection, see
+ * {@link comp90015.idxsrv.message.SessionRequest}. A token is its expiry time signed
+ * with an HMAC keyed by the server secret, so the server keeps nothing for the tokens
+ * it has issued, and a token issued by one server is accepted by the others of a
+ * cluster, and by replicas, since they share the secret.
+ * @author aaron
+ *
+ */
+class SessionTokens {
+
+	/**
+	 * How long in milliseconds a token lasts.
+	 */
+	static final long TTL_MILLIS = 10*60*1000;
+
+	private static final String ALGORITHM = "HmacSHA256";
+
+	/**
+	 * The number of bytes of the HMAC kept in a token.
+	 */
+	private static final int MAC_LENGTH = 16;
+
+	private SecretKeySpec key;
+
+	private long ttlMillis;
+
+	/**
+	 *
+	 * @param secret the server secret, which signs the tokens
+	 */
+	SessionTokens(String secret) {
+		this(secret,TTL_MILLIS);
+	}
+
+	/**
+	 *
+	 * @param secret the server secret, which signs the tokens
+	 * @param ttlMillis how long in milliseconds a token lasts
+	 */
+	SessionTokens(String secret,long ttlMillis) {
+		this.ttlMillis=ttlMillis;
+		key=new SecretKeySpec(("session:"+secret).getBytes(StandardCharsets.UTF_8),ALGORITHM);
+	}
+
+	/**
+	 *
+	 * @return a new token, which lasts for {@link #TTL_MILLIS}, or the time it was given
+	 */
+	String issue() {
+		ByteBuffer buf = ByteBuffer.allocate(Long.BYTES+MAC_LENGTH);
+		long expires = System.currentTimeMillis()+ttlMillis;
+		buf.putLong(expires);
+		buf.put(mac(expires));
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(buf.array());
+	}
+
+	/**
+	 *
+	 * @param token a token presented by a client
+	 * @return true if the token was issued with this secret and has not expired
+	 */
+	boolean verify(String token) {
+		byte[] bytes;
+		try {
+			bytes = Base64.getUrlDecoder().decode(token);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		if(bytes.length!=Long.BYTES+MAC_LENGTH) return false;
+		long expires = ByteBuffer.wrap(bytes).getLong();
+		if(expires<System.currentTimeMillis()) return false;
+		return MessageDigest.isEqual(mac(expires),Arrays.copyOfRange(bytes,Long.BYTES,bytes.length));
+	}
+
+	private byte[] mac(long expires) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			byte[] full = mac.doFinal(ByteBuffer.allocate(Long.BYTES).putLong(expires).array());
+			return Arrays.copyOf(full,MAC_LENGTH);
+		} catch (GeneralSecurityException e) {
+			// HmacSHA256 is always available
+			throw new IllegalStateException(e);
+		}
+	}
+}
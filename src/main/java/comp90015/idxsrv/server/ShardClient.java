@@ -0,0 +1,182 @@
+package comp90015.idxsrv.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import comp90015.idxsrv.message.AuthenticateReply;
+import comp90015.idxsrv.message.AuthenticateRequest;
+import comp90015.idxsrv.message.ErrorMsg;
+import comp90015.idxsrv.message.JsonSerializationException;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.message.MessageStream;
+import comp90015.idxsrv.message.WelcomeMsg;
+
+/**
+ * A client of another index server in the cluster, that requests are forwarded to.
+ * It follows the same handshake as any other client, with the server secret, which
+ * the servers of a cluster share. Connections are kept for reuse only if the other
+ * server's welcome says that it keeps the session alive, and only for a little less
+ * than its idle timeout. A request is sent again on a new connection only if it could
+ * not be written; once it has been written it may have been carried out, so a failure
+ * to read the reply is thrown, rather than risk carrying out a share or drop twice.
+ * @author aaron
+ *
+ */
+class ShardClient {
+
+	/**
+	 * How long in milliseconds to wait for the reply to a forwarded request, which is
+	 * longer than a client's socket timeout, since the other server may be busy and the
+	 * request cannot be sent again.
+	 */
+	static final int REPLY_TIMEOUT = 10*1000;
+
+	/**
+	 * A connection that has completed the handshake.
+	 */
+	private static class Connection {
+		Socket socket;
+		MessageStream stream;
+		// how long the other server keeps the session open between requests, 0 if it does not
+		int keepAlive;
+		long lastUsed;
+		boolean isAlive() {
+			return keepAlive>0 && System.currentTimeMillis()-lastUsed<keepAlive*9L/10;
+		}
+	}
+
+	private String host;
+
+	private int port;
+
+	private String secret;
+
+	private int timeout;
+
+	private ConcurrentLinkedQueue<Connection> idle;
+
+	/**
+	 * Create a client, which connects when it is first used.
+	 * @param node the other server, HOST:PORT
+	 * @param secret the server secret
+	 * @param timeout the timeout in milliseconds for connecting and for the handshake
+	 */
+	ShardClient(String node, String secret, int timeout) {
+		int colon = node.lastIndexOf(':');
+		this.host=node.substring(0,colon);
+		this.port=Integer.parseInt(node.substring(colon+1));
+		this.secret=secret;
+		this.timeout=timeout;
+		idle=new ConcurrentLinkedQueue<Connection>();
+	}
+
+	/**
+	 * Send a request and wait for the reply.
+	 * @param msg the request
+	 * @return the reply
+	 * @throws IOException if the other server cannot be reached or refuses the connection,
+	 * or the reply does not arrive, in which case the request may have been carried out
+	 * @throws JsonSerializationException if the reply is not a valid message
+	 */
+	Message request(Message msg) throws IOException, JsonSerializationException {
+		Connection connection;
+		while((connection=idle.poll())!=null && !connection.isAlive()) {
+			close(connection);
+		}
+		if(connection!=null) {
+			try {
+				connection.stream.writeMsg(msg,true);
+			} catch (IOException e) {
+				// it was not sent, so it can be sent on a new connection
+				close(connection);
+				connection=null;
+			}
+		}
+		if(connection==null) {
+			connection = connect();
+			try {
+				connection.stream.writeMsg(msg,true);
+			} catch (IOException e) {
+				close(connection);
+				throw e;
+			}
+		}
+		try {
+			Message reply = readMsg(connection);
+			release(connection);
+			return reply;
+		} catch (IOException | JsonSerializationException e) {
+			close(connection);
+			throw e;
+		}
+	}
+
+	/**
+	 * Close the idle connections.
+	 */
+	void close() {
+		Connection connection;
+		while((connection=idle.poll())!=null) {
+			close(connection);
+		}
+	}
+
+	private void release(Connection connection) {
+		if(connection.keepAlive>0) {
+			connection.lastUsed=System.currentTimeMillis();
+			idle.add(connection);
+		} else {
+			close(connection);
+		}
+	}
+
+	private Connection connect() throws IOException, JsonSerializationException {
+		Connection connection = new Connection();
+		connection.socket = new Socket();
+		try {
+			connection.socket.connect(new InetSocketAddress(host,port),timeout);
+			connection.socket.setSoTimeout(timeout);
+			connection.stream = new MessageStream(connection.socket.getInputStream(),connection.socket.getOutputStream());
+			Message welcome = readMsg(connection);
+			if(welcome.getClass().getName()==ErrorMsg.class.getName()) {
+				throw new IOException("Index server "+host+":"+port+" refused the connection: "+((ErrorMsg) welcome).msg);
+			}
+			Message reply = exchange(connection,new AuthenticateRequest(secret));
+			if(reply.getClass().getName()!=AuthenticateReply.class.getName() || !((AuthenticateReply) reply).success) {
+				throw new IOException("Index server "+host+":"+port+" does not share this server's secret");
+			}
+			if(welcome.getClass().getName()==WelcomeMsg.class.getName() && ((WelcomeMsg) welcome).keepAlive!=null) {
+				connection.keepAlive=((WelcomeMsg) welcome).keepAlive;
+			}
+			connection.socket.setSoTimeout(REPLY_TIMEOUT);
+			return connection;
+		} catch (IOException | JsonSerializationException e) {
+			close(connection);
+			throw e;
+		}
+	}
+
+	private Message exchange(Connection connection,Message msg) throws IOException, JsonSerializationException {
+		connection.stream.writeMsg(msg,true);
+		return readMsg(connection);
+	}
+
+	private Message readMsg(Connection connection) throws IOException, JsonSerializationException {
+		try {
+			return connection.stream.readMsg();
+		} catch (EOFException e) {
+			throw new IOException("Index server "+host+":"+port+" closed the connection");
+		}
+	}
+
+	private static void close(Connection connection) {
+		try {
+			connection.socket.close();
+		} catch (IOException e) {
+			// nothing more to do
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package comp90015.idxsrv.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A consistent hash ring that partitions the MD5 keyspace among the index servers of
+ * a cluster. Each node is placed on the ring at a number of points, and a file belongs
+ * to the node at the first point at or after the hash of its MD5, so adding a node only
+ * moves the files in the ranges just before its points, and leaves the rest where they
+ * are. The points spread each node's share of the keyspace evenly.
+ * <p>
+ * A ring is replaced rather than changed when a node is added, so it can be read
+ * without locks.
+ * @author aaron
+ *
+ */
+class ShardRing {
+
+	/**
+	 * The number of points on the ring for each node.
+	 */
+	private static final int POINTS_PER_NODE = 128;
+
+	private final TreeMap<Long,String> points;
+
+	private final TreeSet<String> nodes;
+
+	/**
+	 * Create a ring of nodes.
+	 * @param nodes the keys of the nodes, HOST:PORT
+	 */
+	ShardRing(Set<String> nodes) {
+		this.nodes=new TreeSet<String>(nodes);
+		points=new TreeMap<Long,String>();
+		for(String node : this.nodes) {
+			for(int i=0;i<POINTS_PER_NODE;i++) {
+				points.put(hash(node+"#"+i), node);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param node the key of a node
+	 * @return a ring with the node added, or this ring if it is already on it
+	 */
+	ShardRing with(String node) {
+		if(nodes.contains(node)) return this;
+		TreeSet<String> more = new TreeSet<String>(nodes);
+		more.add(node);
+		return new ShardRing(more);
+	}
+
+	/**
+	 *
+	 * @return the keys of the nodes on the ring
+	 */
+	Set<String> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 *
+	 * @param fileMd5 the MD5 hash of a file
+	 * @return the key of the node that owns the file
+	 */
+	String owner(String fileMd5) {
+		Map.Entry<Long,String> point = points.ceilingEntry(hash(fileMd5));
+		return point!=null ? point.getValue() : points.firstEntry().getValue();
+	}
+
+	/**
+	 * Hash a string onto the ring. The file MD5 hashes are hashed again, because they
+	 * are whatever the peers sent, so are not necessarily spread evenly.
+	 */
+	private static long hash(String str) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(str.getBytes(StandardCharsets.UTF_8));
+			long h = 0;
+			for(int i=0;i<8;i++) {
+				h = (h<<8) | (digest[i]&0xFF);
+			}
+			return h;
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform provides MD5
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,451 @@
+package comp90015.idxsrv.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.message.DropBatchReply;
+import comp90015.idxsrv.message.DropBatchRequest;
+import comp90015.idxsrv.message.DropShareRequest;
+import comp90015.idxsrv.message.ErrorMsg;
+import comp90015.idxsrv.message.HeartbeatReply;
+import comp90015.idxsrv.message.HeartbeatRequest;
+import comp90015.idxsrv.message.LookupRequest;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.message.SearchReply;
+import comp90015.idxsrv.message.SearchRequest;
+import comp90015.idxsrv.message.ShardJoinReply;
+import comp90015.idxsrv.message.ShardJoinRequest;
+import comp90015.idxsrv.message.ShardRequest;
+import comp90015.idxsrv.message.ShareBatchReply;
+import comp90015.idxsrv.message.ShareBatchRequest;
+import comp90015.idxsrv.message.ShareReply;
+import comp90015.idxsrv.message.ShareRequest;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * Spreads the index over a cluster of index servers, each of which owns the files in
+ * its part of the MD5 keyspace, as given by a {@link ShardRing}. A client may send any
+ * request to any server of the cluster:
+ * <ul>
+ * <li>shares, drops and lookups are forwarded to the server that owns the file, as a
+ * {@link ShardRequest} that carries the client's address;</li>
+ * <li>batches of shares and drops are split into a batch for each server that owns
+ * some of their files, which are sent at once, and the results are put back in order;</li>
+ * <li>searches are sent to every server at once, and their hits are merged and ranked
+ * as a single server would rank them;</li>
+ * <li>heartbeats are sent to every server, since a peer's files are spread over all of
+ * them.</li>
+ * </ul>
+ * A server joins the cluster by sending a {@link ShardJoinRequest} to the servers it
+ * is configured with, which reply with the servers they know of, which it joins in
+ * turn. When a server learns of a new server it hands over the files in the ranges that
+ * the new server now owns, and keeps the rest.
+ * <p>
+ * Forwarding blocks the thread that processes the request until the other server
+ * replies, so the servers of a cluster should serve connections on virtual threads,
+ * or have enough workers for the requests they forward to each other. In nio mode
+ * the requests are processed on virtual threads, see {@link NioIOThread}.
+ * @author aaron
+ *
+ */
+class ShardRouter {
+
+	/**
+	 * The order of merged search hits, the same as {@link IndexMgr#search}.
+	 */
+	private static final Comparator<Hit> RANK = Comparator
+			.comparingInt((Hit h) -> -h.seeds)
+			.thenComparingInt(h -> h.element.filename.length())
+			.thenComparing(h -> h.element.filename);
+
+	private static class Hit {
+		IndexElement element;
+		int seeds;
+		Hit(IndexElement element,int seeds) {
+			this.element=element;
+			this.seeds=seeds;
+		}
+	}
+
+	private Server server;
+
+	private IndexMgr indexMgr;
+
+	private String self;
+
+	private String secret;
+
+	private ClusterKey clusterKey;
+
+	private int timeout;
+
+	private ITerminalLogger logger;
+
+	private volatile ShardRing ring;
+
+	private ConcurrentHashMap<String,ShardClient> clients;
+
+	private ExecutorService executor;
+
+	/**
+	 * Held while handing over files, which waits on the other servers, so it is a lock
+	 * rather than a synchronized method, which would pin the virtual thread's carrier.
+	 */
+	private ReentrantLock handOverLock;
+
+	/**
+	 * Create a router for a server of a cluster.
+	 * @param server the server, which processes the requests for the files it owns
+	 * @param indexMgr the server's index
+	 * @param self this server, HOST:PORT
+	 * @param nodes the other servers of the cluster that are known to begin with, HOST:PORT
+	 * @param secret the server secret, which all servers of the cluster share
+	 * @param clusterKey signs the requests forwarded to the other servers
+	 * @param timeout the timeout in milliseconds of a forwarded request
+	 * @param logger an object that implements the terminal logger interface
+	 */
+	ShardRouter(Server server,
+			IndexMgr indexMgr,
+			String self,
+			Collection<String> nodes,
+			String secret,
+			ClusterKey clusterKey,
+			int timeout,
+			ITerminalLogger logger) {
+		this.server=server;
+		this.indexMgr=indexMgr;
+		this.self=self;
+		this.secret=secret;
+		this.clusterKey=clusterKey;
+		this.timeout=timeout;
+		this.logger=logger;
+		HashSet<String> all = new HashSet<String>(nodes);
+		all.add(self);
+		ring=new ShardRing(all);
+		clients=new ConcurrentHashMap<>();
+		executor=Executors.newVirtualThreadPerTaskExecutor();
+		handOverLock=new ReentrantLock();
+	}
+
+	/**
+	 * Join the cluster in the background, and then hand over any files that other
+	 * servers own, such as those recovered from before the cluster grew.
+	 */
+	void start() {
+		executor.execute(() -> {
+			ArrayDeque<String> toJoin = new ArrayDeque<String>(ring.getNodes());
+			HashSet<String> tried = new HashSet<String>();
+			tried.add(self);
+			String node;
+			while((node=toJoin.poll())!=null) {
+				if(!tried.add(node)) continue;
+				Message reply = forward(node,clusterKey.sign(new ShardJoinRequest(self)));
+				if(reply.getClass().getName()!=ShardJoinReply.class.getName()) {
+					logger.logWarn("Could not join index server "+node+", it will join this server when it starts.");
+					continue;
+				}
+				for(String other : ((ShardJoinReply) reply).nodes) {
+					addNode(other);
+					toJoin.add(other);
+				}
+			}
+			logger.logInfo("Cluster of index servers "+ring.getNodes());
+			handOver();
+		});
+	}
+
+	/**
+	 * Stop forwarding, and close the connections to the other servers.
+	 */
+	void shutdown() {
+		executor.shutdownNow();
+		for(ShardClient client : clients.values()) {
+			client.close();
+		}
+	}
+
+	/**
+	 * Process a request from another server that is joining the cluster.
+	 * @param msg the request
+	 * @return the servers known to this one
+	 */
+	Message join(ShardJoinRequest msg) {
+		if(addNode(msg.node)) {
+			logger.logInfo("Index server "+msg.node+" joined the cluster "+ring.getNodes());
+			executor.execute(this::handOver);
+		}
+		return new ShardJoinReply(ring.getNodes().toArray(new String[0]));
+	}
+
+	/**
+	 *
+	 * @return true if the server was new to the ring
+	 */
+	private synchronized boolean addNode(String node) {
+		ShardRing more = ring.with(node);
+		if(more==ring) return false;
+		ring = more;
+		return true;
+	}
+
+	/**
+	 * Route a request from a client to the servers that should process it.
+	 * @param msg the request
+	 * @param ip the ip address of the client
+	 * @param port the port of the client's connection
+	 * @return the reply to send
+	 */
+	Message route(Message msg,String ip,int port) {
+		String msgname = msg.getClass().getName();
+		if(msgname==ShareRequest.class.getName()) {
+			return routeToOwner(((ShareRequest) msg).fileDescr.getFileMd5(),msg,ip,port);
+		} else if(msgname==DropShareRequest.class.getName()) {
+			return routeDrop((DropShareRequest) msg,ip,port);
+		} else if(msgname==ShareBatchRequest.class.getName()) {
+			return routeShareBatch((ShareBatchRequest) msg,ip,port);
+		} else if(msgname==DropBatchRequest.class.getName()) {
+			return routeDropBatch((DropBatchRequest) msg,ip,port);
+		} else if(msgname==LookupRequest.class.getName()) {
+			return routeToOwner(((LookupRequest) msg).fileMd5,msg,ip,port);
+		} else if(msgname==SearchRequest.class.getName()) {
+			return routeSearch((SearchRequest) msg,ip,port);
+		} else if(msgname==HeartbeatRequest.class.getName()) {
+			return routeHeartbeat((HeartbeatRequest) msg,ip,port);
+		}
+		return server.processLocalRequest(msg,ip,port);
+	}
+
+	private Message routeToOwner(String fileMd5,Message msg,String ip,int port) {
+		String owner = ring.owner(fileMd5);
+		if(owner.equals(self)) {
+			return server.processLocalRequest(msg,ip,port);
+		}
+		return forward(owner,clusterKey.sign(new ShardRequest(ip,msg)));
+	}
+
+	/**
+	 * Route a drop to the owner of the file. A file that is still being handed over
+	 * to its owner may be here instead.
+	 */
+	private Message routeDrop(DropShareRequest msg,String ip,int port) {
+		Message reply = routeToOwner(msg.fileMd5,msg,ip,port);
+		if(ring.owner(msg.fileMd5).equals(self) || reply.getClass().getName()!=ErrorMsg.class.getName()) {
+			return reply;
+		}
+		Message local = server.processLocalRequest(msg,ip,port);
+		return local.getClass().getName()==ErrorMsg.class.getName() ? reply : local;
+	}
+
+	private Message routeShareBatch(ShareBatchRequest msg,String ip,int port) {
+		if(msg.filenames.length!=msg.fileDescrs.length || msg.sharingSecrets.length!=msg.fileDescrs.length) {
+			return new ErrorMsg("Invalid message");
+		}
+		String[] fileMd5s = new String[msg.fileDescrs.length];
+		for(int i=0;i<fileMd5s.length;i++) {
+			fileMd5s[i]=msg.fileDescrs[i].getFileMd5();
+		}
+		Integer[] numSharers = new Integer[fileMd5s.length];
+		Arrays.fill(numSharers,0);
+		routeBatch(fileMd5s,ip,port,indexes -> {
+			FileDescr[] fileDescrs = new FileDescr[indexes.length];
+			String[] filenames = new String[indexes.length];
+			String[] secrets = new String[indexes.length];
+			for(int k=0;k<indexes.length;k++) {
+				fileDescrs[k]=msg.fileDescrs[indexes[k]];
+				filenames[k]=msg.filenames[indexes[k]];
+				secrets[k]=msg.sharingSecrets[indexes[k]];
+			}
+			return new ShareBatchRequest(fileDescrs,filenames,secrets,msg.port);
+		},(indexes,reply) -> {
+			if(reply.getClass().getName()!=ShareBatchReply.class.getName()) return;
+			for(int k=0;k<indexes.length;k++) {
+				numSharers[indexes[k]]=((ShareBatchReply) reply).numSharers[k];
+			}
+		});
+		return new ShareBatchReply(numSharers);
+	}
+
+	private Message routeDropBatch(DropBatchRequest msg,String ip,int port) {
+		if(msg.fileMd5s.length!=msg.filenames.length || msg.sharingSecrets.length!=msg.filenames.length) {
+			return new ErrorMsg("Invalid message");
+		}
+		Boolean[] success = new Boolean[msg.fileMd5s.length];
+		Arrays.fill(success,false);
+		routeBatch(msg.fileMd5s,ip,port,indexes -> {
+			String[] filenames = new String[indexes.length];
+			String[] fileMd5s = new String[indexes.length];
+			String[] secrets = new String[indexes.length];
+			for(int k=0;k<indexes.length;k++) {
+				filenames[k]=msg.filenames[indexes[k]];
+				fileMd5s[k]=msg.fileMd5s[indexes[k]];
+				secrets[k]=msg.sharingSecrets[indexes[k]];
+			}
+			return new DropBatchRequest(filenames,fileMd5s,secrets,msg.port);
+		},(indexes,reply) -> {
+			if(reply.getClass().getName()!=DropBatchReply.class.getName()) return;
+			for(int k=0;k<indexes.length;k++) {
+				success[indexes[k]]=((DropBatchReply) reply).success[k];
+			}
+		});
+		return new DropBatchReply(success);
+	}
+
+	/**
+	 * Split a batch into a batch for each server that owns some of its files, send them
+	 * all at once, this server's own included, and merge the replies one at a time.
+	 * @param fileMd5s the MD5 hashes of the files of the batch
+	 * @param subBatch makes the batch of the files at the given indexes of the batch
+	 * @param merge merges the reply to the batch of the files at the given indexes, which
+	 * is an {@link ErrorMsg} if the server could not be reached
+	 */
+	private void routeBatch(String[] fileMd5s,String ip,int port,
+			Function<int[],Message> subBatch,BiConsumer<int[],Message> merge) {
+		HashMap<String,ArrayList<Integer>> byOwner = new HashMap<String,ArrayList<Integer>>();
+		for(int i=0;i<fileMd5s.length;i++) {
+			byOwner.computeIfAbsent(ring.owner(fileMd5s[i]),o -> new ArrayList<Integer>()).add(i);
+		}
+		HashMap<int[],Future<Message>> futures = new HashMap<int[],Future<Message>>();
+		int[] local = null;
+		for(Map.Entry<String,ArrayList<Integer>> owner : byOwner.entrySet()) {
+			int[] indexes = owner.getValue().stream().mapToInt(Integer::intValue).toArray();
+			if(owner.getKey().equals(self)) {
+				local = indexes;
+			} else {
+				Message batch = subBatch.apply(indexes);
+				futures.put(indexes,executor.submit(() -> forward(owner.getKey(),clusterKey.sign(new ShardRequest(ip,batch)))));
+			}
+		}
+		if(local!=null) {
+			merge.accept(local,server.processLocalRequest(subBatch.apply(local),ip,port));
+		}
+		for(Map.Entry<int[],Future<Message>> future : futures.entrySet()) {
+			try {
+				merge.accept(future.getKey(),future.getValue().get());
+			} catch (InterruptedException | ExecutionException e) {
+				merge.accept(future.getKey(),new ErrorMsg("Index shard unavailable"));
+			}
+		}
+	}
+
+	private Message routeSearch(SearchRequest msg,String ip,int port) {
+		ArrayList<Hit> hits = new ArrayList<Hit>();
+		for(Message reply : fanOut(msg,ip,port)) {
+			if(reply.getClass().getName()!=SearchReply.class.getName()) continue;
+			SearchReply searchReply = (SearchReply) reply;
+			for(int i=0;i<searchReply.hits.length;i++) {
+				hits.add(new Hit(searchReply.hits[i],searchReply.seedCounts[i]));
+			}
+		}
+		hits.sort(RANK);
+		// a file is only found twice while it is being handed over
+		HashSet<String> seen = new HashSet<String>();
+		ArrayList<IndexElement> elements = new ArrayList<IndexElement>();
+		ArrayList<Integer> seedCounts = new ArrayList<Integer>();
+		for(Hit hit : hits) {
+			if(msg.maxhits>0 && elements.size()>=msg.maxhits) break;
+			if(!seen.add(hit.element.fileDescr.getFileMd5())) continue;
+			elements.add(hit.element);
+			seedCounts.add(hit.seeds);
+		}
+		return new SearchReply(elements,seedCounts.toArray(new Integer[0]));
+	}
+
+	private Message routeHeartbeat(HeartbeatRequest msg,String ip,int port) {
+		int numShares = 0;
+		long leaseMillis = 0;
+		for(Message reply : fanOut(msg,ip,port)) {
+			if(reply.getClass().getName()!=HeartbeatReply.class.getName()) continue;
+			HeartbeatReply heartbeatReply = (HeartbeatReply) reply;
+			numShares += heartbeatReply.numShares;
+			leaseMillis = Math.max(leaseMillis,heartbeatReply.leaseMillis);
+		}
+		return new HeartbeatReply(numShares,leaseMillis);
+	}
+
+	/**
+	 * Send a request to every server of the cluster at once, this one included.
+	 * @return the replies, with an {@link ErrorMsg} for each server that could not be reached
+	 */
+	private List<Message> fanOut(Message msg,String ip,int port) {
+		ArrayList<Future<Message>> futures = new ArrayList<Future<Message>>();
+		for(String node : ring.getNodes()) {
+			if(node.equals(self)) continue;
+			futures.add(executor.submit(() -> forward(node,clusterKey.sign(new ShardRequest(ip,msg)))));
+		}
+		ArrayList<Message> replies = new ArrayList<Message>();
+		replies.add(server.processLocalRequest(msg,ip,port));
+		for(Future<Message> future : futures) {
+			try {
+				replies.add(future.get());
+			} catch (InterruptedException | ExecutionException e) {
+				replies.add(new ErrorMsg("Index shard unavailable"));
+			}
+		}
+		return replies;
+	}
+
+	/**
+	 * Send a request to another server of the cluster.
+	 * @return the reply, or an {@link ErrorMsg} if the server could not be reached
+	 */
+	private Message forward(String node,Message msg) {
+		ShardClient client = clients.computeIfAbsent(node, n -> new ShardClient(n,secret,timeout));
+		try {
+			return client.request(msg);
+		} catch (Exception e) {
+			logger.logWarn("Index server "+node+" could not be reached: "+e.getMessage());
+			return new ErrorMsg("Index shard "+node+" unavailable");
+		}
+	}
+
+	/**
+	 * Hand over the files that other servers own, each of which is shared with its
+	 * owner on behalf of each of its sharers, and then dropped here.
+	 */
+	private void handOver() {
+		handOverLock.lock();
+		try {
+			long start = System.currentTimeMillis();
+			int moved = 0;
+			int failed = 0;
+			for(List<IndexElement> elements : indexMgr.files()) {
+				if(elements.isEmpty()) continue;
+				String fileMd5 = elements.get(0).fileDescr.getFileMd5();
+				String owner = ring.owner(fileMd5);
+				if(owner.equals(self)) continue;
+				for(IndexElement element : elements) {
+					Message reply = forward(owner,clusterKey.sign(new ShardRequest(element.ip,
+							new ShareRequest(element.fileDescr,element.filename,element.secret,element.port))));
+					if(reply.getClass().getName()==ShareReply.class.getName()) {
+						indexMgr.drop(element.ip,element.port,element.filename,fileMd5,element.secret);
+						moved++;
+					} else {
+						failed++;
+					}
+				}
+			}
+			if(moved>0 || failed>0) {
+				logger.logInfo("Handed over "+moved+" shares to the servers that own them in "
+						+(System.currentTimeMillis()-start)+"ms, "+failed+" could not be handed over");
+			}
+		} finally {
+			handOverLock.unlock();
+		}
+	}
+}
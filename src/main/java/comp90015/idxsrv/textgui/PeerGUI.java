@@ -25,6 +25,7 @@ import com.googlecode.lanterna.gui2.Panel;
 import com.googlecode.lanterna.gui2.TextGUIGraphics;
 import com.googlecode.lanterna.gui2.Window;
 import com.googlecode.lanterna.gui2.WindowListener;
+import com.googlecode.lanterna.gui2.dialogs.DirectoryDialogBuilder;
 import com.googlecode.lanterna.gui2.dialogs.FileDialogBuilder;
 import com.googlecode.lanterna.gui2.dialogs.TextInputDialog;
 import com.googlecode.lanterna.gui2.dialogs.MessageDialog;
@@ -121,6 +122,8 @@ public class PeerGUI implements ISharerGUI {
 				if(keyStroke.getKeyType()==KeyType.Character) {
 					if(keyStroke.getCharacter()=='f') {
 						handleFileShareButton();
+					} else if(keyStroke.getCharacter()=='r') {
+						handleDirShareButton();
 					} else if(keyStroke.getCharacter()=='s') {
 						handleSearchButton();
 					} else if(keyStroke.getCharacter()=='c') {
@@ -303,6 +306,22 @@ public class PeerGUI implements ISharerGUI {
 		}
 	}
 	
+	private void handleDirShareButton() {
+		File dir = new DirectoryDialogBuilder()
+				.setTitle("Open Directory")
+				.setDescription("Choose a directory, all of whose files are shared")
+				.setActionLabel("Open")
+				.build()
+				.showDialog(gui);
+		if(dir!=null && peer!=null) {
+			peer.shareFileWithIdxServer(dir, 
+				configWindow.getIdxSrvAddress(), 
+				configWindow.getIdxSrvPort(), 
+				configWindow.getIdxSrvSecret(), 
+				configWindow.getShareSecret());
+		}
+	}
+	
 	private void handleSearchButton() {
 		String input = TextInputDialog.showDialog(gui,
 				"Keyword Search "+
@@ -331,6 +350,7 @@ public class PeerGUI implements ISharerGUI {
 				wordWrap("General keys\n============\n\n",staticWidth)+
 				wordWrap("Use arrow keys and tab to navigate.\n",staticWidth)+
 				wordWrap("f - share a file\n",staticWidth)+
+				wordWrap("r - share all files in a directory\n",staticWidth)+
 				wordWrap("s - search for files\n",staticWidth)+
 				wordWrap("c - configure settings\n",staticWidth)+
 				wordWrap("h - open this help window\n",staticWidth)+
@@ -455,6 +475,14 @@ public class PeerGUI implements ISharerGUI {
 			}
 		});
 	    buttonPanel.addComponent(shareFileButton);
+	    
+	    // share a directory button
+	    buttonPanel.addComponent(new Button("Dir share", new Runnable() {
+			@Override
+			public void run() {
+				handleDirShareButton();
+			}
+		}));
 	   
 	    // search for a file button
 	    buttonPanel.addComponent(new Button("Search", new Runnable() {
@@ -0,0 +1,187 @@
+package comp90015.idxsrv.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Writes values with {@link JsonWriter} and reads them back with {@link JsonReader},
+ * through buffers of every small size and with the value at every offset in them, so
+ * that each value is split by a refill of the buffer at every point.
+ * @author aaron
+ *
+ */
+public class JsonReaderTest {
+
+	private static final int MAX_BUFFER = 24;
+
+	private static byte[] write(Object value) throws IOException, JsonSerializationException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		JsonWriter writer = new JsonWriter(bytes);
+		writer.writeValue(value);
+		writer.drain();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Read a value preceded by some space, from a buffer of the given size.
+	 */
+	private static Object read(byte[] json,int space,int bufferSize) throws IOException, JsonSerializationException {
+		byte[] line = new byte[space+json.length+1];
+		for(int i=0;i<space;i++) {
+			line[i]=' ';
+		}
+		System.arraycopy(json,0,line,space,json.length);
+		line[line.length-1]='\n';
+		JsonReader reader = new JsonReader(new ByteArrayInputStream(line),bufferSize);
+		Object value = reader.readValue();
+		assertEquals(true,reader.endLine());
+		return value;
+	}
+
+	/**
+	 * Check that the json reads as the value, however the buffer splits it.
+	 */
+	private static void assertReads(Object expected,byte[] json) throws IOException, JsonSerializationException {
+		for(int size=1;size<=MAX_BUFFER;size++) {
+			for(int space=0;space<size;space++) {
+				Object value = read(json,space,size);
+				assertEquals(new String(json,StandardCharsets.UTF_8)+" with a buffer of "+size+" at "+space,
+						expected,value);
+			}
+		}
+		// and from an array, as frames are read
+		JsonReader reader = new JsonReader(json,0,json.length);
+		assertEquals(expected,reader.readValue());
+	}
+
+	private static void assertRoundTrip(Object value) throws IOException, JsonSerializationException {
+		assertReads(value,write(value));
+	}
+
+	private static void assertReads(Object expected,String json) throws IOException, JsonSerializationException {
+		assertReads(expected,json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void assertRejected(String json) throws IOException {
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		for(int size=1;size<=MAX_BUFFER;size++) {
+			try {
+				read(bytes,0,size);
+				fail(json+" was read with a buffer of "+size);
+			} catch (JsonSerializationException e) {
+				// as expected
+			}
+		}
+	}
+
+	@Test
+	public void stringsWithEscapes() throws Exception {
+		assertRoundTrip("");
+		assertRoundTrip("plain");
+		assertRoundTrip("a \"quoted\" back\\slash and a /");
+		assertRoundTrip("\n\r\t\b\f");
+		assertRoundTrip("\u0000\u0001\u001f\u007f");
+		assertReads("a/b\"c\\d\n","\"a\\/b\\\"c\\\\d\\n\"");
+		assertReads("\u00e9\u20ac\u0001","\"\\u00e9\\u20AC\\u0001\"");
+	}
+
+	@Test
+	public void stringsWithCharactersOfEveryLength() throws Exception {
+		assertRoundTrip("caf\u00e9 \u20ac5 \ud83d\ude00 \ud800\udc00 \udbff\udfff");
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<100;i++) {
+			sb.append("x\u00e9\u20ac\ud83d\ude00\\\"");
+		}
+		assertRoundTrip(sb.toString());
+	}
+
+	@Test
+	public void surrogatePairsThatAreEscaped() throws Exception {
+		assertReads("\ud83d\ude00","\"\\ud83d\\ude00\"");
+		assertReads("a\ud83d\ude00b","\"a\\uD83D\\uDE00b\"");
+		assertReads("\ud83d\ude00\ud83d\ude01","\"\\ud83d\\ude00\\ud83d\\ude01\"");
+	}
+
+	@Test
+	public void surrogatesThatAreNotPairs() throws Exception {
+		// a surrogate that is not half of a pair is not a character, and is read as '?',
+		// as JsonWriter writes it
+		assertReads("?",write("\ud83d"));
+		assertReads("a?b",write("a\ude00b"));
+		assertReads("?\ud83d\ude00",write("\ude00\ud83d\ude00"));
+		assertReads("?","\"\\ud83d\"");
+		assertReads("?","\"\\ude00\"");
+		assertReads("?\n","\"\\ud83d\\n\"");
+		assertReads("?a","\"\\ud83da\"");
+		assertReads("?A","\"\\ud83d\\u0041\"");
+		assertReads("??","\"\\ude00\\ud83d\"");
+		assertReads("?\ud83d\ude00","\"\\ud83d\\ud83d\\ude00\"");
+	}
+
+	@Test
+	public void integersAtTheirLimits() throws Exception {
+		assertRoundTrip(0);
+		assertRoundTrip(-1);
+		assertRoundTrip(Integer.MAX_VALUE);
+		assertRoundTrip(Integer.MIN_VALUE);
+		assertRoundTrip(Integer.MAX_VALUE+1L);
+		assertRoundTrip(Integer.MIN_VALUE-1L);
+		assertRoundTrip(Long.MAX_VALUE);
+		assertRoundTrip(Long.MIN_VALUE);
+		assertRoundTrip(Long.MAX_VALUE/10);
+		assertRoundTrip(Long.MIN_VALUE/10);
+		assertReads(0,"-0");
+		assertRejected("9223372036854775808");
+		assertRejected("-9223372036854775809");
+		assertRejected("99999999999999999999");
+		assertRejected("-");
+		assertRejected("1-2");
+	}
+
+	@Test
+	public void doublesAtTheirLimits() throws Exception {
+		assertRoundTrip(0.5);
+		assertRoundTrip(-0.5);
+		assertRoundTrip(-0.0);
+		assertRoundTrip(Double.MAX_VALUE);
+		assertRoundTrip(-Double.MAX_VALUE);
+		assertRoundTrip(Double.MIN_VALUE);
+		assertRoundTrip(Double.MIN_NORMAL);
+		assertRoundTrip(1e-300);
+		assertRoundTrip(123456.789);
+		assertReads(1e20,"1e20");
+		assertReads(-2.5e-3,"-2.5E-3");
+		assertReads(92233720368547758070.5,"92233720368547758070.5");
+		assertReads(-9223372036854775808.5,"-9223372036854775808.5");
+		assertRejected("1.2.3");
+	}
+
+	@Test
+	public void nonFiniteNumbersAreNotWritten() throws Exception {
+		for(double d : new double[] {Double.NaN,Double.POSITIVE_INFINITY,Double.NEGATIVE_INFINITY}) {
+			try {
+				write(d);
+				fail(d+" was written");
+			} catch (JsonSerializationException e) {
+				// as expected
+			}
+		}
+	}
+
+	@Test
+	public void arraysAndLiterals() throws Exception {
+		assertRoundTrip(true);
+		assertRoundTrip(false);
+		assertReads(JsonReader.NULL,"null");
+		assertReads(Arrays.asList(1,"\ud83d\ude00",Long.MIN_VALUE,-0.5,Boolean.TRUE),
+				"[ 1, \"\\ud83d\\ude00\" ,-9223372036854775808,-0.5,true]");
+	}
+}
@@ -0,0 +1,83 @@
+package comp90015.idxsrv.message;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.function.Supplier;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.server.IndexElement;
+
+/**
+ * Measures how long messages take to encode and decode, as json lines and as binary
+ * frames. It is not a test, run it with:
+ * <pre>
+ * mvn -B test-compile
+ * java -cp target/classes:target/test-classes comp90015.idxsrv.message.MessageCodecBench [ITERATIONS]
+ * </pre>
+ * Each message is encoded and decoded ITERATIONS times, default 20000, after as many
+ * times to warm up, and the time per message is printed in nanoseconds.
+ * @author aaron
+ *
+ */
+public class MessageCodecBench {
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length>0 ? Integer.parseInt(args[0]) : 20000;
+		FileDescr descr = new FileDescr(1<<20,1<<16,"0123456789ABCDEF0123456789ABCDEF",blocks(16));
+		ArrayList<IndexElement> hits = new ArrayList<IndexElement>();
+		Integer[] seeds = new Integer[100];
+		for(int i=0;i<100;i++) {
+			hits.add(new IndexElement("10.0.0."+i,3000+i,descr,"music/album/track"+i+".mp3","secret"));
+			seeds[i]=i;
+		}
+		System.out.printf("%-20s %12s %12s %12s %12s%n","ns per message","json write","json read","frame write","frame read");
+		bench("AuthenticateRequest",() -> new AuthenticateRequest("server123"),iterations);
+		bench("BlockRequest",() -> new BlockRequest("music/album/track1.mp3","0123456789ABCDEF0123456789ABCDEF",7),iterations);
+		bench("ShareRequest",() -> new ShareRequest(descr,"music/album/track1.mp3","secret",3000),iterations);
+		// a new reply each time, since a reply keeps its json once it has been sent twice
+		bench("SearchReply(100)",() -> new SearchReply(hits,seeds),iterations/10);
+	}
+
+	private static void bench(String name,Supplier<Message> make,int iterations) throws Exception {
+		long[] ns = new long[4];
+		for(int round=0;round<2;round++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			long start = System.nanoTime();
+			for(int i=0;i<iterations;i++) {
+				out.reset();
+				MessageFactory.serialize(make.get(),out);
+			}
+			ns[0] = (System.nanoTime()-start)/iterations;
+			byte[] json = out.toByteArray();
+			start = System.nanoTime();
+			for(int i=0;i<iterations;i++) {
+				MessageFactory.deserialize(json,0,json.length);
+			}
+			ns[1] = (System.nanoTime()-start)/iterations;
+			MessageFramer sender = new MessageFramer();
+			MessageFramer receiver = new MessageFramer();
+			byte[] first = sender.frame(make.get());
+			receiver.unframe(first,MessageFramer.HEADER_LENGTH,first.length-MessageFramer.HEADER_LENGTH);
+			byte[] frame = null;
+			start = System.nanoTime();
+			for(int i=0;i<iterations;i++) {
+				frame = sender.frame(make.get());
+			}
+			ns[2] = (System.nanoTime()-start)/iterations;
+			start = System.nanoTime();
+			for(int i=0;i<iterations;i++) {
+				receiver.unframe(frame,MessageFramer.HEADER_LENGTH,frame.length-MessageFramer.HEADER_LENGTH);
+			}
+			ns[3] = (System.nanoTime()-start)/iterations;
+		}
+		System.out.printf("%-20s %12d %12d %12d %12d%n",name,ns[0],ns[1],ns[2],ns[3]);
+	}
+
+	private static String[] blocks(int n) {
+		String[] blockMd5 = new String[n];
+		for(int b=0;b<n;b++) {
+			blockMd5[b]=String.format("%032X",b);
+		}
+		return blockMd5;
+	}
+}
@@ -0,0 +1,113 @@
+package comp90015.idxsrv.message;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+/**
+ * Encodes and decodes messages through the {@link MessageCodec}s generated when they
+ * are compiled, and checks that a message comes back the same as json and as a frame,
+ * private elements included, that values of the wrong type are refused as they were
+ * when the codecs reflected over their classes, and that a class without a codec is
+ * refused without being loaded.
+ * @author aaron
+ *
+ */
+public class MessageCodecTest {
+
+	// set if the class below is ever initialized
+	static boolean loaded;
+
+	public static class NotSerializable {
+		static {
+			loaded=true;
+		}
+	}
+
+	private static void assertRefused(String message,String json) {
+		try {
+			MessageFactory.deserialize(json);
+			fail("decoded "+json);
+		} catch (JsonSerializationException e) {
+			assertEquals(message,e.getMessage());
+		}
+	}
+
+	private static void assertSameShare(ShareRequest expected,ShareRequest actual) {
+		assertEquals(expected.filename,actual.filename);
+		assertEquals(expected.sharingSecret,actual.sharingSecret);
+		assertEquals(expected.port,actual.port);
+		assertEquals(expected.fileDescr.getFileLength(),actual.fileDescr.getFileLength());
+		assertEquals(expected.fileDescr.getBlockLength(),actual.fileDescr.getBlockLength());
+		assertEquals(expected.fileDescr.getNumBlocks(),actual.fileDescr.getNumBlocks());
+		assertEquals(expected.fileDescr.getFileMd5(),actual.fileDescr.getFileMd5());
+		for(int b=0;b<expected.fileDescr.getNumBlocks();b++) {
+			assertEquals(expected.fileDescr.getBlockMd5(b),actual.fileDescr.getBlockMd5(b));
+		}
+	}
+
+	@Test
+	public void aMessageComesBackTheSame() throws Exception {
+		String md5 = "0123456789ABCDEF0123456789ABCDEF";
+		ShareRequest share = new ShareRequest(new FileDescr(5L<<30,1<<30,md5,new String[] {md5,"",md5,md5,md5}),
+				"music/été \"live\".mp3","secret",3000);
+		String json = MessageFactory.serialize(share);
+		assertTrue(json,json.startsWith("{\"_class\":\"comp90015.idxsrv.message.ShareRequest\",\"fileDescr\":{\"_class\":\"comp90015.idxsrv.filemgr.FileDescr\",\"fileLength\":5368709120,"));
+		assertSameShare(share,(ShareRequest) MessageFactory.deserialize(json));
+		MessageFramer framer = new MessageFramer();
+		byte[] frame = framer.frame(share);
+		assertSameShare(share,(ShareRequest) new MessageFramer().unframe(frame,MessageFramer.HEADER_LENGTH,frame.length-MessageFramer.HEADER_LENGTH));
+		// an optional element that is not set is left out
+		json = MessageFactory.serialize(new AuthenticateRequest("server123"));
+		assertEquals("{\"_class\":\"comp90015.idxsrv.message.AuthenticateRequest\",\"secret\":\"server123\"}",json);
+		assertNull(((AuthenticateRequest) MessageFactory.deserialize(json)).framing);
+		// a Long that fits in an Integer
+		FileDescr descr = (FileDescr) MessageFactory.deserialize("{\"_class\":\"comp90015.idxsrv.filemgr.FileDescr\","
+				+"\"fileLength\":10,\"blockLength\":16,\"numBlocks\":1,\"fileMd5\":\"\",\"blockMd5\":[\"\"]}");
+		assertEquals(10L,descr.getFileLength());
+	}
+
+	@Test
+	public void valuesOfTheWrongTypeAreRefused() throws Exception {
+		String auth = "{\"_class\":\"comp90015.idxsrv.message.AuthenticateRequest\",";
+		assertRefused("Field was of incorrect type: secret",auth+"\"secret\":5}");
+		assertRefused("Field was of incorrect type: secret",auth+"\"secret\":null}");
+		assertRefused("Field was of incorrect type: secret",auth+"\"secret\":[\"s\"]}");
+		assertRefused("Required field is not present: secret",auth+"\"framing\":\"binary\"}");
+		String search = "{\"_class\":\"comp90015.idxsrv.message.SearchRequest\",\"maxhits\":5,";
+		assertRefused("Array component types do not match",search+"\"keywords\":[\"a\",1]}");
+		assertRefused("Array component types do not match",search+"\"keywords\":[\"a\",null]}");
+		assertRefused("Field was of incorrect type: keywords",search+"\"keywords\":\"a\"}");
+		assertArrayEquals(new String[] {"a","b"},((SearchRequest) MessageFactory.deserialize(search+"\"keywords\":[\"a\",\"b\"]}")).keywords);
+		try {
+			new MessageFramer().frame(new SearchRequest(5,new String[] {"a",null}));
+			fail("framed a null keyword");
+		} catch (JsonSerializationException e) {
+			assertEquals("Array of keywords contains null",e.getMessage());
+		}
+	}
+
+	@Test
+	public void aClassWithoutACodecIsNotLoaded() throws Exception {
+		assertRefused("The class represented by the JSON object is not json serializable.",
+				"{\"_class\":\""+MessageCodecTest.class.getName()+"$NotSerializable\"}");
+		assertRefused("The class represented by the JSON object is not json serializable.",
+				"{\"_class\":\"no.such.Class\"}");
+		assertFalse(loaded);
+		try {
+			MessageFactory.serialize(new Object());
+			fail("serialized an Object");
+		} catch (JsonSerializationException e) {
+			assertEquals("The class Object is not annotated with JsonSerializable",e.getMessage());
+		}
+		assertSame(MessageCodec.of(FileDescr.class),MessageCodec.forName(FileDescr.class.getName()));
+	}
+}
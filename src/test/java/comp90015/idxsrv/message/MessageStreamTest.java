@@ -0,0 +1,129 @@
+package comp90015.idxsrv.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.server.IndexElement;
+
+/**
+ * Reads frames through a {@link MessageStream} from a connection that delivers a few
+ * bytes at a time, so that frames are decoded across many refills of its buffer.
+ * @author aaron
+ *
+ */
+public class MessageStreamTest {
+
+	/**
+	 * A connection that delivers at most a few bytes at a time.
+	 */
+	private static class Trickle extends InputStream {
+		private ByteArrayInputStream bytes;
+		private int most;
+		Trickle(byte[] b,int most) {
+			bytes=new ByteArrayInputStream(b);
+			this.most=most;
+		}
+		@Override
+		public int read() {
+			return bytes.read();
+		}
+		@Override
+		public int read(byte[] b,int off,int len) {
+			return bytes.read(b,off,Math.min(len,most));
+		}
+	}
+
+	private static MessageStream reading(byte[] b,int most) {
+		MessageStream stream = new MessageStream(new Trickle(b,most),new ByteArrayOutputStream());
+		stream.useFrames();
+		return stream;
+	}
+
+	private static SearchReply reply(int n) {
+		String[] blockMd5 = new String[16];
+		Arrays.fill(blockMd5,"0123456789ABCDEF0123456789ABCDEF");
+		FileDescr descr = new FileDescr(1<<20,1<<16,"0123456789ABCDEF0123456789ABCDEF",blockMd5);
+		ArrayList<IndexElement> hits = new ArrayList<IndexElement>();
+		Integer[] seeds = new Integer[n];
+		for(int i=0;i<n;i++) {
+			hits.add(new IndexElement("10.0.0."+i%250,3000+i,descr,"music/\u00e9\ud83d\ude00/track"+i+".mp3","secret"));
+			seeds[i]=i;
+		}
+		return new SearchReply(hits,seeds);
+	}
+
+	@Test
+	public void framesAreReadAcrossRefills() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MessageStream writing = new MessageStream(new ByteArrayInputStream(new byte[0]),out);
+		writing.useFrames();
+		// larger than the stream's buffer, so that it is read in many parts
+		writing.writeMsg(reply(3000),false);
+		writing.writeMsg(new ErrorMsg("between"),false);
+		writing.writeMsg(reply(2),true);
+		for(int most : new int[] {1,7,4096,1<<20}) {
+			MessageStream reading = reading(out.toByteArray(),most);
+			SearchReply big = (SearchReply) reading.readMsg();
+			assertEquals(3000,big.hits.length);
+			assertEquals("music/\u00e9\ud83d\ude00/track2999.mp3",big.hits[2999].filename);
+			assertEquals(2999,big.seedCounts[2999].intValue());
+			assertEquals("between",((ErrorMsg) reading.readMsg()).msg);
+			assertEquals(2,((SearchReply) reading.readMsg()).hits.length);
+			try {
+				reading.readMsg();
+				fail("read past the end");
+			} catch (EOFException e) {
+				// as expected
+			}
+		}
+	}
+
+	@Test
+	public void aBadFrameIsSkippedWhole() throws Exception {
+		MessageFramer framer = new MessageFramer();
+		byte[] first = framer.frame(new ErrorMsg("first"));
+		// the same frame with a byte too many, as its length says
+		byte[] longer = Arrays.copyOf(first,first.length+1);
+		ByteBuffer.wrap(longer).putInt(0,first.length+1-MessageFramer.HEADER_LENGTH);
+		byte[] second = framer.frame(new ErrorMsg("second"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(longer);
+		out.write(second);
+		MessageStream reading = reading(out.toByteArray(),3);
+		try {
+			reading.readMsg();
+			fail("a frame longer than its message was read");
+		} catch (JsonSerializationException e) {
+			// as expected
+		}
+		assertEquals("second",((ErrorMsg) reading.readMsg()).msg);
+	}
+
+	@Test
+	public void aFrameCutOffIsTheEndOfTheConnection() throws Exception {
+		byte[] frame = new MessageFramer().frame(new ErrorMsg("cut off"));
+		for(int length=1;length<frame.length;length++) {
+			MessageStream reading = reading(Arrays.copyOf(frame,length),2);
+			try {
+				reading.readMsg();
+				fail("a frame of "+length+" bytes was read");
+			} catch (EOFException e) {
+				// as expected, rather than an invalid message
+			} catch (IOException | JsonSerializationException e) {
+				fail("a frame of "+length+" bytes gave "+e);
+			}
+		}
+	}
+}
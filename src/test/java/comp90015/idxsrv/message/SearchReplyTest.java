@@ -0,0 +1,87 @@
+package comp90015.idxsrv.message;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.server.IndexElement;
+
+/**
+ * Sends one {@link SearchReply} from many threads at once, as json and as frames, as the
+ * connections that repeat a cached search do, and checks that every copy is the same as
+ * that of a reply that has never been sent.
+ * @author aaron
+ *
+ */
+public class SearchReplyTest {
+
+	private static SearchReply reply() {
+		FileDescr descr = new FileDescr(1000,512,"0123456789ABCDEF0123456789ABCDEF",
+				new String[] {"0123456789ABCDEF0123456789ABCDEF","FEDCBA9876543210FEDCBA9876543210"});
+		ArrayList<IndexElement> hits = new ArrayList<IndexElement>();
+		Integer[] seeds = new Integer[50];
+		for(int i=0;i<50;i++) {
+			hits.add(new IndexElement("10.0.0."+i,3000+i,descr,"music/track"+i+".mp3","secret"));
+			seeds[i]=i+1;
+		}
+		return new SearchReply(hits,seeds);
+	}
+
+	private static byte[] json(Message msg) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MessageFactory.serialize(msg,out);
+		return out.toByteArray();
+	}
+
+	@Test(timeout=30000)
+	public void aSharedReplyIsTheSameInEveryFormat() throws Exception {
+		byte[] json = json(reply());
+		MessageFramer framer = new MessageFramer();
+		byte[] first = framer.frame(reply());
+		byte[] later = framer.frame(reply());
+		SearchReply shared = reply();
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<Void>> sends = new ArrayList<Future<Void>>();
+			for(int t=0;t<threads;t++) {
+				sends.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						start.await();
+						// each thread is a connection of its own, some of them framed
+						MessageFramer connection = new MessageFramer();
+						for(int i=0;i<200;i++) {
+							assertArrayEquals(json,json(shared));
+							assertArrayEquals(i==0 ? first : later,connection.frame(shared));
+						}
+						return null;
+					}
+				}));
+			}
+			start.countDown();
+			for(Future<Void> send : sends) {
+				send.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		// and what was kept decodes as the reply
+		SearchReply decoded = (SearchReply) new MessageFramer().unframe(first,MessageFramer.HEADER_LENGTH,
+				first.length-MessageFramer.HEADER_LENGTH);
+		assertEquals("music/track49.mp3",decoded.hits[49].filename);
+		assertEquals(50,decoded.seedCounts[49].intValue());
+		assertEquals(new String(json,"UTF-8"),MessageFactory.serialize(shared));
+	}
+}
@@ -0,0 +1,106 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Queues connections from a number of clients in an {@link AcceptQueue}, and checks
+ * that they are taken from each client in turn, that no one client may fill more than
+ * a quarter of the queue, and that taking waits for a connection. The connections are
+ * sockets that only have the address of their client.
+ * @author aaron
+ *
+ */
+public class AcceptQueueTest {
+
+	private static Socket from(String ip) throws UnknownHostException {
+		InetAddress address = InetAddress.getByName(ip);
+		return new Socket() {
+			@Override
+			public InetAddress getInetAddress() {
+				return address;
+			}
+		};
+	}
+
+	@Test
+	public void connectionsAreTakenFromEachClientInTurn() throws Exception {
+		AcceptQueue queue = new AcceptQueue(64);
+		Socket a1 = from("10.0.0.1"), a2 = from("10.0.0.1"), a3 = from("10.0.0.1");
+		Socket b1 = from("10.0.0.2");
+		Socket c1 = from("10.0.0.3"), c2 = from("10.0.0.3");
+		for(Socket socket : new Socket[] {a1,a2,a3,b1,c1,c2}) {
+			assertTrue(queue.offer(socket));
+		}
+		assertEquals(6,queue.size());
+		assertEquals(3,queue.numSources());
+		for(Socket socket : new Socket[] {a1,b1,c1,a2,c2,a3}) {
+			assertSame(socket,queue.take());
+		}
+		assertEquals(0,queue.size());
+		assertEquals(0,queue.numSources());
+		assertEquals(6,queue.getNumTaken());
+		// a client that comes back waits its turn behind those already waiting
+		queue.offer(a1);
+		queue.offer(b1);
+		queue.offer(a2);
+		queue.offer(c1);
+		for(Socket socket : new Socket[] {a1,b1,c1,a2}) {
+			assertSame(socket,queue.take());
+		}
+	}
+
+	@Test
+	public void noClientMayFillMoreThanAQuarter() throws Exception {
+		AcceptQueue queue = new AcceptQueue(8);
+		assertTrue(queue.offer(from("10.0.0.1")));
+		assertTrue(queue.offer(from("10.0.0.1")));
+		assertFalse(queue.offer(from("10.0.0.1")));
+		for(int c=2;c<=4;c++) {
+			assertTrue(queue.offer(from("10.0.0."+c)));
+			assertTrue(queue.offer(from("10.0.0."+c)));
+		}
+		// full, even for a client with nothing waiting
+		assertFalse(queue.offer(from("10.0.0.5")));
+		assertEquals(8,queue.size());
+		assertEquals(2,queue.getNumRejected());
+		queue.take();
+		assertTrue(queue.offer(from("10.0.0.1")));
+	}
+
+	@Test
+	public void takingWaitsForAConnection() throws Exception {
+		AcceptQueue queue = new AcceptQueue(4);
+		long start = System.nanoTime();
+		assertNull(queue.poll(100,TimeUnit.MILLISECONDS));
+		assertTrue(System.nanoTime()-start>=TimeUnit.MILLISECONDS.toNanos(100));
+		Socket socket = from("10.0.0.1");
+		Thread offerer = new Thread(() -> {
+			try {
+				Thread.sleep(100);
+				queue.offer(socket);
+			} catch (Exception e) {
+				// the take below fails
+			}
+		});
+		offerer.start();
+		assertSame(socket,queue.take());
+		offerer.join();
+		assertTrue(queue.getWaitNanos()>=0);
+		// a queue of one still lets its one client in
+		AcceptQueue small = new AcceptQueue(1);
+		assertTrue(small.offer(socket));
+		assertFalse(small.offer(from("10.0.0.2")));
+		assertSame(socket,small.poll(0,TimeUnit.MILLISECONDS));
+	}
+}
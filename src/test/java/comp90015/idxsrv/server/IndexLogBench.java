@@ -0,0 +1,115 @@
+package comp90015.idxsrv.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * Measures how long the index takes to recover after a restart, from the log alone and
+ * from a snapshot. It is not a test, run it with:
+ * <pre>
+ * mvn -B test-compile
+ * java -cp target/classes:target/test-classes comp90015.idxsrv.server.IndexLogBench [SHARES [SHARERS [BLOCKS]]]
+ * </pre>
+ * The index has SHARES shares, default 500000, of files that each have SHARERS sharers,
+ * default 10, and BLOCKS blocks, default 64, written to a log in a temporary directory.
+ * @author aaron
+ *
+ */
+public class IndexLogBench {
+
+	private static final ITerminalLogger QUIET = new ITerminalLogger() {
+		public void logInfo(String msg) {}
+		public void logWarn(String msg) {}
+		public void logError(String msg) {}
+		public void logDebug(String msg) {}
+	};
+
+	public static void main(String[] args) throws Exception {
+		int shares = args.length>0 ? Integer.parseInt(args[0]) : 500000;
+		int sharers = args.length>1 ? Integer.parseInt(args[1]) : 10;
+		int blocks = args.length>2 ? Integer.parseInt(args[2]) : 64;
+		int files = shares/sharers;
+		File dir = Files.createTempDirectory("indexlogbench").toFile();
+		try {
+			IndexMgr indexMgr = new IndexMgr();
+			IndexLog indexLog = open(dir,indexMgr,Long.MAX_VALUE);
+			long start = System.nanoTime();
+			for(int f=0;f<files;f++) {
+				FileDescr descr = descr(f,blocks);
+				for(int s=0;s<sharers;s++) {
+					indexMgr.share("10.0."+(s/250)+"."+(s%250),3000+s,descr,"music/album"+f/10+"/track"+f+".mp3","secret"+s);
+				}
+			}
+			close(indexLog);
+			System.out.printf("%d shares, %d files of %d blocks, %d sharers each, logged in %d ms%n",
+					files*sharers,files,blocks,sharers,(System.nanoTime()-start)/1000000);
+			for(int round=0;round<3;round++) {
+				recover(dir,"log");
+			}
+
+			// one more share takes a snapshot, which replaces the log
+			indexMgr = new IndexMgr();
+			indexLog = open(dir,indexMgr,1);
+			indexMgr.share("10.0.0.1",3000,descr(files,blocks),"music/extra.mp3","secret");
+			close(indexLog);
+			for(int round=0;round<3;round++) {
+				recover(dir,"snapshot");
+			}
+		} finally {
+			for(File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private static IndexLog open(File dir,IndexMgr indexMgr,long snapshotRecords) throws IOException {
+		IndexLog indexLog = new IndexLog(dir,indexMgr,QUIET);
+		indexLog.snapshotRecords = snapshotRecords;
+		indexLog.recover();
+		indexMgr.addListener(indexLog);
+		indexLog.start();
+		return indexLog;
+	}
+
+	private static void close(IndexLog indexLog) throws InterruptedException {
+		indexLog.interrupt();
+		indexLog.join();
+	}
+
+	private static void recover(File dir,String from) throws IOException {
+		long bytes = 0;
+		for(File file : dir.listFiles()) {
+			bytes+=file.length();
+		}
+		System.gc();
+		IndexMgr indexMgr = new IndexMgr();
+		long start = System.nanoTime();
+		new IndexLog(dir,indexMgr,QUIET).recover();
+		long time = System.nanoTime()-start;
+		// recovering opens a new, empty segment, which the next recovery deletes
+		System.out.printf("recovered from the %-8s %6.1f MB in %6d ms, %5.2f us per share%n",
+				from+":",bytes/1048576.0,time/1000000,time/1000.0/Math.max(1,count(indexMgr)));
+	}
+
+	private static long count(IndexMgr indexMgr) {
+		long n = 0;
+		for(List<IndexElement> sharers : indexMgr.files()) {
+			n+=sharers.size();
+		}
+		return n;
+	}
+
+	private static FileDescr descr(int f,int blocks) {
+		String[] blockMd5 = new String[blocks];
+		for(int b=0;b<blocks;b++) {
+			blockMd5[b]=String.format("%016X%016X",f,b);
+		}
+		return new FileDescr(blocks*16384L,16384,String.format("%032X",f*7919L+1),blockMd5);
+	}
+}
@@ -0,0 +1,191 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * Writes shares and drops through an {@link IndexLog}, stops it as the server does,
+ * and checks that recovering into a new index gives the same index, including when
+ * the log was cut off in the middle of a record or has been snapshotted.
+ * @author aaron
+ *
+ */
+public class IndexLogTest {
+
+	private static final ITerminalLogger QUIET = new ITerminalLogger() {
+		public void logInfo(String msg) {}
+		public void logWarn(String msg) {}
+		public void logError(String msg) {}
+		public void logDebug(String msg) {}
+	};
+
+	private File dir;
+
+	@Before
+	public void makeDir() throws IOException {
+		dir = Files.createTempDirectory("indexlog").toFile();
+	}
+
+	@After
+	public void removeDir() {
+		File[] files = dir.listFiles();
+		if(files!=null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	private static String filename(int f) {
+		return "dir/file"+f+".txt";
+	}
+
+	private static String md5(int f) {
+		return String.format("%032X",f*7919L+1);
+	}
+
+	private static FileDescr descr(int f) {
+		return new FileDescr(1000+f,512,md5(f),new String[] {md5(f),md5(f+1)});
+	}
+
+	/**
+	 * Recover an index from the data directory and start logging its changes.
+	 */
+	private IndexLog open(IndexMgr indexMgr) throws IOException {
+		IndexLog indexLog = new IndexLog(dir,indexMgr,QUIET);
+		indexLog.recover();
+		indexMgr.addListener(indexLog);
+		indexLog.start();
+		return indexLog;
+	}
+
+	private static void close(IndexLog indexLog) throws InterruptedException {
+		indexLog.interrupt();
+		indexLog.join();
+	}
+
+	private IndexMgr recover() throws IOException {
+		IndexMgr indexMgr = new IndexMgr();
+		new IndexLog(dir,indexMgr,QUIET).recover();
+		return indexMgr;
+	}
+
+	/**
+	 * @return every element of the index, one line each, in order
+	 */
+	private static List<String> contents(IndexMgr indexMgr) {
+		ArrayList<String> lines = new ArrayList<String>();
+		for(List<IndexElement> sharers : indexMgr.files()) {
+			for(IndexElement e : sharers) {
+				StringBuilder line = new StringBuilder();
+				line.append(e.filename).append(' ').append(e.ip).append(':').append(e.port).append(' ')
+					.append(e.secret).append(' ').append(e.fileDescr.getFileMd5()).append(' ')
+					.append(e.fileDescr.getFileLength()).append(' ').append(e.fileDescr.getBlockLength());
+				for(int b=0;b<e.fileDescr.getNumBlocks();b++) {
+					line.append(' ').append(e.fileDescr.getBlockMd5(b));
+				}
+				lines.add(line.toString());
+			}
+		}
+		Collections.sort(lines);
+		return lines;
+	}
+
+	/**
+	 * Share every file from three peers, then drop some of them and share some again
+	 * with a new secret.
+	 */
+	private static void change(IndexMgr indexMgr,int files) {
+		for(int f=0;f<files;f++) {
+			for(int p=0;p<3;p++) {
+				indexMgr.share("10.0.0."+p,3000+p,descr(f),filename(f),"secret"+p);
+			}
+		}
+		for(int f=0;f<files;f+=2) {
+			indexMgr.drop("10.0.0.1",3001,filename(f),md5(f),"secret1");
+		}
+		for(int f=0;f<files;f+=4) {
+			indexMgr.share("10.0.0.1",3001,descr(f),filename(f),"again");
+		}
+	}
+
+	@Test(timeout=30000)
+	public void replaysTheLog() throws Exception {
+		IndexMgr indexMgr = new IndexMgr();
+		IndexLog indexLog = open(indexMgr);
+		change(indexMgr,50);
+		close(indexLog);
+		assertFalse(contents(indexMgr).isEmpty());
+		assertEquals(contents(indexMgr),contents(recover()));
+	}
+
+	@Test(timeout=30000)
+	public void skipsARecordCutOffMidway() throws Exception {
+		IndexMgr indexMgr = new IndexMgr();
+		IndexLog indexLog = open(indexMgr);
+		change(indexMgr,10);
+		List<String> before = contents(indexMgr);
+		indexMgr.share("10.0.0.9",3009,descr(99),filename(99),"last");
+		close(indexLog);
+
+		// the server stopped while writing the last share
+		File segment = new File(dir,"index-1.log");
+		try(RandomAccessFile file = new RandomAccessFile(segment,"rw")) {
+			file.setLength(file.length()-5);
+		}
+		IndexMgr recovered = recover();
+		assertEquals(before,contents(recovered));
+		assertEquals(0,recovered.numSharers(filename(99),md5(99)));
+
+		// and the log carries on in a new segment, with the cut off record still skipped
+		recovered = new IndexMgr();
+		indexLog = open(recovered);
+		recovered.share("10.0.0.8",3008,descr(98),filename(98),"next");
+		close(indexLog);
+		assertTrue(new File(dir,"index-2.log").length()>0);
+		IndexMgr again = recover();
+		assertEquals(contents(recovered),contents(again));
+		assertEquals(1,again.numSharers(filename(98),md5(98)));
+		assertEquals(0,again.numSharers(filename(99),md5(99)));
+	}
+
+	@Test(timeout=30000)
+	public void replaysTheLogOnTopOfASnapshot() throws Exception {
+		IndexMgr indexMgr = new IndexMgr();
+		IndexLog indexLog = new IndexLog(dir,indexMgr,QUIET);
+		indexLog.snapshotRecords = 100;
+		indexLog.recover();
+		indexMgr.addListener(indexLog);
+		indexLog.start();
+		change(indexMgr,40);
+		File snap = new File(dir,"index.snap");
+		while(!snap.exists()) {
+			Thread.sleep(10);
+		}
+		for(int f=0;f<40;f+=3) {
+			indexMgr.drop("10.0.0.2",3002,filename(f),md5(f),"secret2");
+		}
+		indexMgr.share("10.0.0.7",3007,descr(77),filename(77),"late");
+		close(indexLog);
+
+		assertFalse(new File(dir,"index-1.log").exists());
+		assertEquals(contents(indexMgr),contents(recover()));
+	}
+}
@@ -0,0 +1,113 @@
+package comp90015.idxsrv.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+/**
+ * Measures the heap that the index takes for a catalog of popular files, and the time
+ * and garbage of a lookup. It is not a test, run it with:
+ * <pre>
+ * mvn -B test-compile
+ * java -cp target/classes:target/test-classes comp90015.idxsrv.server.IndexMgrBench [SHARES [SHARERS [BLOCKS]]]
+ * </pre>
+ * The catalog has SHARES shares, default 100000, of files that each have SHARERS sharers,
+ * default 10, and BLOCKS blocks, default 64. For comparison, the heap is also measured
+ * for the same shares held as an {@link IndexElement} each, with its own descriptor,
+ * as the index held them before descriptors were packed.
+ * @author aaron
+ *
+ */
+public class IndexMgrBench {
+
+	private static final int LOOKUPS = 1000000;
+
+	public static void main(String[] args) {
+		int shares = args.length>0 ? Integer.parseInt(args[0]) : 100000;
+		int sharers = args.length>1 ? Integer.parseInt(args[1]) : 10;
+		int blocks = args.length>2 ? Integer.parseInt(args[2]) : 64;
+		int files = shares/sharers;
+		FileDescr[] descrs = new FileDescr[files];
+		for(int f=0;f<files;f++) {
+			descrs[f]=descr(f,blocks);
+		}
+
+		long before = usedHeap();
+		IndexMgr indexMgr = new IndexMgr();
+		for(int f=0;f<files;f++) {
+			for(int s=0;s<sharers;s++) {
+				// each share brings its own strings and descriptor, as a request does
+				indexMgr.share("10.0."+(s/250)+"."+(s%250),3000+s,descr(f,blocks),"music/album"+f/10+"/track"+f+".mp3","secret"+s);
+			}
+		}
+		long index = usedHeap()-before;
+
+		before = usedHeap();
+		ArrayList<IndexElement> elements = new ArrayList<IndexElement>(shares);
+		for(int f=0;f<files;f++) {
+			for(int s=0;s<sharers;s++) {
+				elements.add(new IndexElement("10.0."+(s/250)+"."+(s%250),3000+s,descr(f,blocks),"music/album"+f/10+"/track"+f+".mp3","secret"+s));
+			}
+		}
+		long unpacked = usedHeap()-before;
+
+		System.out.printf("%d shares, %d files of %d blocks, %d sharers each%n",files*sharers,files,blocks,sharers);
+		System.out.printf("index:             %6.1f MB per 100k shares, %5d bytes per share%n",
+				index*100000.0/(files*sharers)/(1<<20),index/(files*sharers));
+		System.out.printf("element per share: %6.1f MB per 100k shares, %5d bytes per share%n",
+				unpacked*100000.0/(files*sharers)/(1<<20),unpacked/(files*sharers));
+
+		String[] filenames = new String[files];
+		for(int f=0;f<files;f++) {
+			filenames[f]="music/album"+f/10+"/track"+f+".mp3";
+		}
+		for(int round=0;round<3;round++) {
+			lookups(indexMgr,filenames,descrs,false);
+			lookups(indexMgr,filenames,descrs,true);
+		}
+		if(elements.size()+indexMgr.peers().size()<0) System.out.println();
+	}
+
+	/**
+	 * Time lookups, either only counting the sharers, as a share's reply does, or making
+	 * every element, as a lookup's reply does.
+	 */
+	private static void lookups(IndexMgr indexMgr,String[] filenames,FileDescr[] descrs,boolean elements) {
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long found = 0;
+		long allocated = mx.getCurrentThreadAllocatedBytes();
+		long start = System.nanoTime();
+		for(int i=0;i<LOOKUPS;i++) {
+			int f = (int) ((i*2654435761L)%filenames.length);
+			List<IndexElement> hits = indexMgr.lookup(filenames[f],descrs[f].getFileMd5());
+			if(elements) {
+				for(IndexElement hit : hits) {
+					found+=hit.port;
+				}
+			} else {
+				found+=hits.size();
+			}
+		}
+		long time = System.nanoTime()-start;
+		allocated = mx.getCurrentThreadAllocatedBytes()-allocated;
+		System.out.printf("lookup%s: %6.0f ns, %6d bytes allocated per lookup (%d)%n",
+				elements ? " and read elements" : " and count sharers",(double) time/LOOKUPS,allocated/LOOKUPS,found);
+	}
+
+	private static FileDescr descr(int f,int blocks) {
+		String[] blockMd5 = new String[blocks];
+		for(int b=0;b<blocks;b++) {
+			blockMd5[b]=String.format("%016X%016X",f,b);
+		}
+		return new FileDescr(blocks*16384L,16384,String.format("%032X",f*7919L+1),blockMd5);
+	}
+
+	private static long usedHeap() {
+		for(int i=0;i<5;i++) {
+			System.gc();
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+}
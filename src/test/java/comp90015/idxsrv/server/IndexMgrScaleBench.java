@@ -0,0 +1,111 @@
+package comp90015.idxsrv.server;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+/**
+ * Measures how the throughput of shares, drops, searches and lookups on one index grows
+ * with the number of threads making them, as the workers of the server do. It is not a
+ * test, run it with:
+ * <pre>
+ * mvn -B test-compile
+ * java -cp target/classes:target/test-classes comp90015.idxsrv.server.IndexMgrScaleBench [FILES [SECONDS]]
+ * </pre>
+ * The index starts with FILES files, default 20000, each shared by three peers. Each
+ * thread is a peer of its own, which shares and drops files of the catalog in turn and
+ * searches and looks up the rest of the time, for SECONDS seconds, default 3, with 1, 2,
+ * 4 and then as many threads as there are processors, and then twice as many.
+ * @author aaron
+ *
+ */
+public class IndexMgrScaleBench {
+
+	public static void main(String[] args) throws Exception {
+		int files = args.length>0 ? Integer.parseInt(args[0]) : 20000;
+		int seconds = args.length>1 ? Integer.parseInt(args[1]) : 3;
+		int cores = Runtime.getRuntime().availableProcessors();
+		String[] filenames = new String[files];
+		FileDescr[] descrs = new FileDescr[files];
+		IndexMgr indexMgr = new IndexMgr();
+		for(int f=0;f<files;f++) {
+			filenames[f]="music/album"+f/10+"/track"+f+".mp3";
+			descrs[f]=new FileDescr(1000+f,512,String.format("%032X",f*7919L+1),
+					new String[] {String.format("%032X",f),String.format("%032X",f+1)});
+			for(int p=0;p<3;p++) {
+				indexMgr.share("10.0.0."+p,3000+p,descrs[f],filenames[f],"secret"+p);
+			}
+		}
+		System.out.printf("%d files, %d processors, %d s per run%n",files,cores,seconds);
+		ArrayList<Integer> runs = new ArrayList<Integer>();
+		for(int threads : new int[] {1,2,4,cores,cores*2}) {
+			if(!runs.contains(threads)) runs.add(threads);
+		}
+		// until the code is compiled, with and without contention
+		run(indexMgr,filenames,descrs,1,seconds);
+		run(indexMgr,filenames,descrs,2,seconds);
+		double single = 0;
+		for(int threads : runs) {
+			double rate = run(indexMgr,filenames,descrs,threads,seconds);
+			if(threads==1) single = rate;
+			System.out.printf("%3d threads: %10.0f operations/s, %5.2fx one thread%n",threads,rate,rate/single);
+		}
+	}
+
+	/**
+	 * @return the operations per second of all threads together
+	 */
+	private static double run(IndexMgr indexMgr,String[] filenames,FileDescr[] descrs,int threads,int seconds)
+			throws InterruptedException {
+		AtomicBoolean stop = new AtomicBoolean();
+		AtomicLong operations = new AtomicLong();
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for(int t=0;t<threads;t++) {
+			final String ip = "10.1."+(t/250)+"."+(t%250);
+			final int offset = t*7919;
+			workers[t] = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				long n = 0;
+				ArrayList<Integer> seedCounts = new ArrayList<Integer>();
+				for(int i=0;!stop.get();i++) {
+					int f = (offset+i*31)%filenames.length;
+					switch(i%10) {
+					case 0:
+						indexMgr.share(ip,4000,descrs[f],filenames[f],"secret");
+						break;
+					case 1:
+						// the file shared by the operation before last
+						int g = (offset+(i-1)*31)%filenames.length;
+						indexMgr.drop(ip,4000,filenames[g],descrs[g].getFileMd5(),"secret");
+						break;
+					case 2: case 3: case 4:
+						indexMgr.lookup(filenames[f],descrs[f].getFileMd5());
+						break;
+					default:
+						seedCounts.clear();
+						indexMgr.search(new String[] {"track"+f},10,seedCounts);
+					}
+					n++;
+				}
+				operations.addAndGet(n);
+			});
+			workers[t].start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		Thread.sleep(seconds*1000L);
+		stop.set(true);
+		for(Thread worker : workers) {
+			worker.join();
+		}
+		return operations.get()/((System.nanoTime()-begin)/1e9);
+	}
+}
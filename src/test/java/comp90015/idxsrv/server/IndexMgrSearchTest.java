@@ -0,0 +1,185 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+/**
+ * Searches an {@link IndexMgr} through its term and trigram index, and checks that it
+ * finds what a scan of every filename would, for keywords that are parts of terms,
+ * shorter than a trigram or not letters at all, and that its hits are ranked by seed
+ * count, then by filename, whatever the bound on their number.
+ * @author aaron
+ *
+ */
+public class IndexMgrSearchTest {
+
+	private static FileDescr descr(int f) {
+		String md5 = String.format("%032X",f*7919L+1);
+		return new FileDescr(1000+f,512,md5,new String[] {md5,md5});
+	}
+
+	/**
+	 * Share a file from the given number of peers.
+	 */
+	private static void share(IndexMgr indexMgr,int f,String filename,int sharers) {
+		for(int p=0;p<sharers;p++) {
+			indexMgr.share("10.0.0."+p,3000+p,descr(f),filename,"secret");
+		}
+	}
+
+	/**
+	 * @return the filenames of the hits, in order
+	 */
+	private static List<String> search(IndexMgr indexMgr,int maxhits,String... keywords) {
+		ArrayList<String> filenames = new ArrayList<String>();
+		for(IndexElement hit : indexMgr.search(keywords,maxhits,null)) {
+			filenames.add(hit.filename);
+		}
+		return filenames;
+	}
+
+	private static TreeSet<String> found(IndexMgr indexMgr,String... keywords) {
+		return new TreeSet<String>(search(indexMgr,0,keywords));
+	}
+
+	private static TreeSet<String> set(String... filenames) {
+		return new TreeSet<String>(Arrays.asList(filenames));
+	}
+
+	private static IndexMgr catalog() {
+		IndexMgr indexMgr = new IndexMgr();
+		share(indexMgr,1,"docs/Report.pdf",1);
+		share(indexMgr,2,"portable.txt",1);
+		share(indexMgr,3,"sport/x.mp3",1);
+		share(indexMgr,4,"other.txt",1);
+		share(indexMgr,5,"po-ta-to.txt",1);
+		return indexMgr;
+	}
+
+	@Test
+	public void keywordsMatchInsideTerms() {
+		IndexMgr indexMgr = catalog();
+		assertEquals(set("docs/Report.pdf","portable.txt","sport/x.mp3"),found(indexMgr,"port"));
+		assertEquals(set("docs/Report.pdf"),found(indexMgr,"eport"));
+		assertEquals(set("docs/Report.pdf"),found(indexMgr,"report.pdf"));
+		assertEquals(set("docs/Report.pdf"),found(indexMgr,"port","pdf"));
+		assertEquals(set("sport/x.mp3"),found(indexMgr,"sport/x"));
+		assertEquals(set(),found(indexMgr,"portx"));
+		assertEquals(set(),found(indexMgr,"port","txt","mp3"));
+	}
+
+	@Test
+	public void fragmentsShorterThanATrigramMatch() {
+		IndexMgr indexMgr = catalog();
+		assertEquals(set("docs/Report.pdf","portable.txt","sport/x.mp3","po-ta-to.txt"),found(indexMgr,"po"));
+		assertEquals(set("portable.txt","sport/x.mp3","other.txt","po-ta-to.txt"),found(indexMgr,"t","x"));
+		assertEquals(set("po-ta-to.txt"),found(indexMgr,"po-ta"));
+		assertEquals(set("docs/Report.pdf","sport/x.mp3"),found(indexMgr,"/"));
+		assertEquals(set("po-ta-to.txt"),found(indexMgr,"-"));
+		assertEquals(5,found(indexMgr,"").size());
+		assertEquals(5,found(indexMgr).size());
+	}
+
+	@Test
+	public void dropsAreNoLongerFound() {
+		IndexMgr indexMgr = catalog();
+		indexMgr.drop("10.0.0.0",3000,"portable.txt",descr(2).getFileMd5(),"secret");
+		assertEquals(set("docs/Report.pdf","sport/x.mp3"),found(indexMgr,"port"));
+		assertEquals(set(),found(indexMgr,"portable"));
+		assertEquals(set(),found(indexMgr,"abl"));
+		share(indexMgr,2,"portable.txt",1);
+		assertEquals(set("portable.txt"),found(indexMgr,"abl"));
+	}
+
+	@Test
+	public void hitsAreRankedBySeedsThenByFilename() {
+		IndexMgr indexMgr = new IndexMgr();
+		share(indexMgr,1,"bb.mp3",1);
+		share(indexMgr,2,"d.mp3",1);
+		share(indexMgr,3,"aaa.mp3",3);
+		share(indexMgr,4,"c.mp3",1);
+		share(indexMgr,5,"a.mp3",3);
+		share(indexMgr,6,"zz.mp3",2);
+		ArrayList<Integer> seedCounts = new ArrayList<Integer>();
+		ArrayList<String> filenames = new ArrayList<String>();
+		for(IndexElement hit : indexMgr.search(new String[] {"mp3"},0,seedCounts)) {
+			filenames.add(hit.filename);
+		}
+		// more sharers first, then the shorter filename, then the filename
+		assertEquals(Arrays.asList("a.mp3","aaa.mp3","zz.mp3","c.mp3","d.mp3","bb.mp3"),filenames);
+		assertEquals(Arrays.asList(3,3,2,1,1,1),seedCounts);
+		assertEquals(Arrays.asList("a.mp3","aaa.mp3","zz.mp3","c.mp3"),search(indexMgr,4,"mp3"));
+		assertEquals(Arrays.asList("a.mp3"),search(indexMgr,1,"mp3"));
+	}
+
+	@Test
+	public void aFileIsOneHitUnderItsBestName() {
+		IndexMgr indexMgr = new IndexMgr();
+		share(indexMgr,1,"song-long-name.mp3",2);
+		share(indexMgr,1,"song.mp3",2);
+		share(indexMgr,2,"song-other.mp3",1);
+		assertEquals(Arrays.asList("song.mp3","song-other.mp3"),search(indexMgr,0,"song"));
+		assertEquals(Arrays.asList("song.mp3"),search(indexMgr,1,"song"));
+	}
+
+	/**
+	 * Random filenames and keywords, checked against a scan of every filename, and the
+	 * best hits under a bound against the first of all of the hits.
+	 */
+	@Test
+	public void searchesFindWhatAScanFinds() {
+		Random random = new Random(42);
+		String letters = "abcdeo";
+		String separators = "/._- ";
+		IndexMgr indexMgr = new IndexMgr();
+		ArrayList<String> filenames = new ArrayList<String>();
+		for(int f=0;f<400;f++) {
+			StringBuilder sb = new StringBuilder();
+			int parts = 1+random.nextInt(4);
+			for(int p=0;p<parts;p++) {
+				if(p>0) sb.append(separators.charAt(random.nextInt(separators.length())));
+				int length = 1+random.nextInt(6);
+				for(int i=0;i<length;i++) {
+					char c = letters.charAt(random.nextInt(letters.length()));
+					sb.append(random.nextInt(5)==0 ? Character.toUpperCase(c) : c);
+				}
+			}
+			String filename = sb.toString()+f;
+			filenames.add(filename);
+			share(indexMgr,f,filename,1+random.nextInt(4));
+		}
+		for(int q=0;q<300;q++) {
+			String[] keywords = new String[1+random.nextInt(2)];
+			for(int k=0;k<keywords.length;k++) {
+				String name = filenames.get(random.nextInt(filenames.size())).toLowerCase();
+				int start = random.nextInt(name.length());
+				keywords[k] = name.substring(start,Math.min(name.length(),start+1+random.nextInt(5)));
+			}
+			TreeSet<String> expected = new TreeSet<String>();
+			for(String filename : filenames) {
+				boolean all = true;
+				for(String keyword : keywords) {
+					all &= filename.toLowerCase().contains(keyword);
+				}
+				if(all) expected.add(filename);
+			}
+			List<String> all = search(indexMgr,0,keywords);
+			assertEquals(Arrays.toString(keywords),expected,new TreeSet<String>(all));
+			for(int maxhits : new int[] {1,5,20}) {
+				assertEquals(Arrays.toString(keywords)+" top "+maxhits,
+						all.subList(0,Math.min(maxhits,all.size())),search(indexMgr,maxhits,keywords));
+			}
+		}
+		assertEquals(Collections.emptyList(),search(indexMgr,10,"zzz"));
+	}
+}
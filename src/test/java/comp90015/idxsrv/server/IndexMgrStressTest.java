@@ -0,0 +1,225 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.server.IndexMgr.RETCODE;
+
+/**
+ * Shares, drops, searches and lookups on one {@link IndexMgr} from many threads at once,
+ * checking that readers only ever see whole elements, and that the index ends up as
+ * the same operations would leave it one at a time.
+ * @author aaron
+ *
+ */
+public class IndexMgrStressTest {
+
+	private static final int PEERS = 8;
+
+	private static final int FILES = 500;
+
+	private static final int READERS = 2;
+
+	private static String filename(int f) {
+		return "dir/file"+f+".txt";
+	}
+
+	private static String md5(int f) {
+		return String.format("%032X",f*7919L+1);
+	}
+
+	private static FileDescr descr(int f) {
+		return new FileDescr(1000+f,512,md5(f),new String[] {md5(f),md5(f+1)});
+	}
+
+	@Test(timeout=60000)
+	public void sharesAndDropsFromManyPeersWhileReading() throws Exception {
+		IndexMgr indexMgr = new IndexMgr();
+		ExecutorService executor = Executors.newFixedThreadPool(PEERS+READERS);
+		ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<String>();
+		AtomicBoolean writing = new AtomicBoolean(true);
+		CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<?>> readers = new ArrayList<Future<?>>();
+			for(int r=0;r<READERS;r++) {
+				readers.add(executor.submit(() -> {
+					start.await();
+					while(writing.get()) {
+						read(indexMgr,failures);
+					}
+					return null;
+				}));
+			}
+			// every peer shares every file, then drops half of them, interleaved with
+			// the other peers, so that every file's entry is changed by all of them
+			List<Future<?>> writers = new ArrayList<Future<?>>();
+			for(int p=0;p<PEERS;p++) {
+				int peer = p;
+				writers.add(executor.submit(() -> {
+					start.await();
+					for(int f=0;f<FILES;f++) {
+						RETCODE r = indexMgr.share("10.0.0."+peer,3000,descr(f),filename(f),"secret"+peer);
+						if(r!=RETCODE.SUCCESS) failures.add("share "+f+" by "+peer+": "+r);
+					}
+					for(int f=0;f<FILES;f++) {
+						if((f+peer)%2!=0) continue;
+						RETCODE r = indexMgr.drop("10.0.0."+peer,3000,filename(f),md5(f),"secret"+peer);
+						if(r!=RETCODE.SUCCESS) failures.add("drop "+f+" by "+peer+": "+r);
+					}
+					return null;
+				}));
+			}
+			start.countDown();
+			for(Future<?> writer : writers) {
+				writer.get();
+			}
+			writing.set(false);
+			for(Future<?> reader : readers) {
+				reader.get();
+			}
+			assertTrue(failures.toString(),failures.isEmpty());
+
+			for(int f=0;f<FILES;f++) {
+				assertEquals(PEERS/2,indexMgr.numSharers(filename(f),md5(f)));
+				List<IndexElement> hits = indexMgr.lookup(filename(f),md5(f));
+				assertEquals(PEERS/2,hits.size());
+				for(IndexElement hit : hits) {
+					int peer = Integer.parseInt(hit.ip.substring("10.0.0.".length()));
+					assertTrue((f+peer)%2!=0);
+					assertEquals("secret"+peer,hit.secret);
+					assertEquals(md5(f),hit.fileDescr.getFileMd5());
+					assertEquals(1000+f,hit.fileDescr.getFileLength());
+					assertEquals(md5(f+1),hit.fileDescr.getBlockMd5(1));
+				}
+			}
+			for(int p=0;p<PEERS;p++) {
+				assertEquals(FILES/2,indexMgr.numShares("10.0.0."+p,3000));
+			}
+			ArrayList<Integer> seedCounts = new ArrayList<Integer>();
+			assertEquals(FILES,indexMgr.search(new String[] {"file"},0,seedCounts).size());
+			for(int seeds : seedCounts) {
+				assertEquals(PEERS/2,seeds);
+			}
+
+			// the peers drop the rest at once, which must leave nothing behind
+			writers.clear();
+			for(int p=0;p<PEERS;p++) {
+				int peer = p;
+				writers.add(executor.submit(() -> {
+					for(int f=0;f<FILES;f++) {
+						if((f+peer)%2==0) continue;
+						RETCODE r = indexMgr.drop("10.0.0."+peer,3000,filename(f),md5(f),"secret"+peer);
+						if(r!=RETCODE.SUCCESS) failures.add("drop "+f+" by "+peer+": "+r);
+					}
+					return null;
+				}));
+			}
+			for(Future<?> writer : writers) {
+				writer.get();
+			}
+			assertTrue(failures.toString(),failures.isEmpty());
+			assertEquals(0,indexMgr.search(new String[] {"file"},0,null).size());
+			assertEquals(0,indexMgr.search(new String[] {""},0,null).size());
+			assertTrue(indexMgr.peers().isEmpty());
+			assertTrue(indexMgr.lookup(filename(0),md5(0)).isEmpty());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Search and look up while the index changes, checking that every hit is whole.
+	 */
+	private static void read(IndexMgr indexMgr,ConcurrentLinkedQueue<String> failures) {
+		ArrayList<Integer> seedCounts = new ArrayList<Integer>();
+		ArrayList<IndexElement> hits = indexMgr.search(new String[] {"file1"},20,seedCounts);
+		for(int i=0;i<hits.size();i++) {
+			IndexElement hit = hits.get(i);
+			if(!hit.filename.contains("file1") || seedCounts.get(i)<1 || seedCounts.get(i)>PEERS) {
+				failures.add("search hit "+hit.filename+" with "+seedCounts.get(i)+" seeds");
+			}
+		}
+		int f = (int) (Math.random()*FILES);
+		for(IndexElement hit : indexMgr.lookup(filename(f),md5(f))) {
+			if(!hit.filename.equals(filename(f)) || !hit.fileDescr.getFileMd5().equals(md5(f))
+					|| !hit.secret.equals("secret"+hit.ip.substring("10.0.0.".length()))) {
+				failures.add("lookup hit "+hit.filename+" from "+hit.ip);
+			}
+		}
+		int n = indexMgr.numSharers(filename(f),md5(f));
+		if(n<0 || n>PEERS) failures.add("lookup of "+f+" counted "+n+" sharers");
+	}
+
+	@Test(timeout=60000)
+	public void racingSharesAndDropsOfOneElementAgree() throws Exception {
+		int threads = 16;
+		for(int round=0;round<50;round++) {
+			IndexMgr indexMgr = new IndexMgr();
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				CountDownLatch start = new CountDownLatch(1);
+				List<Future<RETCODE>> shares = new ArrayList<Future<RETCODE>>();
+				for(int t=0;t<threads;t++) {
+					String secret = "secret"+t;
+					shares.add(executor.submit(() -> {
+						start.await();
+						return indexMgr.share("10.0.0.1",3000,descr(1),filename(1),secret);
+					}));
+				}
+				start.countDown();
+				// the first share wins, and the others have the wrong secret
+				int won = -1;
+				for(int t=0;t<threads;t++) {
+					RETCODE r = shares.get(t).get();
+					if(r==RETCODE.SUCCESS) {
+						assertEquals(-1,won);
+						won=t;
+					} else {
+						assertEquals(RETCODE.FAILEDSECRET,r);
+					}
+				}
+				assertTrue(won>=0);
+				List<IndexElement> hits = indexMgr.lookup(filename(1),md5(1));
+				assertEquals(1,hits.size());
+				assertEquals("secret"+won,hits.get(0).secret);
+
+				CountDownLatch again = new CountDownLatch(1);
+				String secret = "secret"+won;
+				List<Future<RETCODE>> drops = new ArrayList<Future<RETCODE>>();
+				for(int t=0;t<threads;t++) {
+					drops.add(executor.submit(() -> {
+						again.await();
+						return indexMgr.drop("10.0.0.1",3000,filename(1),md5(1),secret);
+					}));
+				}
+				again.countDown();
+				int dropped = 0;
+				for(Future<RETCODE> drop : drops) {
+					RETCODE r = drop.get();
+					if(r==RETCODE.SUCCESS) {
+						dropped++;
+					} else {
+						assertEquals(RETCODE.INVALID,r);
+					}
+				}
+				assertEquals(1,dropped);
+				assertEquals(0,indexMgr.numSharers(filename(1),md5(1)));
+				assertTrue(indexMgr.peers().isEmpty());
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+}
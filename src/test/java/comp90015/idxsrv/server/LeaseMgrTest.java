@@ -0,0 +1,129 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * Runs a {@link LeaseMgr} with short leases, and checks that a peer's shares are
+ * dropped once its lease runs out, and not before, that renewing the lease keeps
+ * them, and that a lease longer than a turn of the wheel lasts its whole length.
+ * Since a lease can only be late to expire, a share is only checked to be there
+ * while its lease has certainly not run out.
+ * @author aaron
+ *
+ */
+public class LeaseMgrTest {
+
+	private static final ITerminalLogger QUIET = new ITerminalLogger() {
+		public void logInfo(String msg) {}
+		public void logWarn(String msg) {}
+		public void logError(String msg) {}
+		public void logDebug(String msg) {}
+	};
+
+	private LeaseMgr leaseMgr;
+
+	@After
+	public void stop() throws InterruptedException {
+		if(leaseMgr!=null) {
+			leaseMgr.interrupt();
+			leaseMgr.join();
+		}
+	}
+
+	private static IndexMgr index(int peers) {
+		IndexMgr indexMgr = new IndexMgr();
+		for(int p=0;p<peers;p++) {
+			for(int f=0;f<3;f++) {
+				String md5 = String.format("%032X",f*7919L+1);
+				indexMgr.share("10.0.0."+p,3000,new FileDescr(1000,512,md5,new String[] {md5,md5}),"file"+f+".txt","secret");
+			}
+		}
+		return indexMgr;
+	}
+
+	/**
+	 * Wait until the peer has no shares left.
+	 * @return how long that took in milliseconds
+	 */
+	private static long waitForExpiry(IndexMgr indexMgr,String ip,long since) throws InterruptedException {
+		while(indexMgr.numShares(ip,3000)>0) {
+			Thread.sleep(5);
+		}
+		return System.currentTimeMillis()-since;
+	}
+
+	/**
+	 * Wait until the lease manager has counted the leases that expired, which it does
+	 * just after their shares are dropped, and check that no more did.
+	 */
+	private void waitForExpired(int n) throws InterruptedException {
+		while(leaseMgr.getNumExpired()<n) {
+			Thread.sleep(5);
+		}
+		assertEquals(n,leaseMgr.getNumExpired());
+	}
+
+	@Test(timeout=10000)
+	public void sharesAreDroppedWhenTheLeaseRunsOut() throws Exception {
+		IndexMgr indexMgr = index(1);
+		leaseMgr = new LeaseMgr(300,indexMgr,QUIET);
+		long renewed = System.currentTimeMillis();
+		leaseMgr.renew("10.0.0.0",3000);
+		leaseMgr.start();
+		Thread.sleep(100);
+		if(System.currentTimeMillis()-renewed<250) {
+			assertEquals(3,indexMgr.numShares("10.0.0.0",3000));
+		}
+		assertTrue(waitForExpiry(indexMgr,"10.0.0.0",renewed)>=300);
+		waitForExpired(1);
+		assertTrue(indexMgr.peers().isEmpty());
+	}
+
+	@Test(timeout=10000)
+	public void renewingKeepsTheShares() throws Exception {
+		IndexMgr indexMgr = index(2);
+		leaseMgr = new LeaseMgr(300,indexMgr,QUIET);
+		leaseMgr.renew("10.0.0.0",3000);
+		leaseMgr.renew("10.0.0.1",3000);
+		leaseMgr.start();
+		long renewed = System.currentTimeMillis();
+		long until = renewed+1000;
+		while(System.currentTimeMillis()<until) {
+			long now = System.currentTimeMillis();
+			if(now-renewed<250) {
+				assertEquals(3,indexMgr.numShares("10.0.0.1",3000));
+			}
+			leaseMgr.renew("10.0.0.1",3000);
+			renewed = now;
+			Thread.sleep(50);
+		}
+		// the peer that was not renewed has gone, the other is still there until it stops
+		assertEquals(0,indexMgr.numShares("10.0.0.0",3000));
+		assertTrue(waitForExpiry(indexMgr,"10.0.0.1",renewed)>=300);
+		waitForExpired(2);
+	}
+
+	@Test(timeout=20000)
+	public void aLeaseLongerThanATurnOfTheWheelLastsItsLength() throws Exception {
+		IndexMgr indexMgr = index(1);
+		// ticks of 10ms, so that a turn of the wheel's 256 slots takes 2560ms
+		leaseMgr = new LeaseMgr(1000,indexMgr,QUIET);
+		leaseMgr.start();
+		long renewed = System.currentTimeMillis();
+		leaseMgr.renewFor("10.0.0.0:3000",4000);
+		Thread.sleep(3000);
+		if(System.currentTimeMillis()-renewed<3900) {
+			// its slot has come round once already
+			assertEquals(3,indexMgr.numShares("10.0.0.0",3000));
+		}
+		assertTrue(waitForExpiry(indexMgr,"10.0.0.0",renewed)>=4000);
+		waitForExpired(1);
+	}
+}
@@ -0,0 +1,126 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.message.SearchReply;
+
+/**
+ * Runs searches through a {@link QueryCache}, counting the ones that are actually
+ * searched, and checks that repeated searches are answered from the cache, that a
+ * share or drop removes exactly the searches its filename matches, including one
+ * made while the search runs, and that searches are evicted when they expire or are
+ * the least recently used of a full cache.
+ * @author aaron
+ *
+ */
+public class QueryCacheTest {
+
+	private AtomicInteger searched = new AtomicInteger();
+
+	private Supplier<SearchReply> search() {
+		return () -> {
+			searched.incrementAndGet();
+			return new SearchReply(new ArrayList<IndexElement>(),new Integer[0]);
+		};
+	}
+
+	/**
+	 * @return true if the search was answered from the cache
+	 */
+	private boolean cached(QueryCache cache,int maxhits,String... keywords) {
+		int before = searched.get();
+		cache.search(keywords,maxhits,search());
+		return searched.get()==before;
+	}
+
+	private static void share(QueryCache cache,String filename) {
+		String md5 = String.format("%032X",filename.hashCode());
+		cache.shared("10.0.0.1",3000,new FileDescr(1000,512,md5,new String[] {md5,md5}),filename,"secret");
+	}
+
+	@Test
+	public void repeatedSearchesAreAnsweredFromTheCache() {
+		QueryCache cache = new QueryCache(100);
+		SearchReply reply = cache.search(new String[] {"song","mp3"},10,search());
+		assertSame(reply,cache.search(new String[] {"song","mp3"},10,search()));
+		assertSame(reply,cache.search(new String[] {"mp3","song","mp3"},10,search()));
+		assertEquals(1,searched.get());
+		assertEquals(false,cached(cache,20,"song","mp3"));
+		assertEquals(false,cached(cache,10,"song"));
+		assertEquals(true,cached(cache,20,"song","mp3"));
+	}
+
+	@Test
+	public void aChangeRemovesExactlyTheSearchesItMatches() {
+		QueryCache cache = new QueryCache(100);
+		String[][] searches = {{"song"},{"mp3"},{"so"},{"g"},{""},{"mus","p3"},{"song","pdf"},{"pdf"},{"songs"}};
+		for(String[] keywords : searches) {
+			cache.search(keywords,10,search());
+		}
+		share(cache,"Music/Song.MP3");
+		// the searches that the filename matches are searched again, the rest are not
+		boolean[] kept = {false,false,false,false,false,false,true,true,true};
+		for(int i=0;i<searches.length;i++) {
+			assertEquals(String.join(",",searches[i]),kept[i],cached(cache,10,searches[i]));
+		}
+		cache.dropped("10.0.0.1",3000,"report.pdf","0","secret");
+		assertEquals(true,cached(cache,10,"song","pdf"));
+		assertEquals(false,cached(cache,10,"pdf"));
+		assertEquals(false,cached(cache,10,""));
+		assertEquals(true,cached(cache,10,"mp3"));
+	}
+
+	@Test
+	public void aChangeWhileSearchingIsNotCached() {
+		QueryCache cache = new QueryCache(100);
+		cache.search(new String[] {"song"},10,() -> {
+			share(cache,"song.mp3");
+			return search().get();
+		});
+		assertEquals(false,cached(cache,10,"song"));
+		assertEquals(true,cached(cache,10,"song"));
+		cache.search(new String[] {"pdf"},10,() -> {
+			share(cache,"song.mp3");
+			return search().get();
+		});
+		assertEquals(true,cached(cache,10,"pdf"));
+	}
+
+	@Test
+	public void expiredSearchesAreSearchedAgain() throws InterruptedException {
+		QueryCache cache = new QueryCache(100,100);
+		cache.search(new String[] {"song"},10,search());
+		assertEquals(true,cached(cache,10,"song"));
+		Thread.sleep(150);
+		assertEquals(false,cached(cache,10,"song"));
+		assertEquals(true,cached(cache,10,"song"));
+	}
+
+	@Test
+	public void theLeastRecentlyUsedAreEvictedWhenFull() throws InterruptedException {
+		QueryCache cache = new QueryCache(10);
+		for(int q=0;q<10;q++) {
+			cache.search(new String[] {"q"+q},10,search());
+			Thread.sleep(2);
+		}
+		for(int q=0;q<5;q++) {
+			assertEquals(true,cached(cache,10,"q"+q));
+		}
+		Thread.sleep(2);
+		// one too many evicts a tenth of the capacity as well, here the two used least recently
+		cache.search(new String[] {"q10"},10,search());
+		for(int q : new int[] {0,1,2,3,4,7,8,9,10}) {
+			assertEquals("q"+q,true,cached(cache,10,"q"+q));
+		}
+		assertEquals(false,cached(cache,10,"q5"));
+		assertEquals(false,cached(cache,10,"q6"));
+	}
+}
@@ -0,0 +1,87 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Takes tokens from a {@link RateLimiter}, and checks that each client may make a
+ * burst of requests at once and then no more than the rate, whatever the others do,
+ * that a bucket refills up to the burst and no further, and that a client gets no
+ * more than its burst while its bucket is being forgotten by reports.
+ * @author aaron
+ *
+ */
+public class RateLimiterTest {
+
+	/**
+	 * @return the number of requests the client could make before it was turned away
+	 */
+	private static int drain(RateLimiter rateLimiter,String ip) {
+		int n = 0;
+		while(rateLimiter.acquire(ip)) {
+			n++;
+		}
+		return n;
+	}
+
+	@Test
+	public void aBurstAndThenTheRate() throws InterruptedException {
+		RateLimiter rateLimiter = new RateLimiter(10,5);
+		assertEquals(5,drain(rateLimiter,"10.0.0.1"));
+		assertFalse(rateLimiter.acquire("10.0.0.1"));
+		// another client has a bucket of its own
+		assertEquals(5,drain(rateLimiter,"10.0.0.2"));
+		Thread.sleep(350);
+		// three and a half tokens, or a few more if this thread was held up
+		int refilled = drain(rateLimiter,"10.0.0.1");
+		assertTrue("refilled "+refilled,refilled>=3 && refilled<=5);
+	}
+
+	@Test
+	public void aBucketRefillsUpToTheBurst() throws InterruptedException {
+		RateLimiter rateLimiter = new RateLimiter(10,3);
+		assertEquals(3,drain(rateLimiter,"10.0.0.1"));
+		Thread.sleep(1000);
+		assertEquals(3,drain(rateLimiter,"10.0.0.1"));
+		// at least one, however small the burst
+		assertEquals(1,drain(new RateLimiter(0.001,0),"10.0.0.1"));
+	}
+
+	@Test
+	public void aReportCountsTheRequestsSinceTheLast() {
+		RateLimiter rateLimiter = new RateLimiter(0.001,4);
+		drain(rateLimiter,"10.0.0.1");
+		rateLimiter.acquire("10.0.0.2");
+		String report = rateLimiter.report();
+		assertTrue(report,report.contains("clients 2, requests 5, throttled 1"));
+		assertTrue(report,report.contains("heaviest 10.0.0.1 4/1 10.0.0.2 1/0"));
+		assertTrue(rateLimiter.report().contains("clients 0, requests 0, throttled 0"));
+		assertFalse(rateLimiter.acquire("10.0.0.1"));
+	}
+
+	@Test
+	public void aBucketForgottenByAReportIsNotTakenFrom() throws InterruptedException {
+		RateLimiter rateLimiter = new RateLimiter(1e-9,5);
+		AtomicBoolean stop = new AtomicBoolean();
+		Thread reporter = new Thread(() -> {
+			while(!stop.get()) {
+				rateLimiter.report();
+			}
+		});
+		reporter.start();
+		try {
+			// a new client's bucket is full, so a report may forget it as it is first taken from
+			for(int c=0;c<20000;c++) {
+				assertEquals("client "+c,5,drain(rateLimiter,"10.1."+(c/250)+"."+(c%250)));
+			}
+		} finally {
+			stop.set(true);
+			reporter.join();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.message.ErrorMsg;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.message.SearchPageReply;
+
+/**
+ * Opens more {@link SearchCursors} than a client may have, and a search with more hits
+ * than a cursor keeps, and checks what is kept and that everything is released once
+ * it has been paged through.
+ * @author aaron
+ *
+ */
+public class SearchCursorsTest {
+
+	private static List<IndexElement> hits(int n) {
+		FileDescr descr = new FileDescr(1000,512,"0123456789ABCDEF0123456789ABCDEF",
+				new String[] {"0123456789ABCDEF0123456789ABCDEF","FEDCBA9876543210FEDCBA9876543210"});
+		return Collections.nCopies(n,new IndexElement("10.0.0.1",3000,descr,"music/track.mp3","secret"));
+	}
+
+	private static Integer[] seedCounts(int n) {
+		Integer[] seedCounts = new Integer[n];
+		Arrays.fill(seedCounts,1);
+		return seedCounts;
+	}
+
+	@Test
+	public void aCursorKeepsAtMostMaxHits() {
+		SearchCursors cursors = new SearchCursors();
+		int n = SearchCursors.MAX_HITS*2;
+		SearchPageReply page = (SearchPageReply) cursors.open("10.0.0.9",hits(n),seedCounts(n),SearchCursors.MAX_PAGE_SIZE);
+		assertEquals(SearchCursors.MAX_HITS,page.numHits.intValue());
+		int paged = page.hits.length;
+		while(!page.cursor.isEmpty()) {
+			page = (SearchPageReply) cursors.next(page.cursor);
+			paged+=page.hits.length;
+		}
+		assertEquals(SearchCursors.MAX_HITS,paged);
+		assertEquals(0,cursors.size());
+		assertEquals(0,cursors.size("10.0.0.9"));
+	}
+
+	@Test
+	public void aClientKeepsAtMostItsShareOfCursors() {
+		SearchCursors cursors = new SearchCursors();
+		String other = ((SearchPageReply) cursors.open("10.0.0.2",hits(3),seedCounts(3),1)).cursor;
+		ArrayList<String> keys = new ArrayList<String>();
+		for(int i=0;i<SearchCursors.MAX_CLIENT_CURSORS+4;i++) {
+			keys.add(((SearchPageReply) cursors.open("10.0.0.1",hits(3),seedCounts(3),1)).cursor);
+		}
+		assertEquals(SearchCursors.MAX_CLIENT_CURSORS,cursors.size("10.0.0.1"));
+		assertEquals(SearchCursors.MAX_CLIENT_CURSORS+1,cursors.size());
+
+		// the client's oldest cursors were dropped for its new ones, and no one else's
+		int open = 0;
+		for(String key : keys) {
+			Message reply = cursors.next(key);
+			if(reply.getClass().getName()==SearchPageReply.class.getName()) {
+				open++;
+				assertEquals("",((SearchPageReply) cursors.next(((SearchPageReply) reply).cursor)).cursor);
+			} else {
+				assertEquals(ErrorMsg.class.getName(),reply.getClass().getName());
+			}
+		}
+		assertEquals(SearchCursors.MAX_CLIENT_CURSORS,open);
+		assertEquals(0,cursors.size("10.0.0.1"));
+		SearchPageReply page = (SearchPageReply) cursors.next(other);
+		assertEquals("",((SearchPageReply) cursors.next(page.cursor)).cursor);
+		assertEquals(0,cursors.size("10.0.0.2"));
+		assertEquals(0,cursors.size());
+	}
+}
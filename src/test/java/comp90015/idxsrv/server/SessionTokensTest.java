@@ -0,0 +1,75 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+import org.junit.Test;
+
+/**
+ * Issues tokens with {@link SessionTokens}, and checks that a token is accepted until
+ * it expires and not after, that a token that has been changed in any way is refused,
+ * its expiry time included, and that a token is only accepted with the secret it was
+ * issued with, by any server that has it.
+ * @author aaron
+ *
+ */
+public class SessionTokensTest {
+
+	private static byte[] decode(String token) {
+		return Base64.getUrlDecoder().decode(token);
+	}
+
+	private static String encode(byte[] bytes) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+
+	@Test
+	public void aTokenIsAcceptedUntilItExpires() throws InterruptedException {
+		SessionTokens sessionTokens = new SessionTokens("secret",200);
+		String token = sessionTokens.issue();
+		assertTrue(sessionTokens.verify(token));
+		Thread.sleep(300);
+		assertFalse(sessionTokens.verify(token));
+		assertTrue(sessionTokens.verify(sessionTokens.issue()));
+		assertFalse(new SessionTokens("secret",-1).verify(new SessionTokens("secret",-1).issue()));
+	}
+
+	@Test
+	public void aTamperedTokenIsRefused() {
+		SessionTokens sessionTokens = new SessionTokens("secret");
+		String token = sessionTokens.issue();
+		byte[] bytes = decode(token);
+		for(int i=0;i<bytes.length;i++) {
+			for(int bit=0;bit<8;bit++) {
+				byte[] tampered = bytes.clone();
+				tampered[i]^=1<<bit;
+				assertFalse("byte "+i+" bit "+bit,sessionTokens.verify(encode(tampered)));
+			}
+		}
+		// a later expiry, with the mac of the token as it was
+		byte[] extended = bytes.clone();
+		ByteBuffer.wrap(extended).putLong(ByteBuffer.wrap(bytes).getLong()+SessionTokens.TTL_MILLIS);
+		assertFalse(sessionTokens.verify(encode(extended)));
+		byte[] truncated = new byte[bytes.length-1];
+		System.arraycopy(bytes,0,truncated,0,truncated.length);
+		assertFalse(sessionTokens.verify(encode(truncated)));
+		assertFalse(sessionTokens.verify(token+"AA"));
+		assertFalse(sessionTokens.verify("not a token!"));
+		assertFalse(sessionTokens.verify(""));
+		assertTrue(sessionTokens.verify(token));
+	}
+
+	@Test
+	public void aTokenIsOnlyAcceptedWithTheSecretItWasIssuedWith() {
+		String token = new SessionTokens("secret").issue();
+		// another server of the cluster, or this one restarted, with the same secret
+		assertTrue(new SessionTokens("secret").verify(token));
+		assertFalse(new SessionTokens("secret2").verify(token));
+		assertFalse(new SessionTokens("").verify(token));
+		assertNotEquals(token,new SessionTokens("secret2").issue());
+	}
+}
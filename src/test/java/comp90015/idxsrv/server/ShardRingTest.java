@@ -0,0 +1,77 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Places file MD5 hashes on a {@link ShardRing}, and checks that every node owns a fair
+ * share of them, that the owner of a file does not depend on the order the nodes were
+ * given in, and that a node joining the ring only takes files from the others, about
+ * its share of them, and moves none between them.
+ * @author aaron
+ *
+ */
+public class ShardRingTest {
+
+	private static final int FILES = 20000;
+
+	private static final List<String> NODES = Arrays.asList("10.0.0.1:3200","10.0.0.2:3200","10.0.0.3:3200","10.0.0.4:3200");
+
+	private static String md5(int f) {
+		return String.format("%032X",f*7919L+1);
+	}
+
+	@Test
+	public void everyNodeOwnsAFairShare() {
+		ShardRing ring = new ShardRing(new HashSet<String>(NODES));
+		HashMap<String,Integer> owned = new HashMap<String,Integer>();
+		for(int f=0;f<FILES;f++) {
+			owned.merge(ring.owner(md5(f)),1,Integer::sum);
+		}
+		assertEquals(new HashSet<String>(NODES),owned.keySet());
+		for(String node : NODES) {
+			// a quarter each, give or take what the points leave uneven
+			int share = owned.get(node);
+			assertTrue(node+" owns "+share,share>FILES/4*0.7 && share<FILES/4*1.3);
+		}
+	}
+
+	@Test
+	public void theOwnerDoesNotDependOnTheOrderOfTheNodes() {
+		ShardRing ring = new ShardRing(new HashSet<String>(NODES));
+		ShardRing reversed = new ShardRing(new HashSet<String>(NODES.subList(2,4))).with(NODES.get(1)).with(NODES.get(0));
+		assertEquals(ring.getNodes(),reversed.getNodes());
+		for(int f=0;f<FILES;f++) {
+			assertEquals(ring.owner(md5(f)),reversed.owner(md5(f)));
+		}
+		ShardRing single = new ShardRing(new HashSet<String>(NODES.subList(0,1)));
+		for(int f=0;f<100;f++) {
+			assertEquals(NODES.get(0),single.owner(md5(f)));
+		}
+	}
+
+	@Test
+	public void aJoiningNodeOnlyTakesFilesFromTheOthers() {
+		ShardRing ring = new ShardRing(new HashSet<String>(NODES.subList(0,3)));
+		ShardRing more = ring.with(NODES.get(3));
+		assertSame(more,more.with(NODES.get(0)));
+		int moved = 0;
+		for(int f=0;f<FILES;f++) {
+			String before = ring.owner(md5(f));
+			String after = more.owner(md5(f));
+			if(!before.equals(after)) {
+				assertEquals(NODES.get(3),after);
+				moved++;
+			}
+		}
+		assertTrue("moved "+moved,moved>FILES/4*0.7 && moved<FILES/4*1.3);
+	}
+}
@@ -0,0 +1,166 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Test;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.message.ErrorMsg;
+import comp90015.idxsrv.message.LookupReply;
+import comp90015.idxsrv.message.LookupRequest;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.message.SearchReply;
+import comp90015.idxsrv.message.SearchRequest;
+import comp90015.idxsrv.message.ShardJoinRequest;
+import comp90015.idxsrv.message.ShardRequest;
+import comp90015.idxsrv.message.ShareReply;
+import comp90015.idxsrv.message.ShareRequest;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * Runs a cluster of index servers on this host, and checks that the files shared with
+ * any of them are indexed by the server that owns them on the ring, that a server
+ * joining the cluster is handed the files it now owns, and that the requests that
+ * servers forward to each other are refused unless they are signed with the cluster key.
+ * @author aaron
+ *
+ */
+public class ShardRouterTest {
+
+	private static final ITerminalLogger QUIET = new ITerminalLogger() {
+		public void logInfo(String msg) {}
+		public void logWarn(String msg) {}
+		public void logError(String msg) {}
+		public void logDebug(String msg) {}
+	};
+
+	private static final String CLUSTER_KEY = "k3y";
+
+	private ArrayList<Server> servers = new ArrayList<Server>();
+
+	@After
+	public void stop() throws InterruptedException {
+		for(Server server : servers) {
+			server.interrupt();
+			server.join();
+		}
+	}
+
+	private static int freePort() throws IOException {
+		try(ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static String node(int port) {
+		return "127.0.0.1:"+port;
+	}
+
+	/**
+	 * Start a server of a cluster, which may be a cluster of itself alone.
+	 */
+	private Server server(int port,String clusterKey,String... cluster) throws IOException {
+		Server server = new Server(port,InetAddress.getByName("127.0.0.1"),"welcome",".","secret",clusterKey,
+				5000,0,0,10,Server.MODE.VIRTUAL,null,0,Arrays.asList(cluster),null,0,0,0,QUIET);
+		server.start();
+		servers.add(server);
+		return server;
+	}
+
+	private static String md5(int f) {
+		return String.format("%032X",f*7919L+1);
+	}
+
+	private static ShareRequest shareRequest(int f) {
+		return new ShareRequest(new FileDescr(1000+f,512,md5(f),new String[] {md5(f),md5(f)}),"file"+f+".txt","secret",3000);
+	}
+
+	/**
+	 * @return the hits for the file in the server's own index, not the cluster's
+	 */
+	private static LookupReply lookupLocal(Server server,int f) {
+		return (LookupReply) server.processLocalRequest(new LookupRequest("file"+f+".txt",md5(f)),"10.0.0.1",5000);
+	}
+
+	private static boolean holds(Server server,int f) {
+		return lookupLocal(server,f).hits.length>0;
+	}
+
+	private static String error(Message reply) {
+		assertEquals(ErrorMsg.class.getName(),reply.getClass().getName());
+		return ((ErrorMsg) reply).msg;
+	}
+
+	@Test
+	public void aJoiningServerIsHandedTheFilesItOwns() throws Exception {
+		int portA = freePort();
+		int portB = freePort();
+		Server a = server(portA,CLUSTER_KEY,node(portA));
+		for(int f=0;f<200;f++) {
+			assertEquals(ShareReply.class.getName(),a.processRequest(shareRequest(f),"10.0.0.1",5000).getClass().getName());
+			assertTrue(holds(a,f));
+		}
+		Server b = server(portB,CLUSTER_KEY,node(portA));
+		ShardRing ring = new ShardRing(new HashSet<String>(Arrays.asList(node(portA),node(portB))));
+		long deadline = System.currentTimeMillis()+10*1000;
+		boolean handedOver = false;
+		while(!handedOver && System.currentTimeMillis()<deadline) {
+			Thread.sleep(50);
+			handedOver = true;
+			for(int f=0;f<200 && handedOver;f++) {
+				Server owner = ring.owner(md5(f)).equals(node(portA)) ? a : b;
+				Server other = owner==a ? b : a;
+				handedOver = holds(owner,f) && !holds(other,f);
+			}
+		}
+		assertTrue("files not handed over to "+node(portB),handedOver);
+		// both servers now route to the owner, whichever a file is shared with
+		int ownedByB = 0;
+		for(int f=200;f<400;f++) {
+			Server owner = ring.owner(md5(f)).equals(node(portA)) ? a : b;
+			Server other = owner==a ? b : a;
+			assertEquals(ShareReply.class.getName(),(f%2==0 ? a : b).processRequest(shareRequest(f),"10.0.0.1",5000).getClass().getName());
+			assertTrue(holds(owner,f));
+			assertFalse(holds(other,f));
+			if(owner==b) ownedByB++;
+		}
+		assertTrue(ownedByB>0 && ownedByB<200);
+		LookupReply lookup = (LookupReply) b.processRequest(new LookupRequest("file7.txt",md5(7)),"10.0.0.2",5000);
+		assertEquals("10.0.0.1",lookup.hits[0].ip);
+		SearchReply search = (SearchReply) a.processRequest(new SearchRequest(0,new String[] {"file"}),"10.0.0.2",5000);
+		assertEquals(400,search.hits.length);
+	}
+
+	@Test
+	public void requestsNotSignedWithTheClusterKeyAreRefused() throws Exception {
+		int port = freePort();
+		Server server = server(port,CLUSTER_KEY,node(port));
+		ClusterKey clusterKey = new ClusterKey(CLUSTER_KEY);
+		ClusterKey wrongKey = new ClusterKey("wrong");
+		assertEquals("Not a member of the cluster",error(server.processRequest(new ShardRequest("10.0.0.9",shareRequest(1)),"10.0.0.1",5000)));
+		assertEquals("Not a member of the cluster",error(server.processRequest(wrongKey.sign(new ShardRequest("10.0.0.9",shareRequest(1))),"10.0.0.1",5000)));
+		ShardRequest tampered = clusterKey.sign(new ShardRequest("10.0.0.9",shareRequest(1)));
+		tampered.ip="10.0.0.8";
+		assertEquals("Not a member of the cluster",error(server.processRequest(tampered,"10.0.0.1",5000)));
+		ShardRequest stale = clusterKey.sign(new ShardRequest("10.0.0.9",shareRequest(1)));
+		stale.time-=ClusterKey.MAX_SKEW_MILLIS+1000;
+		assertEquals("Not a member of the cluster",error(server.processRequest(stale,"10.0.0.1",5000)));
+		assertEquals("Not a member of the cluster",error(server.processRequest(new ShardJoinRequest(node(1)),"10.0.0.1",5000)));
+		assertEquals("Not a member of the cluster",error(server.processRequest(wrongKey.sign(new ShardJoinRequest(node(1))),"10.0.0.1",5000)));
+		assertFalse(holds(server,1));
+		// signed with the key, the share is made on behalf of the client it names
+		Message reply = server.processRequest(clusterKey.sign(new ShardRequest("10.0.0.9",shareRequest(1))),"10.0.0.1",5000);
+		assertEquals(ShareReply.class.getName(),reply.getClass().getName());
+		assertEquals("10.0.0.9",lookupLocal(server,1).hits[0].ip);
+	}
+}